@@ -0,0 +1,101 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.benchmark;
+
+import com.actelion.research.chem.Canonizer;
+import com.actelion.research.chem.SmilesParser;
+import com.actelion.research.chem.StereoMolecule;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Provides the fixed molecule set, which is bundled with the benchmarks, in various
+ * representations. All benchmarks use the same molecules to make results comparable
+ * between runs and OpenChemLib versions.
+ */
+public class BenchmarkMolecules {
+	private static final String RESOURCE = "molecules.smi";
+
+	private static String[] sSmiles;
+
+	public static synchronized String[] getSmiles() {
+		if (sSmiles == null) {
+			ArrayList<String> smilesList = new ArrayList<>();
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+					BenchmarkMolecules.class.getResourceAsStream(RESOURCE), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = reader.readLine()) != null)
+					if (line.length() != 0)
+						smilesList.add(line.split("\\t")[0]);
+				}
+			catch (IOException ioe) {
+				throw new RuntimeException("Could not read benchmark molecules", ioe);
+				}
+			sSmiles = smilesList.toArray(new String[0]);
+			}
+		return sSmiles;
+		}
+
+	/**
+	 * @return new molecule instances with 2D-coordinates and all helper arrays
+	 */
+	public static StereoMolecule[] getMolecules() {
+		String[] smiles = getSmiles();
+		StereoMolecule[] mol = new StereoMolecule[smiles.length];
+		SmilesParser parser = new SmilesParser();
+		for (int i=0; i<smiles.length; i++) {
+			mol[i] = new StereoMolecule();
+			try {
+				parser.parse(mol[i], smiles[i]);
+				}
+			catch (Exception e) {
+				throw new RuntimeException("Invalid benchmark SMILES: "+smiles[i], e);
+				}
+			mol[i].ensureHelperArrays(StereoMolecule.cHelperCIP);
+			}
+		return mol;
+		}
+
+	public static String[] getIDCodes() {
+		StereoMolecule[] mol = getMolecules();
+		String[] idcode = new String[mol.length];
+		for (int i=0; i<mol.length; i++)
+			idcode[i] = new Canonizer(mol[i]).getIDCode();
+		return idcode;
+		}
+	}
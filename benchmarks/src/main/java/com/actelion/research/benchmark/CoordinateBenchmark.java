@@ -0,0 +1,85 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.benchmark;
+
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.chem.coords.CoordinateInventor;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openmolecules.chem.conf.gen.ConformerGenerator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures 2D-coordinate generation and the generation of one 3D-conformer
+ * for every molecule of the molecule set. Molecules are copied before every
+ * invocation, because both operations modify the molecule.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CoordinateBenchmark {
+	private StereoMolecule[] mMolecule,mCopy;
+
+	@Setup
+	public void setup() {
+		mMolecule = BenchmarkMolecules.getMolecules();
+		mCopy = new StereoMolecule[mMolecule.length];
+		}
+
+	@Setup(Level.Invocation)
+	public void copyMolecules() {
+		for (int i=0; i<mMolecule.length; i++)
+			mCopy[i] = new StereoMolecule(mMolecule[i]);
+		}
+
+	@Benchmark
+	public void invent2DCoordinates(Blackhole blackhole) {
+		for (StereoMolecule mol:mCopy) {
+			new CoordinateInventor().invent(mol);
+			blackhole.consume(mol);
+			}
+		}
+
+	@Benchmark
+	public void generateOneConformer(Blackhole blackhole) {
+		// fixed seed for reproducible conformers
+		ConformerGenerator generator = new ConformerGenerator(12345L, false);
+		for (StereoMolecule mol:mCopy)
+			blackhole.consume(generator.getOneConformerAsMolecule(mol));
+		}
+	}
@@ -0,0 +1,80 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.benchmark;
+
+import com.actelion.research.chem.SSSearcher;
+import com.actelion.research.chem.SmilesParser;
+import com.actelion.research.chem.StereoMolecule;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the graph matching of SSSearcher without any fingerprint based pre-screening.
+ * Every invocation matches one fragment against the complete molecule set.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubstructureSearchBenchmark {
+	@Param({"c1ccccc1", "C(=O)[OH]", "C(=O)N", "c1ccc2ccccc2c1"})
+	private String mFragmentSmiles;
+
+	private StereoMolecule mFragment;
+	private StereoMolecule[] mMolecule;
+	private SSSearcher mSearcher;
+
+	@Setup
+	public void setup() throws Exception {
+		mFragment = new StereoMolecule();
+		new SmilesParser().parse(mFragment, mFragmentSmiles);
+		mFragment.setFragment(true);
+		mMolecule = BenchmarkMolecules.getMolecules();
+		mSearcher = new SSSearcher();
+		}
+
+	@Benchmark
+	public int findFragmentInMolecule() {
+		int matchCount = 0;
+		mSearcher.setFragment(mFragment);
+		for (StereoMolecule mol:mMolecule) {
+			mSearcher.setMolecule(mol);
+			matchCount += mSearcher.findFragmentInMolecule();
+			}
+		return matchCount;
+		}
+	}
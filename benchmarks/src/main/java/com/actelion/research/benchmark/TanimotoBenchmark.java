@@ -0,0 +1,96 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.benchmark;
+
+import com.actelion.research.chem.SSSearcherWithIndex;
+import com.actelion.research.chem.descriptor.DescriptorHandlerLongFFP512;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the per pair FFP512 similarity calculation through the descriptor handler
+ * with the batch Tanimoto kernel working on a packed fingerprint block.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TanimotoBenchmark {
+	private static final int LONG_COUNT = 8;
+
+	@Param({"100000"})
+	private int mCount;
+
+	private DescriptorHandlerLongFFP512 mHandler;
+	private long[][] mFingerprint;
+	private long[] mPackedFingerprints,mQuery;
+	private float[] mSimilarity;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(12345);
+		mHandler = DescriptorHandlerLongFFP512.getDefaultInstance();
+		mFingerprint = new long[mCount][];
+		for (int i=0; i<mCount; i++)
+			mFingerprint[i] = createFingerprint(random);
+		mQuery = createFingerprint(random);
+		mPackedFingerprints = SSSearcherWithIndex.packLongIndexes(mFingerprint, 0, mCount, LONG_COUNT);
+		mSimilarity = new float[mCount];
+		}
+
+	private static long[] createFingerprint(Random random) {
+		// sparse like real FFP512 fingerprints with roughly 1/8 of all bits set
+		long[] fp = new long[LONG_COUNT];
+		for (int i=0; i<LONG_COUNT; i++)
+			fp[i] = random.nextLong() & random.nextLong() & random.nextLong();
+		return fp;
+		}
+
+	@Benchmark
+	public float[] perPairSimilarity() {
+		for (int i=0; i<mCount; i++)
+			mSimilarity[i] = mHandler.getSimilarity(mQuery, mFingerprint[i]);
+		return mSimilarity;
+		}
+
+	@Benchmark
+	public float[] batchSimilarity() {
+		mHandler.getSimilarities(mQuery, mPackedFingerprints, mCount, mSimilarity);
+		return mSimilarity;
+		}
+	}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 1997 - 2016
+ * Actelion Pharmaceuticals Ltd.
+ * Gewerbestrasse 16
+ * CH-4123 Allschwil, Switzerland
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the the copyright holder nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.actelion.research.chem;
+
+import com.actelion.research.calc.DataProcessor;
+import com.actelion.research.chem.descriptor.DescriptorHandler;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sphere exclusion clustering (Butina, J. Chem. Inf. Comput. Sci. 1999, 39, 747-750) for large compound sets.
+ * Unlike the Clusterer, which keeps a full similarity matrix, this class only keeps for every compound
+ * the list of neighbours, whose similarity reaches the similarity limit. Thus, memory is proportional to the
+ * number of above-limit pairs. Neighbour lists are calculated on all available cores with any DescriptorHandler.
+ * Compounds are taken as cluster centroids in the order of decreasing neighbour count. Every centroid forms
+ * a cluster with all of its neighbours, which are not yet part of another cluster. Centroids are the
+ * cluster representatives.
+ */
+public class ButinaClusterer<T> extends DataProcessor {
+	private volatile T[]			mDescriptor;
+	private volatile DescriptorHandler<T,?> mDescriptorHandler;
+	private volatile int			mNoOfCompounds;
+	private volatile int[][]		mNeighbour;
+	private volatile AtomicInteger	mSMPCompoundIndex;
+
+	private int[]					mClusterNo;
+	private boolean[]				mIsRepresentative;
+	private int						mNoOfClusters,mThreadCount;
+	private AtomicReference<Throwable> mWorkerFailure;
+
+	public ButinaClusterer(DescriptorHandler<T,?> descriptorHandler, T[] descriptor) {
+		mDescriptorHandler = descriptorHandler;
+		mDescriptor = descriptor;
+		mNoOfCompounds = mDescriptor.length;
+		mThreadCount = Runtime.getRuntime().availableProcessors();
+		}
+
+	public void setThreadCount(int threadCount) {
+		mThreadCount = Math.max(1, threadCount);
+		}
+
+	/**
+	 * Clusters all compounds such that every compound's similarity to its cluster's representative
+	 * is at least similarityLimit.
+	 * @param similarityLimit >0...<=1.0
+	 */
+	public void cluster(double similarityLimit) {
+		calculateNeighbours((float)similarityLimit);
+		if (threadMustDie()) {
+			stopProgress("clustering cancelled");
+			return;
+			}
+
+		// sort by decreasing neighbour count and then by index; primitive keys avoid millions of boxed objects
+		long[] order = new long[mNoOfCompounds];
+		for (int i=0; i<mNoOfCompounds; i++)
+			order[i] = ((long)(mNoOfCompounds - mNeighbour[i].length) << 32) | i;
+		Arrays.sort(order);
+
+		startProgress("Clustering Compounds...", 0, mNoOfCompounds);
+		mClusterNo = new int[mNoOfCompounds];
+		Arrays.fill(mClusterNo, -1);
+		mIsRepresentative = new boolean[mNoOfCompounds];
+		mNoOfClusters = 0;
+		int assigned = 0;
+		for (int i=0; i<mNoOfCompounds; i++) {
+			int centroid = (int)order[i];
+			if (mClusterNo[centroid] != -1)
+				continue;
+
+			mClusterNo[centroid] = centroid;
+			mIsRepresentative[centroid] = true;
+			assigned++;
+			for (int neighbour:mNeighbour[centroid]) {
+				if (mClusterNo[neighbour] == -1) {
+					mClusterNo[neighbour] = centroid;
+					assigned++;
+					}
+				}
+			mNoOfClusters++;
+
+			if ((mNoOfClusters & 0x3FF) == 0) {
+				if (threadMustDie()) {
+					stopProgress("clustering cancelled");
+					return;
+					}
+				updateProgress(assigned);
+				}
+			}
+
+		stopProgress("clustering finished");
+		}
+
+	public boolean isRepresentative(int compound) {
+		return mIsRepresentative[compound];
+		}
+
+	/**
+	 * @param compound
+	 * @return the cluster number, which is the index of the cluster's representative unless regenerateClusterNos() was called
+	 */
+	public int getClusterNo(int compound) {
+		return mClusterNo[compound];
+		}
+
+	public int getClusterCount() {
+		return mNoOfClusters;
+		}
+
+	/**
+	 * @param compound
+	 * @return number of compounds with a similarity to compound of at least the similarity limit
+	 */
+	public int getNeighbourCount(int compound) {
+		return mNeighbour[compound].length;
+		}
+
+	/**
+	 * Renumber cluster numbers starting at 1 to eliminate unused numbers.
+	 */
+	public void regenerateClusterNos() {
+		int[] newClusterNo = new int[mNoOfCompounds];
+		int clusterNo = 1;
+		for (int i=0; i<mNoOfCompounds; i++) {
+			if (newClusterNo[mClusterNo[i]] == 0)
+				newClusterNo[mClusterNo[i]] = clusterNo++;
+			mClusterNo[i] = newClusterNo[mClusterNo[i]];
+			}
+		}
+
+	/**
+	 * Calculates for every compound the lower indexed compounds with a similarity of at least similarityLimit
+	 * and then merges these lists into symmetric neighbour lists.
+	 * @throws RuntimeException if a worker failed to calculate similarities
+	 */
+	private void calculateNeighbours(float similarityLimit) {
+		startProgress("Calculating Similaries...", 0, 1000);
+		int[][] lowerNeighbour = new int[mNoOfCompounds][];
+		mSMPCompoundIndex = new AtomicInteger(mNoOfCompounds);
+		mWorkerFailure = new AtomicReference<>();
+		if (mThreadCount == 1) {
+			new NeighbourWorker(similarityLimit, lowerNeighbour, null).run();
+			}
+		else {
+			ExecutorService executor = Executors.newFixedThreadPool(mThreadCount);
+			CountDownLatch doneSignal = new CountDownLatch(mThreadCount);
+			for (int t=0; t<mThreadCount; t++)
+				executor.execute(new NeighbourWorker(similarityLimit, lowerNeighbour, doneSignal));
+			try {
+				doneSignal.await();
+				}
+			catch (InterruptedException e) {}
+			executor.shutdown();
+			}
+
+		if (mWorkerFailure.get() != null) {
+			stopProgress("clustering failed");
+			throw new RuntimeException("Similarity calculation failed", mWorkerFailure.get());
+			}
+
+		if (threadMustDie())
+			return;
+
+		int[] count = new int[mNoOfCompounds];
+		for (int i=0; i<mNoOfCompounds; i++) {
+			count[i] += lowerNeighbour[i].length;
+			for (int j:lowerNeighbour[i])
+				count[j]++;
+			}
+		mNeighbour = new int[mNoOfCompounds][];
+		for (int i=0; i<mNoOfCompounds; i++)
+			mNeighbour[i] = new int[count[i]];
+		Arrays.fill(count, 0);
+		for (int i=0; i<mNoOfCompounds; i++) {
+			for (int j:lowerNeighbour[i]) {
+				mNeighbour[i][count[i]++] = j;
+				mNeighbour[j][count[j]++] = i;
+				}
+			lowerNeighbour[i] = null;
+			}
+		}
+
+	private class NeighbourWorker implements Runnable {
+		private final float mSimilarityLimit;
+		private final int[][] mLowerNeighbour;
+		private final CountDownLatch mDoneSignal;
+		private final DescriptorHandler<T,?> mThreadSafeDH;
+		private int[] mBuffer;
+
+		public NeighbourWorker(float similarityLimit, int[][] lowerNeighbour, CountDownLatch doneSignal) {
+			mSimilarityLimit = similarityLimit;
+			mLowerNeighbour = lowerNeighbour;
+			mDoneSignal = doneSignal;
+			mThreadSafeDH = (doneSignal == null) ? mDescriptorHandler : mDescriptorHandler.getThreadSafeCopy();
+			mBuffer = new int[64];
+			}
+
+		public void run() {
+			try {
+				int compound2 = mSMPCompoundIndex.decrementAndGet();
+				while (compound2 >= 0 && !threadMustDie() && mWorkerFailure.get() == null) {
+					int count = 0;
+					for (int compound1=0; compound1<compound2; compound1++) {
+						if (mThreadSafeDH.getSimilarity(mDescriptor[compound1], mDescriptor[compound2]) >= mSimilarityLimit) {
+							if (count == mBuffer.length)
+								mBuffer = Arrays.copyOf(mBuffer, 2*count);
+							mBuffer[count++] = compound1;
+							}
+						}
+					mLowerNeighbour[compound2] = Arrays.copyOf(mBuffer, count);
+
+					compound2 = mSMPCompoundIndex.decrementAndGet();
+					updateProgress(1000-(int)(1000.0*compound2*compound2/mNoOfCompounds/mNoOfCompounds));
+					}
+				}
+			catch (Throwable t) {
+				mWorkerFailure.compareAndSet(null, t);	// lets the other workers stop early
+				}
+			finally {
+				if (mDoneSignal != null)
+					mDoneSignal.countDown();
+				}
+			}
+		}
+	}
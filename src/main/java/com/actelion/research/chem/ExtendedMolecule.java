@@ -74,6 +74,7 @@ public class ExtendedMolecule extends Molecule implements Serializable {
 	transient private int[] mPi;
 	transient private int[] mConnAtoms;	// non-H neighbour counts
 	transient private int[] mAllConnAtoms;	// neighbour counts including explicit hydrogen
+	transient private int[] mAllConnAtomsPlusMetalBonds;	// neighbour counts including metal bonded atoms
 	transient private int[][] mConnAtom;
 	transient private int[][] mConnBond;
 	transient private int[][] mConnBondOrder;
@@ -407,7 +408,7 @@ public class ExtendedMolecule extends Molecule implements Serializable {
 	 * @return count of neighbour atoms connected by a 0-order metal ligand bond
 	 */
 	public int getMetalBondedConnAtoms(int atom) {
-		return mConnAtom[atom].length - mAllConnAtoms[atom];
+		return mAllConnAtomsPlusMetalBonds[atom] - mAllConnAtoms[atom];
 		}
 
 
@@ -583,7 +584,7 @@ public class ExtendedMolecule extends Molecule implements Serializable {
 	 * @return count of category 1 & 2 & 3 neighbour atoms
 	 */
 	public int getAllConnAtomsPlusMetalBonds(int atom) {
-		return mConnAtom[atom].length;
+		return mAllConnAtomsPlusMetalBonds[atom];
 		}
 
 
@@ -4035,24 +4036,44 @@ public class ExtendedMolecule extends Molecule implements Serializable {
 		}
 
 
+	/**
+	 * Neighbour arrays are reused, if they are large enough. Thus, a molecule that is
+	 * repeatedly cleared and re-populated, e.g. by IDCodeParser.parse(), causes
+	 * allocations only when it grows beyond any of its previous sizes.
+	 */
 	private void calculateNeighbours() {
-		mConnAtoms = new int[mAllAtoms];
-		mAllConnAtoms = new int[mAllAtoms];
-		mConnAtom = new int[mAllAtoms][];
-		mConnBond = new int[mAllAtoms][];
-		mConnBondOrder = new int[mAllAtoms][];
-		mPi = new int[mAtoms];
-
-		int[] connCount = new int[mAllAtoms];
+		if (mConnAtoms == null || mConnAtoms.length < mAllAtoms) {
+			int size = Math.max(mAllAtoms, mMaxAtoms);
+			mConnAtoms = new int[size];
+			mAllConnAtoms = new int[size];
+			mAllConnAtomsPlusMetalBonds = new int[size];
+			mConnAtom = new int[size][];
+			mConnBond = new int[size][];
+			mConnBondOrder = new int[size][];
+			}
+		else {
+			Arrays.fill(mConnAtoms, 0, mAllAtoms, 0);
+			Arrays.fill(mAllConnAtoms, 0, mAllAtoms, 0);
+			Arrays.fill(mAllConnAtomsPlusMetalBonds, 0, mAllAtoms, 0);
+			}
+
+		if (mPi == null || mPi.length < mAtoms)
+			mPi = new int[mConnAtoms.length];
+		else
+			Arrays.fill(mPi, 0, mAtoms, 0);
+
+		int[] connCount = mAllConnAtomsPlusMetalBonds;
 		for(int bnd=0; bnd<mAllBonds; bnd++) {
 			connCount[mBondAtom[0][bnd]]++;
 			connCount[mBondAtom[1][bnd]]++;
 			}
 
 		for(int atom=0; atom<mAllAtoms; atom++) {
-			mConnAtom[atom] = new int[connCount[atom]];
-			mConnBond[atom] = new int[connCount[atom]];
-			mConnBondOrder[atom] = new int[connCount[atom]];
+			if (mConnAtom[atom] == null || mConnAtom[atom].length < connCount[atom]) {
+				mConnAtom[atom] = new int[connCount[atom]];
+				mConnBond[atom] = new int[connCount[atom]];
+				mConnBondOrder[atom] = new int[connCount[atom]];
+				}
 			}
 
 		boolean metalBondFound = false;
@@ -0,0 +1,287 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem;
+
+import com.actelion.research.chem.descriptor.DescriptorConstants;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * Inverted index over long based fingerprints as created by SSSearcherWithIndex.createLongIndex().
+ * For every fingerprint bit the index keeps a compressed posting list of all rows having
+ * this bit set. Like in roaring bitmaps, rows are grouped into chunks of 65536, and every
+ * non-empty chunk of a posting list is stored either as sorted array of the lower 16 row bits
+ * or, if it contains more than 4096 rows, as bitmap.<br>
+ * A substructure query needs to intersect the posting lists of its set bits only, which
+ * for selective queries is considerably faster than checking every row's fingerprint.
+ * The rows returned by getCandidateRows() are exactly those rows, for which
+ * SSSearcherWithIndex.isFragmentIndexInMoleculeIndex() would return true.
+ * The index is immutable and may be used concurrently by multiple threads.
+ */
+public class FingerprintPostingIndex {
+	private static final int CHUNK_BITS = 16;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int BITMAP_LONGS = CHUNK_SIZE / 64;
+	private static final int MAX_ARRAY_SIZE = 4096;
+
+	private final int mRowCount,mBitCount,mChunkCount;
+	private final Object[][] mContainer;	// [bit][chunk]: null, char[] or long[]
+	private final int[] mCardinality;
+
+	/**
+	 * Creates an index from an array of fingerprints.
+	 * @param fingerprint one fingerprint per row; null for rows without structure
+	 */
+	public FingerprintPostingIndex(final long[][] fingerprint) {
+		this(fingerprint.length, row -> fingerprint[row]);
+		}
+
+	/**
+	 * Creates an index from the FFP512 descriptors of a StructureSearchDataSource.
+	 * If a row contains multiple structures, then the row's fingerprint is the OR
+	 * of all structure fingerprints, since any of them may match.
+	 * @param dataSource must provide FFP512 descriptors
+	 */
+	public FingerprintPostingIndex(final StructureSearchDataSource dataSource) {
+		this(dataSource.getRowCount(), new IntFunction<long[]>() {
+			private final int mColumn = dataSource.getDescriptorColumn(DescriptorConstants.DESCRIPTOR_FFP512.shortName);
+			@Override
+			public long[] apply(int row) {
+				int structureCount = dataSource.getStructureCount(row);
+				if (structureCount == 0)
+					return null;
+				long[] fp = (long[])dataSource.getDescriptor(mColumn, row, 0, false);
+				if (structureCount == 1 || fp == null)
+					return fp;
+				fp = fp.clone();
+				for (int i=1; i<structureCount; i++) {
+					long[] fpi = (long[])dataSource.getDescriptor(mColumn, row, i, false);
+					if (fpi != null)
+						for (int j=0; j<Math.min(fp.length, fpi.length); j++)
+							fp[j] |= fpi[j];
+					}
+				return fp;
+				}
+			});
+		}
+
+	/**
+	 * Creates an index with two passes over all fingerprints. The first pass determines
+	 * the cardinality of every chunk, the second one populates the containers.
+	 * @param rowCount
+	 * @param fingerprintSource supplies the fingerprint of a row or null
+	 */
+	public FingerprintPostingIndex(int rowCount, IntFunction<long[]> fingerprintSource) {
+		mRowCount = rowCount;
+		mChunkCount = (rowCount + CHUNK_SIZE - 1) >>> CHUNK_BITS;
+
+		int longCount = 0;
+		for (int row=0; row<rowCount && longCount == 0; row++) {
+			long[] fp = fingerprintSource.apply(row);
+			if (fp != null)
+				longCount = fp.length;
+			}
+
+		// the last posting list contains all rows that have a fingerprint at all
+		mBitCount = 64 * longCount;
+		int[][] count = new int[mBitCount+1][mChunkCount];
+		for (int row=0; row<rowCount; row++) {
+			long[] fp = fingerprintSource.apply(row);
+			if (fp != null) {
+				int chunk = row >>> CHUNK_BITS;
+				count[mBitCount][chunk]++;
+				for (int i=0; i<longCount; i++)
+					for (long l=fp[i]; l!=0; l&=l-1)
+						count[64*i+Long.numberOfTrailingZeros(l)][chunk]++;
+				}
+			}
+
+		mContainer = new Object[mBitCount+1][mChunkCount];
+		mCardinality = new int[mBitCount+1];
+		for (int bit=0; bit<=mBitCount; bit++) {
+			for (int chunk=0; chunk<mChunkCount; chunk++) {
+				int n = count[bit][chunk];
+				if (n != 0)
+					mContainer[bit][chunk] = (n > MAX_ARRAY_SIZE) ? new long[BITMAP_LONGS] : new char[n];
+				mCardinality[bit] += n;
+				count[bit][chunk] = 0;	// is reused as array fill pointer
+				}
+			}
+
+		for (int row=0; row<rowCount; row++) {
+			long[] fp = fingerprintSource.apply(row);
+			if (fp != null) {
+				add(mBitCount, row, count);
+				for (int i=0; i<longCount; i++)
+					for (long l=fp[i]; l!=0; l&=l-1)
+						add(64*i+Long.numberOfTrailingZeros(l), row, count);
+				}
+			}
+		}
+
+	private void add(int bit, int row, int[][] fillCount) {
+		int chunk = row >>> CHUNK_BITS;
+		int low = row & (CHUNK_SIZE - 1);
+		Object container = mContainer[bit][chunk];
+		if (container instanceof char[])
+			((char[])container)[fillCount[bit][chunk]++] = (char)low;
+		else
+			((long[])container)[low >>> 6] |= (1L << low);
+		}
+
+	public int getRowCount() {
+		return mRowCount;
+		}
+
+	/**
+	 * @param bit fingerprint bit in the order of longs and, within a long, from lowest to highest bit
+	 * @return number of rows having this bit set
+	 */
+	public int getBitCardinality(int bit) {
+		return mCardinality[bit];
+		}
+
+	/**
+	 * Determines all rows whose fingerprint contains all bits of the fragment fingerprint
+	 * by intersecting the posting lists of the fragment's set bits.
+	 * @param fragmentIndex fingerprint of the query fragment
+	 * @return sorted rows that may contain the fragment and need to be checked by graph matching
+	 */
+	public int[] getCandidateRows(long[] fragmentIndex) {
+		int longCount = Math.min(fragmentIndex.length, mBitCount/64);
+		int bitCount = 1;
+		for (int i=0; i<longCount; i++)
+			bitCount += Long.bitCount(fragmentIndex[i]);
+
+		Integer[] order = new Integer[bitCount];
+		bitCount = 0;
+		order[bitCount++] = mBitCount;
+		for (int i=0; i<longCount; i++)
+			for (long l=fragmentIndex[i]; l!=0; l&=l-1)
+				order[bitCount++] = 64*i+Long.numberOfTrailingZeros(l);
+
+		// most selective posting lists first
+		Arrays.sort(order, (b1, b2) -> Integer.compare(mCardinality[b1], mCardinality[b2]));
+		if (mCardinality[order[0]] == 0)
+			return new int[0];
+
+		int[] result = new int[mCardinality[order[0]]];
+		int resultCount = 0;
+		long[] bitmap = new long[BITMAP_LONGS];
+		Object[] container = new Object[bitCount];
+		for (int chunk=0; chunk<mChunkCount; chunk++) {
+			boolean isEmpty = false;
+			for (int i=0; i<bitCount && !isEmpty; i++) {
+				container[i] = mContainer[order[i]][chunk];
+				isEmpty = (container[i] == null);
+				}
+			if (isEmpty)
+				continue;
+
+			// the global order by cardinality doesn't tell, which container is the smallest in this chunk:
+			// any array container is smaller than any bitmap, thus drive the intersection by the shortest array
+			int driver = -1;
+			for (int i=0; i<bitCount; i++)
+				if (container[i] instanceof char[]
+				 && (driver == -1 || ((char[])container[i]).length < ((char[])container[driver]).length))
+					driver = i;
+
+			int base = chunk << CHUNK_BITS;
+			if (driver != -1) {
+				for (char low:(char[])container[driver])
+					if (containsAll(container, driver, low))
+						result[resultCount++] = base + low;
+				}
+			else {
+				// all containers of this chunk are bitmaps
+				System.arraycopy(container[0], 0, bitmap, 0, BITMAP_LONGS);
+				for (int i=1; i<bitCount; i++) {
+					long[] other = (long[])container[i];
+					for (int j=0; j<BITMAP_LONGS; j++)
+						bitmap[j] &= other[j];
+					}
+				for (int j=0; j<BITMAP_LONGS; j++)
+					for (long l=bitmap[j]; l!=0; l&=l-1)
+						result[resultCount++] = base + 64*j + Long.numberOfTrailingZeros(l);
+				}
+			}
+
+		return Arrays.copyOf(result, resultCount);
+		}
+
+	/**
+	 * Determines all rows that may contain at least one of multiple query fragments.
+	 * @param fragmentIndex fingerprints of the query fragments
+	 * @return sorted rows being candidates for at least one fragment
+	 */
+	public int[] getCandidateRows(long[][] fragmentIndex) {
+		if (fragmentIndex.length == 1)
+			return getCandidateRows(fragmentIndex[0]);
+
+		boolean[] isCandidate = new boolean[mRowCount];
+		int count = 0;
+		for (long[] index:fragmentIndex) {
+			for (int row:getCandidateRows(index)) {
+				if (!isCandidate[row]) {
+					isCandidate[row] = true;
+					count++;
+					}
+				}
+			}
+
+		int[] result = new int[count];
+		count = 0;
+		for (int row=0; row<mRowCount; row++)
+			if (isCandidate[row])
+				result[count++] = row;
+		return result;
+		}
+
+	private static boolean containsAll(Object[] container, int driver, char low) {
+		for (int i=0; i<container.length; i++) {
+			if (i == driver)
+				continue;
+			if (container[i] instanceof char[]) {
+				if (Arrays.binarySearch((char[])container[i], low) < 0)
+					return false;
+				}
+			else {
+				if ((((long[])container[i])[low >>> 6] & (1L << low)) == 0)
+					return false;
+				}
+			}
+		return true;
+		}
+	}
@@ -36,6 +36,7 @@ package com.actelion.research.chem;
 import com.actelion.research.util.DoubleFormat;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * Typically you should use IDCodeParser instead of this class. You may instantiate this class
@@ -51,6 +52,7 @@ import java.nio.charset.StandardCharsets;
 public class IDCodeParserWithoutCoordinateInvention {
 	private StereoMolecule	mMol;
 	private byte[]			mDecodingBytes;
+	private boolean[]		mIsDelocalizedBond;
 	private	int				mIDCodeBitsAvail,mIDCodeTempData,mIDCodeBufferIndex;
 	private boolean         mNeglectSpaceDelimitedCoordinates;
 
@@ -213,6 +215,10 @@ public class IDCodeParserWithoutCoordinateInvention {
 
 	/**
 	 * Parses the idcode and populates the given molecule to represent the passed idcode.
+	 * The molecule is cleared first. Its atom and bond arrays as well as its helper arrays
+	 * are reused, if they are large enough. Therefore, a worker that decodes a stream of
+	 * idcodes into the same StereoMolecule with the same parser creates hardly any garbage,
+	 * which is not the case with getCompactMolecule().
 	 * @param mol molecule object to be filled with the idcode content
 	 * @param idcode may be null
 	 * @param coordinates may be null
@@ -340,13 +346,20 @@ public class IDCodeParserWithoutCoordinateInvention {
 			mMol.addBond(decodeBits(abits),
 						 decodeBits(abits), Molecule.cBondTypeSingle);
 
-		boolean[] isDelocalizedBond = new boolean[allBonds];
+		// reused between parse() calls to keep decoding into the same molecule garbage free
+		if (mIsDelocalizedBond == null || mIsDelocalizedBond.length < allBonds)
+			mIsDelocalizedBond = new boolean[Math.max(allBonds, mol.getMaxBonds())];
+		else
+			Arrays.fill(mIsDelocalizedBond, 0, allBonds, false);
+		boolean[] isDelocalizedBond = mIsDelocalizedBond;
+		boolean delocalizedBondFound = false;
 
 		for (int bond=0; bond<allBonds; bond++) {
 			int bondOrder = decodeBits(2);
 			switch (bondOrder) {
 			case 0:
 				isDelocalizedBond[bond] = true;
+				delocalizedBondFound = true;
 				break;
 			case 2:
 				mMol.setBondType(bond, Molecule.cBondTypeDouble);
@@ -761,7 +774,8 @@ public class IDCodeParserWithoutCoordinateInvention {
 				}
 			}
 
-		new AromaticityResolver(mMol).locateDelocalizedDoubleBonds(isDelocalizedBond);
+		if (delocalizedBondFound)
+			new AromaticityResolver(mMol).locateDelocalizedDoubleBonds(isDelocalizedBond);
 
 		if (aromaticSPBond != null)
 			for (int bond:aromaticSPBond)
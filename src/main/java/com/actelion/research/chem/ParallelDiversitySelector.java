@@ -0,0 +1,282 @@
+package com.actelion.research.chem;
+
+import com.actelion.research.calc.DataProcessor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Multi-threaded diversity selection from large sets of binary fingerprints.
+ * Every candidate keeps a running score in a primitive array, which is updated incrementally
+ * whenever a compound is added to the selected set. Every selection round is one parallel pass
+ * over all candidates, which updates the scores with the last selected compound and finds the
+ * lowest scoring unselected candidate per thread, followed by a reduction of the per-thread results.
+ * Two scores are supported:<br>
+ * MODE_CENTROID: as the DiversitySelector, the dot product of the normalized fingerprint with the sum of
+ * all normalized fingerprints of the selected set. Unlike the DiversitySelector, the minimum is found exactly.<br>
+ * MODE_MAX_MIN: the highest Tanimoto similarity to any selected compound, i.e. MaxMin selection.<br>
+ * Compounds of an existing set can be added at any time, also between calls of select().
+ * All rounds share one pool of daemon worker threads, which is created when first needed and kept
+ * until close() is called.
+ */
+public class ParallelDiversitySelector extends DataProcessor implements AutoCloseable {
+	public static final int MODE_CENTROID = 0;
+	public static final int MODE_MAX_MIN = 1;
+
+	private static final int MIN_PARTITION_SIZE = 4096;
+
+	private final long[][]	mFeatureList;
+	private final int		mMode;
+	private final int[]		mBitCount;
+	private final double[]	mWeight;
+	private final double[]	mScore;
+	private final boolean[]	mIsSelected;
+	private int				mThreadCount,mSelectedCount,mExistingSetCount;
+	private ExecutorService	mExecutor;
+
+	private volatile long[]	mAddedFeatures;
+	private volatile double	mAddedWeight;
+	private volatile int	mAddedBitCount;
+
+	/**
+	 * @param featureList candidate fingerprints, all of the same length
+	 * @param mode MODE_CENTROID or MODE_MAX_MIN
+	 */
+	public ParallelDiversitySelector(long[][] featureList, int mode) {
+		mFeatureList = featureList;
+		mMode = mode;
+		mThreadCount = Runtime.getRuntime().availableProcessors();
+		mBitCount = new int[featureList.length];
+		mWeight = new double[featureList.length];
+		for (int i=0; i<featureList.length; i++) {
+			mBitCount[i] = bitCount(featureList[i]);
+			mWeight[i] = (mBitCount[i] == 0) ? 0.0 : 1.0 / Math.sqrt(mBitCount[i]);
+			}
+		mScore = new double[featureList.length];
+		mIsSelected = new boolean[featureList.length];
+		}
+
+	public void setThreadCount(int threadCount) {
+		threadCount = Math.max(1, threadCount);
+		if (mThreadCount != threadCount) {
+			close();
+			mThreadCount = threadCount;
+			}
+		}
+
+	/**
+	 * Stops the worker threads. The selector may still be used afterwards, in which case new threads are started.
+	 */
+	@Override
+	public void close() {
+		if (mExecutor != null) {
+			mExecutor.shutdown();
+			mExecutor = null;
+			}
+		}
+
+	/**
+	 * Adds a compound, which is not among the candidates, to the set of already selected compounds.
+	 * Candidate scores are updated immediately.
+	 * @param features
+	 */
+	public void addToExistingSet(long[] features) {
+		runRound(features);
+		mExistingSetCount++;
+		}
+
+	public void setExistingSet(long[][] featureList) {
+		for (long[] features:featureList) {
+			runRound(features);
+			mExistingSetCount++;
+			}
+		}
+
+	/**
+	 * @return number of candidates selected by previous calls of select()
+	 */
+	public int getSelectedCount() {
+		return mSelectedCount;
+		}
+
+	/**
+	 * Selects further candidates, which are most dissimilar to the existing set and to all previously selected candidates.
+	 * If neither an existing set nor candidates were selected before, the first compound is the one most similar
+	 * to the centroid of all candidates.
+	 * @param compoundsToSelect
+	 * @return candidate indices of the newly selected compounds in the order of selection or null if cancelled
+	 */
+	public int[] select(int compoundsToSelect) {
+		compoundsToSelect = Math.min(compoundsToSelect, mFeatureList.length - mSelectedCount);
+		int[] selected = new int[compoundsToSelect];
+		if (compoundsToSelect == 0)
+			return selected;
+
+		int next;
+		if (mExistingSetCount == 0 && mSelectedCount == 0) {
+			startProgress("Locating Starting Compound...", 0, 0);
+			next = findCentralCompound();
+			}
+		else {
+			next = runRound(null);
+			}
+
+		startProgress("Selecting Compounds...", 0, compoundsToSelect);
+		for (int compound=0; compound<compoundsToSelect; compound++) {
+			if (threadMustDie()) {
+				stopProgress("Selection cancelled");
+				return null;
+				}
+
+			selected[compound] = next;
+			mIsSelected[next] = true;
+			mSelectedCount++;
+
+			// also after the last selection to keep scores valid for subsequent calls
+			next = runRound(mFeatureList[next]);
+
+			if ((compound & 63) == 63)
+				updateProgress(compound);
+			}
+
+		stopProgress("Compound Selection Done");
+		return selected;
+		}
+
+	private ExecutorService getExecutor() {
+		if (mExecutor == null)
+			mExecutor = Executors.newFixedThreadPool(mThreadCount, r -> {
+				Thread t = new Thread(r, "Diversity Selector");
+				t.setDaemon(true);
+				return t;
+				} );
+		return mExecutor;
+		}
+
+	/**
+	 * Updates all candidate scores with the given features, if not null, and locates the candidate with the
+	 * lowest score, which is not selected yet.
+	 * @return candidate index or -1, if all candidates are selected
+	 */
+	private int runRound(long[] addedFeatures) {
+		mAddedFeatures = addedFeatures;
+		if (addedFeatures != null) {
+			mAddedBitCount = bitCount(addedFeatures);
+			mAddedWeight = (mAddedBitCount == 0) ? 0.0 : 1.0 / Math.sqrt(mAddedBitCount);
+			}
+
+		// small partitions don't pay off the thread synchronization in every round
+		int threadCount = Math.max(1, Math.min(mThreadCount, mFeatureList.length / MIN_PARTITION_SIZE));
+		RoundWorker[] worker = new RoundWorker[threadCount];
+		int chunk = (mFeatureList.length + threadCount - 1) / threadCount;
+		for (int t=0; t<threadCount; t++)
+			worker[t] = new RoundWorker(t*chunk, Math.min(mFeatureList.length, (t+1)*chunk));
+
+		if (threadCount == 1) {
+			worker[0].run();
+			}
+		else {
+			ExecutorService executor = getExecutor();
+			CountDownLatch doneSignal = new CountDownLatch(threadCount);
+			for (RoundWorker w:worker) {
+				w.mDoneSignal = doneSignal;
+				executor.execute(w);
+				}
+			try {
+				doneSignal.await();
+				}
+			catch (InterruptedException e) {}
+			}
+
+		int best = -1;
+		double bestScore = Double.MAX_VALUE;
+		for (RoundWorker w:worker) {	// workers are in index order, thus ties go to the lower index
+			if (w.mBestIndex != -1 && w.mBestScore < bestScore) {
+				bestScore = w.mBestScore;
+				best = w.mBestIndex;
+				}
+			}
+		return best;
+		}
+
+	/**
+	 * @return index of the candidate with the highest dot product with the centroid of all other candidates
+	 */
+	private int findCentralCompound() {
+		int featureCount = 64*mFeatureList[0].length;
+		double[] centroid = new double[featureCount];
+		for (int i=0; i<mFeatureList.length; i++)
+			for (int word=0; word<mFeatureList[i].length; word++)
+				for (long bits=mFeatureList[i][word]; bits != 0; bits &= bits-1)
+					centroid[64*word+63-Long.numberOfTrailingZeros(bits)] += mWeight[i];
+
+		double maxDotProduct = -1.0;
+		int maxCompound = 0;
+		for (int i=0; i<mFeatureList.length; i++) {
+			// dot product is based on the centroid vector of the complete set minus the compound under investigation
+			double dotProduct = 0.0;
+			for (int word=0; word<mFeatureList[i].length; word++)
+				for (long bits=mFeatureList[i][word]; bits != 0; bits &= bits-1)
+					dotProduct += (centroid[64*word+63-Long.numberOfTrailingZeros(bits)] - mWeight[i]) * mWeight[i];
+			if (maxDotProduct < dotProduct) {
+				maxDotProduct = dotProduct;
+				maxCompound = i;
+				}
+			}
+		return maxCompound;
+		}
+
+	private static int bitCount(long[] features) {
+		int count = 0;
+		for (long l:features)
+			count += Long.bitCount(l);
+		return count;
+		}
+
+	private class RoundWorker implements Runnable {
+		private final int mFrom,mTo;
+		private CountDownLatch mDoneSignal;
+		private int mBestIndex;
+		private double mBestScore;
+
+		public RoundWorker(int from, int to) {
+			mFrom = from;
+			mTo = to;
+			}
+
+		public void run() {
+			long[] added = mAddedFeatures;
+			mBestIndex = -1;
+			mBestScore = Double.MAX_VALUE;
+			for (int i=mFrom; i<mTo; i++) {
+				if (mIsSelected[i])
+					continue;
+
+				if (added != null) {
+					long[] features = mFeatureList[i];
+					int shared = 0;
+					for (int word=0; word<features.length; word++)
+						shared += Long.bitCount(features[word] & added[word]);
+					if (mMode == MODE_CENTROID) {
+						mScore[i] += mWeight[i] * mAddedWeight * shared;
+						}
+					else {
+						int union = mBitCount[i] + mAddedBitCount - shared;
+						double similarity = (union == 0) ? 1.0 : (double)shared / union;
+						if (mScore[i] < similarity)
+							mScore[i] = similarity;
+						}
+					}
+
+				if (mBestScore > mScore[i]) {
+					mBestScore = mScore[i];
+					mBestIndex = i;
+					}
+				}
+
+			if (mDoneSignal != null)
+				mDoneSignal.countDown();
+			}
+		}
+	}
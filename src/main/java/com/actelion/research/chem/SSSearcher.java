@@ -152,6 +152,14 @@ public class SSSearcher {
 		}
 
 
+	/**
+	 * @return the match mode passed to the constructor, which is used by methods without matchMode parameter
+	 */
+	public int getDefaultMatchMode() {
+		return mDefaultMatchMode;
+		}
+
+
 	/**
 	 * Defines fragment and molecule before calling isFragmentInMolecule(...)
 	 * or findFragmentInMolecule(...).
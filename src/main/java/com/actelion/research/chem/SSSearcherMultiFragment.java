@@ -0,0 +1,207 @@
+package com.actelion.research.chem;
+
+import com.actelion.research.calc.ThreadMaster;
+
+import java.util.Arrays;
+
+/**
+ * Finds all fragments of a fixed fragment set, which are substructures of a given molecule.
+ * When instantiated, the fragment set is compiled into a decision tree on fragment fingerprint bits:
+ * Every inner node tests one fingerprint bit, which is required by about half of the node's fragments.
+ * If the molecule lacks this bit, then the entire branch of fragments requiring it is skipped without
+ * looking at any of them. Only fragments, whose complete fingerprint is contained in the molecule's
+ * fingerprint, are graph matched. All graph matching of one molecule is done by one SSSearcher,
+ * such that the molecule's atom and bond features are determined only once.
+ * Thus, the effort of profiling a molecule grows with the number of fragments that potentially match
+ * rather than with the size of the fragment set.<br>
+ * Fingerprints are those of the SSSearcherWithIndex, i.e. the FragFp descriptor.<br>
+ * Once constructed, an SSSearcherMultiFragment may be used by multiple threads concurrently:
+ * All helper arrays needed by the SSSearcher are calculated by the constructor and every search
+ * uses a private copy of fragments with exclude groups, because the SSSearcher marks their atoms.
+ */
+public class SSSearcherMultiFragment {
+	private static final int MAX_LEAF_SIZE = 8;
+
+	private final StereoMolecule[]	mFragment;
+	private final long[][]			mFragmentIndex;
+	private final int				mMatchMode;
+	private final boolean[]			mHasExcludeGroup;
+	private final Node				mRoot;
+
+	/**
+	 * @param fragment query fragments; fragments are not copied and must not be changed afterwards
+	 * @param matchMode SSSearcher match mode, e.g. SSSearcher.cDefaultMatchMode
+	 */
+	public SSSearcherMultiFragment(StereoMolecule[] fragment, int matchMode) {
+		this(fragment, null, matchMode);
+		}
+
+	/**
+	 * @param fragment query fragments; fragments are not copied and must not be changed afterwards
+	 * @param index FragFp fingerprints of the fragments or null, if they shall be calculated
+	 * @param matchMode SSSearcher match mode, e.g. SSSearcher.cDefaultMatchMode
+	 */
+	public SSSearcherMultiFragment(StereoMolecule[] fragment, long[][] index, int matchMode) {
+		mFragment = fragment;
+		mMatchMode = matchMode;
+		if (index == null) {
+			SSSearcherWithIndex swi = new SSSearcherWithIndex();
+			index = new long[fragment.length][];
+			for (int i=0; i<fragment.length; i++)
+				index[i] = swi.createLongIndex(fragment[i]);
+			}
+		mFragmentIndex = index;
+
+		// prepare helper arrays now, that concurrent searches don't need to modify shared fragments
+		mHasExcludeGroup = new boolean[fragment.length];
+		for (int i=0; i<fragment.length; i++) {
+			fragment[i].ensureHelperArrays(Molecule.cHelperParities);
+			for (int atom=0; atom<fragment[i].getAllAtoms(); atom++)
+				if (fragment[i].isExcludeGroupAtom(atom))
+					mHasExcludeGroup[i] = true;
+			}
+
+		int[] all = new int[fragment.length];
+		for (int i=0; i<all.length; i++)
+			all[i] = i;
+		mRoot = buildNode(all);
+		}
+
+	public int getFragmentCount() {
+		return mFragment.length;
+		}
+
+	public StereoMolecule getFragment(int no) {
+		return mFragment[no];
+		}
+
+	/**
+	 * @param mol
+	 * @param index the molecule's FragFp fingerprint or null, if it shall be calculated
+	 * @param threadMaster may be null
+	 * @return indexes of all fragments found in mol in ascending order; null if the threadMaster stopped the search
+	 */
+	public int[] findMatchingFragments(StereoMolecule mol, long[] index, ThreadMaster threadMaster) {
+		return findFragments(mol, index, threadMaster, false);
+		}
+
+	/**
+	 * @param mol
+	 * @param index the molecule's FragFp fingerprint or null, if it shall be calculated
+	 * @param threadMaster may be null
+	 * @return lowest index of all fragments found in mol or -1, if no fragment was found or the threadMaster stopped the search
+	 */
+	public int findFirstMatchingFragment(StereoMolecule mol, long[] index, ThreadMaster threadMaster) {
+		int[] match = findFragments(mol, index, threadMaster, true);
+		return (match == null || match.length == 0) ? -1 : match[0];
+		}
+
+	private int[] findFragments(StereoMolecule mol, long[] index, ThreadMaster threadMaster, boolean firstOnly) {
+		if (index == null)
+			index = new SSSearcherWithIndex().createLongIndex(mol);
+
+		int[] candidate = new int[mFragment.length];
+		int candidateCount = collectCandidates(mRoot, index, candidate, 0);
+		Arrays.sort(candidate, 0, candidateCount);
+
+		SSSearcher searcher = new SSSearcher(mMatchMode);
+		searcher.setMolecule(mol);
+		int matchCount = 0;
+		for (int i=0; i<candidateCount; i++) {
+			if (threadMaster != null && threadMaster.threadMustDie())
+				return null;
+
+			StereoMolecule fragment = mFragment[candidate[i]];
+			searcher.setFragment(mHasExcludeGroup[candidate[i]] ? fragment.getCompactCopy() : fragment);
+			if (searcher.isFragmentInMolecule()) {
+				candidate[matchCount++] = candidate[i];
+				if (firstOnly)
+					break;
+				}
+			}
+
+		return Arrays.copyOf(candidate, matchCount);
+		}
+
+	private int collectCandidates(Node node, long[] index, int[] candidate, int count) {
+		while (node.mLeafFragment == null) {
+			if ((index[node.mBit >> 6] & (1L << (63 - (node.mBit & 63)))) != 0)
+				count = collectCandidates(node.mRequiringBranch, index, candidate, count);
+			node = node.mOtherBranch;
+			}
+
+		for (int fragment:node.mLeafFragment)
+			if (isIndexInIndex(mFragmentIndex[fragment], index))
+				candidate[count++] = fragment;
+
+		return count;
+		}
+
+	private static boolean isIndexInIndex(long[] fragmentIndex, long[] moleculeIndex) {
+		for (int i=0; i<fragmentIndex.length; i++)
+			if ((fragmentIndex[i] & ~moleculeIndex[i]) != 0)
+				return false;
+		return true;
+		}
+
+	/**
+	 * Splits the fragments by the bit, which separates them best into those requiring the bit and the others.
+	 */
+	private Node buildNode(int[] fragment) {
+		if (fragment.length <= MAX_LEAF_SIZE)
+			return new Node(fragment);
+
+		int[] count = new int[64*mFragmentIndex[fragment[0]].length];
+		for (int f:fragment)
+			for (int i=0; i<mFragmentIndex[f].length; i++)
+				for (long bits=mFragmentIndex[f][i]; bits != 0; bits &= bits-1)
+					count[64*i+63-Long.numberOfTrailingZeros(bits)]++;
+
+		int bestBit = -1;
+		int bestCount = 0;
+		for (int bit=0; bit<count.length; bit++) {
+			int smallerPart = Math.min(count[bit], fragment.length - count[bit]);
+			if (bestCount < smallerPart) {
+				bestCount = smallerPart;
+				bestBit = bit;
+				}
+			}
+
+		if (bestBit == -1)	// no bit distinguishes these fragments
+			return new Node(fragment);
+
+		int[] requiring = new int[count[bestBit]];
+		int[] other = new int[fragment.length - count[bestBit]];
+		int requiringCount = 0;
+		int otherCount = 0;
+		long mask = 1L << (63 - (bestBit & 63));
+		for (int f:fragment) {
+			if ((mFragmentIndex[f][bestBit >> 6] & mask) != 0)
+				requiring[requiringCount++] = f;
+			else
+				other[otherCount++] = f;
+			}
+
+		return new Node(bestBit, buildNode(requiring), buildNode(other));
+		}
+
+	private static class Node {
+		private final int mBit;
+		private final Node mRequiringBranch,mOtherBranch;
+		private final int[] mLeafFragment;
+
+		public Node(int bit, Node requiringBranch, Node otherBranch) {
+			mBit = bit;
+			mRequiringBranch = requiringBranch;
+			mOtherBranch = otherBranch;
+			mLeafFragment = null;
+			}
+
+		public Node(int[] leafFragment) {
+			mBit = -1;
+			mRequiringBranch = null;
+			mOtherBranch = null;
+			mLeafFragment = leafFragment;
+			}
+		}
+	}
@@ -954,6 +954,75 @@ public class SSSearcherWithIndex {
 		}
 
 
+	/**
+	 * Batch version of getSimilarityTanimoto() that compares one query fingerprint with
+	 * count fingerprints, which were packed by packLongIndexes() into one contiguous block.
+	 * The block is word-major, i.e. it contains the first long of all fingerprints, then the second
+	 * long of all fingerprints, etc., followed by the precalculated bit counts of all fingerprints.
+	 * Thus, the inner loop runs over contiguous memory with the query word being constant,
+	 * which allows the JIT to unroll it. Because of the precalculated bit counts only the
+	 * shared bits need to be counted, which halves the number of bit count operations.
+	 * @param query fingerprint of the query
+	 * @param packedIndex count fingerprints as returned by packLongIndexes()
+	 * @param count number of fingerprints in packedIndex
+	 * @param similarity receives count Tanimoto similarities; 0.0 if both fingerprints are empty
+	 */
+	public static void getSimilarityTanimoto(final long[] query, final long[] packedIndex, final int count, final float[] similarity) {
+		// fingerprints are processed in tiles to keep the shared key counters in the L1 cache
+		final int tileSize = Math.min(count, 1024);
+		final int[] sharedKeys = new int[tileSize];
+		int queryKeys = 0;
+		for (long q:query)
+			queryKeys += Long.bitCount(q);
+		final int bitCountOffset = query.length*count;
+
+		for (int tileStart=0; tileStart<count; tileStart+=tileSize) {
+			final int size = Math.min(count-tileStart, tileSize);
+			for (int i=0; i<query.length; i++) {
+				final long q = query[i];
+				if (q != 0L) {
+					final int offset = i*count+tileStart;
+					for (int j=0; j<size; j++)
+						sharedKeys[j] += Long.bitCount(q & packedIndex[offset+j]);
+					}
+				}
+			for (int j=0; j<size; j++) {
+				int allKeys = queryKeys + (int)packedIndex[bitCountOffset+tileStart+j] - sharedKeys[j];
+				similarity[tileStart+j] = (allKeys == 0) ? 0.0f : (float)sharedKeys[j]/(float)allKeys;
+				sharedKeys[j] = 0;
+				}
+			}
+		}
+
+
+	/**
+	 * Packs count fingerprints into one word-major block as needed by the batch version
+	 * of getSimilarityTanimoto(). The block contains longCount+1 longs per fingerprint,
+	 * because the bit counts of all fingerprints are appended. Fingerprints being null
+	 * or empty are packed as all zeros.
+	 * @param index fingerprints of equal length
+	 * @param from first fingerprint to be packed
+	 * @param count number of fingerprints to be packed
+	 * @param longCount number of longs per fingerprint
+	 * @return (longCount+1)*count longs
+	 */
+	public static long[] packLongIndexes(final long[][] index, final int from, final int count, final int longCount) {
+		long[] packedIndex = new long[(longCount+1)*count];
+		for (int j=0; j<count; j++) {
+			long[] fp = index[from+j];
+			if (fp != null && fp.length != 0) {
+				int bitCount = 0;
+				for (int i=0; i<longCount; i++) {
+					packedIndex[i*count+j] = fp[i];
+					bitCount += Long.bitCount(fp[i]);
+					}
+				packedIndex[longCount*count+j] = bitCount;
+				}
+			}
+		return packedIndex;
+		}
+
+
     public static float getSimilarityAngleCosine(int[] index1, int[] index2) {
         int sharedKeys = 0;
         int index1Keys = 0;
@@ -39,8 +39,13 @@ import com.actelion.research.chem.descriptor.*;
 import com.actelion.research.util.ByteArrayComparator;
 
 import java.nio.charset.StandardCharsets;
+import java.util.PriorityQueue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class StructureSearch {
 	public static final int SEARCH_RUNNING = -1;
@@ -51,23 +56,34 @@ public class StructureSearch {
 	public static final int SUCCESSFUL_COMPLETION = 4;
 	public static final int COUNT_LIMIT_EXCEEDED = 5;
 	public static final int TIME_LIMIT_EXCEEDED = 6;
+	private static final int MAX_ROW_CHUNK_SIZE = 256;
+
 	public static final String[] COMPLETION_TEXT = { "not started", "stopped", "query missing", "unsupported search type", "successful", "count limit hit", "time limit hit" };
 
 	private final StructureSearchSpecification mSpecification;
 	private final StructureSearchDataSource mDataSource;
 	private final StructureSearchController mSearchController;
 	private final ProgressController mProgressController;
+	private FingerprintPostingIndex mPostingIndex;
+	private ExecutorService mExecutor;
+	private StructureSearchResultListener mResultListener;
+	private PriorityQueue<TopHit> mTopHitQueue;
+	private int mTopHitCount;
+	private volatile float mTopHitThreshold;
+	private int mParallelism;
 	private volatile StereoMolecule[] mQueryFragment,mDoubleQueryFragment;
 	private volatile ByteArrayComparator mIDCodeComparator;
 	private volatile DescriptorHandler mDescriptorHandler;
 	private volatile Object[] mQueryDescriptor;
 	private volatile long[] mQueryHashCode;
+	private volatile int[] mCandidateRow;
 	private volatile byte[][] mQueryIDCode;
 	private volatile int mDescriptorColumn;
 	private volatile int mMaxSSSMatches,mMaxNonSSSMatches, mStatus;
 	private volatile long mStopTime,mMaxMillis;
 	private ConcurrentLinkedQueue<Integer> mResultQueue;
 	private AtomicInteger mSMPIndex,mMatchCount;
+	private int mRowChunkSize;
 
 	/**
 	 * This contructs a new structure search, which upon calling start()
@@ -126,10 +142,65 @@ public class StructureSearch {
 		mMaxMillis = maxMillis;
 		}
 
+	/**
+	 * If a FingerprintPostingIndex exists for the rows of the data source, then substructure
+	 * searches intersect the posting lists of the query's fingerprint bits first and run
+	 * the graph matching on the remaining candidate rows only.
+	 * @param index null or index built from the FFP512 descriptors of the data source's rows
+	 */
+	public void setFingerprintPostingIndex(FingerprintPostingIndex index) {
+		mPostingIndex = index;
+		}
+
+	/**
+	 * By default every search starts its own threads, one per available processor.
+	 * If many searches run concurrently, e.g. in a server environment, then they should
+	 * rather share the cores of one common ExecutorService, e.g. a ForkJoinPool.
+	 * The search then submits parallelism tasks to the executor, which take rows
+	 * in chunks from a shared row counter. start() still blocks until all tasks are done.
+	 * @param executor null to use dedicated threads
+	 * @param parallelism number of tasks to submit; 0 for the number of available processors
+	 */
+	public void setExecutorService(ExecutorService executor, int parallelism) {
+		mExecutor = executor;
+		mParallelism = parallelism;
+		}
+
+	/**
+	 * Defines a listener, which is informed about every match as soon as it is found.
+	 * This allows interactive clients to show first results long before start() returns.
+	 * If the listener returns false, then the search is stopped and start() returns
+	 * the matches found so far.
+	 * In top hit mode (see setTopHitCount()) the listener is informed only about the final
+	 * top hits in the order of decreasing similarity, after all rows were searched.
+	 * @param listener null or thread safe listener
+	 */
+	public void setResultListener(StructureSearchResultListener listener) {
+		mResultListener = listener;
+		}
+
+	/**
+	 * For similarity searches one may restrict the result to the most similar rows.
+	 * Then start() returns at most count rows sorted by decreasing similarity.
+	 * Once count rows are known, the lowest similarity among them is used as raised
+	 * similarity threshold for the remaining rows. In this mode the maxNonSSSMatches limit
+	 * of setMatchLimit() is not applied, and a result listener is informed only about the
+	 * final top hits.
+	 * @param count maximum number of most similar rows to be returned (0: no limit)
+	 */
+	public void setTopHitCount(int count) {
+		mTopHitCount = count;
+		}
+
 	public String getCompletionStatus() {
 		return COMPLETION_TEXT[mStatus];
 		}
 
+	/**
+	 * Runs the search and blocks until it is finished.
+	 * @return matching rows or null, if the search could not be started
+	 * @throws RuntimeException with the original exception as cause, if a search thread failed
+	 */
 	public int[] start() {
 		if (!mDataSource.isSupportedSearchType(mSpecification)) {
 			mStatus = SEARCH_TYPE_NOT_SUPPORTED;
@@ -221,9 +292,21 @@ public class StructureSearch {
 				}
 			}
 
-    	mSMPIndex = new AtomicInteger(mDataSource.getRowCount());
+		mCandidateRow = null;
+		if (mPostingIndex != null
+		 && mSpecification.isSubstructureSearch()
+		 && mPostingIndex.getRowCount() == mDataSource.getRowCount()) {
+			long[][] queryIndex = new long[mQueryDescriptor.length][];
+			for (int i=0; i<queryIndex.length; i++)
+				queryIndex[i] = (long[])mQueryDescriptor[i];
+			mCandidateRow = mPostingIndex.getCandidateRows(queryIndex);
+			}
+
+    	mSMPIndex = new AtomicInteger(mCandidateRow != null ? mCandidateRow.length : mDataSource.getRowCount());
 
     	mResultQueue = new ConcurrentLinkedQueue<>();
+		mTopHitQueue = (mTopHitCount != 0 && mSpecification.isSimilaritySearch()) ? new PriorityQueue<>(mTopHitCount+1) : null;
+		mTopHitThreshold = 0f;
 
 		if (mProgressController != null && mSpecification.getStructureCount() > 1023)
 			mProgressController.startProgress("Searching structures", 0, mSpecification.getStructureCount());
@@ -231,22 +314,31 @@ public class StructureSearch {
 		mStopTime = (mMaxMillis == 0) ? Long.MAX_VALUE : System.currentTimeMillis() + mMaxMillis;
 		mStatus = SEARCH_RUNNING;
 
-		int threadCount = Runtime.getRuntime().availableProcessors();
-    	SearchThread[] t = new SearchThread[threadCount];
-    	for (int i=0; i<threadCount; i++) {
-    		t[i] = new SearchThread("Structure Search "+(i+1));
-    		t[i].setPriority(Thread.MIN_PRIORITY);
-    		t[i].start();
-    		}
-
-    	// the controller thread must wait until all others are finished
-    	// before the next task can begin or the dialog is closed
-    	for (int i=0; i<threadCount; i++)
-    		try { t[i].join(); } catch (InterruptedException e) {}
+		int threadCount = (mParallelism != 0) ? mParallelism : Runtime.getRuntime().availableProcessors();
+		mRowChunkSize = Math.max(1, Math.min(MAX_ROW_CHUNK_SIZE, mSMPIndex.get() / (16 * threadCount)));
+		Runnable[] task = new Runnable[threadCount];
+		for (int i=0; i<threadCount; i++)
+			task[i] = new SearchTask();
+		runAndWait("Structure Search", task);
 
 		if (mStatus == SEARCH_RUNNING)
 			mStatus = SUCCESSFUL_COMPLETION;
 
+		if (mTopHitQueue != null) {
+			int[] result = new int[mTopHitQueue.size()];
+			float[] similarity = new float[result.length];
+			for (int i=result.length-1; i>=0; i--) {
+				TopHit hit = mTopHitQueue.poll();
+				result[i] = hit.row;
+				similarity[i] = hit.similarity;
+				}
+			if (mResultListener != null)
+				for (int i=0; i<result.length; i++)
+					if (!mResultListener.hitFound(result[i], similarity[i]))
+						break;
+			return result;
+			}
+
 		int[] result = new int[mResultQueue.size()];
     	int i=0;
     	for (Integer integer:mResultQueue)
@@ -255,43 +347,150 @@ public class StructureSearch {
     	return result;
 		}
 
+	/**
+	 * Adds a matching row to the result and informs the listener.
+	 * In top hit mode the listener is informed after the search instead.
+	 * @return false, if the listener wants the search to be stopped
+	 */
+	private boolean addHit(int row, float similarity) {
+		if (mTopHitQueue != null) {
+			synchronized (mTopHitQueue) {
+				TopHit hit = new TopHit(row, similarity);
+				if (mTopHitQueue.size() == mTopHitCount && hit.compareTo(mTopHitQueue.peek()) <= 0)
+					return true;
+
+				mTopHitQueue.add(hit);
+				if (mTopHitQueue.size() > mTopHitCount)
+					mTopHitQueue.poll();
+				if (mTopHitQueue.size() == mTopHitCount)
+					mTopHitThreshold = mTopHitQueue.peek().similarity;
+				}
+			return true;
+			}
+
+		mResultQueue.add(row);
+		mMatchCount.incrementAndGet();
+		return mResultListener == null || mResultListener.hitFound(row, similarity);
+		}
+
 	private void calculateQueryDescriptorsAndWait() {
     	mSMPIndex = new AtomicInteger(mQueryDescriptor.length);
-		int threadCount = Math.min(mQueryDescriptor.length, Runtime.getRuntime().availableProcessors());
-    	Thread[] t = new Thread[threadCount];
-    	for (int i=0; i<threadCount; i++) {
-    		t[i] = new Thread("Query Descriptor Calculation "+(i+1)) {
-    			public void run() {
-    				while (true) {
-        				int index = mSMPIndex.decrementAndGet();
-        				if (index < 0)
-        					break;
-
-        				StereoMolecule mol = new IDCodeParser(false).getCompactMolecule(mSpecification.getIDCode(index));
-        				mQueryDescriptor[index] = mDescriptorHandler.createDescriptor(mol);
-    					}
-    				}
-    			};
-    		t[i].setPriority(Thread.MIN_PRIORITY);
-    		t[i].start();
-    		}
-
-    	for (int i=0; i<threadCount; i++)
-    		try { t[i].join(); } catch (InterruptedException e) {}
+		int threadCount = Math.min(mQueryDescriptor.length, (mParallelism != 0) ? mParallelism : Runtime.getRuntime().availableProcessors());
+		Runnable[] task = new Runnable[threadCount];
+		for (int i=0; i<threadCount; i++) {
+			task[i] = () -> {
+				while (true) {
+					int index = mSMPIndex.decrementAndGet();
+					if (index < 0)
+						break;
+
+					StereoMolecule mol = new IDCodeParser(false).getCompactMolecule(mSpecification.getIDCode(index));
+					mQueryDescriptor[index] = mDescriptorHandler.createDescriptor(mol);
+					}
+				};
+			}
+		runAndWait("Query Descriptor Calculation", task);
 		}
 
-	private class SearchThread extends Thread {
+	/**
+	 * Runs all tasks either on the executor, if one was defined, or on dedicated threads,
+	 * and waits until all of them are finished. If a task fails, then the search is stopped
+	 * and, once all tasks are finished, the task's exception is rethrown as cause of a RuntimeException.
+	 */
+	private void runAndWait(String name, Runnable[] task) {
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		Runnable[] guardedTask = new Runnable[task.length];
+		for (int i=0; i<task.length; i++) {
+			final Runnable t = task[i];
+			guardedTask[i] = () -> {
+				try {
+					t.run();
+					}
+				catch (Throwable e) {
+					failure.compareAndSet(null, e);
+					mStatus = SEARCH_STOPPED;	// let the other tasks finish early
+					}
+				};
+			}
+
+		if (mExecutor != null) {
+			Future<?>[] future = new Future<?>[task.length];
+			for (int i=0; i<task.length; i++)
+				future[i] = mExecutor.submit(guardedTask[i]);
+			for (Future<?> f:future) {
+				try { f.get(); }
+				catch (InterruptedException e) {
+					// the caller cancelled the search: don't wait for the remaining tasks
+					mStatus = SEARCH_STOPPED;
+					for (Future<?> other:future)
+						other.cancel(true);
+					Thread.currentThread().interrupt();
+					break;
+					}
+				catch (ExecutionException e) { failure.compareAndSet(null, e.getCause()); }
+				}
+			}
+		else {
+			Thread[] t = new Thread[task.length];
+			for (int i=0; i<task.length; i++) {
+				t[i] = new Thread(guardedTask[i], name+" "+(i+1));
+				t[i].setPriority(Thread.MIN_PRIORITY);
+				t[i].start();
+				}
+
+			// the controller thread must wait until all others are finished
+			// before the next task can begin or the dialog is closed
+			for (int i=0; i<task.length; i++)
+				try { t[i].join(); } catch (InterruptedException e) {}
+			}
+
+		if (failure.get() != null) {
+			mStatus = SEARCH_STOPPED;
+			throw new RuntimeException(name+" failed", failure.get());
+			}
+		}
+
+	private boolean isAnyFragmentIndexInRow(int row) {
+		for (Object queryDescriptor : mQueryDescriptor)
+			if (mDataSource.isFragmentIndexInRow((long[])queryDescriptor, row))
+				return true;
+		return false;
+		}
+
+	private class SearchTask implements Runnable {
 		private SSSearcherWithIndex mSSSearcher;
+		private int mIndex,mChunkStart;
 
-		public SearchThread(String name) {
-			super(name);
+		public SearchTask() {
 			if (mSpecification.isSubstructureSearch())
 				mSSSearcher = new SSSearcherWithIndex();
 			}
 
+		/**
+		 * Takes chunks of rows from the shared counter and returns the chunk's rows one by one.
+		 * @return next row to be processed or -1, if all rows have been distributed
+		 */
+		private int nextRow() {
+			if (mIndex <= mChunkStart) {
+				int end = mSMPIndex.getAndAdd(-mRowChunkSize);
+				if (end <= 0)
+					return -1;
+
+				mIndex = end;
+				mChunkStart = Math.max(0, end - mRowChunkSize);
+				}
+
+			mIndex--;
+			return (mCandidateRow == null) ? mIndex : mCandidateRow[mIndex];
+			}
+
+		@Override
 		public void run() {
-			int row = mSMPIndex.decrementAndGet();
+			int row = nextRow();
 			while (row >= 0) {
+				if (mStatus != SEARCH_RUNNING)	// stopped by another task
+					break;
+
 				if ((mProgressController != null && mProgressController.threadMustDie())) {
 					mStatus = SEARCH_STOPPED;
 					break;
@@ -307,6 +506,7 @@ public class StructureSearch {
 
 				if (mSearchController == null || mSearchController.rowQualifies(row)) {
 					boolean isMatch = false;
+					float similarity = 1f;
 
 					if (mSpecification.isSubstructureSearch()) {
 						if (mMaxSSSMatches != 0 && mMatchCount.get() > mMaxSSSMatches) {
@@ -314,6 +514,12 @@ public class StructureSearch {
 							break;
 							}
 
+						// let the data source screen its fingerprints before creating any row objects
+						if (!isAnyFragmentIndexInRow(row)) {
+							row = nextRow();
+							continue;
+							}
+
 						for (int s=0; !isMatch && s<mDataSource.getStructureCount(row); s++) {
 							mSSSearcher.setMolecule(mDataSource.getIDCode(row, s, false), (long[])mDataSource.getDescriptor(mDescriptorColumn, row, s, false));
 							for (int i=0; i<mQueryFragment.length; i++) {
@@ -335,7 +541,7 @@ public class StructureSearch {
 							}
 						}
 					else {
-						if (mMaxNonSSSMatches != 0 && mMatchCount.get() > mMaxNonSSSMatches) {
+						if (mMaxNonSSSMatches != 0 && mTopHitQueue == null && mMatchCount.get() > mMaxNonSSSMatches) {
 							mStatus = COUNT_LIMIT_EXCEEDED;
 							break;
 							}
@@ -344,15 +550,21 @@ public class StructureSearch {
 							isMatch = true;
 							}
 						else if (mSpecification.isSimilaritySearch()) {
-							for (int s=0; !isMatch && s<mDataSource.getStructureCount(row); s++) {
+							// the maximum similarity is needed only for ranking top hits or reporting it to a listener
+							boolean needsMaximum = (mTopHitQueue != null || mResultListener != null);
+							similarity = 0f;
+							for (int s=0; s<mDataSource.getStructureCount(row); s++) {
+								Object descriptor = mDataSource.getDescriptor(mDescriptorColumn, row, s, mSpecification.isLargestFragmentOnly());
 								for (Object o : mQueryDescriptor) {
-									if (mDescriptorHandler.getSimilarity(o, mDataSource.getDescriptor(mDescriptorColumn, row, s, mSpecification.isLargestFragmentOnly()))
-											>=mSpecification.getSimilarityThreshold()) {
-										isMatch = true;
+									similarity = Math.max(similarity, mDescriptorHandler.getSimilarity(o, descriptor));
+									if (!needsMaximum && similarity >= mSpecification.getSimilarityThreshold())
 										break;
 									}
+								if (!needsMaximum && similarity >= mSpecification.getSimilarityThreshold())
+									break;
 								}
-								}
+							isMatch = (similarity >= mSpecification.getSimilarityThreshold())
+								   && (mTopHitQueue == null || similarity >= mTopHitThreshold);
 							}
 						else if (mSpecification.isExactSearch()) {
 							for (int s=0; !isMatch && s<mDataSource.getStructureCount(row); s++) {
@@ -406,13 +618,13 @@ public class StructureSearch {
 							}
 						}
 
-					if (isMatch) {
-						mResultQueue.add(row);
-						mMatchCount.incrementAndGet();
+					if (isMatch && !addHit(row, similarity)) {
+						mStatus = SEARCH_STOPPED;
+						break;
 						}
 					}
 
-				row = mSMPIndex.decrementAndGet();
+				row = nextRow();
 				}
 
 /*    				if (mSMPWorkingThreads.decrementAndGet() == 0) {
@@ -423,4 +635,19 @@ public class StructureSearch {
 				}*/
 			}
 		}
+
+	private static class TopHit implements Comparable<TopHit> {
+		final int row;
+		final float similarity;
+
+		public TopHit(int row, float similarity) {
+			this.row = row;
+			this.similarity = similarity;
+			}
+
+		@Override
+		public int compareTo(TopHit o) {
+			return similarity != o.similarity ? Float.compare(similarity, o.similarity) : Integer.compare(o.row, row);
+			}
+		}
 	}
@@ -83,6 +83,19 @@ public interface StructureSearchDataSource {
 	 */
 	public Object getDescriptor(int column, int row, int i, boolean largestFragmentOnly);
 
+	/**
+	 * Optional screening step of substructure searches, which is called before any idcode or
+	 * descriptor of the row is requested. Data sources, which can check the fragment's FFP512
+	 * against the row's fingerprint more cheaply than by creating the row's descriptor objects,
+	 * may override this method to skip rows that cannot contain the fragment.
+	 * @param fragmentIndex FFP512 of the query fragment
+	 * @param row
+	 * @return false if no structure of the row can contain the fragment; true if the row must be searched
+	 */
+	public default boolean isFragmentIndexInRow(long[] fragmentIndex, int row) {
+		return true;
+		}
+
 	/**
 	 * Returns the idcode of the structure or largest fragment.
 	 * If the code is not available, null is returned.
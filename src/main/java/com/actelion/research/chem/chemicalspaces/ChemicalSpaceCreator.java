@@ -79,6 +79,10 @@ public class ChemicalSpaceCreator {
 	}
 	
 	private static void processBuildingBlocks(Collection<String> bbs, ConcurrentMap<String,String> processedToOrigIDCode, List<Reaction> functionalizations) {
+		StereoMolecule[] functionalizationReactants = new StereoMolecule[functionalizations.size()];
+		for(int i=0;i<functionalizationReactants.length;i++)
+			functionalizationReactants[i] = functionalizations.get(i).getReactant(0);
+		SSSearcherMultiFragment searcher = new SSSearcherMultiFragment(functionalizationReactants, SSSearcher.cDefaultMatchMode);
 		bbs.parallelStream().forEach( idcode -> {
 			StereoMolecule mol = new IDCodeParser().getCompactMolecule(idcode);
 			if (mol != null) {
@@ -89,16 +93,10 @@ public class ChemicalSpaceCreator {
 					return;
 				processedToOrigIDCode.put(mol.getIDCode(), idcode);
 				
-				for(Reaction functionalization : functionalizations) {
-					SSSearcher searcher = new SSSearcher();
-					searcher.setFragment(functionalization.getReactant(0));
-					searcher.setMolecule(mol);
-					
-					if (searcher.isFragmentInMolecule()) {
-						StereoMolecule product = getProduct(functionalization,Arrays.asList(mol));
-						if(product!=null)
-							processedToOrigIDCode.put(product.getIDCode(), idcode);
-					}
+				for(int i : searcher.findMatchingFragments(mol, null, null)) {
+					StereoMolecule product = getProduct(functionalizations.get(i),Arrays.asList(mol));
+					if(product!=null)
+						processedToOrigIDCode.put(product.getIDCode(), idcode);
 				}
 			}
 		});
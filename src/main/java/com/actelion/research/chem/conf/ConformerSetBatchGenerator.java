@@ -0,0 +1,269 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem.conf;
+
+import com.actelion.research.calc.ThreadMaster;
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.util.DoubleFormat;
+import org.openmolecules.chem.conf.gen.ConformerGenerator;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Generates conformer sets for a stream of molecules on multiple threads. Every worker thread
+ * uses its own ConformerSetGenerator, which is reused for all molecules the worker processes.
+ * All workers share the default RigidFragmentCache. The time spent on one molecule as well
+ * as the total time of a batch can be limited. Molecules, which are not processed because
+ * the total time budget is exhausted or because the ThreadMaster requested to stop, are
+ * reported as skipped. Results are passed to a ConformerSetConsumer in the order of completion.<br>
+ * Since every molecule is processed with the same random seed, results are reproducible and
+ * don't depend on the number of threads.
+ */
+public class ConformerSetBatchGenerator {
+	public interface ConformerSetConsumer {
+		/**
+		 * Is called once for every molecule of the batch. Calls are synchronized,
+		 * i.e. implementations don't need to be thread-safe.
+		 * @param index position of the molecule in the input stream
+		 * @param mol the input molecule
+		 * @param conformerSet generated conformers, which may be incomplete if timedOut is true, or null if skipped or failed
+		 * @param timedOut whether the conformer generation for this molecule was stopped by the per molecule timeout
+		 * @param exception null or the exception, which stopped the conformer generation for this molecule
+		 */
+		void conformerSetGenerated(int index, StereoMolecule mol, ConformerSet conformerSet, boolean timedOut, Exception exception);
+		}
+
+	private final int mMaxConformers,mStrategy,mThreadCount;
+	private final boolean mUseFF;
+	private final long mSeed;
+	private long mMoleculeTimeOut,mTotalTimeOut;
+	private volatile long mStopMillis;
+	private ThreadMaster mThreadMaster;
+	private Iterator<StereoMolecule> mInput;
+	private ConformerSetConsumer mConsumer;
+	private int mNextIndex;
+	private final LongAdder mCompletedCount,mTimedOutCount,mFailedCount,mSkippedCount,mConformerCount;
+	private long mStartMillis,mEndMillis;
+
+	/**
+	 * @param maxConformers maximum number of conformers per molecule
+	 * @param strategy one of the ConformerGenerator.STRATEGY_ constants
+	 * @param useFF whether to minimize every conformer with the MMFF94s+ force field
+	 * @param seed random seed used for every molecule
+	 * @param threadCount number of worker threads; 0 to use all available cores
+	 */
+	public ConformerSetBatchGenerator(int maxConformers, int strategy, boolean useFF, long seed, int threadCount) {
+		mMaxConformers = maxConformers;
+		mStrategy = strategy;
+		mUseFF = useFF;
+		mSeed = seed;
+		mThreadCount = (threadCount == 0) ? Runtime.getRuntime().availableProcessors() : threadCount;
+		mCompletedCount = new LongAdder();
+		mTimedOutCount = new LongAdder();
+		mFailedCount = new LongAdder();
+		mSkippedCount = new LongAdder();
+		mConformerCount = new LongAdder();
+		}
+
+	public ConformerSetBatchGenerator(int maxConformers, int threadCount) {
+		this(maxConformers, ConformerGenerator.STRATEGY_LIKELY_RANDOM, false, 12345L, threadCount);
+		}
+
+	/**
+	 * @param millis time budget for one molecule or 0L for no limit
+	 */
+	public void setMoleculeTimeOut(long millis) {
+		mMoleculeTimeOut = millis;
+		}
+
+	/**
+	 * @param millis time budget for the entire batch or 0L for no limit
+	 */
+	public void setTotalTimeOut(long millis) {
+		mTotalTimeOut = millis;
+		}
+
+	/**
+	 * @param tm ThreadMaster to stop the batch from outside
+	 */
+	public void setThreadMaster(ThreadMaster tm) {
+		mThreadMaster = tm;
+		}
+
+	/**
+	 * Generates conformer sets for all molecules delivered by the input iterator and waits until done.
+	 * The iterator is accessed by one thread at a time.
+	 * @param input stream of molecules
+	 * @param consumer receives one call per input molecule
+	 */
+	public void generate(Iterator<StereoMolecule> input, ConformerSetConsumer consumer) {
+		mInput = input;
+		mConsumer = consumer;
+		mNextIndex = 0;
+		mCompletedCount.reset();
+		mTimedOutCount.reset();
+		mFailedCount.reset();
+		mSkippedCount.reset();
+		mConformerCount.reset();
+		mStartMillis = System.currentTimeMillis();
+		mEndMillis = 0L;
+		mStopMillis = (mTotalTimeOut == 0L) ? 0L : mStartMillis + mTotalTimeOut;
+
+		if (mThreadCount == 1) {
+			consume();
+			}
+		else {
+			Thread[] t = new Thread[mThreadCount];
+			for (int i=0; i<mThreadCount; i++) {
+				t[i] = new Thread(this::consume, "ConformerSetBatchGenerator "+(i+1));
+				t[i].setPriority(Thread.MIN_PRIORITY);
+				t[i].start();
+				}
+			for (int i=0; i<mThreadCount; i++)
+				try { t[i].join(); } catch (InterruptedException ie) {}
+			}
+
+		mEndMillis = System.currentTimeMillis();
+		}
+
+	private boolean mustStop() {
+		return (mThreadMaster != null && mThreadMaster.threadMustDie())
+			|| (mStopMillis != 0L && System.currentTimeMillis() > mStopMillis);
+		}
+
+	private void consume() {
+		ConformerSetGenerator generator = new ConformerSetGenerator(mMaxConformers, mStrategy, mUseFF, mSeed);
+		generator.setThreadMaster(this::mustStop);
+		generator.setTimeOut(mMoleculeTimeOut);
+
+		while (true) {
+			StereoMolecule mol;
+			int index;
+			synchronized (this) {
+				if (!mInput.hasNext())
+					return;
+				mol = mInput.next();
+				index = mNextIndex++;
+				}
+
+			if (mustStop()) {
+				mSkippedCount.increment();
+				deliver(index, mol, null, false, null);
+				continue;
+				}
+
+			ConformerSet conformerSet = null;
+			Exception exception = null;
+			try {
+				conformerSet = generator.generateConformerSet(mol);
+				}
+			catch (Exception e) {
+				exception = e;
+				}
+
+			boolean timedOut = generator.isTimedOut();
+			mCompletedCount.increment();
+			if (timedOut)
+				mTimedOutCount.increment();
+			if (conformerSet == null || conformerSet.isEmpty())
+				mFailedCount.increment();
+			else
+				mConformerCount.add(conformerSet.size());
+
+			deliver(index, mol, conformerSet, timedOut, exception);
+			}
+		}
+
+	private synchronized void deliver(int index, StereoMolecule mol, ConformerSet conformerSet, boolean timedOut, Exception exception) {
+		if (mConsumer != null)
+			mConsumer.conformerSetGenerated(index, mol, conformerSet, timedOut, exception);
+		}
+
+	/**
+	 * @return number of molecules processed, including timed out and failed ones
+	 */
+	public long getCompletedCount() {
+		return mCompletedCount.sum();
+		}
+
+	/**
+	 * @return number of molecules, for which the per molecule timeout stopped the conformer generation
+	 */
+	public long getTimedOutCount() {
+		return mTimedOutCount.sum();
+		}
+
+	/**
+	 * @return number of processed molecules without any conformer, including those, whose conformer generation threw an exception
+	 */
+	public long getFailedCount() {
+		return mFailedCount.sum();
+		}
+
+	/**
+	 * @return number of molecules not processed, because the total timeout was reached or because the ThreadMaster stopped the batch
+	 */
+	public long getSkippedCount() {
+		return mSkippedCount.sum();
+		}
+
+	public long getConformerCount() {
+		return mConformerCount.sum();
+		}
+
+	/**
+	 * @return milliseconds spent on the current or most recent batch
+	 */
+	public long getElapsedMillis() {
+		return (mEndMillis != 0L ? mEndMillis : System.currentTimeMillis()) - mStartMillis;
+		}
+
+	/**
+	 * @return processed molecules per second in the current or most recent batch
+	 */
+	public double getThroughput() {
+		long millis = getElapsedMillis();
+		return millis == 0L ? 0.0 : 1000.0 * getCompletedCount() / millis;
+		}
+
+	/**
+	 * @return one line summary of throughput, timeouts and failures
+	 */
+	public String getReport() {
+		return "molecules:"+getCompletedCount()+" conformers:"+getConformerCount()
+			 +" timedOut:"+getTimedOutCount()+" failed:"+getFailedCount()+" skipped:"+getSkippedCount()
+			 +" millis:"+getElapsedMillis()+" molecules/s:"+DoubleFormat.toString(getThroughput(), 4, false);
+		}
+	}
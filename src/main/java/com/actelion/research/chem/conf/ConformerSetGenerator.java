@@ -18,9 +18,12 @@ public class ConformerSetGenerator {
 	private int mMaxNrConfs;
 	private int mStrategy;
 	private boolean mUseFF;
-	private long mSeed;
+	private long mSeed,mTimeOut;
 	private static long DEFAULT_SEED = 12345L;
 	private ThreadMaster threadMaster;
+	private ConformerGenerator mConformerGenerator;
+	private Map<String, Object> mFFOptions;
+	private boolean mTimedOut;
 	
 	public ConformerSetGenerator(int maxNrConfs, int strategy, boolean useFF, long seed) {
 		mMaxNrConfs = maxNrConfs;
@@ -58,8 +61,26 @@ public class ConformerSetGenerator {
 		this.threadMaster = tm;
 	}
 
+	/**
+	 * Limits the time spent on one molecule. When the time is over, generateConformerSet()
+	 * returns the conformers generated so far and isTimedOut() returns true.
+	 * @param millis time budget per molecule or 0L for no limit
+	 */
+	public void setTimeOut(long millis) {
+		mTimeOut = millis;
+	}
+
+	/**
+	 * @return whether the most recent generateConformerSet() call was stopped by the timeout
+	 */
+	public boolean isTimedOut() {
+		return mTimedOut;
+	}
+
 	/**
 	 * Generates a set of distinct conformers of the canonical largest fragment of the passed molecule.
+	 * The underlying ConformerGenerator is reused for subsequent molecules. Its random seed is reset
+	 * for every molecule, such that the results don't depend on previously processed molecules.
 	 * @param mol
 	 * @return
 	 */
@@ -79,14 +100,20 @@ public class ConformerSetGenerator {
 		StereoMolecule canonicalFragment = new Canonizer(largestFragment).getCanMolecule(true);
 
 		int maxTorsionSets = (int) Math.max(2 * mMaxNrConfs, (1000 * Math.sqrt(mMaxNrConfs)));
-		ConformerGenerator cg = new ConformerGenerator(mSeed,false);
+		if (mConformerGenerator == null)
+			mConformerGenerator = new ConformerGenerator(mSeed,false);
+		ConformerGenerator cg = mConformerGenerator;
+		cg.resetRandomSeed();
 		cg.setThreadMaster(this.threadMaster);
-		Map<String, Object> ffOptions = null;
-		if(mUseFF) {
+		cg.setTimeOut(mTimeOut);
+		long stopMillis = (mTimeOut == 0L) ? 0L : System.currentTimeMillis() + mTimeOut;
+		mTimedOut = false;
+		if(mUseFF && mFFOptions == null) {
 			ForceFieldMMFF94.initialize(ForceFieldMMFF94.MMFF94SPLUS);
-			ffOptions = new HashMap<String, Object>();
-			ffOptions.put("dielectric constant", 4.0);
+			mFFOptions = new HashMap<String, Object>();
+			mFFOptions.put("dielectric constant", 4.0);
 		}
+		Map<String, Object> ffOptions = mFFOptions;
 
 		if (cg.initializeConformers(canonicalFragment, mStrategy, maxTorsionSets, false)) {
 			for (int i = 0; i < mMaxNrConfs; i++) {
@@ -96,8 +123,11 @@ public class ConformerSetGenerator {
 					conformer = sampler.generateOneConformer(mSeed);
 				}
 
-				if (conformer == null)
+				if (conformer == null) {
+					// the ConformerGenerator shares the time budget and gives up, when it is exceeded
+					mTimedOut = (stopMillis != 0L && System.currentTimeMillis() > stopMillis);
 					break;
+				}
 
 				if(mUseFF) {
 					conformer.copyTo(canonicalFragment);
@@ -108,6 +138,10 @@ public class ConformerSetGenerator {
 				confSet.add(conformer);
 				if(threadMaster!=null && threadMaster.threadMustDie())
 					break;
+				if(i+1 < mMaxNrConfs && stopMillis != 0L && System.currentTimeMillis() > stopMillis) {
+					mTimedOut = true;
+					break;
+				}
 			}
 		}
 
@@ -70,6 +70,23 @@ abstract public class AbstractDescriptorHandlerLongFP<U> implements DescriptorHa
                : SSSearcherWithIndex.getSimilarityTanimoto(o1, o2);
     	}
 
+    /**
+     * Calculates the similarities between one query descriptor and a block of count descriptors,
+     * which were packed with SSSearcherWithIndex.packLongIndexes(). Results are identical to
+     * calling getSimilarity() for every pair, but the packed block is processed in tight loops
+     * without per pair method calls.
+     * @param query
+     * @param packedDescriptors
+     * @param count number of packed descriptors
+     * @param similarity receives count similarity values
+     */
+    public void getSimilarities(long[] query, long[] packedDescriptors, int count, float[] similarity) {
+        if (calculationFailed(query))
+            Arrays.fill(similarity, 0, count, 0.0f);
+        else
+            SSSearcherWithIndex.getSimilarityTanimoto(query, packedDescriptors, count, similarity);
+    	}
+
 /*	public long[][] invertDescriptors(long[][] descriptorList) {
     	if (descriptorList == null || descriptorList.length == 0)
     		return null;
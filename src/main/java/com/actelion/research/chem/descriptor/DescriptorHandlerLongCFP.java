@@ -146,6 +146,13 @@ public class DescriptorHandlerLongCFP extends AbstractDescriptorHandlerLongFP<St
         : normalizeValue(SSSearcherWithIndex.getSimilarityTanimoto(o1, o2));
     }
     
+    @Override
+    public void getSimilarities(long[] query, long[] packedDescriptors, int count, float[] similarity) {
+        super.getSimilarities(query, packedDescriptors, count, similarity);
+        for (int i=0; i<count; i++)
+            similarity[i] = normalizeValue(similarity[i]);
+    }
+
 	private float normalizeValue(double value) {
 		return value <= 0.0f ? 0.0f
 			 : value >= 1.0f ? 1.0f
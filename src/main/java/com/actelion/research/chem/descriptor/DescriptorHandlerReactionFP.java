@@ -170,6 +170,20 @@ public class DescriptorHandlerReactionFP extends AbstractDescriptorHandlerLongFP
 		return REACTION_CENTER_WEIGHT * reactionCenterSimilarity + PERIPHERY_WEIGHT * nonReactionCenterSimilarity;
 	}
 
+	@Override
+	public void getSimilarities(long[] query, long[] packedDescriptors, int count, float[] similarity) {
+		// the weighted reaction similarity cannot use the plain Tanimoto kernel
+		long[] descriptor = new long[query.length];
+		for (int j=0; j<count; j++) {
+			boolean isEmpty = true;
+			for (int i=0; i<descriptor.length; i++) {
+				descriptor[i] = packedDescriptors[i*count+j];
+				isEmpty &= (descriptor[i] == 0L);
+				}
+			similarity[j] = isEmpty ? 0.0f : getSimilarity(query, descriptor);
+			}
+		}
+
 	public float getReactionCenterSimilarity(long[] o1, long[] o2) {
 		if (o1 == null
 		 || o2 == null
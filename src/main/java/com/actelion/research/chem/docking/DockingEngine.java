@@ -6,15 +6,11 @@ import com.actelion.research.calc.ThreadMaster;
 import com.actelion.research.chem.*;
 import com.actelion.research.chem.alignment3d.KabschAlignment;
 import com.actelion.research.chem.alignment3d.transformation.Rotation;
-import com.actelion.research.chem.alignment3d.transformation.TransformationSequence;
 import com.actelion.research.chem.alignment3d.transformation.Translation;
 import com.actelion.research.chem.conf.Conformer;
 import com.actelion.research.chem.conf.ConformerSet;
 import com.actelion.research.chem.conf.ConformerSetGenerator;
-import com.actelion.research.chem.docking.receptorpharmacophore.NegativeReceptorImageCreator;
 import com.actelion.research.chem.docking.scoring.AbstractScoringEngine;
-import com.actelion.research.chem.docking.scoring.ChemPLP;
-import com.actelion.research.chem.docking.scoring.IdoScore;
 import com.actelion.research.chem.docking.shape.ShapeDocking;
 import com.actelion.research.chem.forcefield.mmff.ForceFieldMMFF94;
 import com.actelion.research.chem.forcefield.mmff.MMFFPositionConstraint;
@@ -23,14 +19,18 @@ import com.actelion.research.chem.io.pdb.calc.MoleculeGrid;
 import com.actelion.research.chem.mcs.MCS;
 import com.actelion.research.chem.optimization.OptimizerLBFGS;
 import com.actelion.research.chem.phesa.EncodeFunctions;
-import com.actelion.research.chem.phesa.MolecularVolume;
 import com.actelion.research.chem.phesa.PheSAAlignment;
-import com.actelion.research.chem.phesa.ShapeVolume;
 import com.actelion.research.chem.potentialenergy.PositionConstraint;
 import org.openmolecules.chem.conf.gen.ConformerGenerator;
 
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.Base64.Decoder;
 import java.util.Base64.Encoder;
 import java.util.Map.Entry;
@@ -41,6 +41,9 @@ public class DockingEngine {
  * applies molecular docking to find the binding pose of a ligand molecule into the binding site of the protein
  * nativeLigand: defines the location of the binding site
  * this class is not thread safe! every thread requires it's own instance
+ * The Monte Carlo searches from different starting positions of one ligand can be run in parallel,
+ * see setThreadCount(). Every start uses its own random generator seeded from LigandPose.SEED
+ * and the start index, such that results don't depend on the number of threads.
  * @author wahljo1
  *
  */
@@ -58,10 +61,12 @@ public class DockingEngine {
 	private final Rotation rotation; //for initial prealignment to native ligand
 	private final Coordinates origCOM;
 	private final int mcSteps;
-	private final Random random;
+	private int threadCount;
+	private BlockingQueue<AbstractScoringEngine> engineCopies; //thread confined engines for parallel starts
 	private final int startPositions;
 	private final StereoMolecule nativeLigand;
 	private final ShapeDocking shapeDocking;
+	private final PreparedReceptor preparedReceptor;
 	private double mGlobalConformerEnergyMin;
 	private AbstractScoringEngine engine;
 	private ThreadMaster threadMaster;
@@ -72,42 +77,30 @@ public class DockingEngine {
 	
 	public DockingEngine(StereoMolecule rec, StereoMolecule nativeLig, int mcSteps, int startPositions, double gridDimension,
 			ScoringFunction scoringFunction) throws DockingFailedException {
-		for(int ra=0;ra<rec.getAtoms();ra++) {
-			if(rec.getImplicitHydrogens(ra)>0)
-				throw new DockingFailedException("please add hydrogen atoms to receptor structure!");
-		}
-		nativeLigand = new Molecule3D(nativeLig);
+		this(PreparedReceptor.create(rec, nativeLig, gridDimension, scoringFunction), mcSteps, startPositions);
+	}
+
+	/**
+	 * creates a docking engine for a binding site, which was prepared before, e.g. read from a file
+	 * @param preparedReceptor
+	 * @param mcSteps
+	 * @param startPositions
+	 */
+	public DockingEngine(PreparedReceptor preparedReceptor, int mcSteps, int startPositions) {
+		this.preparedReceptor = preparedReceptor;
+		nativeLigand = new Molecule3D(preparedReceptor.getNativeLigand());
 		nativeLigand.ensureHelperArrays(Molecule.cHelperCIP);
-		Molecule3D receptor = new Molecule3D(rec);
-		receptor.ensureHelperArrays(Molecule.cHelperCIP);
-		MolecularVolume molVol = new MolecularVolume(nativeLigand);
-		origCOM  = new Coordinates(molVol.getCOM());
-		Conformer conf = new Conformer(nativeLigand);
-		rotation = molVol.preProcess(conf);
+		origCOM = preparedReceptor.getOrigCOM();
+		rotation = preparedReceptor.getRotation();
 		this.startPositions = startPositions;
-		preprocess(receptor,nativeLigand);
-		
-		TransformationSequence transform = new TransformationSequence();
-		ShapeVolume bsVolume = NegativeReceptorImageCreator.create(nativeLigand, receptor, transform);
-		shapeDocking = new ShapeDocking(bsVolume,transform);
-		
-		MoleculeGrid grid = new MoleculeGrid(nativeLigand,GRID_RESOLUTION,
-				new Coordinates(gridDimension,gridDimension,
-						gridDimension));
-		
-		Set<Integer> bindingSiteAtoms = new HashSet<Integer>();
-		
-		if(scoringFunction==ScoringFunction.CHEMPLP) {
-			DockingEngine.getBindingSiteAtoms(receptor, bindingSiteAtoms, grid, true);
-			engine = new ChemPLP(receptor,bindingSiteAtoms,grid);
-		}
-		else if(scoringFunction==ScoringFunction.IDOSCORE) {
-			DockingEngine.getBindingSiteAtoms(receptor, bindingSiteAtoms, grid, false);
-			engine = new IdoScore(receptor,bindingSiteAtoms, getReceptorAtomTypes(receptor),grid);
-		}
-		
+		shapeDocking = new ShapeDocking(preparedReceptor.getBindingSiteVolume(), preparedReceptor.getBindingSiteTransformation());
+		engine = preparedReceptor.createScoringEngine();
 		this.mcSteps = mcSteps;
-		this.random = new Random(LigandPose.SEED);
+		this.threadCount = 1;
+	}
+
+	public DockingEngine(PreparedReceptor preparedReceptor) {
+		this(preparedReceptor, DEFAULT_NR_MC_STEPS, DEFAULT_START_POSITIONS);
 	}
 	
 	public DockingEngine(StereoMolecule receptor, StereoMolecule nativeLigand, double gridDimension) throws DockingFailedException {
@@ -118,10 +111,40 @@ public class DockingEngine {
 		this(receptor,nativeLigand,DEFAULT_NR_MC_STEPS,DEFAULT_START_POSITIONS, GRID_DIMENSION,ScoringFunction.CHEMPLP);
 	}
 	
+	/**
+	 * @return the receptor preparation of this engine, which may be written to a file and reused by other engines
+	 */
+	public PreparedReceptor getPreparedReceptor() {
+		return preparedReceptor;
+	}
+
 	public void setThreadMaster(ThreadMaster tm) {
 		threadMaster = tm;
 	}
 
+	/**
+	 * By default all receptor-ligand pair terms are evaluated throughout the pose search.
+	 * If switched on, the interactions are looked up in the receptor grid maps of the PreparedReceptor
+	 * during the pose search, which is considerably faster, but may lead to slightly different poses.
+	 * Final scores are always calculated from the exact pairwise terms.
+	 * @param b
+	 */
+	public void setUseGridMaps(boolean b) {
+		engine.setUseGridMaps(b);
+		engineCopies = null;
+	}
+
+	/**
+	 * Sets the number of threads used to run the Monte Carlo searches from the different starting
+	 * positions of one ligand concurrently. Each thread scores poses with its own copy of the scoring
+	 * engine, which shares the receptor data. The best pose is the same as in a single threaded run.
+	 * @param threadCount 1 (default) for sequential docking, 0 to use all available processors
+	 */
+	public void setThreadCount(int threadCount) {
+		this.threadCount = (threadCount == 0) ? Runtime.getRuntime().availableProcessors() : Math.max(1, threadCount);
+		engineCopies = null;
+	}
+
 	/**
 	 * generate initial poses: 
 	 * 1) shape docking into the negative receptor image
@@ -355,24 +378,12 @@ public class DockingEngine {
 		}
 
 		Map<String,Double> contributions = null;
-		for(Conformer ligConf : startPoints) {
-			Conformer newLigConf = new Conformer(ligConf);
-			LigandPose pose = new LigandPose(newLigConf, engine, mGlobalConformerEnergyMin);
-			if(mcsRef!=null) {
-				pose.setMCSBondConstraints(mcsConstrainedBonds);
-				for(int a : mcsConstrainedAtoms) {
-					PositionConstraint constr = new PositionConstraint(newLigConf,a,50,1.0);
-					pose.addConstraint(constr);
-				}
+		for(PreliminaryResult result : dockStartPoints(startPoints, steps)) {
+			if(result!=null && result.energy<bestEnergy) {
+				bestEnergy = result.energy;
+				bestPose = result.conformer;
+				contributions = result.contributions;
 			}
-			double energy = mcSearch(pose,steps);
-			if(energy<bestEnergy) {
-				bestEnergy = energy;
-				bestPose = pose.getLigConf();
-				contributions = pose.getContributions();
-			}
-			if(threadMaster!=null && threadMaster.threadMustDie())
-				break;
 		}
 		
 		if(bestPose!=null) {
@@ -408,27 +419,17 @@ public class DockingEngine {
 
 		ArrayList<PreliminaryResult> resultList = new ArrayList<>();
 
-		for(Conformer ligConf : startPoints) {
-			Conformer newLigConf = new Conformer(ligConf);
-			LigandPose pose = new LigandPose(newLigConf, engine, mGlobalConformerEnergyMin);
-			if(mcsRef!=null) {
-				pose.setMCSBondConstraints(mcsConstrainedBonds);
-				for(int a : mcsConstrainedAtoms) {
-					PositionConstraint constr = new PositionConstraint(newLigConf,a,50,1.0);
-					pose.addConstraint(constr);
-				}
-			}
-			double energy = mcSearch(pose,steps);
+		for(PreliminaryResult result : dockStartPoints(startPoints, steps)) {
+			if(result==null)
+				continue;
 			int index = 0;
 			for (; index<resultList.size(); index++)
-				if(energy < resultList.get(index).energy)
+				if(result.energy < resultList.get(index).energy)
 					break;
 			if (index < maxPoseCount)
-				resultList.add(index, new PreliminaryResult(pose.getLigConf(), energy, pose.getContributions()));
+				resultList.add(index, result);
 			if (resultList.size() > maxPoseCount)
 				resultList.remove(maxPoseCount);
-			if(threadMaster!=null && threadMaster.threadMustDie())
-				break;
 		}
 
 		if (resultList.isEmpty())
@@ -448,13 +449,92 @@ public class DockingEngine {
 		return result;
 	}
 
+	/**
+	 * runs the Monte Carlo search for every starting position, either sequentially or
+	 * with threadCount threads, each of them using its own copy of the scoring engine
+	 * @param startPoints
+	 * @param steps
+	 * @return results in the order of the starting positions; null for starts skipped because the threadMaster requested to stop
+	 * @throws DockingFailedException
+	 */
+	private PreliminaryResult[] dockStartPoints(List<Conformer> startPoints, int steps) throws DockingFailedException {
+		PreliminaryResult[] results = new PreliminaryResult[startPoints.size()];
+		if(threadCount<2 || startPoints.size()<2) {
+			for(int i=0;i<startPoints.size();i++) {
+				results[i] = dockStartPoint(startPoints.get(i), i, steps, engine);
+				if(threadMaster!=null && threadMaster.threadMustDie())
+					break;
+			}
+			return results;
+		}
+
+		BlockingQueue<AbstractScoringEngine> engines = getEngineCopies();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadCount, startPoints.size()));
+		try {
+			List<Future<PreliminaryResult>> futures = new ArrayList<>();
+			for(int i=0;i<startPoints.size();i++) {
+				final int startIndex = i;
+				futures.add(executor.submit(() -> {
+					if(threadMaster!=null && threadMaster.threadMustDie())
+						return null;
+					AbstractScoringEngine threadEngine = engines.take();
+					try {
+						return dockStartPoint(startPoints.get(startIndex), startIndex, steps, threadEngine);
+					}
+					finally {
+						engines.put(threadEngine);
+					}
+				}));
+			}
+			for(int i=0;i<results.length;i++)
+				results[i] = futures.get(i).get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DockingFailedException("docking interrupted");
+		}
+		catch(ExecutionException e) {
+			throw new DockingFailedException("docking failed: "+e.getCause());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		return results;
+	}
+
+	private BlockingQueue<AbstractScoringEngine> getEngineCopies() {
+		if(engineCopies==null) {
+			engineCopies = new ArrayBlockingQueue<>(threadCount);
+			engineCopies.add(engine);
+			for(int i=1;i<threadCount;i++)
+				engineCopies.add(engine.createCopy());
+		}
+		return engineCopies;
+	}
+
+	private PreliminaryResult dockStartPoint(Conformer ligConf, int startIndex, int steps, AbstractScoringEngine engine) {
+		// starting conformers may share their molecule, which is modified by scoring engines and force field
+		Conformer newLigConf = new Conformer(ligConf, new StereoMolecule(ligConf.getMolecule()));
+		LigandPose pose = new LigandPose(newLigConf, engine, mGlobalConformerEnergyMin);
+		if(mcsRef!=null) {
+			pose.setMCSBondConstraints(mcsConstrainedBonds);
+			for(int a : mcsConstrainedAtoms) {
+				PositionConstraint constr = new PositionConstraint(newLigConf,a,50,1.0);
+				pose.addConstraint(constr);
+			}
+		}
+		double energy = mcSearch(pose, steps, new Random(LigandPose.SEED+startIndex));
+		return new PreliminaryResult(pose.getLigConf(), energy, pose.getContributions());
+	}
+
 	/**
 	 * use monte carlo steps to permute molecular rotation, translation, torsion angles
 	 * promising poses (below a certain cutoff) are optimized
 	 * @param pose
+	 * @param random for the Metropolis criterion
 	 * @return
 	 */
-	private double mcSearch(LigandPose pose, int steps) {
+	private double mcSearch(LigandPose pose, int steps, Random random) {
 		double[] bestState = new double[pose.getState().length];
 		double[] oldState = new double[pose.getState().length];
 		double[] state = new double[pose.getState().length];
@@ -537,20 +617,6 @@ public class DockingEngine {
 		return receptorAtomTypes;
 	}
 
-	/**
-	 * rotates receptor and ligand to principal moments of inertia of ligand, for efficient grid creation
-	 * @param receptor
-	 * @param ligand
-	 * @return
-	 */
-	private void preprocess(StereoMolecule receptor, StereoMolecule ligand) {
-		Translation translate = new Translation(new double[] {-origCOM.x,-origCOM.y,-origCOM.z});
-		translate.apply(ligand);
-		rotation.apply(ligand);
-		translate.apply(receptor);
-		rotation.apply(receptor);
-	}
-
 	/**
 	 * the parameter d defines how much the atoms are allowed to move from their original position
 	 * @param d
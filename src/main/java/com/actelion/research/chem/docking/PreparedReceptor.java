@@ -0,0 +1,186 @@
+package com.actelion.research.chem.docking;
+
+import com.actelion.research.chem.Coordinates;
+import com.actelion.research.chem.Molecule;
+import com.actelion.research.chem.Molecule3D;
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.chem.alignment3d.transformation.Rotation;
+import com.actelion.research.chem.alignment3d.transformation.TransformationSequence;
+import com.actelion.research.chem.alignment3d.transformation.Translation;
+import com.actelion.research.chem.conf.Conformer;
+import com.actelion.research.chem.docking.DockingEngine.ScoringFunction;
+import com.actelion.research.chem.docking.receptorpharmacophore.NegativeReceptorImageCreator;
+import com.actelion.research.chem.docking.scoring.AbstractScoringEngine;
+import com.actelion.research.chem.docking.scoring.ChemPLP;
+import com.actelion.research.chem.docking.scoring.IdoScore;
+import com.actelion.research.chem.docking.scoring.ReceptorGridMap;
+import com.actelion.research.chem.io.pdb.calc.MoleculeGrid;
+import com.actelion.research.chem.phesa.MolecularVolume;
+import com.actelion.research.chem.phesa.ShapeVolume;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Receptor preparation for docking into one binding site, which is independent of the ligands to be docked:
+ * receptor and native ligand moved into the binding site frame, the negative receptor image used to create
+ * starting poses, binding site atoms, receptor atom types and the receptor grid maps of the scoring function.
+ * Preparing a large receptor is expensive. A PreparedReceptor can be written to a file once and then be
+ * read by any number of docking workers, which create their DockingEngine with new DockingEngine(preparedReceptor).
+ */
+public class PreparedReceptor implements Serializable {
+	private static final long serialVersionUID = 0x20261017;
+
+	private final StereoMolecule receptor;
+	private final StereoMolecule nativeLigand;
+	private final Coordinates origCOM;
+	private final double[][] rotation;
+	private final String bindingSiteVolume;
+	private final String bindingSiteTransformation;
+	private final double gridDimension;
+	private final ScoringFunction scoringFunction;
+	private final int[] bindingSiteAtoms;
+	private final int[] receptorAtomTypes;
+	private final HashMap<Integer,ReceptorGridMap> gridMaps;
+
+	private PreparedReceptor(StereoMolecule receptor, StereoMolecule nativeLigand, Coordinates origCOM, Rotation rotation,
+			ShapeVolume bindingSiteVolume, TransformationSequence bindingSiteTransformation, double gridDimension,
+			ScoringFunction scoringFunction, int[] bindingSiteAtoms, int[] receptorAtomTypes, Map<Integer,ReceptorGridMap> gridMaps) {
+		this.receptor = receptor;
+		this.nativeLigand = nativeLigand;
+		this.origCOM = origCOM;
+		this.rotation = rotation.getRotation();
+		this.bindingSiteVolume = bindingSiteVolume.encode();
+		this.bindingSiteTransformation = bindingSiteTransformation.encode();
+		this.gridDimension = gridDimension;
+		this.scoringFunction = scoringFunction;
+		this.bindingSiteAtoms = bindingSiteAtoms;
+		this.receptorAtomTypes = receptorAtomTypes;
+		this.gridMaps = new HashMap<>(gridMaps);
+	}
+
+	/**
+	 * prepares the binding site defined by the native ligand for docking
+	 * @param rec receptor with explicit hydrogen atoms
+	 * @param nativeLig
+	 * @param gridDimension
+	 * @param scoringFunction
+	 * @return
+	 * @throws DockingFailedException
+	 */
+	public static PreparedReceptor create(StereoMolecule rec, StereoMolecule nativeLig, double gridDimension,
+			ScoringFunction scoringFunction) throws DockingFailedException {
+		for(int ra=0;ra<rec.getAtoms();ra++) {
+			if(rec.getImplicitHydrogens(ra)>0)
+				throw new DockingFailedException("please add hydrogen atoms to receptor structure!");
+		}
+		Molecule3D nativeLigand = new Molecule3D(nativeLig);
+		nativeLigand.ensureHelperArrays(Molecule.cHelperCIP);
+		Molecule3D receptor = new Molecule3D(rec);
+		receptor.ensureHelperArrays(Molecule.cHelperCIP);
+		MolecularVolume molVol = new MolecularVolume(nativeLigand);
+		Coordinates origCOM = new Coordinates(molVol.getCOM());
+		Conformer conf = new Conformer(nativeLigand);
+		Rotation rotation = molVol.preProcess(conf);
+
+		// rotate receptor and ligand to principal moments of inertia of ligand, for efficient grid creation
+		Translation translate = new Translation(new double[] {-origCOM.x,-origCOM.y,-origCOM.z});
+		translate.apply(nativeLigand);
+		rotation.apply(nativeLigand);
+		translate.apply(receptor);
+		rotation.apply(receptor);
+
+		TransformationSequence transform = new TransformationSequence();
+		ShapeVolume bsVolume = NegativeReceptorImageCreator.create(nativeLigand, receptor, transform);
+
+		MoleculeGrid grid = createGrid(nativeLigand, gridDimension);
+		Set<Integer> bindingSiteAtoms = new HashSet<Integer>();
+		int[] receptorAtomTypes = null;
+		AbstractScoringEngine engine = null;
+		if(scoringFunction==ScoringFunction.CHEMPLP) {
+			DockingEngine.getBindingSiteAtoms(receptor, bindingSiteAtoms, grid, true);
+			engine = new ChemPLP(receptor,bindingSiteAtoms,grid);
+		}
+		else if(scoringFunction==ScoringFunction.IDOSCORE) {
+			DockingEngine.getBindingSiteAtoms(receptor, bindingSiteAtoms, grid, false);
+			receptorAtomTypes = DockingEngine.getReceptorAtomTypes(receptor);
+			IdoScore idoScore = new IdoScore(receptor,bindingSiteAtoms,receptorAtomTypes,grid);
+			idoScore.createAllGridMaps();	// otherwise maps are built lazily per ligand atom type and the snapshot below would be empty
+			engine = idoScore;
+		}
+		engine.setUseGridMaps(true);
+
+		return new PreparedReceptor(new StereoMolecule(receptor), new StereoMolecule(nativeLigand), origCOM, rotation,
+				bsVolume, transform, gridDimension, scoringFunction, bindingSiteAtoms.stream().mapToInt(Integer::intValue).toArray(),
+				receptorAtomTypes, engine.getGridMaps());
+	}
+
+	private static MoleculeGrid createGrid(StereoMolecule nativeLigand, double gridDimension) {
+		return new MoleculeGrid(nativeLigand,DockingEngine.GRID_RESOLUTION,
+				new Coordinates(gridDimension,gridDimension,gridDimension));
+	}
+
+	/**
+	 * @return a new scoring engine for this binding site, which uses the precalculated grid maps
+	 */
+	public AbstractScoringEngine createScoringEngine() {
+		Molecule3D rec = new Molecule3D(receptor);
+		rec.ensureHelperArrays(Molecule.cHelperRings);
+		Set<Integer> bsAtoms = new HashSet<>();
+		for(int atom : bindingSiteAtoms)
+			bsAtoms.add(atom);
+		MoleculeGrid grid = createGrid(nativeLigand, gridDimension);
+		AbstractScoringEngine engine = (scoringFunction==ScoringFunction.IDOSCORE) ?
+				new IdoScore(rec,bsAtoms,receptorAtomTypes,grid) : new ChemPLP(rec,bsAtoms,grid);
+		engine.setGridMaps(gridMaps);
+		return engine;
+	}
+
+	/**
+	 * @return the native ligand within the binding site frame
+	 */
+	public StereoMolecule getNativeLigand() {
+		return new StereoMolecule(nativeLigand);
+	}
+
+	public Coordinates getOrigCOM() {
+		return new Coordinates(origCOM);
+	}
+
+	public Rotation getRotation() {
+		double[][] m = new double[3][];
+		for(int i=0;i<3;i++)
+			m[i] = rotation[i].clone();
+		return new Rotation(m);
+	}
+
+	public ShapeVolume getBindingSiteVolume() {
+		return ShapeVolume.decode(bindingSiteVolume);
+	}
+
+	public TransformationSequence getBindingSiteTransformation() {
+		return TransformationSequence.decode(bindingSiteTransformation);
+	}
+
+	public ScoringFunction getScoringFunction() {
+		return scoringFunction;
+	}
+
+	public void write(File file) throws IOException {
+		try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeObject(this);
+		}
+	}
+
+	public static PreparedReceptor read(File file) throws IOException {
+		try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			return (PreparedReceptor)in.readObject();
+		}
+		catch (ClassNotFoundException e) {
+			throw new IOException("unexpected content: "+e.getMessage());
+		}
+	}
+}
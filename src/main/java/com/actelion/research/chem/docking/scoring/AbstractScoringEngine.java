@@ -27,6 +27,7 @@ public abstract class AbstractScoringEngine  {
 	protected LigandPose candidatePose;
 	protected MoleculeGrid grid;
 	protected List<PotentialEnergyTerm> constraints;
+	protected boolean useGridMaps;
 	
 	public AbstractScoringEngine(StereoMolecule receptor, Set<Integer> bindingSiteAtoms, MoleculeGrid grid) {
 		this.receptorConf = new Conformer(receptor);
@@ -34,6 +35,18 @@ public abstract class AbstractScoringEngine  {
 		this.grid = grid;
 		constraints = new ArrayList<>();
 	}
+
+	/**
+	 * creates an engine for another thread, which shares the immutable receptor data with the source engine
+	 * @param source
+	 */
+	protected AbstractScoringEngine(AbstractScoringEngine source) {
+		this.receptorConf = source.receptorConf;
+		this.bindingSiteAtoms = source.bindingSiteAtoms;
+		this.grid = source.grid;
+		this.useGridMaps = source.useGridMaps;
+		constraints = new ArrayList<>();
+	}
 	
 	public LigandPose getCandidatePose() {
 		return candidatePose; 
@@ -66,6 +79,34 @@ public abstract class AbstractScoringEngine  {
 		return bumpTerm;
 		}
 	
+	/**
+	 * If enabled, receptor-ligand pair terms are replaced by precomputed receptor grid maps
+	 * during the pose search. Maps are built once on first use and shared by all poses.
+	 * Scores reported by getScore() are still calculated from the exact pair terms.
+	 * Takes effect with the next call of init().
+	 * @param b
+	 */
+	public void setUseGridMaps(boolean b) {
+		useGridMaps = b;
+	}
+
+	public boolean isUseGridMaps() {
+		return useGridMaps;
+	}
+
+	/**
+	 * Returns this engine's grid maps keyed by the ligand atom class or type they are used for.
+	 * Maps that don't depend on the ligand are built, if they don't exist yet.
+	 * @return
+	 */
+	public abstract Map<Integer,ReceptorGridMap> getGridMaps();
+
+	/**
+	 * Adopts grid maps, which were built by an engine for the same binding site, e.g. from a PreparedReceptor.
+	 * @param gridMaps
+	 */
+	public abstract void setGridMaps(Map<Integer,ReceptorGridMap> gridMaps);
+
 	public void addConstraint(PotentialEnergyTerm constraint) {
 		this.constraints.add(constraint);
 	}
@@ -74,6 +115,14 @@ public abstract class AbstractScoringEngine  {
 		this.constraints = new ArrayList<>();
 	}
 
+	/**
+	 * Scoring engines keep the state of the current candidate pose and must be confined to one thread.
+	 * To score poses concurrently, every thread needs its own copy. Copies share receptor derived data
+	 * including grid maps, but don't inherit the candidate pose nor any constraints.
+	 * @return a new engine for the same binding site
+	 */
+	public abstract AbstractScoringEngine createCopy();
+
 	public abstract void init(LigandPose candidatePose, double e0);
 	
 	public abstract void updateState();
@@ -38,11 +38,21 @@ public class ChemPLP extends AbstractScoringEngine {
 
 	private static final Set<Integer> SIMPLE_METAL_ATOMS = new HashSet<>(Arrays.asList(12,20)); //Mg and Ca
 
+	//ligand heavy atom classes, each having its own PLP grid map
+	private static final int LIGAND_NONPOLAR = 0;
+	private static final int LIGAND_DONOR = 1;
+	private static final int LIGAND_ACCEPTOR = 2;
+	private static final int LIGAND_DONOR_ACCEPTOR = 3;
+	private static final int LIGAND_CLASSES = 4;
+
 	private final Set<Integer> receptorAcceptors,receptorDonorHs,receptorDonors,receptorMetals;
 	private final Map<Integer, Double>receptorDonorHPos,receptorAcceptorNeg;
 	private final Map<Integer,List<Coordinates>> metalInteractionSites;
 
 	private List<PotentialEnergyTerm> plp,chemScoreHbond,chemScoreMetal;
+	private List<PotentialEnergyTerm> explicitPLP; //pairwise PLP terms for the final score, if plp uses grid maps
+	private Set<Integer> ligandAcceptors,ligandDonors;
+	private volatile ReceptorGridMap[] plpMaps;
 	private ForceFieldMMFF94 ff;
 	private double e0;
 
@@ -63,6 +73,23 @@ public class ChemPLP extends AbstractScoringEngine {
 			metalInteractionSites.put(met, processMetalCoordination(receptorConf,met,receptorAcceptors));
 	}
 
+	private ChemPLP(ChemPLP source) {
+		super(source);
+		receptorAcceptors = source.receptorAcceptors;
+		receptorDonorHs = source.receptorDonorHs;
+		receptorDonorHPos = source.receptorDonorHPos;
+		receptorAcceptorNeg = source.receptorAcceptorNeg;
+		receptorMetals = source.receptorMetals;
+		receptorDonors = source.receptorDonors;
+		metalInteractionSites = source.metalInteractionSites;
+		plpMaps = useGridMaps ? source.getPLPGridMaps() : source.plpMaps;
+	}
+
+	@Override
+	public ChemPLP createCopy() {
+		return new ChemPLP(this);
+	}
+
 	@Override
 	public double getFGValue(double[] grad) {
 		double energy = getBumpTerm();
@@ -97,7 +124,7 @@ public class ChemPLP extends AbstractScoringEngine {
 			energy+=term.getFGValue(gradient);
 		for(PotentialEnergyTerm term : getMetalTerm(chemScoreMetal))
 			energy+=term.getFGValue(gradient);
-		for(PotentialEnergyTerm term : plp)
+		for(PotentialEnergyTerm term : getExplicitPLPTerms())
 			energy += term.getFGValue(gradient);
 		Map<String, Object> ffOptions = new HashMap<String, Object>();
 		ffOptions.put("dielectric constant", 80.0);
@@ -132,7 +159,7 @@ public class ChemPLP extends AbstractScoringEngine {
 			energy+=term.getFGValue(gradient);
 		for(PotentialEnergyTerm term : getMetalTerm(chemScoreMetal))
 			energy+=term.getFGValue(gradient);
-		for(PotentialEnergyTerm term : plp)
+		for(PotentialEnergyTerm term : getExplicitPLPTerms())
 			energy += term.getFGValue(gradient);
 		Map<String, Object> ffOptions = new HashMap<String, Object>();
 		ffOptions.put("dielectric constant", 80.0);
@@ -158,13 +185,13 @@ public class ChemPLP extends AbstractScoringEngine {
 		this.e0 = e0;
 		this.candidatePose = candidatePose;
 		
-		plp = new ArrayList<>();
 		chemScoreHbond = new ArrayList<>();
 		chemScoreMetal = new ArrayList<>();
+		explicitPLP = null;
 
-		Set<Integer> ligandAcceptors = new HashSet<>();
+		ligandAcceptors = new HashSet<>();
+		ligandDonors = new HashSet<>();
 		Set<Integer> ligandDonorHs = new HashSet<>();
-		Set<Integer> ligandDonors = new HashSet<>();
 		Map<Integer, Double> ligandDonorHPos = new HashMap<Integer, Double>();
 		Map<Integer, Double> ligandAcceptorNeg = new HashMap<Integer, Double>();
 		constraints = new ArrayList<>();
@@ -201,22 +228,9 @@ public class ChemPLP extends AbstractScoringEngine {
 				}
 			}
 			}
-			else { //receptor heavy atom
+			else { //receptor heavy atom; plp terms are created separately
 				if(receptorDonors.contains(p)) { // receptor donor heavy atom -> only plp terms 
-					for(int l=0;l<ligand.getAtoms();l++) { //only consider ligand heavy atoms
-						if(ligandAcceptors.contains(l)) {  //plp hbond donor-acceptor
-							PLPTerm plpTerm = PLPTerm.create(receptorConf, candidatePose.getLigConf(), p, l, PLPTerm.HBOND_TERM);
-							plp.add(plpTerm);
-						}
-						else if(ligandDonors.contains(l)) {  //repulsive donor-donor
-							REPTerm repTerm = REPTerm.create(receptorConf, candidatePose.getLigConf(), p, l);
-							plp.add(repTerm);
-						}
-						else { //buried
-							PLPTerm plpTerm = PLPTerm.create(receptorConf, candidatePose.getLigConf(), p, l, PLPTerm.BURIED_TERM);
-							plp.add(plpTerm);
-						}					
-					}
+					continue;
 				}
 				else if(receptorAcceptors.contains(p)) { // receptor acceptor heavy atom
 					int[] acceptorNeighbours = IntStream.range(0, receptor.getConnAtoms(p)).map(i -> receptor.getConnAtom(p, i)).toArray();
@@ -233,38 +247,9 @@ public class ChemPLP extends AbstractScoringEngine {
 								chemScoreHbond.add(hbTerm);
 							}
 						}
-						else { //ligand heavy atom
-							if(ligandDonors.contains(l)) {  //plp hbond donor-acceptor
-								PLPTerm plpTerm = PLPTerm.create(receptorConf, candidatePose.getLigConf(), p, l, PLPTerm.HBOND_TERM);
-								plp.add(plpTerm);
-							}
-							else if(ligandAcceptors.contains(l)) {  //repulsive donor-donor
-								REPTerm repTerm = REPTerm.create(receptorConf, candidatePose.getLigConf(), p, l);
-								plp.add(repTerm);
-							}
-							else { //buried
-								PLPTerm plpTerm = PLPTerm.create(receptorConf, candidatePose.getLigConf(), p, l, PLPTerm.BURIED_TERM);
-								plp.add(plpTerm);
-							}
-						}
 					}
 				}
 				else if(receptorMetals.contains(p)) {
-					for(int l=0;l<ligand.getAtoms();l++) {
-						if(ligandDonors.contains(l)) {  //met-donor -> repulsive
-							REPTerm repTerm = REPTerm.create(receptorConf, candidatePose.getLigConf(), p, l);
-							plp.add(repTerm);
-						}
-						else if(ligandAcceptors.contains(l)) { //attractive met-acc interaction
-							PLPTerm plpTerm = PLPTerm.create(receptorConf, candidatePose.getLigConf(), p, l, PLPTerm.METAL_TERM);
-							plp.add(plpTerm);
-						}
-						else { //buried met-nonp interaction
-							PLPTerm plpTerm = PLPTerm.create(receptorConf, candidatePose.getLigConf(), p, l, PLPTerm.BURIED_TERM);
-							plp.add(plpTerm);
-						}
-					}
-					
 					if(SIMPLE_METAL_ATOMS.contains(receptor.getAtomicNo(p))) {
 						for(int l : ligandAcceptors) {
 							double scale = 1.0;
@@ -290,24 +275,140 @@ public class ChemPLP extends AbstractScoringEngine {
 						}
 					}
 				}
-				else { // non-polar heavy atom
-					for(int l=0;l<ligand.getAtoms();l++) { 
-						if(ligandDonors.contains(l)) {  //nonpolar-donor -> buried
-							PLPTerm plpTerm = PLPTerm.create(receptorConf, candidatePose.getLigConf(), p, l, PLPTerm.BURIED_TERM);
-							plp.add(plpTerm);
-						}
-						else if(ligandAcceptors.contains(l)) { //nonpolar-acceptor -> buried
-							PLPTerm plpTerm = PLPTerm.create(receptorConf, candidatePose.getLigConf(), p, l, PLPTerm.BURIED_TERM);
-							plp.add(plpTerm);
+			}
+		}
+
+		plp = useGridMaps ? createGridMapTerms() : createPLPTerms();
+	}
+
+	/**
+	 * pairwise plp terms between all binding site heavy atoms and all ligand heavy atoms
+	 */
+	private List<PotentialEnergyTerm> createPLPTerms() {
+		List<PotentialEnergyTerm> plp = new ArrayList<>();
+		StereoMolecule ligand = candidatePose.getLigConf().getMolecule();
+		StereoMolecule receptor = receptorConf.getMolecule();
+		for(int p : bindingSiteAtoms) {
+			if(receptor.getAtomicNo(p)==1)
+				continue;
+			for(int l=0;l<ligand.getAtoms();l++) { //only consider ligand heavy atoms
+				Map<String,Double> term = getPLPTerm(p, getLigandClass(l));
+				if(term==null)
+					plp.add(REPTerm.create(receptorConf, candidatePose.getLigConf(), p, l));
+				else
+					plp.add(PLPTerm.create(receptorConf, candidatePose.getLigConf(), p, l, term));
+			}
+		}
+		return plp;
+	}
+
+	/**
+	 * one grid map lookup per ligand heavy atom replacing the pairwise plp terms of that atom
+	 */
+	private List<PotentialEnergyTerm> createGridMapTerms() {
+		List<PotentialEnergyTerm> plp = new ArrayList<>();
+		ReceptorGridMap[] maps = getPLPGridMaps();
+		StereoMolecule ligand = candidatePose.getLigConf().getMolecule();
+		for(int l=0;l<ligand.getAtoms();l++)
+			plp.add(GridMapTerm.create(maps[getLigandClass(l)], candidatePose.getLigConf(), l));
+		return plp;
+	}
+
+	/**
+	 * the grid based plp is only used to guide the pose search, the final score is calculated from the
+	 * exact pairwise terms
+	 */
+	private List<PotentialEnergyTerm> getExplicitPLPTerms() {
+		if(!useGridMaps)
+			return plp;
+		if(explicitPLP==null)
+			explicitPLP = createPLPTerms();
+		return explicitPLP;
+	}
+
+	private int getLigandClass(int l) {
+		if(ligandDonors.contains(l))
+			return ligandAcceptors.contains(l) ? LIGAND_DONOR_ACCEPTOR : LIGAND_DONOR;
+		return ligandAcceptors.contains(l) ? LIGAND_ACCEPTOR : LIGAND_NONPOLAR;
+	}
+
+	/**
+	 * @param p receptor heavy atom
+	 * @param ligandClass
+	 * @return PLP parameters for the interaction of p with a ligand atom of the given class; null for the repulsive term
+	 */
+	private Map<String,Double> getPLPTerm(int p, int ligandClass) {
+		if(receptorDonors.contains(p)) {
+			if(ligandClass==LIGAND_NONPOLAR)
+				return PLPTerm.BURIED_TERM; //buried
+			return ligandClass==LIGAND_DONOR ? null : PLPTerm.HBOND_TERM; //repulsive donor-donor or hbond donor-acceptor
+		}
+		else if(receptorAcceptors.contains(p)) {
+			if(ligandClass==LIGAND_NONPOLAR)
+				return PLPTerm.BURIED_TERM;
+			return ligandClass==LIGAND_ACCEPTOR ? null : PLPTerm.HBOND_TERM;
+		}
+		else if(receptorMetals.contains(p)) {
+			if(ligandClass==LIGAND_NONPOLAR)
+				return PLPTerm.BURIED_TERM; //buried met-nonp interaction
+			return ligandClass==LIGAND_ACCEPTOR ? PLPTerm.METAL_TERM : null; //met-acc attractive, met-donor repulsive
+		}
+		else { // non-polar heavy atom
+			return ligandClass==LIGAND_NONPOLAR ? PLPTerm.NONPOLAR_TERM : PLPTerm.BURIED_TERM;
+		}
+	}
+
+	@Override
+	public Map<Integer,ReceptorGridMap> getGridMaps() {
+		ReceptorGridMap[] maps = getPLPGridMaps();
+		Map<Integer,ReceptorGridMap> gridMaps = new HashMap<>();
+		for(int c=0;c<maps.length;c++)
+			gridMaps.put(c, maps[c]);
+		return gridMaps;
+	}
+
+	@Override
+	public void setGridMaps(Map<Integer,ReceptorGridMap> gridMaps) {
+		ReceptorGridMap[] maps = new ReceptorGridMap[LIGAND_CLASSES];
+		for(int c=0;c<LIGAND_CLASSES;c++) {
+			maps[c] = gridMaps.get(c);
+			if(maps[c]==null)
+				return;
+		}
+		plpMaps = maps;
+	}
+
+	/**
+	 * the plp grid maps are built once for the binding site on first use and are shared by all subsequent poses
+	 */
+	private ReceptorGridMap[] getPLPGridMaps() {
+		if(plpMaps==null) {
+			synchronized(this) {
+				if(plpMaps==null) {
+					ReceptorGridMap.RadialPotential rep = REPTerm::getEnergy;
+					Map<Map<String,Double>,ReceptorGridMap.RadialPotential> potentialMap = new HashMap<>();
+					double cutoff = REPTerm.B;
+					for(Map<String,Double> term : Arrays.asList(PLPTerm.HBOND_TERM, PLPTerm.METAL_TERM, PLPTerm.BURIED_TERM, PLPTerm.NONPOLAR_TERM)) {
+						potentialMap.put(term, PLPTerm.create(null, null, -1, -1, term)::getEnergy);
+						cutoff = Math.max(cutoff, term.get("D"));
+					}
+					StereoMolecule receptor = receptorConf.getMolecule();
+					List<Integer> heavyAtoms = new ArrayList<>();
+					ReceptorGridMap.RadialPotential[][] potential = new ReceptorGridMap.RadialPotential[LIGAND_CLASSES][receptor.getAllAtoms()];
+					for(int p : bindingSiteAtoms) {
+						if(receptor.getAtomicNo(p)==1)
+							continue;
+						heavyAtoms.add(p);
+						for(int c=0;c<LIGAND_CLASSES;c++) {
+							Map<String,Double> term = getPLPTerm(p, c);
+							potential[c][p] = (term==null) ? rep : potentialMap.get(term);
 						}
-						else { // nonpolar-nonpolar -> nonpolar
-							PLPTerm plpTerm = PLPTerm.create(receptorConf, candidatePose.getLigConf(), p, l, PLPTerm.NONPOLAR_TERM);
-							plp.add(plpTerm);
-						}	
 					}
+					plpMaps = ReceptorGridMap.create(receptorConf, heavyAtoms, potential, cutoff, ReceptorGridMap.DEFAULT_SPACING);
 				}
 			}
 		}
+		return plpMaps;
 	}
 	
 	//tries tetrahedral or octahedral coordination at metal and choses the one that gives the better fit with the alignment
@@ -571,7 +672,7 @@ public class ChemPLP extends AbstractScoringEngine {
 		}
 		contributions.put("METAL", metal);
 		double plpContr = 0.0;
-		for(PotentialEnergyTerm term : plp) 
+		for(PotentialEnergyTerm term : getExplicitPLPTerms())
 			plpContr+=term.getFGValue(grad);
 		contributions.put("PLP", plpContr);
 		double strain = 0.0;
@@ -0,0 +1,29 @@
+package com.actelion.research.chem.docking.scoring;
+
+import com.actelion.research.chem.conf.Conformer;
+import com.actelion.research.chem.potentialenergy.PotentialEnergyTerm;
+
+/**
+ * interaction of one ligand atom with the binding site, looked up in a precomputed ReceptorGridMap
+ * instead of summing up the individual receptor-ligand pair terms
+ */
+public class GridMapTerm implements PotentialEnergyTerm {
+	private final ReceptorGridMap map;
+	private final Conformer ligand;
+	private final int ligAtom;
+
+	private GridMapTerm(ReceptorGridMap map, Conformer ligand, int ligAtom) {
+		this.map = map;
+		this.ligand = ligand;
+		this.ligAtom = ligAtom;
+	}
+
+	public static GridMapTerm create(ReceptorGridMap map, Conformer ligand, int ligAtom) {
+		return new GridMapTerm(map, ligand, ligAtom);
+	}
+
+	@Override
+	public double getFGValue(double[] gradient) {
+		return map.getFGValue(ligand.getCoordinates(ligAtom), gradient, ligAtom);
+	}
+}
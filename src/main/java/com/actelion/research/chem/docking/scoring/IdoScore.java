@@ -12,7 +12,9 @@ import com.actelion.research.chem.conf.BondRotationHelper;
 import com.actelion.research.chem.docking.LigandPose;
 import com.actelion.research.chem.docking.scoring.idoscore.InteractionTerm;
 import com.actelion.research.chem.forcefield.mmff.ForceFieldMMFF94;
+import com.actelion.research.chem.interactions.SplineFunction;
 import com.actelion.research.chem.interactions.statistics.InteractionAtomTypeCalculator;
+import com.actelion.research.chem.interactions.statistics.InteractionDistanceStatistics;
 import com.actelion.research.chem.io.pdb.calc.MoleculeGrid;
 import com.actelion.research.chem.potentialenergy.PotentialEnergyTerm;
 
@@ -23,6 +25,8 @@ public class IdoScore extends AbstractScoringEngine {
 	private List<PotentialEnergyTerm> ligStrain;
 	private List<PotentialEnergyTerm> constraint;
 	private List<PotentialEnergyTerm> interactionEnergy;	
+	private List<PotentialEnergyTerm> explicitInteractionEnergy; //pair terms for the final score, if interactionEnergy uses grid maps
+	private final Map<Integer,ReceptorGridMap> ligAtomTypeMaps;
 	private BondRotationHelper torsionHelper;
 	private int[] receptorAtomTypes;
 	private int[] ligAtomTypes;
@@ -32,6 +36,18 @@ public class IdoScore extends AbstractScoringEngine {
 	public IdoScore(StereoMolecule receptor, Set<Integer> bindingSiteAtoms, int[] receptorAtomTypes, MoleculeGrid grid) {
 		super(receptor, bindingSiteAtoms, grid);
 		this.receptorAtomTypes = receptorAtomTypes;
+		this.ligAtomTypeMaps = new HashMap<>();
+	}
+
+	private IdoScore(IdoScore source) {
+		super(source);
+		this.receptorAtomTypes = source.receptorAtomTypes;
+		this.ligAtomTypeMaps = source.ligAtomTypeMaps;
+	}
+
+	@Override
+	public IdoScore createCopy() {
+		return new IdoScore(this);
 	}
 	
 	@Override
@@ -41,6 +57,7 @@ public class IdoScore extends AbstractScoringEngine {
 		ligStrain = new ArrayList<PotentialEnergyTerm>();
 		constraint = new ArrayList<PotentialEnergyTerm>();
 		interactionEnergy = new ArrayList<PotentialEnergyTerm>();
+		explicitInteractionEnergy = null;
 		List<Integer> ligAtomTypesList = new ArrayList<>();
 		StereoMolecule mol = candidatePose.getLigConf().getMolecule();
 		for(int a=0;a<mol.getAtoms();a++) {
@@ -59,12 +76,15 @@ public class IdoScore extends AbstractScoringEngine {
 		ff = new ForceFieldMMFF94(mol, ForceFieldMMFF94.MMFF94SPLUS, ffOptions);
 
 
-		initiateInteractionTerms();
+		if(useGridMaps)
+			initiateGridMapTerms();
+		else
+			initiateInteractionTerms(interactionEnergy);
 		
 		
 	}
 	
-	private void initiateInteractionTerms() {
+	private void initiateInteractionTerms(List<PotentialEnergyTerm> interactionEnergy) {
 		for(int p : bindingSiteAtoms) {
 			for(int l=0;l<candidatePose.getLigConf().getMolecule().getAtoms();l++) {
 				PotentialEnergyTerm term = InteractionTerm.create(receptorConf, candidatePose.getLigConf(), p,l, receptorAtomTypes, ligAtomTypes);
@@ -75,6 +95,85 @@ public class IdoScore extends AbstractScoringEngine {
 		
 
 	}
+
+	private void initiateGridMapTerms() {
+		for(int l=0;l<candidatePose.getLigConf().getMolecule().getAtoms();l++) {
+			ReceptorGridMap map = getGridMap(ligAtomTypes[l]);
+			if(map!=null)
+				interactionEnergy.add(GridMapTerm.create(map, candidatePose.getLigConf(), l));
+		}
+	}
+
+	/**
+	 * the grid based interaction energy only guides the pose search, the final score uses the exact pair terms
+	 */
+	private List<PotentialEnergyTerm> getExplicitInteractionTerms() {
+		if(!useGridMaps)
+			return interactionEnergy;
+		if(explicitInteractionEnergy==null) {
+			explicitInteractionEnergy = new ArrayList<>();
+			initiateInteractionTerms(explicitInteractionEnergy);
+		}
+		return explicitInteractionEnergy;
+	}
+
+	@Override
+	public Map<Integer,ReceptorGridMap> getGridMaps() {
+		synchronized(ligAtomTypeMaps) {
+			return new HashMap<>(ligAtomTypeMaps);
+		}
+	}
+
+	@Override
+	public void setGridMaps(Map<Integer,ReceptorGridMap> gridMaps) {
+		synchronized(ligAtomTypeMaps) {
+			ligAtomTypeMaps.putAll(gridMaps);
+		}
+	}
+
+	/**
+	 * builds the grid maps for all ligand atom types known to the interaction statistics, such that
+	 * getGridMaps() returns a complete set, e.g. to be stored with a PreparedReceptor
+	 */
+	public void createAllGridMaps() {
+		for(int ligAtomType : InteractionDistanceStatistics.getInstance().getAtomTypes())
+			getGridMap(ligAtomType);
+	}
+
+	/**
+	 * grid maps are built on demand, once per ligand atom type, and are reused for all subsequent ligands
+	 * and by all copies of this engine. Maps are keyed by the specific atom type, since the interaction
+	 * statistics don't distinguish ligand atom types beyond it.
+	 * @param ligAtomType
+	 * @return null, if no binding site atom interacts with this ligand atom type
+	 */
+	private ReceptorGridMap getGridMap(int ligAtomType) {
+		ligAtomType &= InteractionAtomTypeCalculator.AtomPropertyMask.SPECIFIC.getMask();
+		synchronized(ligAtomTypeMaps) {
+			if(ligAtomTypeMaps.containsKey(ligAtomType))
+				return ligAtomTypeMaps.get(ligAtomType);
+			ReceptorGridMap map = createGridMap(ligAtomType);
+			ligAtomTypeMaps.put(ligAtomType, map);
+			return map;
+		}
+	}
+
+	private ReceptorGridMap createGridMap(int ligAtomType) {
+
+		ReceptorGridMap map = null;
+		ReceptorGridMap.RadialPotential[][] potential = new ReceptorGridMap.RadialPotential[1][receptorConf.getSize()];
+		List<Integer> interactingAtoms = new ArrayList<>();
+		for(int p : bindingSiteAtoms) {
+			SplineFunction f = InteractionDistanceStatistics.getInstance().getFunction(receptorAtomTypes[p], ligAtomType);
+			if(f!=null) {
+				potential[0][p] = r -> f.getFGValue(r)[0];
+				interactingAtoms.add(p);
+			}
+		}
+		if(!interactingAtoms.isEmpty())
+			map = ReceptorGridMap.create(receptorConf, interactingAtoms, potential, InteractionTerm.CUTOFF, ReceptorGridMap.DEFAULT_SPACING)[0];
+		return map;
+	}
 	
 
 	
@@ -119,7 +218,7 @@ public class IdoScore extends AbstractScoringEngine {
 		double energy = getBumpTerm();
 
 		
-		for(PotentialEnergyTerm term : interactionEnergy) {
+		for(PotentialEnergyTerm term : getExplicitInteractionTerms()) {
 			energy+=term.getFGValue(gradient);
 		}
 
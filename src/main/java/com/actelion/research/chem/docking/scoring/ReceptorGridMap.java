@@ -0,0 +1,182 @@
+package com.actelion.research.chem.docking.scoring;
+
+import java.io.Serializable;
+import java.util.Collection;
+
+import com.actelion.research.chem.Coordinates;
+import com.actelion.research.chem.conf.Conformer;
+
+/**
+ * Precomputed interaction potential of the binding site for one ligand atom class.
+ * The sum of all receptor pair terms is sampled once on a regular grid that covers
+ * the binding site atoms plus the cutoff of the pair potential. During docking a
+ * ligand atom's energy and gradient are then obtained by trilinear interpolation,
+ * which makes the cost of a pose evaluation independent of the binding site size.
+ * Outside of the grid all pair terms are beyond their cutoff and the energy is zero.
+ * Instances are immutable once built and can be shared between threads.
+ */
+public class ReceptorGridMap implements Serializable {
+	private static final long serialVersionUID = 0x20261017;
+
+	public static final double DEFAULT_SPACING = 0.375;
+
+	private final double originX,originY,originZ;
+	private final double spacing;
+	private final int nx,ny,nz;
+	private final float[] value;
+
+	/**
+	 * radial pair potential between a receptor atom and a ligand atom of a given class
+	 */
+	public interface RadialPotential {
+		double getValue(double r);
+	}
+
+	private ReceptorGridMap(Coordinates min, Coordinates max, double spacing) {
+		this.originX = min.x;
+		this.originY = min.y;
+		this.originZ = min.z;
+		this.spacing = spacing;
+		nx = (int)Math.ceil((max.x-min.x)/spacing)+1;
+		ny = (int)Math.ceil((max.y-min.y)/spacing)+1;
+		nz = (int)Math.ceil((max.z-min.z)/spacing)+1;
+		value = new float[nx*ny*nz];
+	}
+
+	/**
+	 * builds several maps in one pass over the receptor atoms; all maps share the same grid
+	 * @param receptor
+	 * @param atoms receptor atoms contributing to the maps
+	 * @param potential potential[map][receptorAtom]; null entries don't contribute
+	 * @param cutoff distance beyond which all potentials are zero
+	 * @param spacing grid spacing in Angstrom
+	 * @return one map per first index of potential
+	 */
+	public static ReceptorGridMap[] create(Conformer receptor, Collection<Integer> atoms, RadialPotential[][] potential,
+			double cutoff, double spacing) {
+		Coordinates min = new Coordinates(Double.MAX_VALUE,Double.MAX_VALUE,Double.MAX_VALUE);
+		Coordinates max = new Coordinates(-Double.MAX_VALUE,-Double.MAX_VALUE,-Double.MAX_VALUE);
+		for(int atom : atoms) {
+			Coordinates c = receptor.getCoordinates(atom);
+			min.x = Math.min(min.x, c.x);
+			min.y = Math.min(min.y, c.y);
+			min.z = Math.min(min.z, c.z);
+			max.x = Math.max(max.x, c.x);
+			max.y = Math.max(max.y, c.y);
+			max.z = Math.max(max.z, c.z);
+		}
+		if(atoms.isEmpty()) {
+			min = new Coordinates();
+			max = new Coordinates();
+		}
+		min.sub(new Coordinates(cutoff,cutoff,cutoff));
+		max.add(new Coordinates(cutoff,cutoff,cutoff));
+
+		ReceptorGridMap[] maps = new ReceptorGridMap[potential.length];
+		for(int m=0;m<maps.length;m++)
+			maps[m] = new ReceptorGridMap(min, max, spacing);
+		if(maps.length==0)
+			return maps;
+
+		ReceptorGridMap first = maps[0];
+		double cutoffSq = cutoff*cutoff;
+		for(int atom : atoms) {
+			Coordinates c = receptor.getCoordinates(atom);
+			int x0 = Math.max(0, (int)Math.ceil((c.x-cutoff-first.originX)/spacing));
+			int x1 = Math.min(first.nx-1, (int)Math.floor((c.x+cutoff-first.originX)/spacing));
+			int y0 = Math.max(0, (int)Math.ceil((c.y-cutoff-first.originY)/spacing));
+			int y1 = Math.min(first.ny-1, (int)Math.floor((c.y+cutoff-first.originY)/spacing));
+			int z0 = Math.max(0, (int)Math.ceil((c.z-cutoff-first.originZ)/spacing));
+			int z1 = Math.min(first.nz-1, (int)Math.floor((c.z+cutoff-first.originZ)/spacing));
+			for(int x=x0;x<=x1;x++) {
+				double dx = first.originX+x*spacing-c.x;
+				for(int y=y0;y<=y1;y++) {
+					double dy = first.originY+y*spacing-c.y;
+					double dxySq = dx*dx+dy*dy;
+					if(dxySq>cutoffSq)
+						continue;
+					int index = (x*first.ny+y)*first.nz;
+					for(int z=z0;z<=z1;z++) {
+						double dz = first.originZ+z*spacing-c.z;
+						double rSq = dxySq+dz*dz;
+						if(rSq>cutoffSq)
+							continue;
+						double r = Math.sqrt(rSq);
+						for(int m=0;m<maps.length;m++) {
+							RadialPotential p = potential[m][atom];
+							if(p!=null)
+								maps[m].value[index+z] += p.getValue(r);
+						}
+					}
+				}
+			}
+		}
+		return maps;
+	}
+
+	/**
+	 * interpolates the potential at position c; if gradient is not null,
+	 * the derivative with respect to c is added to gradient[3*atom...3*atom+2]
+	 * @param c
+	 * @param gradient
+	 * @param atom
+	 * @return
+	 */
+	public double getFGValue(Coordinates c, double[] gradient, int atom) {
+		double fx = (c.x-originX)/spacing;
+		double fy = (c.y-originY)/spacing;
+		double fz = (c.z-originZ)/spacing;
+		if(fx<0 || fy<0 || fz<0)
+			return 0.0;
+		int ix = (int)fx;
+		int iy = (int)fy;
+		int iz = (int)fz;
+		if(ix>=nx-1 || iy>=ny-1 || iz>=nz-1)
+			return 0.0;
+		double tx = fx-ix;
+		double ty = fy-iy;
+		double tz = fz-iz;
+
+		int i000 = (ix*ny+iy)*nz+iz;
+		int i010 = i000+nz;
+		int i100 = i000+ny*nz;
+		int i110 = i100+nz;
+		double v000 = value[i000];
+		double v001 = value[i000+1];
+		double v010 = value[i010];
+		double v011 = value[i010+1];
+		double v100 = value[i100];
+		double v101 = value[i100+1];
+		double v110 = value[i110];
+		double v111 = value[i110+1];
+
+		double d00 = v001-v000;
+		double d01 = v011-v010;
+		double d10 = v101-v100;
+		double d11 = v111-v110;
+		double c00 = v000+d00*tz;
+		double c01 = v010+d01*tz;
+		double c10 = v100+d10*tz;
+		double c11 = v110+d11*tz;
+		double c0 = c00+(c01-c00)*ty;
+		double c1 = c10+(c11-c10)*ty;
+		double energy = c0+(c1-c0)*tx;
+
+		if(gradient!=null) {
+			double dz0 = d00+(d01-d00)*ty;
+			double dz1 = d10+(d11-d10)*ty;
+			gradient[3*atom] += (c1-c0)/spacing;
+			gradient[3*atom+1] += ((1.0-tx)*(c01-c00)+tx*(c11-c10))/spacing;
+			gradient[3*atom+2] += (dz0+(dz1-dz0)*tx)/spacing;
+		}
+		return energy;
+	}
+
+	public double getSpacing() {
+		return spacing;
+	}
+
+	public int[] getGridSize() {
+		return new int[] {nx,ny,nz};
+	}
+}
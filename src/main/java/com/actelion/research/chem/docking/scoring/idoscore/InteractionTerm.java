@@ -53,7 +53,7 @@ import com.actelion.research.chem.potentialenergy.PotentialEnergyTerm;
 public class InteractionTerm implements PotentialEnergyTerm {
 
 	//Taper to the null function close to cutoff distance
-	private final static double CUTOFF = InteractionDistanceStatistics.CUTOFF_RADIUS - InteractionDistanceStatistics.BIN_SIZE;
+	public final static double CUTOFF = InteractionDistanceStatistics.CUTOFF_RADIUS - InteractionDistanceStatistics.BIN_SIZE;
 	private final static double CUTOFF_SQ = CUTOFF*CUTOFF;
 	private double energy;
 	private double factor;
@@ -88,6 +88,23 @@ public class PLPTerm implements PotentialEnergyTerm {
 		return new PLPTerm(receptor, ligand, recAtom, ligAtom, term);
 	}
 
+	/**
+	 * @param r receptor-ligand atom distance
+	 * @return the energy of this term at distance r, independent of the atom positions
+	 */
+	public double getEnergy(double r) {
+		if(r>D)
+			return 0.0;
+		else if(r<A)
+			return (F*(A-r))/A;
+		else if(r<B)
+			return (E*(r-A))/(B-A);
+		else if(r<C)
+			return E;
+		else
+			return (E*(D-r))/(D-C);
+	}
+
 	@Override
 	public double getFGValue(double[] gradient) {
 		final Coordinates ci = receptor.getCoordinates(recAtom);		
@@ -39,6 +39,19 @@ public class REPTerm implements PotentialEnergyTerm {
 		return new REPTerm(receptor,ligand,recAtom,ligAtom);
 	}
 		
+	/**
+	 * @param r receptor-ligand atom distance
+	 * @return the repulsive energy at distance r
+	 */
+	public static double getEnergy(double r) {
+		if(r>B)
+			return 0.0;
+		else if(r<A)
+			return r*(C-D)/A + D;
+		else
+			return -C*(r-A)/(B-A) + C;
+	}
+
 	@Override
 	public double getFGValue(double[] gradient) {
 		final Coordinates ci = receptor.getCoordinates(recAtom);		
@@ -0,0 +1,179 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem.forcefield.mmff;
+
+import java.util.Arrays;
+
+/**
+ * The CellList class sorts atoms into cubic cells of a regular grid, such
+ * that all atoms within a given distance of an atom can be found by only
+ * looking at the atoms of the surrounding cells. This allows finding all
+ * close atom pairs in near linear time instead of checking all O(N^2)
+ * atom pairs.
+ */
+final class CellList {
+    private static final int MAX_CELLS_PER_ATOM = 8;
+
+    private final double[] pos;
+    private final double minX, minY, minZ, cellSize;
+    private final int nx, ny, nz;
+    private final int[] cellStart; // Index of first atom of every cell in cellAtom.
+    private final int[] cellAtom;  // Atoms sorted by cell.
+    private final int[] atomCell;
+
+    /**
+     * Creates a new cell list from an atom positions array.
+     *  @param pos The positions array with three coordinates per atom.
+     *  @param atomCount The number of atoms.
+     *  @param cellSize The desired edge length of a cell, typically the
+     *      largest distance that will be searched for. For sparse or very
+     *      extended molecules the cells may be chosen larger.
+     */
+    public CellList(double[] pos, int atomCount, double cellSize) {
+        this.pos = pos;
+
+        double x1 = Double.MAX_VALUE, y1 = Double.MAX_VALUE, z1 = Double.MAX_VALUE;
+        double x2 = -Double.MAX_VALUE, y2 = -Double.MAX_VALUE, z2 = -Double.MAX_VALUE;
+        for (int atom=0; atom<atomCount; atom++) {
+            x1 = Math.min(x1, pos[3*atom]);
+            y1 = Math.min(y1, pos[3*atom+1]);
+            z1 = Math.min(z1, pos[3*atom+2]);
+            x2 = Math.max(x2, pos[3*atom]);
+            y2 = Math.max(y2, pos[3*atom+1]);
+            z2 = Math.max(z2, pos[3*atom+2]);
+        }
+        if (atomCount == 0) {
+            x1 = 0.0; y1 = 0.0; z1 = 0.0;
+            x2 = 0.0; y2 = 0.0; z2 = 0.0;
+        }
+        minX = x1;
+        minY = y1;
+        minZ = z1;
+
+        // limit the number of cells to avoid many empty cells in case of small cell sizes
+        double size = Math.max(cellSize, 1.0e-3);
+        long maxCells = Math.max(1, (long)MAX_CELLS_PER_ATOM * atomCount);
+        while (cellCount(x2-x1, size) * cellCount(y2-y1, size) * cellCount(z2-z1, size) > maxCells)
+            size *= 1.25;
+        this.cellSize = size;
+        nx = (int)cellCount(x2-x1, size);
+        ny = (int)cellCount(y2-y1, size);
+        nz = (int)cellCount(z2-z1, size);
+
+        // counting sort of atoms by cell
+        atomCell = new int[atomCount];
+        cellStart = new int[nx*ny*nz+1];
+        for (int atom=0; atom<atomCount; atom++) {
+            atomCell[atom] = getCell(cellIndex(pos[3*atom], minX, nx),
+                                     cellIndex(pos[3*atom+1], minY, ny),
+                                     cellIndex(pos[3*atom+2], minZ, nz));
+            cellStart[atomCell[atom]+1]++;
+        }
+        for (int cell=0; cell<nx*ny*nz; cell++)
+            cellStart[cell+1] += cellStart[cell];
+        cellAtom = new int[atomCount];
+        int[] fill = Arrays.copyOf(cellStart, cellStart.length-1);
+        for (int atom=0; atom<atomCount; atom++)
+            cellAtom[fill[atomCell[atom]]++] = atom;
+    }
+
+    private static long cellCount(double extent, double size) {
+        return (long)(extent / size) + 1;
+    }
+
+    private int cellIndex(double c, double min, int n) {
+        return Math.min(n-1, (int)((c - min) / cellSize));
+    }
+
+    private int getCell(int ix, int iy, int iz) {
+        return (iz*ny + iy)*nx + ix;
+    }
+
+    /**
+     * Finds all atoms that are closer than a given distance to an atom.
+     * The distance is calculated the same way as by the Vector3 class.
+     *  @param atom The atom index.
+     *  @param distance Atoms closer than this distance are returned.
+     *  @param neighbour Receives the neighbour atoms in ascending order;
+     *      must be able to hold all atoms.
+     *  @return The number of neighbours found.
+     */
+    public int getNeighbours(int atom, double distance, int[] neighbour) {
+        if (!(distance > 0.0))
+            return 0;
+
+        double x = pos[3*atom], y = pos[3*atom+1], z = pos[3*atom+2];
+        int range = (int)Math.ceil(distance / cellSize);
+        int cx = atomCell[atom] % nx;
+        int cy = (atomCell[atom] / nx) % ny;
+        int cz = atomCell[atom] / (nx * ny);
+        int count = 0;
+        for (int iz=Math.max(0, cz-range); iz<=Math.min(nz-1, cz+range); iz++) {
+            for (int iy=Math.max(0, cy-range); iy<=Math.min(ny-1, cy+range); iy++) {
+                for (int ix=Math.max(0, cx-range); ix<=Math.min(nx-1, cx+range); ix++) {
+                    int cell = getCell(ix, iy, iz);
+                    for (int i=cellStart[cell]; i<cellStart[cell+1]; i++) {
+                        int other = cellAtom[i];
+                        if (other == atom)
+                            continue;
+                        double dx = pos[3*other] - x;
+                        double dy = pos[3*other+1] - y;
+                        double dz = pos[3*other+2] - z;
+                        if (Math.sqrt(dx*dx+dy*dy+dz*dz) < distance)
+                            neighbour[count++] = other;
+                    }
+                }
+            }
+        }
+
+        Arrays.sort(neighbour, 0, count);
+        return count;
+    }
+
+    /**
+     * Copies the coordinates of all atoms of a molecule into a new
+     * positions array.
+     *  @param mol The molecule.
+     *  @return The positions array.
+     */
+    public static double[] getPositions(MMFFMolecule mol) {
+        double[] pos = new double[3*mol.getAllAtoms()];
+        for (int atom=0; atom<mol.getAllAtoms(); atom++) {
+            pos[3*atom    ] = mol.getAtomX(atom);
+            pos[3*atom + 1] = mol.getAtomY(atom);
+            pos[3*atom + 2] = mol.getAtomZ(atom);
+        }
+        return pos;
+    }
+}
@@ -176,21 +176,34 @@ public class Electrostatic implements EnergyTerm {
         ArrayList<Electrostatic> eles = new ArrayList<Electrostatic>();
         double[] charges = com.actelion.research.chem.forcefield.mmff.type.Charge.getCharges(table, mol);
 
-        for (int i=0; i<mol.getAllAtoms(); i++) {
-            for (int j=0; j<i+1; j++) {
+        // See VanDerWaals.findIn() for the neighbour search.
+        CellList cells = new CellList(CellList.getPositions(mol), mol.getAllAtoms(), nonbondedCutoff);
+        Separation.Relation[] relation = new Separation.Relation[mol.getAllAtoms()];
+        int[] neighbour = new int[mol.getAllAtoms()];
 
-                Separation.Relation relation = sep.get(new SortedPair(i, j));
-                if ((relation == Separation.Relation.ONE_FOUR
-                        || relation == Separation.Relation.ONE_X)
-                        && Math.abs(charges[i]) > 0.00001
+        for (int i=0; i<mol.getAllAtoms(); i++) {
+            if (Math.abs(charges[i]) <= 0.00001)
+                continue;
+
+            int[] closeAtom = sep.getCloseAtoms(i);
+            for (int close : closeAtom)
+                relation[close] = sep.get(i, close);
+
+            int count = cells.getNeighbours(i, nonbondedCutoff, neighbour);
+            for (int k=0; k<count && neighbour[k]<i; k++) {
+                int j = neighbour[k];
+                Separation.Relation rel = (relation[j] == null) ? Separation.Relation.ONE_X : relation[j];
+                if ((rel == Separation.Relation.ONE_FOUR
+                        || rel == Separation.Relation.ONE_X)
                         && Math.abs(charges[j]) > 0.00001) {
-                    if (new Vector3(mol, i, j).length() < nonbondedCutoff) {
-                        eles.add(new Electrostatic(mol, i, j, relation,
-                                    charges[i], charges[j], dielModel,
-                                    dielConst));
-                    }
+                    eles.add(new Electrostatic(mol, i, j, rel,
+                                charges[i], charges[j], dielModel,
+                                dielConst));
                 }
             }
+
+            for (int close : closeAtom)
+                relation[close] = null;
         }
 
         return eles;
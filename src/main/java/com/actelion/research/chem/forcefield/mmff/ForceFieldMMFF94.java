@@ -37,6 +37,7 @@ import com.actelion.research.chem.StereoMolecule;
 import com.actelion.research.chem.forcefield.AbstractForceField;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /*
  * The MMFF ForceField class is the top level class used to perform
@@ -79,6 +80,15 @@ import java.util.*;
  *      torsional angle energy terms.
  *  - "van der waals": A boolean, default True, for whether to include the
  *      nonbonded van der Waals energy terms.
+ *  - "nonbonded skin": A double, default 0.0. If positive, then van der
+ *      Waals and electrostatic interactions are computed from a single
+ *      NonbondedNeighbourList term, which is rebuilt during minimisations
+ *      when atoms have moved by more than half of the skin distance, such
+ *      that atom pairs moving within the "nonbonded cutoff" are considered.
+ *  - "packed terms": A boolean, default False, for whether to evaluate
+ *      energies and gradients with a struct-of-arrays representation of
+ *      the energy terms (see PackedEnergyTerms), which avoids object
+ *      creation and virtual calls and yields identical results.
  */
 /**
  * @author joel
@@ -91,8 +101,10 @@ public final class ForceFieldMMFF94 extends AbstractForceField {
 
 
     private final MMFFMolecule mMMFFMol;
-    public static Map<String, Tables> mTables = new HashMap<>();
+    public static Map<String, Tables> mTables = new ConcurrentHashMap<>();
     private final List<EnergyTerm> mEnergies = new ArrayList<>();
+    private final boolean mUsePackedTerms;
+    private PackedEnergyTerms mPackedTerms;
 
     
     /**
@@ -121,6 +133,11 @@ public final class ForceFieldMMFF94 extends AbstractForceField {
 
         boolean dielModel = options.containsKey("dielectric model") && (options.get("dielectric model")).equals("distance");
 
+        double nonBondedSkin = options.containsKey("nonbonded skin")
+            ? (Double)options.get("nonbonded skin") : 0.0;
+
+        mUsePackedTerms = options.containsKey("packed terms") && (Boolean)options.get("packed terms");
+
         Separation sep = new Separation(mMMFFMol);
 
         if (!options.containsKey("angle bend")
@@ -131,8 +148,12 @@ public final class ForceFieldMMFF94 extends AbstractForceField {
                 || (Boolean)options.get("bond stretch"))
         	mEnergies.addAll(BondStretch.findIn(table, mMMFFMol));
 
-        if (!options.containsKey("electrostatic")
-                || (Boolean)options.get("electrostatic"))
+        boolean includeElectrostatic = !options.containsKey("electrostatic")
+                || (Boolean)options.get("electrostatic");
+        boolean includeVDW = !options.containsKey("van der waals")
+                || (Boolean)options.get("van der waals");
+
+        if (includeElectrostatic && nonBondedSkin <= 0.0)
         	mEnergies.addAll(Electrostatic.findIn(table, mMMFFMol, sep,
                         nonBondedThresh, dielModel, dielConst));
 
@@ -148,9 +169,12 @@ public final class ForceFieldMMFF94 extends AbstractForceField {
                 || (Boolean)options.get("torsion angle"))
         	mEnergies.addAll(TorsionAngle.findIn(table, mMMFFMol));
 
-        if (!options.containsKey("van der waals")
-                || (Boolean)options.get("van der waals"))
+        if (includeVDW && nonBondedSkin <= 0.0)
         	mEnergies.addAll(VanDerWaals.findIn(table, mMMFFMol, sep, nonBondedThresh));
+
+        if ((includeVDW || includeElectrostatic) && nonBondedSkin > 0.0)
+        	mEnergies.add(new NonbondedNeighbourList(table, mMMFFMol, sep, nonBondedThresh,
+        			nonBondedSkin, includeVDW, includeElectrostatic, dielModel, dielConst));
     }
 
     /**
@@ -181,10 +205,16 @@ public final class ForceFieldMMFF94 extends AbstractForceField {
 
     @Override
     public double updateGradient() {
-        mGrad = new double[mDim];
-
-        for (EnergyTerm engy : mEnergies) 
-            engy.getGradient(mPos, mGrad);
+        if (mGrad == null || mGrad.length != mDim)
+            mGrad = new double[mDim];
+        else
+            Arrays.fill(mGrad, 0.0);
+
+        if (mUsePackedTerms)
+            getPackedTerms().addGradient(mPos, mGrad);
+        else
+            for (EnergyTerm engy : mEnergies)
+                engy.getGradient(mPos, mGrad);
         double maxGrad = -1e8;
         double gradScale = 0.1;
         for (int i=0; i<mDim; i++) {
@@ -245,6 +275,9 @@ public final class ForceFieldMMFF94 extends AbstractForceField {
 	}
 
 	private double getTotalEnergy(double[] pos, StringBuilder detail, boolean skipHydrogen) {
+		if (mUsePackedTerms && detail == null && !skipHydrogen)
+			return getPackedTerms().getEnergy(pos);
+
 		if (detail != null)
 			detail.append("no\ttype\tis_property\topt_property\tatoms\tenergy\n");
 
@@ -282,7 +315,10 @@ public final class ForceFieldMMFF94 extends AbstractForceField {
 	}
 
 	public static void initialize(String tableSet) {
-        ForceFieldMMFF94.loadTable(tableSet, Tables.newMMFF94(tableSet));
+        synchronized (ForceFieldMMFF94.class) {
+            if (!mTables.containsKey(tableSet))
+                loadTable(tableSet, Tables.newMMFF94(tableSet));
+        }
     }
 
     /**
@@ -311,5 +347,12 @@ public final class ForceFieldMMFF94 extends AbstractForceField {
 	
 	public void addEnergyTerm(EnergyTerm term) {
 		mEnergies.add(term);
+		mPackedTerms = null;
+	}
+
+	private PackedEnergyTerms getPackedTerms() {
+		if (mPackedTerms == null)
+			mPackedTerms = new PackedEnergyTerms(mEnergies);
+		return mPackedTerms;
 	}
 }
\ No newline at end of file
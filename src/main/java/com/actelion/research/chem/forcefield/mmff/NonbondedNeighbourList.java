@@ -0,0 +1,368 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem.forcefield.mmff;
+
+import com.actelion.research.chem.forcefield.mmff.type.Charge;
+import com.actelion.research.util.DoubleFormat;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Nonbonded energy term class, which combines the van der Waals and
+ * electrostatic interactions of all atom pairs in a 1,X (X > 3)
+ * relationship into one energy term that is based on a neighbour list.
+ * The neighbour list contains all atom pairs closer than the nonbonded
+ * cutoff plus a skin distance. It is rebuilt using a cell list, whenever
+ * any atom has moved more than half of the skin distance since the last
+ * build. Interactions are only computed for atom pairs closer than the
+ * cutoff. Thus, energies don't depend on when the list was rebuilt and
+ * atoms moving into the cutoff range during a minimization are considered,
+ * while the list setup and energy evaluation scale about linearly with
+ * the number of atoms.
+ * The individual interactions are calculated exactly as by the
+ * VanDerWaals and Electrostatic classes.
+ */
+public class NonbondedNeighbourList implements EnergyTerm {
+    private final Tables table;
+    private final MMFFMolecule mol;
+    private final int atoms;
+    private final double cutoff,skin;
+    private final boolean includeVDW,includeElectrostatic,distModel;
+    private final double[] charges;
+    private final double dielConst;
+    private final int[][] closeAtom;
+    private final boolean[][] closeIsOneFour;
+    private final HashMap<Integer, double[]> vdwParams;
+
+    private double[] buildPos;
+    private int rebuildCount;
+    private int pairCount;
+    private int[] pairAtom;
+    private double[] rstar,wellDepth,chargeTerm;
+    private boolean[] hasVDW,hasCharge;
+
+    /**
+     * Construct a new nonbonded neighbour list energy term.
+     *  @param table The tables parameter object.
+     *  @param mol The molecule.
+     *  @param sep The separations table for molecule mol.
+     *  @param cutoff The nonbonded cutoff distance.
+     *  @param skin The additional distance of atom pairs kept in the
+     *      neighbour list.
+     *  @param includeVDW Whether to include van der Waals interactions.
+     *  @param includeElectrostatic Whether to include electrostatic
+     *      interactions.
+     *  @param distModel The distance model to use, true for "distance"
+     *      and false for "constant".
+     *  @param dielConst The dielectric constant.
+     */
+    public NonbondedNeighbourList(Tables table, MMFFMolecule mol, Separation sep,
+                                  double cutoff, double skin, boolean includeVDW, boolean includeElectrostatic,
+                                  boolean distModel, double dielConst) {
+        this.table = table;
+        this.mol = mol;
+        this.cutoff = cutoff;
+        this.skin = skin;
+        this.includeVDW = includeVDW;
+        this.includeElectrostatic = includeElectrostatic;
+        this.distModel = distModel;
+        this.dielConst = dielConst;
+        atoms = mol.getAllAtoms();
+        charges = includeElectrostatic ? Charge.getCharges(table, mol) : null;
+        vdwParams = new HashMap<>();
+
+        closeAtom = new int[atoms][];
+        closeIsOneFour = new boolean[atoms][];
+        for (int atom=0; atom<atoms; atom++) {
+            closeAtom[atom] = sep.getCloseAtoms(atom);
+            closeIsOneFour[atom] = new boolean[closeAtom[atom].length];
+            for (int i=0; i<closeAtom[atom].length; i++)
+                closeIsOneFour[atom][i] = (sep.get(atom, closeAtom[atom][i]) == Separation.Relation.ONE_FOUR);
+        }
+
+        pairAtom = new int[0];
+        rstar = new double[0];
+        wellDepth = new double[0];
+        chargeTerm = new double[0];
+        hasVDW = new boolean[0];
+        hasCharge = new boolean[0];
+    }
+
+    /**
+     * Returns how often the neighbour list was built.
+     *  @return The number of neighbour list builds.
+     */
+    public int getRebuildCount() {
+        return rebuildCount;
+    }
+
+    /**
+     * Returns the current number of atom pairs in the neighbour list.
+     *  @return The number of atom pairs.
+     */
+    public int getPairCount() {
+        return pairCount;
+    }
+
+    /**
+     * Rebuilds the neighbour list if any atom has moved more than half of
+     * the skin distance since the last build.
+     *  @param pos The atoms current positions array.
+     */
+    public void update(double[] pos) {
+        if (buildPos != null) {
+            double maxMoveSq = 0.25 * skin * skin;
+            boolean rebuild = false;
+            for (int atom=0; atom<atoms && !rebuild; atom++) {
+                double dx = pos[3*atom] - buildPos[3*atom];
+                double dy = pos[3*atom+1] - buildPos[3*atom+1];
+                double dz = pos[3*atom+2] - buildPos[3*atom+2];
+                rebuild = (dx*dx + dy*dy + dz*dz > maxMoveSq);
+            }
+            if (!rebuild)
+                return;
+        }
+
+        rebuild(pos);
+    }
+
+    /**
+     * Builds the neighbour list from the given atom positions.
+     *  @param pos The atoms current positions array.
+     */
+    public void rebuild(double[] pos) {
+        buildPos = Arrays.copyOf(pos, 3*atoms);
+        rebuildCount++;
+
+        CellList cells = new CellList(buildPos, atoms, cutoff + skin);
+        int[] neighbour = new int[atoms];
+        byte[] relation = new byte[atoms];    // 0: ONE_X, 1: ONE_FOUR, 2: closer
+        pairCount = 0;
+        for (int i=0; i<atoms; i++) {
+            for (int k=0; k<closeAtom[i].length; k++)
+                relation[closeAtom[i][k]] = (byte)(closeIsOneFour[i][k] ? 1 : 2);
+
+            int count = cells.getNeighbours(i, cutoff + skin, neighbour);
+            for (int k=0; k<count; k++) {
+                int j = neighbour[k];
+                if (j <= i || relation[j] == 2)
+                    continue;
+
+                boolean isCharged = includeElectrostatic
+                        && Math.abs(charges[i]) > 0.00001
+                        && Math.abs(charges[j]) > 0.00001;
+                if (!includeVDW && !isCharged)
+                    continue;
+
+                if (pairCount == hasCharge.length)
+                    growPairArrays();
+
+                pairAtom[2*pairCount] = i;
+                pairAtom[2*pairCount+1] = j;
+                hasVDW[pairCount] = includeVDW;
+                if (includeVDW) {
+                    double[] param = getVDWParameters(i, j);
+                    rstar[pairCount] = param[0];
+                    wellDepth[pairCount] = param[1];
+                }
+                hasCharge[pairCount] = isCharged;
+                if (isCharged)
+                    chargeTerm[pairCount] = charges[i] * charges[j] / dielConst
+                                          * (relation[j] == 1 ? 0.75 : 1.0);
+                pairCount++;
+            }
+
+            for (int close : closeAtom[i])
+                relation[close] = 0;
+        }
+    }
+
+    private double[] getVDWParameters(int a1, int a2) {
+        int key = (mol.getAtomType(a1) << 16) | mol.getAtomType(a2);
+        double[] param = vdwParams.get(key);
+        if (param == null) {
+            VanDerWaals vdw = new VanDerWaals(table, mol, a1, a2);
+            param = new double[] { vdw.rstar_ij, vdw.well_depth };
+            vdwParams.put(key, param);
+        }
+        return param;
+    }
+
+    private void growPairArrays() {
+        int size = Math.max(64, 2*pairCount);
+        pairAtom = Arrays.copyOf(pairAtom, 2*size);
+        rstar = Arrays.copyOf(rstar, size);
+        wellDepth = Arrays.copyOf(wellDepth, size);
+        chargeTerm = Arrays.copyOf(chargeTerm, size);
+        hasVDW = Arrays.copyOf(hasVDW, size);
+        hasCharge = Arrays.copyOf(hasCharge, size);
+    }
+
+    /**
+     * Calculates the nonbonded energy.
+     *  @param pos The atoms current positions array.
+     *  @return The energy.
+     */
+    @Override
+    public double getEnergy(double[] pos) {
+        return getEnergy(pos, null, null, false);
+    }
+
+    /**
+     * Calculates the nonbonded energy.
+     *  @param pos The atoms current positions array.
+     *  @return The energy.
+     */
+    @Override
+    public double getEnergy(double[] pos, StringBuilder detail, String detailID, boolean skipHydrogen) {
+        update(pos);
+
+        final double vdw1 = 1.07;
+        final double vdw1m1 = vdw1 - 1.0;
+        final double vdw2 = 1.12;
+        final double vdw2m1 = vdw2 - 1.0;
+        final double diel = 332.0716;
+        double total = 0.0;
+        for (int p=0; p<pairCount; p++) {
+            int a1 = pairAtom[2*p];
+            int a2 = pairAtom[2*p+1];
+            if (skipHydrogen && (mol.getAtomicNo(a1) == 1 || mol.getAtomicNo(a2) == 1))
+                continue;
+
+            double dx = pos[3*a2] - pos[3*a1];
+            double dy = pos[3*a2+1] - pos[3*a1+1];
+            double dz = pos[3*a2+2] - pos[3*a1+2];
+            final double dist = Math.sqrt(dx*dx + dy*dy + dz*dz);
+            if (dist >= cutoff)
+                continue;
+
+            if (hasVDW[p]) {
+                final double rstar_ij = rstar[p];
+                final double dist2 = dist * dist;
+                final double dist7 = dist2 * dist2 * dist2 * dist;
+                final double aTerm = vdw1 * rstar_ij / (dist + vdw1m1 * rstar_ij);
+                final double aTerm2 = aTerm * aTerm;
+                final double aTerm7 = aTerm2 * aTerm2 * aTerm2 * aTerm;
+                final double rstar_ij2 = rstar_ij * rstar_ij;
+                final double rstar_ij7 = rstar_ij2 * rstar_ij2 * rstar_ij2 * rstar_ij;
+                final double bTerm = vdw2*rstar_ij7 / (dist7 + vdw2m1*rstar_ij7) - 2.0;
+                double e = aTerm7 * bTerm * wellDepth[p];
+                total += e;
+
+                if (detail != null)
+                    detail.append(detailID+"\tvanDerWaals\t"+ DoubleFormat.toString(dist)+"\t\t"+a1+","+a2+"\t"+DoubleFormat.toString(e)+"\n");
+            }
+
+            if (hasCharge[p]) {
+                double corr_dist = dist + 0.05;
+                if (distModel)
+                    corr_dist *= corr_dist;
+                double e = diel * chargeTerm[p] / corr_dist;
+                total += e;
+
+                if (detail != null)
+                    detail.append(detailID+"\telectrostatic\t"+ DoubleFormat.toString(dist)+"\t\t"+a1+","+a2+"\t"+DoubleFormat.toString(e)+"\n");
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * Calculates the gradient and adds it to the gradients array.
+     *  @param pos The atoms current positions array.
+     *  @param grad the atoms current gradients array.
+     */
+    @Override
+    public void getGradient(double[] pos, double[] grad) {
+        update(pos);
+
+        final double vdw1 = 1.07;
+        final double vdw1m1 = vdw1 - 1.0;
+        final double vdw2 = 1.12;
+        final double vdw2m1 = vdw2 - 1.0;
+        final double vdw2t7 = vdw2 * 7.0;
+        for (int p=0; p<pairCount; p++) {
+            int i1 = 3*pairAtom[2*p];
+            int i2 = 3*pairAtom[2*p+1];
+            double dx = pos[i2] - pos[i1];
+            double dy = pos[i2+1] - pos[i1+1];
+            double dz = pos[i2+2] - pos[i1+2];
+            double dist = Math.sqrt(dx*dx + dy*dy + dz*dz);
+            if (dist >= cutoff)
+                continue;
+
+            if (hasVDW[p]) {
+                double rstar_ij = rstar[p];
+                double q = dist / rstar_ij;
+                double q2 = q * q;
+                double q6 = q2 * q2 * q2;
+                double q7 = q6 * q;
+                double q7pvdw2m1 = q7 + vdw2m1;
+                double t = vdw1 / (q + vdw1 - 1.0);
+                double t2 = t * t;
+                double t7 = t2 * t2 * t2 * t;
+                double dE_dr = wellDepth[p] / rstar_ij
+                        * t7 * (-vdw2t7 * q6 / (q7pvdw2m1 * q7pvdw2m1)
+                        + ((-vdw2t7 / q7pvdw2m1 + 14.0) / (q + vdw1m1)));
+
+                for (int i=0; i<3; i++) {
+                    double dGrad = 0.01 * rstar_ij;
+                    if (dist > 0.0)
+                        dGrad = dE_dr*(pos[i1+i] - pos[i2+i])/dist;
+
+                    grad[i1+i] += dGrad;
+                    grad[i2+i] -= dGrad;
+                }
+            }
+
+            if (hasCharge[p]) {
+                double corr_dist = dist + 0.05;
+                corr_dist *= (distModel ? corr_dist * corr_dist : corr_dist);
+                double dE_dr = -332.0716 * (distModel ? 2.0 : 1.0)
+                    * chargeTerm[p] / corr_dist;
+
+                for (int i=0; i<3; i++) {
+                    double dGrad = 0.02;
+                    if (dist > 0.0)
+                        dGrad = dE_dr * (pos[i1+i] - pos[i2+i]) / dist;
+
+                    grad[i1+i] += dGrad;
+                    grad[i2+i] -= dGrad;
+                }
+            }
+        }
+    }
+}
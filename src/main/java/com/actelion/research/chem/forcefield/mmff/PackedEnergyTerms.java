@@ -0,0 +1,712 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem.forcefield.mmff;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Struct-of-arrays representation of the energy terms of a ForceFieldMMFF94.
+ * All terms of one type are packed into primitive arrays of atom indices and
+ * parameters and are evaluated in one tight loop without creating any objects.
+ * The arithmetic of every term type is exactly the one of the corresponding
+ * EnergyTerm class, such that energies and gradients are identical to the
+ * ones obtained by iterating over the EnergyTerm objects, as long as the
+ * terms are listed grouped by type in the order used by the ForceFieldMMFF94
+ * constructor. Terms of other classes, e.g. position constraints, are kept
+ * as objects and evaluated after the packed terms.
+ */
+final class PackedEnergyTerms {
+    private final int[] mAngleAtom,mBondAtom,mElectrostaticAtom,mOutOfPlaneAtom,mStretchBendAtom,mTorsionAtom,mVDWAtom;
+    private final double[] mAngleKa,mAngleTheta0,mBondKb,mBondR0,mElectrostaticChargeTerm,mElectrostaticScale,mOutOfPlaneKoop;
+    private final double[] mStretchBendTheta0,mStretchBendKbaIJK,mStretchBendKbaKJI,mStretchBendR0I,mStretchBendR0K;
+    private final double[] mTorsionV1,mTorsionV2,mTorsionV3,mVDWRStar,mVDWWellDepth;
+    private final boolean[] mAngleIsLinear,mElectrostaticDistModel;
+    private final int mAngleCount,mBondCount,mElectrostaticCount,mOutOfPlaneCount,mStretchBendCount,mTorsionCount,mVDWCount;
+    private final EnergyTerm[] mOtherTerm;
+
+    /**
+     * Packs the given energy terms into primitive arrays.
+     *  @param terms The energy terms of a force field.
+     */
+    public PackedEnergyTerms(List<EnergyTerm> terms) {
+        int angleCount = 0, bondCount = 0, electrostaticCount = 0, outOfPlaneCount = 0;
+        int stretchBendCount = 0, torsionCount = 0, vdwCount = 0;
+        List<EnergyTerm> otherList = new ArrayList<>();
+        for (EnergyTerm term : terms) {
+            if (term instanceof AngleBend)
+                angleCount++;
+            else if (term instanceof BondStretch)
+                bondCount++;
+            else if (term instanceof Electrostatic)
+                electrostaticCount++;
+            else if (term instanceof OutOfPlane)
+                outOfPlaneCount++;
+            else if (term instanceof StretchBend)
+                stretchBendCount++;
+            else if (term instanceof TorsionAngle)
+                torsionCount++;
+            else if (term instanceof VanDerWaals)
+                vdwCount++;
+            else
+                otherList.add(term);
+        }
+
+        mAngleCount = angleCount;
+        mAngleAtom = new int[3*angleCount];
+        mAngleKa = new double[angleCount];
+        mAngleTheta0 = new double[angleCount];
+        mAngleIsLinear = new boolean[angleCount];
+
+        mBondCount = bondCount;
+        mBondAtom = new int[2*bondCount];
+        mBondKb = new double[bondCount];
+        mBondR0 = new double[bondCount];
+
+        mElectrostaticCount = electrostaticCount;
+        mElectrostaticAtom = new int[2*electrostaticCount];
+        mElectrostaticChargeTerm = new double[electrostaticCount];
+        mElectrostaticScale = new double[electrostaticCount];
+        mElectrostaticDistModel = new boolean[electrostaticCount];
+
+        mOutOfPlaneCount = outOfPlaneCount;
+        mOutOfPlaneAtom = new int[4*outOfPlaneCount];
+        mOutOfPlaneKoop = new double[outOfPlaneCount];
+
+        mStretchBendCount = stretchBendCount;
+        mStretchBendAtom = new int[3*stretchBendCount];
+        mStretchBendTheta0 = new double[stretchBendCount];
+        mStretchBendKbaIJK = new double[stretchBendCount];
+        mStretchBendKbaKJI = new double[stretchBendCount];
+        mStretchBendR0I = new double[stretchBendCount];
+        mStretchBendR0K = new double[stretchBendCount];
+
+        mTorsionCount = torsionCount;
+        mTorsionAtom = new int[4*torsionCount];
+        mTorsionV1 = new double[torsionCount];
+        mTorsionV2 = new double[torsionCount];
+        mTorsionV3 = new double[torsionCount];
+
+        mVDWCount = vdwCount;
+        mVDWAtom = new int[2*vdwCount];
+        mVDWRStar = new double[vdwCount];
+        mVDWWellDepth = new double[vdwCount];
+
+        mOtherTerm = otherList.toArray(new EnergyTerm[0]);
+
+        angleCount = 0; bondCount = 0; electrostaticCount = 0; outOfPlaneCount = 0;
+        stretchBendCount = 0; torsionCount = 0; vdwCount = 0;
+        for (EnergyTerm term : terms) {
+            if (term instanceof AngleBend) {
+                AngleBend t = (AngleBend)term;
+                mAngleAtom[3*angleCount  ] = t.a1;
+                mAngleAtom[3*angleCount+1] = t.a2;
+                mAngleAtom[3*angleCount+2] = t.a3;
+                mAngleKa[angleCount] = t.ka;
+                mAngleTheta0[angleCount] = t.theta0;
+                mAngleIsLinear[angleCount] = t.isLinear;
+                angleCount++;
+            }
+            else if (term instanceof BondStretch) {
+                BondStretch t = (BondStretch)term;
+                mBondAtom[2*bondCount  ] = t.a1;
+                mBondAtom[2*bondCount+1] = t.a2;
+                mBondKb[bondCount] = t.kb;
+                mBondR0[bondCount] = t.r0;
+                bondCount++;
+            }
+            else if (term instanceof Electrostatic) {
+                Electrostatic t = (Electrostatic)term;
+                mElectrostaticAtom[2*electrostaticCount  ] = t.a1;
+                mElectrostaticAtom[2*electrostaticCount+1] = t.a2;
+                mElectrostaticChargeTerm[electrostaticCount] = t.charge_term;
+                mElectrostaticScale[electrostaticCount] = (t.rel == Separation.Relation.ONE_FOUR ? 0.75 : 1.0);
+                mElectrostaticDistModel[electrostaticCount] = t.distModel;
+                electrostaticCount++;
+            }
+            else if (term instanceof OutOfPlane) {
+                OutOfPlane t = (OutOfPlane)term;
+                mOutOfPlaneAtom[4*outOfPlaneCount  ] = t.ac;
+                mOutOfPlaneAtom[4*outOfPlaneCount+1] = t.a1;
+                mOutOfPlaneAtom[4*outOfPlaneCount+2] = t.a2;
+                mOutOfPlaneAtom[4*outOfPlaneCount+3] = t.a3;
+                mOutOfPlaneKoop[outOfPlaneCount] = t.koop;
+                outOfPlaneCount++;
+            }
+            else if (term instanceof StretchBend) {
+                StretchBend t = (StretchBend)term;
+                mStretchBendAtom[3*stretchBendCount  ] = t.a1;
+                mStretchBendAtom[3*stretchBendCount+1] = t.a2;
+                mStretchBendAtom[3*stretchBendCount+2] = t.a3;
+                mStretchBendTheta0[stretchBendCount] = t.theta0;
+                mStretchBendKbaIJK[stretchBendCount] = t.kba_ijk;
+                mStretchBendKbaKJI[stretchBendCount] = t.kba_kji;
+                mStretchBendR0I[stretchBendCount] = t.r0i;
+                mStretchBendR0K[stretchBendCount] = t.r0k;
+                stretchBendCount++;
+            }
+            else if (term instanceof TorsionAngle) {
+                TorsionAngle t = (TorsionAngle)term;
+                mTorsionAtom[4*torsionCount  ] = t.a1;
+                mTorsionAtom[4*torsionCount+1] = t.a2;
+                mTorsionAtom[4*torsionCount+2] = t.a3;
+                mTorsionAtom[4*torsionCount+3] = t.a4;
+                mTorsionV1[torsionCount] = t.v1;
+                mTorsionV2[torsionCount] = t.v2;
+                mTorsionV3[torsionCount] = t.v3;
+                torsionCount++;
+            }
+            else if (term instanceof VanDerWaals) {
+                VanDerWaals t = (VanDerWaals)term;
+                mVDWAtom[2*vdwCount  ] = t.a1;
+                mVDWAtom[2*vdwCount+1] = t.a2;
+                mVDWRStar[vdwCount] = t.rstar_ij;
+                mVDWWellDepth[vdwCount] = t.well_depth;
+                vdwCount++;
+            }
+        }
+    }
+
+    /**
+     * Calculates the total energy of all terms.
+     *  @param pos The atoms current positions array.
+     *  @return The total energy.
+     */
+    public double getEnergy(double[] pos) {
+        double total = 0.0;
+        total = addAngleBendEnergy(pos, total);
+        total = addBondStretchEnergy(pos, total);
+        total = addElectrostaticEnergy(pos, total);
+        total = addOutOfPlaneEnergy(pos, total);
+        total = addStretchBendEnergy(pos, total);
+        total = addTorsionEnergy(pos, total);
+        total = addVanDerWaalsEnergy(pos, total);
+        for (EnergyTerm term : mOtherTerm)
+            total += term.getEnergy(pos);
+        return total;
+    }
+
+    /**
+     * Calculates the gradients of all terms and adds them to the gradients array.
+     *  @param pos The atoms current positions array.
+     *  @param grad the atoms current gradients array.
+     */
+    public void addGradient(double[] pos, double[] grad) {
+        addAngleBendGradient(pos, grad);
+        addBondStretchGradient(pos, grad);
+        addElectrostaticGradient(pos, grad);
+        addOutOfPlaneGradient(pos, grad);
+        addStretchBendGradient(pos, grad);
+        addTorsionGradient(pos, grad);
+        addVanDerWaalsGradient(pos, grad);
+        for (EnergyTerm term : mOtherTerm)
+            term.getGradient(pos, grad);
+    }
+
+    private double addAngleBendEnergy(double[] pos, double total) {
+        final double cb = -0.006981317;
+        final double c2 = Constants.MDYNE_A_TO_KCAL_MOL * Constants.DEG2RAD * Constants.DEG2RAD;
+        for (int t=0; t<mAngleCount; t++) {
+            int i1 = 3*mAngleAtom[3*t];
+            int i2 = 3*mAngleAtom[3*t+1];
+            int i3 = 3*mAngleAtom[3*t+2];
+            double x1 = pos[i1]-pos[i2], y1 = pos[i1+1]-pos[i2+1], z1 = pos[i1+2]-pos[i2+2];
+            double x3 = pos[i3]-pos[i2], y3 = pos[i3+1]-pos[i2+1], z3 = pos[i3+2]-pos[i2+2];
+            double theta = Math.acos((x1*x3 + y1*y3 + z1*z3)
+                    / (Math.sqrt(x1*x1+y1*y1+z1*z1) * Math.sqrt(x3*x3+y3*y3+z3*z3)));
+            double angle = Math.toDegrees(theta) - mAngleTheta0[t];
+            double ka = mAngleKa[t];
+            total += mAngleIsLinear[t] ? Constants.MDYNE_A_TO_KCAL_MOL * ka * (1.0 + Math.cos(theta))
+                    : 0.5*c2*ka*angle*angle*(1.0 + cb*angle);
+        }
+        return total;
+    }
+
+    private void addAngleBendGradient(double[] pos, double[] grad) {
+        final double cb = -0.006981317;
+        final double c2 = Constants.MDYNE_A_TO_KCAL_MOL * Constants.DEG2RAD
+            * Constants.DEG2RAD;
+        for (int t=0; t<mAngleCount; t++) {
+            int i1 = 3*mAngleAtom[3*t];
+            int i2 = 3*mAngleAtom[3*t+1];
+            int i3 = 3*mAngleAtom[3*t+2];
+            double x0 = pos[i1]-pos[i2], y0 = pos[i1+1]-pos[i2+1], z0 = pos[i1+2]-pos[i2+2];
+            double x1 = pos[i3]-pos[i2], y1 = pos[i3+1]-pos[i2+1], z1 = pos[i3+2]-pos[i2+2];
+            double dist0 = Math.sqrt(x0*x0+y0*y0+z0*z0);
+            double dist1 = Math.sqrt(x1*x1+y1*y1+z1*z1);
+            if (dist0 > 0.0) { x0 /= dist0; y0 /= dist0; z0 /= dist0; } else { x0 = 0.0; y0 = 0.0; z0 = 0.0; }
+            if (dist1 > 0.0) { x1 /= dist1; y1 /= dist1; z1 /= dist1; } else { x1 = 0.0; y1 = 0.0; z1 = 0.0; }
+
+            double cosTheta = (x0*x1 + y0*y1 + z0*z1)
+                    / (Math.sqrt(x0*x0+y0*y0+z0*z0) * Math.sqrt(x1*x1+y1*y1+z1*z1));
+
+            double sinThetaSq = 1.0 - cosTheta*cosTheta;
+            double sinTheta = 1.0e-8;
+            if (sinThetaSq > 0.0)
+                sinTheta = Math.sqrt(sinThetaSq);
+
+            double angleTerm = Constants.RAD2DEG * Math.acos(cosTheta) - mAngleTheta0[t];
+            double dE_dTheta = mAngleIsLinear[t] ? -Constants.MDYNE_A_TO_KCAL_MOL * mAngleKa[t] * sinTheta
+                    : Constants.RAD2DEG*c2*mAngleKa[t]*angleTerm * (1.0 + 1.5*cb*angleTerm);
+
+            double d0 = 1.0/dist0*(x1 - cosTheta*x0);
+            double d1 = 1.0/dist0*(y1 - cosTheta*y0);
+            double d2 = 1.0/dist0*(z1 - cosTheta*z0);
+            double d3 = 1.0/dist1*(x0 - cosTheta*x1);
+            double d4 = 1.0/dist1*(y0 - cosTheta*y1);
+            double d5 = 1.0/dist1*(z0 - cosTheta*z1);
+
+            grad[i1    ] += dE_dTheta*d0/(-sinTheta);
+            grad[i1 + 1] += dE_dTheta*d1/(-sinTheta);
+            grad[i1 + 2] += dE_dTheta*d2/(-sinTheta);
+
+            grad[i2    ] += dE_dTheta*(-d0 - d3)/(-sinTheta);
+            grad[i2 + 1] += dE_dTheta*(-d1 - d4)/(-sinTheta);
+            grad[i2 + 2] += dE_dTheta*(-d2 - d5)/(-sinTheta);
+
+            grad[i3    ] += dE_dTheta*d3/(-sinTheta);
+            grad[i3 + 1] += dE_dTheta*d4/(-sinTheta);
+            grad[i3 + 2] += dE_dTheta*d5/(-sinTheta);
+        }
+    }
+
+    private double addBondStretchEnergy(double[] pos, double total) {
+        final double c1 = 143.9325;
+        final double cs = -2.0;
+        final double c3 = 7.0 / 12.0;
+        for (int t=0; t<mBondCount; t++) {
+            int i1 = 3*mBondAtom[2*t];
+            int i2 = 3*mBondAtom[2*t+1];
+            double dx = pos[i1]-pos[i2], dy = pos[i1+1]-pos[i2+1], dz = pos[i1+2]-pos[i2+2];
+            double dist = Math.sqrt(dx*dx + dy*dy + dz*dz);
+            double r0 = mBondR0[t];
+            double diff = (dist - r0)*(dist - r0);
+            total += (0.5*c1*mBondKb[t]*diff * (1.0 + cs*(dist - r0) + c3*cs*cs*diff));
+        }
+        return total;
+    }
+
+    private void addBondStretchGradient(double[] pos, double[] grad) {
+        final double cs = -2.0;
+        final double c1 = Constants.MDYNE_A_TO_KCAL_MOL;
+        final double c3 = 7.0/12.0;
+        for (int t=0; t<mBondCount; t++) {
+            int i1 = 3*mBondAtom[2*t];
+            int i2 = 3*mBondAtom[2*t+1];
+            double dx = pos[i1]-pos[i2], dy = pos[i1+1]-pos[i2+1], dz = pos[i1+2]-pos[i2+2];
+            double dist = Math.sqrt(dx*dx + dy*dy + dz*dz);
+            double distTerm = dist - mBondR0[t];
+            double dE_dr = c1*mBondKb[t]*distTerm *
+                (1.0 + 1.5*cs*distTerm + 2.0*c3*cs*cs*distTerm*distTerm);
+            if (dist > 0.0) {
+                for (int i=0; i<3; i++) {
+                    grad[i1 + i] += dE_dr*(pos[i1 + i] - pos[i2 + i])/dist;
+                    grad[i2 + i] -= dE_dr*(pos[i1 + i] - pos[i2 + i])/dist;
+                }
+            }
+        }
+    }
+
+    private double addElectrostaticEnergy(double[] pos, double total) {
+        final double diel = 332.0716;
+        for (int t=0; t<mElectrostaticCount; t++) {
+            int i1 = 3*mElectrostaticAtom[2*t];
+            int i2 = 3*mElectrostaticAtom[2*t+1];
+            double dx = pos[i2]-pos[i1], dy = pos[i2+1]-pos[i1+1], dz = pos[i2+2]-pos[i1+2];
+            double corr_dist = Math.sqrt(dx*dx + dy*dy + dz*dz) + 0.05;
+            if (mElectrostaticDistModel[t])
+                corr_dist *= corr_dist;
+            total += diel * mElectrostaticChargeTerm[t] / corr_dist * mElectrostaticScale[t];
+        }
+        return total;
+    }
+
+    private void addElectrostaticGradient(double[] pos, double[] grad) {
+        for (int t=0; t<mElectrostaticCount; t++) {
+            int i1 = 3*mElectrostaticAtom[2*t];
+            int i2 = 3*mElectrostaticAtom[2*t+1];
+            double dx = pos[i2]-pos[i1], dy = pos[i2+1]-pos[i1+1], dz = pos[i2+2]-pos[i1+2];
+            double dist = Math.sqrt(dx*dx + dy*dy + dz*dz);
+            double corr_dist = dist + 0.05;
+            boolean distModel = mElectrostaticDistModel[t];
+            corr_dist *= (distModel ? corr_dist * corr_dist : corr_dist);
+            double dE_dr = -332.0716 * (distModel ? 2.0 : 1.0)
+                * mElectrostaticChargeTerm[t] / corr_dist
+                * mElectrostaticScale[t];
+            for (int i=0; i<3; i++) {
+                double dGrad = 0.02;
+                if (dist > 0.0)
+                    dGrad = dE_dr * (pos[i1+i] - pos[i2+i]) / dist;
+                grad[i1+i] += dGrad;
+                grad[i2+i] -= dGrad;
+            }
+        }
+    }
+
+    private double addOutOfPlaneEnergy(double[] pos, double total) {
+        final double c2 = Constants.MDYNE_A_TO_KCAL_MOL * Constants.DEG2RAD
+            * Constants.DEG2RAD;
+        for (int t=0; t<mOutOfPlaneCount; t++) {
+            int ic = 3*mOutOfPlaneAtom[4*t];
+            int i1 = 3*mOutOfPlaneAtom[4*t+1];
+            int i2 = 3*mOutOfPlaneAtom[4*t+2];
+            int i3 = 3*mOutOfPlaneAtom[4*t+3];
+            double xi = pos[i1]-pos[ic], yi = pos[i1+1]-pos[ic+1], zi = pos[i1+2]-pos[ic+2];
+            double xk = pos[i2]-pos[ic], yk = pos[i2+1]-pos[ic+1], zk = pos[i2+2]-pos[ic+2];
+            double xl = pos[i3]-pos[ic], yl = pos[i3+1]-pos[ic+1], zl = pos[i3+2]-pos[ic+2];
+            double l = Math.sqrt(xi*xi+yi*yi+zi*zi);
+            if (l > 0.0) { xi /= l; yi /= l; zi /= l; } else { xi = 0.0; yi = 0.0; zi = 0.0; }
+            l = Math.sqrt(xk*xk+yk*yk+zk*zk);
+            if (l > 0.0) { xk /= l; yk /= l; zk /= l; } else { xk = 0.0; yk = 0.0; zk = 0.0; }
+            l = Math.sqrt(xl*xl+yl*yl+zl*zl);
+            if (l > 0.0) { xl /= l; yl /= l; zl /= l; } else { xl = 0.0; yl = 0.0; zl = 0.0; }
+            double nx = yi*zk - zi*yk;
+            double ny = zi*xk - xi*zk;
+            double nz = xi*yk - yi*xk;
+            l = Math.sqrt(nx*nx+ny*ny+nz*nz);
+            if (l > 0.0) { nx /= l; ny /= l; nz /= l; } else { nx = 0.0; ny = 0.0; nz = 0.0; }
+
+            double chi = Constants.RAD2DEG * Math.asin(nx*xl + ny*yl + nz*zl);
+            total += 0.5 * c2 * mOutOfPlaneKoop[t] * chi * chi;
+        }
+        return total;
+    }
+
+    private void addOutOfPlaneGradient(double[] pos, double[] grad) {
+        final double c2 = Constants.MDYNE_A_TO_KCAL_MOL * Constants.DEG2RAD
+            * Constants.DEG2RAD;
+        for (int t=0; t<mOutOfPlaneCount; t++) {
+            int ic = 3*mOutOfPlaneAtom[4*t];
+            int i1 = 3*mOutOfPlaneAtom[4*t+1];
+            int i2 = 3*mOutOfPlaneAtom[4*t+2];
+            int i3 = 3*mOutOfPlaneAtom[4*t+3];
+            double xi = pos[i1]-pos[ic], yi = pos[i1+1]-pos[ic+1], zi = pos[i1+2]-pos[ic+2];
+            double xk = pos[i2]-pos[ic], yk = pos[i2+1]-pos[ic+1], zk = pos[i2+2]-pos[ic+2];
+            double xl = pos[i3]-pos[ic], yl = pos[i3+1]-pos[ic+1], zl = pos[i3+2]-pos[ic+2];
+
+            final double dji = Math.sqrt(xi*xi+yi*yi+zi*zi);
+            final double djk = Math.sqrt(xk*xk+yk*yk+zk*zk);
+            final double djl = Math.sqrt(xl*xl+yl*yl+zl*zl);
+
+            if (dji > 0.0) { xi /= dji; yi /= dji; zi /= dji; } else { xi = 0.0; yi = 0.0; zi = 0.0; }
+            if (djk > 0.0) { xk /= djk; yk /= djk; zk /= djk; } else { xk = 0.0; yk = 0.0; zk = 0.0; }
+            if (djl > 0.0) { xl /= djl; yl /= djl; zl /= djl; } else { xl = 0.0; yl = 0.0; zl = 0.0; }
+            double mx = -xi, my = -yi, mz = -zi;
+            double nx = my*zk - mz*yk;
+            double ny = mz*xk - mx*zk;
+            double nz = mx*yk - my*xk;
+            double l = Math.sqrt(nx*nx+ny*ny+nz*nz);
+            if (l > 0.0) { nx /= l; ny /= l; nz /= l; } else { nx = 0.0; ny = 0.0; nz = 0.0; }
+
+            double sinChi = xl*nx + yl*ny + zl*nz;
+            double cosChiSq = 1.0 - sinChi*sinChi;
+            double cosChi = Math.max(cosChiSq > 0.0
+                    ? Math.sqrt(cosChiSq) : 0.0, 1.0e-8);
+            double chi = Constants.RAD2DEG * Math.asin(sinChi);
+            double cosTheta = xi*xk + yi*yk + zi*zk;
+            double sinThetaSq = Math.max(1.0 - cosTheta * cosTheta, 1.0e-8);
+            double sinTheta = Math.max(sinThetaSq > 0.0
+                    ? Math.sqrt(sinThetaSq) : 0.0, 1.0e-8);
+            double dE_dChi = Constants.RAD2DEG * c2 * mOutOfPlaneKoop[t] * chi;
+
+            double t1x = yl*zk - zl*yk, t1y = zl*xk - xl*zk, t1z = xl*yk - yl*xk;
+            double t2x = yi*zl - zi*yl, t2y = zi*xl - xi*zl, t2z = xi*yl - yi*xl;
+            double t3x = yk*zi - zk*yi, t3y = zk*xi - xk*zi, t3z = xk*yi - yk*xi;
+
+            double term1 = cosChi * sinTheta;
+            double term2 = sinChi / (cosChi * sinThetaSq);
+
+            double tg1x = (t1x/term1 - (xi - xk*cosTheta) * term2) / dji;
+            double tg1y = (t1y/term1 - (yi - yk*cosTheta) * term2) / dji;
+            double tg1z = (t1z/term1 - (zi - zk*cosTheta) * term2) / dji;
+            double tg3x = (t2x/term1 - (xk - xi*cosTheta) * term2) / djk;
+            double tg3y = (t2y/term1 - (yk - yi*cosTheta) * term2) / djk;
+            double tg3z = (t2z/term1 - (zk - zi*cosTheta) * term2) / djk;
+            double tg4x = (t3x/term1 - xl*sinChi/cosChi) / djl;
+            double tg4y = (t3y/term1 - yl*sinChi/cosChi) / djl;
+            double tg4z = (t3z/term1 - zl*sinChi/cosChi) / djl;
+
+            grad[i1    ] +=  dE_dChi *  tg1x;
+            grad[ic    ] += -dE_dChi * (tg1x + tg3x + tg4x);
+            grad[i2    ] +=  dE_dChi *  tg3x;
+            grad[i3    ] +=  dE_dChi *  tg4x;
+            grad[i1 + 1] +=  dE_dChi *  tg1y;
+            grad[ic + 1] += -dE_dChi * (tg1y + tg3y + tg4y);
+            grad[i2 + 1] +=  dE_dChi *  tg3y;
+            grad[i3 + 1] +=  dE_dChi *  tg4y;
+            grad[i1 + 2] +=  dE_dChi *  tg1z;
+            grad[ic + 2] += -dE_dChi * (tg1z + tg3z + tg4z);
+            grad[i2 + 2] +=  dE_dChi *  tg3z;
+            grad[i3 + 2] +=  dE_dChi *  tg4z;
+        }
+    }
+
+    private double addStretchBendEnergy(double[] pos, double total) {
+        for (int t=0; t<mStretchBendCount; t++) {
+            int i1 = 3*mStretchBendAtom[3*t];
+            int i2 = 3*mStretchBendAtom[3*t+1];
+            int i3 = 3*mStretchBendAtom[3*t+2];
+            double x1 = pos[i1]-pos[i2], y1 = pos[i1+1]-pos[i2+1], z1 = pos[i1+2]-pos[i2+2];
+            double x3 = pos[i3]-pos[i2], y3 = pos[i3+1]-pos[i2+1], z3 = pos[i3+2]-pos[i2+2];
+            double dist1 = Math.sqrt(x1*x1+y1*y1+z1*z1);
+            double dist2 = Math.sqrt(x3*x3+y3*y3+z3*z3);
+            double theta = Math.acos((x1*x3 + y1*y3 + z1*z3) / (dist1 * dist2));
+            double factor = Constants.MDYNE_A_TO_KCAL_MOL * Constants.DEG2RAD
+                * (Math.toDegrees(theta) - mStretchBendTheta0[t]);
+            total += factor*(dist1 - mStretchBendR0I[t])*mStretchBendKbaIJK[t]
+                   + factor*(dist2 - mStretchBendR0K[t])*mStretchBendKbaKJI[t];
+        }
+        return total;
+    }
+
+    private void addStretchBendGradient(double[] pos, double[] grad) {
+        final double c5 = Constants.MDYNE_A_TO_KCAL_MOL * Constants.DEG2RAD;
+        for (int t=0; t<mStretchBendCount; t++) {
+            int i1 = 3*mStretchBendAtom[3*t];
+            int i2 = 3*mStretchBendAtom[3*t+1];
+            int i3 = 3*mStretchBendAtom[3*t+2];
+            double p12x = pos[i1]-pos[i2], p12y = pos[i1+1]-pos[i2+1], p12z = pos[i1+2]-pos[i2+2];
+            double p32x = pos[i3]-pos[i2], p32y = pos[i3+1]-pos[i2+1], p32z = pos[i3+2]-pos[i2+2];
+            double dist1 = Math.sqrt(p12x*p12x+p12y*p12y+p12z*p12z);
+            double dist2 = Math.sqrt(p32x*p32x+p32y*p32y+p32z*p32z);
+            if (dist1 > 0.0) { p12x /= dist1; p12y /= dist1; p12z /= dist1; } else { p12x = 0.0; p12y = 0.0; p12z = 0.0; }
+            if (dist2 > 0.0) { p32x /= dist2; p32y /= dist2; p32z /= dist2; } else { p32x = 0.0; p32y = 0.0; p32z = 0.0; }
+
+            double kba_ijk = mStretchBendKbaIJK[t];
+            double kba_kji = mStretchBendKbaKJI[t];
+            double cosTheta = p12x*p32x + p12y*p32y + p12z*p32z;
+            double sinThetaSq = 1.0 - cosTheta*cosTheta;
+            double sinTheta = Math.max(sinThetaSq > 0.0
+                    ? Math.sqrt(sinThetaSq) : 0.0, 1.0e-8);
+            double angleTerm = Constants.RAD2DEG * Math.acos(cosTheta) - mStretchBendTheta0[t];
+            double distTerm = Constants.RAD2DEG
+                    * (kba_ijk * (dist1 - mStretchBendR0I[t])
+                    +  kba_kji * (dist2 - mStretchBendR0K[t]));
+
+            double dCos_dS1 = 1.0 / dist1 * (p32x - cosTheta * p12x);
+            double dCos_dS2 = 1.0 / dist1 * (p32y - cosTheta * p12y);
+            double dCos_dS3 = 1.0 / dist1 * (p32z - cosTheta * p12z);
+
+            double dCos_dS4 = 1.0 / dist2 * (p12x - cosTheta * p32x);
+            double dCos_dS5 = 1.0 / dist2 * (p12y - cosTheta * p32y);
+            double dCos_dS6 = 1.0 / dist2 * (p12z - cosTheta * p32z);
+
+            grad[i1  ] += c5 * (p12x * kba_ijk
+                * angleTerm + dCos_dS1 / (-sinTheta) * distTerm);
+            grad[i1+1] += c5 * (p12y * kba_ijk
+                * angleTerm + dCos_dS2 / (-sinTheta) * distTerm);
+            grad[i1+2] += c5 * (p12z * kba_ijk
+                * angleTerm + dCos_dS3 / (-sinTheta) * distTerm);
+
+            grad[i2  ] += c5 * ((-p12x * kba_ijk
+                - p32x * kba_kji) * angleTerm
+                + (-dCos_dS1 - dCos_dS4) / (-sinTheta) * distTerm);
+            grad[i2+1] += c5 * ((-p12y * kba_ijk
+                - p32y * kba_kji) * angleTerm
+                + (-dCos_dS2 - dCos_dS5) / (-sinTheta) * distTerm);
+            grad[i2+2] += c5 * ((-p12z * kba_ijk
+                - p32z * kba_kji) * angleTerm
+                + (-dCos_dS3 - dCos_dS6) / (-sinTheta) * distTerm);
+
+            grad[i3  ] += c5 * (p32x * kba_kji
+                * angleTerm + dCos_dS4 / (-sinTheta) * distTerm);
+            grad[i3+1] += c5 * (p32y * kba_kji
+                * angleTerm + dCos_dS5 / (-sinTheta) * distTerm);
+            grad[i3+2] += c5 * (p32z * kba_kji
+                * angleTerm + dCos_dS6 / (-sinTheta) * distTerm);
+        }
+    }
+
+    private double addTorsionEnergy(double[] pos, double total) {
+        for (int t=0; t<mTorsionCount; t++) {
+            int i1 = 3*mTorsionAtom[4*t];
+            int i2 = 3*mTorsionAtom[4*t+1];
+            int i3 = 3*mTorsionAtom[4*t+2];
+            int i4 = 3*mTorsionAtom[4*t+3];
+            double r1x = pos[i2]-pos[i1], r1y = pos[i2+1]-pos[i1+1], r1z = pos[i2+2]-pos[i1+2];
+            double r2x = pos[i2]-pos[i3], r2y = pos[i2+1]-pos[i3+1], r2z = pos[i2+2]-pos[i3+2];
+            double r3x = pos[i3]-pos[i2], r3y = pos[i3+1]-pos[i2+1], r3z = pos[i3+2]-pos[i2+2];
+            double r4x = pos[i3]-pos[i4], r4y = pos[i3+1]-pos[i4+1], r4z = pos[i3+2]-pos[i4+2];
+
+            double t1x = r1y*r2z - r1z*r2y, t1y = r1z*r2x - r1x*r2z, t1z = r1x*r2y - r1y*r2x;
+            double t2x = r3y*r4z - r3z*r4y, t2y = r3z*r4x - r3x*r4z, t2z = r3x*r4y - r3y*r4x;
+            double cosPhi = (t1x*t2x + t1y*t2y + t1z*t2z)
+                    / (Math.sqrt(t1x*t1x+t1y*t1y+t1z*t1z) * Math.sqrt(t2x*t2x+t2y*t2y+t2z*t2z));
+
+            double cos2Phi = 2.0 * cosPhi * cosPhi - 1.0;
+            double cos3Phi = cosPhi * (2.0 * cos2Phi - 1.0);
+
+            total += 0.5 * (mTorsionV1[t]*(1.0 + cosPhi)
+                          + mTorsionV2[t]*(1.0 - cos2Phi)
+                          + mTorsionV3[t]*(1.0 + cos3Phi));
+        }
+        return total;
+    }
+
+    private void addTorsionGradient(double[] pos, double[] grad) {
+        for (int t=0; t<mTorsionCount; t++) {
+            int i1 = 3*mTorsionAtom[4*t];
+            int i2 = 3*mTorsionAtom[4*t+1];
+            int i3 = 3*mTorsionAtom[4*t+2];
+            int i4 = 3*mTorsionAtom[4*t+3];
+            double r0x = pos[i1]-pos[i2], r0y = pos[i1+1]-pos[i2+1], r0z = pos[i1+2]-pos[i2+2];
+            double r1x = pos[i3]-pos[i2], r1y = pos[i3+1]-pos[i2+1], r1z = pos[i3+2]-pos[i2+2];
+            double r2x = pos[i2]-pos[i3], r2y = pos[i2+1]-pos[i3+1], r2z = pos[i2+2]-pos[i3+2];
+            double r3x = pos[i4]-pos[i3], r3y = pos[i4+1]-pos[i3+1], r3z = pos[i4+2]-pos[i3+2];
+
+            double t0x = r0y*r1z - r0z*r1y, t0y = r0z*r1x - r0x*r1z, t0z = r0x*r1y - r0y*r1x;
+            double t1x = r2y*r3z - r2z*r3y, t1y = r2z*r3x - r2x*r3z, t1z = r2x*r3y - r2y*r3x;
+
+            double d0 = Math.sqrt(t0x*t0x+t0y*t0y+t0z*t0z);
+            double d1 = Math.sqrt(t1x*t1x+t1y*t1y+t1z*t1z);
+
+            if (Math.abs(d0) < 0.00001 || Math.abs(d1) < 0.00001)
+                continue;
+
+            t0x /= d0; t0y /= d0; t0z /= d0;
+            t1x /= d1; t1y /= d1; t1z /= d1;
+
+            double v1 = mTorsionV1[t];
+            double v2 = mTorsionV2[t];
+            double v3 = mTorsionV3[t];
+            double cosPhi = t0x*t1x + t0y*t1y + t0z*t1z;
+            double sinPhiSq = 1.0 - cosPhi * cosPhi;
+            double sinPhi = ((sinPhiSq > 0.0) ? Math.sqrt(sinPhiSq) : 0.0);
+            double sin2Phi = 2.0 * sinPhi * cosPhi;
+            double sin3Phi = 3.0 * sinPhi - 4.0 * sinPhi * sinPhiSq;
+            double dE_dPhi = 0.5 * (-(v1) * sinPhi + 2.0 * v2 * sin2Phi
+                    - 3.0 * v3 * sin3Phi);
+            double sinTerm = -dE_dPhi * (Math.abs(sinPhi) < 0.00001
+                    ? (1.0 / cosPhi) : (1.0 / sinPhi));
+
+            double dc0 = 1.0 / d0 * (t1x - cosPhi * t0x);
+            double dc1 = 1.0 / d0 * (t1y - cosPhi * t0y);
+            double dc2 = 1.0 / d0 * (t1z - cosPhi * t0z);
+            double dc3 = 1.0 / d1 * (t0x - cosPhi * t1x);
+            double dc4 = 1.0 / d1 * (t0y - cosPhi * t1y);
+            double dc5 = 1.0 / d1 * (t0z - cosPhi * t1z);
+
+            grad[i1  ] += sinTerm * (dc2 * r1y - dc1 * r1z);
+            grad[i1+1] += sinTerm * (dc0 * r1z - dc2 * r1x);
+            grad[i1+2] += sinTerm * (dc1 * r1x - dc0 * r1y);
+
+            grad[i2  ] += sinTerm * (dc1 * (r1z - r0z)
+                    + dc2 * (r0y - r1y)
+                    + dc4 * (-r3z)
+                    + dc5 * (r3y));
+            grad[i2+1] += sinTerm * (dc0 * (r0z - r1z)
+                    + dc2 * (r1x - r0x)
+                    + dc3 * (r3z)
+                    + dc5 * (-r3x));
+            grad[i2+2] += sinTerm * (dc0 * (r1y - r0y)
+                    + dc1 * (r0x - r1x)
+                    + dc3 * (-r3y)
+                    + dc4 * (r3x));
+
+            grad[i3  ] += sinTerm * (dc1 * (r0z)
+                    + dc2 * (-r0y)
+                    + dc4 * (r3z - r2z)
+                    + dc5 * (r2y - r3y));
+            grad[i3+1] += sinTerm * (dc0 * (-r0z)
+                    + dc2 * (r0x)
+                    + dc3 * (r2z - r3z)
+                    + dc5 * (r3x - r2x));
+            grad[i3+2] += sinTerm * (dc0 * (r0y)
+                    + dc1 * (-r0x)
+                    + dc3 * (r3y - r2y)
+                    + dc4 * (r2x - r3x));
+
+            grad[i4  ] += sinTerm * (dc4 * r2z - dc5 * r2y);
+            grad[i4+1] += sinTerm * (dc5 * r2x - dc3 * r2z);
+            grad[i4+2] += sinTerm * (dc3 * r2y - dc4 * r2x);
+        }
+    }
+
+    private double addVanDerWaalsEnergy(double[] pos, double total) {
+        final double vdw1 = 1.07;
+        final double vdw1m1 = vdw1 - 1.0;
+        final double vdw2 = 1.12;
+        final double vdw2m1 = vdw2 - 1.0;
+        for (int t=0; t<mVDWCount; t++) {
+            int i1 = 3*mVDWAtom[2*t];
+            int i2 = 3*mVDWAtom[2*t+1];
+            double dx = pos[i2]-pos[i1], dy = pos[i2+1]-pos[i1+1], dz = pos[i2+2]-pos[i1+2];
+            double rstar_ij = mVDWRStar[t];
+            final double dist = Math.sqrt(dx*dx + dy*dy + dz*dz);
+            final double dist2 = dist * dist;
+            final double dist7 = dist2 * dist2 * dist2 * dist;
+            final double aTerm = vdw1 * rstar_ij / (dist + vdw1m1 * rstar_ij);
+            final double aTerm2 = aTerm * aTerm;
+            final double aTerm7 = aTerm2 * aTerm2 * aTerm2 * aTerm;
+            final double rstar_ij2 = rstar_ij * rstar_ij;
+            final double rstar_ij7 = rstar_ij2 * rstar_ij2 * rstar_ij2 * rstar_ij;
+            final double bTerm = vdw2*rstar_ij7 / (dist7 + vdw2m1*rstar_ij7) - 2.0;
+            total += aTerm7 * bTerm * mVDWWellDepth[t];
+        }
+        return total;
+    }
+
+    private void addVanDerWaalsGradient(double[] pos, double[] grad) {
+        final double vdw1 = 1.07;
+        final double vdw1m1 = vdw1 - 1.0;
+        final double vdw2 = 1.12;
+        final double vdw2m1 = vdw2 - 1.0;
+        final double vdw2t7 = vdw2 * 7.0;
+        for (int t=0; t<mVDWCount; t++) {
+            int i1 = 3*mVDWAtom[2*t];
+            int i2 = 3*mVDWAtom[2*t+1];
+            double dx = pos[i2]-pos[i1], dy = pos[i2+1]-pos[i1+1], dz = pos[i2+2]-pos[i1+2];
+            double rstar_ij = mVDWRStar[t];
+            double dist = Math.sqrt(dx*dx + dy*dy + dz*dz);
+            double q = dist / rstar_ij;
+            double q2 = q * q;
+            double q6 = q2 * q2 * q2;
+            double q7 = q6 * q;
+            double q7pvdw2m1 = q7 + vdw2m1;
+            double s = vdw1 / (q + vdw1 - 1.0);
+            double s2 = s * s;
+            double s7 = s2 * s2 * s2 * s;
+            double dE_dr = mVDWWellDepth[t] / rstar_ij
+                    * s7 * (-vdw2t7 * q6 / (q7pvdw2m1 * q7pvdw2m1)
+                    + ((-vdw2t7 / q7pvdw2m1 + 14.0) / (q + vdw1m1)));
+            for (int i=0; i<3; i++) {
+                double dGrad = 0.01 * rstar_ij;
+                if (dist > 0.0)
+                    dGrad = dE_dr*(pos[i1+i] - pos[i2+i])/dist;
+                grad[i1+i] += dGrad;
+                grad[i2+i] -= dGrad;
+            }
+        }
+    }
+}
@@ -33,6 +33,7 @@
 
 package com.actelion.research.chem.forcefield.mmff;
 
+import java.util.Arrays;
 import java.util.Hashtable;
 
 /**
@@ -57,11 +58,15 @@ public class Separation {
     public Hashtable<SortedPair, Relation> table =
         new Hashtable<SortedPair, Relation>();
 
+    private final int atoms;
+    private int[][] closeAtoms;
+
     /**
      * Constructs a new separation table for a molecule.
      *  @param mol The molecule that the table will describe.
      */
     public Separation(MMFFMolecule mol) {
+        atoms = mol.getAllAtoms();
         for (int atom=0; atom<mol.getAllAtoms(); atom++) {
             table.put(new SortedPair(atom, atom), Relation.ONE_ONE);
 
@@ -105,4 +110,38 @@ public class Separation {
     public Relation get(int a1, int a2) {
         return get(new SortedPair(a1, a2));
     }
+
+    /**
+     * Returns all atoms that have a ONE_TWO, ONE_THREE or ONE_FOUR
+     * relation to the given atom. All other atoms have a ONE_X relation.
+     * This allows checking the relations of many atom pairs without a
+     * table lookup per pair.
+     *  @param atom The atom index.
+     *  @return The atoms closer than ONE_X in ascending order.
+     */
+    public int[] getCloseAtoms(int atom) {
+        if (closeAtoms == null) {
+            int[] count = new int[atoms];
+            for (SortedPair pair : table.keySet()) {
+                if (pair.a != pair.b) {
+                    count[pair.a]++;
+                    count[pair.b]++;
+                }
+            }
+            int[][] close = new int[atoms][];
+            for (int i=0; i<atoms; i++)
+                close[i] = new int[count[i]];
+            Arrays.fill(count, 0);
+            for (SortedPair pair : table.keySet()) {
+                if (pair.a != pair.b) {
+                    close[pair.a][count[pair.a]++] = pair.b;
+                    close[pair.b][count[pair.b]++] = pair.a;
+                }
+            }
+            for (int[] c : close)
+                Arrays.sort(c);
+            closeAtoms = close;
+        }
+        return closeAtoms[atom];
+    }
 }
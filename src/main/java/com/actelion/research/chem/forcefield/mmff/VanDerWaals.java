@@ -200,18 +200,29 @@ public class VanDerWaals implements EnergyTerm {
             Separation sep, double nonbondedCutoff) {
         ArrayList<VanDerWaals> vdws = new ArrayList<VanDerWaals>();
 
-        for (int i=0; i<mol.getAllAtoms(); i++) {
-            for (int j=i+1; j<mol.getAllAtoms(); j++) {
-                SortedPair atompair = new SortedPair(i, j);
-
-                Separation.Relation relation = sep.get(atompair);
+        // Candidate pairs within the cutoff are taken from a cell list and
+        // relations from the separation's close atoms, which gives the same
+        // terms in the same order as checking all atom pairs.
+        CellList cells = new CellList(CellList.getPositions(mol), mol.getAllAtoms(), nonbondedCutoff);
+        Separation.Relation[] relation = new Separation.Relation[mol.getAllAtoms()];
+        int[] neighbour = new int[mol.getAllAtoms()];
 
-                if ((relation == Separation.Relation.ONE_FOUR
-                        || relation == Separation.Relation.ONE_X)
-                        && new Vector3(mol, i, j).length() < nonbondedCutoff) {
+        for (int i=0; i<mol.getAllAtoms(); i++) {
+            int[] closeAtom = sep.getCloseAtoms(i);
+            for (int close : closeAtom)
+                relation[close] = sep.get(i, close);
+
+            int count = cells.getNeighbours(i, nonbondedCutoff, neighbour);
+            for (int k=0; k<count; k++) {
+                int j = neighbour[k];
+                if (j > i && (relation[j] == null
+                        || relation[j] == Separation.Relation.ONE_FOUR)) {
                     vdws.add(new VanDerWaals(table, mol, i, j));
                 }
             }
+
+            for (int close : closeAtom)
+                relation[close] = null;
         }
 
         return vdws;
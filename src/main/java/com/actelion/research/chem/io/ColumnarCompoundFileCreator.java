@@ -0,0 +1,459 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem.io;
+
+import com.actelion.research.chem.Canonizer;
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.chem.descriptor.DescriptorHandler;
+import com.actelion.research.chem.descriptor.DescriptorHandlerStandard2DFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Properties;
+
+import static com.actelion.research.chem.io.CompoundTableConstants.*;
+
+/**
+ * Writes compound tables in a binary column oriented format, which is an alternative to the
+ * tab-delimited DataWarrior format for large tables that are processed programmatically.
+ * Rows are collected into chunks. When a chunk is complete, every column of the chunk is written
+ * as one contiguous block with a small chunk header. Descriptors, which are long[] or int[] objects,
+ * are stored natively, such that a ColumnarCompoundFileParser can load them without any text
+ * decoding. Other descriptors are stored in their encoded form. Idcodes, coordinates, and
+ * alphanumerical values are stored as UTF-8 bytes. Column names and column properties follow
+ * the same conventions as the DWARFileCreator, i.e. structure, coordinate, and descriptor
+ * columns are defined by the 'specialType', 'parent', 'idColumn', and 'version' properties.<br>
+ * File layout: magic, version, column chunks, directory (columns, properties, chunk offsets),
+ * directory offset, magic.<br>
+ * To use the ColumnarCompoundFileCreator you need to follow these steps:<br>
+ * - instantiate a new ColumnarCompoundFileCreator for a new output file<br>
+ * - define individual columns with addStructureColumn(), addDescriptorColumn(), and addAlphanumericalColumn()<br>
+ * - add custom column properties, if you need to with addColumnProperty()<br>
+ * - call writeHeader() once to create the file<br>
+ * - for every row call setRowStructure(), setRowDescriptor() and setRowValue() for cell values and then writeCurrentRow()<br>
+ * - call writeEnd() to write the directory and close the file<br>
+ */
+public class ColumnarCompoundFileCreator {
+	public static final String FILE_EXTENSION = ".dwab";
+	public static final int DEFAULT_CHUNK_ROW_COUNT = 16384;
+
+	protected static final long MAGIC = 0x4F434C434F4C5442L;	// "OCLCOLTB"
+	protected static final int VERSION = 1;
+
+	protected static final byte KIND_BYTES = 0;
+	protected static final byte KIND_INTS = 1;
+	protected static final byte KIND_LONGS = 2;
+
+	private final File mFile;
+	private final int mChunkRowCount;
+	private FileChannel mChannel;
+	private ArrayList<String> mColumnTitleList;
+	private ArrayList<Properties> mColumnPropertiesList;
+	private ArrayList<long[]> mChunkOffsetList;	// per chunk: rowCount followed by offset and length of every column
+	private Object[][] mChunk;
+	private int mChunkRow;
+	private long mPosition;
+
+	public ColumnarCompoundFileCreator(File file) {
+		this(file, DEFAULT_CHUNK_ROW_COUNT);
+		}
+
+	/**
+	 * @param file
+	 * @param chunkRowCount number of rows that are kept in memory and written as one chunk
+	 */
+	public ColumnarCompoundFileCreator(File file, int chunkRowCount) {
+		mFile = file;
+		mChunkRowCount = chunkRowCount;
+		mColumnTitleList = new ArrayList<>();
+		mColumnPropertiesList = new ArrayList<>();
+		}
+
+	/**
+	 * Converts a DataWarrior file into the columnar format. Descriptors are decoded once and
+	 * stored natively, if the descriptor handler is known to the DescriptorHandlerStandard2DFactory.
+	 * @param dwarFile
+	 * @param file
+	 * @return number of converted rows
+	 * @throws IOException
+	 */
+	public static int convert(File dwarFile, File file) throws IOException {
+		DWARFileParser parser = new DWARFileParser(dwarFile);
+		if (!parser.isOpen())
+			throw new IOException("Cannot open file: "+dwarFile.getName());
+
+		ColumnarCompoundFileCreator creator = new ColumnarCompoundFileCreator(file);
+		ArrayList<String> columnList = new ArrayList<>();
+		for (DWARFileParser.SpecialField field:parser.getSpecialFieldMap().values())
+			columnList.add(field.name);
+		for (String name:parser.getFieldNames())
+			columnList.add(name);
+
+		int[] sourceIndex = new int[columnList.size()];
+		boolean[] isDescriptor = new boolean[columnList.size()];
+		for (int i=0; i<columnList.size(); i++) {
+			String name = columnList.get(i);
+			creator.mColumnTitleList.add(name);
+			Properties cp = parser.getColumnProperties(name);
+			creator.mColumnPropertiesList.add(cp == null ? null : (Properties)cp.clone());
+			DWARFileParser.SpecialField field = parser.getSpecialFieldMap().get(name);
+			sourceIndex[i] = (field != null) ? field.fieldIndex : parser.getFieldIndex(name);
+			isDescriptor[i] = (field != null && DescriptorHandlerStandard2DFactory.getFactory().getDefaultDescriptorHandler(field.type) != null);
+			}
+
+		creator.writeHeader();
+		int rowCount = 0;
+		while (parser.next()) {
+			for (int i=0; i<sourceIndex.length; i++) {
+				if (isDescriptor[i]) {
+					String type = parser.getSpecialFieldMap().get(columnList.get(i)).type;
+					String encoded = parser.getSpecialFieldData(sourceIndex[i]);
+					if (encoded != null && !encoded.isEmpty())
+						creator.mChunk[i][creator.mChunkRow] = DescriptorHandlerStandard2DFactory.getFactory().getDefaultDescriptorHandler(type).decode(encoded);
+					}
+				else {
+					creator.mChunk[i][creator.mChunkRow] = (parser.getSpecialFieldMap().containsKey(columnList.get(i))) ?
+							parser.getSpecialFieldData(sourceIndex[i]) : parser.getFieldData(sourceIndex[i]);
+					}
+				}
+			creator.writeCurrentRow();
+			rowCount++;
+			}
+		creator.writeEnd();
+		return rowCount;
+		}
+
+	/**
+	 * This adds a column to host canonical structure representations (idcodes).
+	 * @param name
+	 * @param idColumnName null or column title of other column that hold a compound identifier
+	 * @return new structure column index
+	 */
+	public int addStructureColumn(String name, String idColumnName) {
+		int structureColumn = addColumn(name);
+		addColumnProperty(structureColumn, cColumnPropertySpecialType, cColumnTypeIDCode);
+		if (idColumnName != null)
+			addColumnProperty(structureColumn, cColumnPropertyRelatedIdentifierColumn, idColumnName);
+		return structureColumn;
+		}
+
+	/**
+	 * Creates a new column to hold encoded 2-dimensional atom coordinates for the structures
+	 * stored in the associated structure column.
+	 * @param structureColumn
+	 * @return new coordinate column index
+	 */
+	public int add2DCoordinatesColumn(int structureColumn) {
+		return addStructureChildColumn(cColumnType2DCoordinates, cColumnType2DCoordinates, structureColumn);
+		}
+
+	/**
+	 * Creates a new column to hold encoded 3-dimensional atom coordinates for the structures
+	 * stored in the associated structure column.
+	 * @param name 3D-coordinate column names are used to distinguish multiple 3D-coordinate sets
+	 * @param structureColumn
+	 * @return new coordinate column index
+	 */
+	public int add3DCoordinatesColumn(String name, int structureColumn) {
+		return addStructureChildColumn(cColumnType3DCoordinates, name, structureColumn);
+		}
+
+	/**
+	 * Creates a new column to hold a chemical descriptor for the structures
+	 * stored in the associated structure column.
+	 * @param descriptorShortName name used to identify the descriptor type, e.g. 'FragFp'
+	 * @param descriptorVersion
+	 * @param structureColumn
+	 * @return new descriptor column index
+	 */
+	public int addDescriptorColumn(String descriptorShortName, String descriptorVersion, int structureColumn) {
+		int column = addStructureChildColumn(descriptorShortName, descriptorShortName, structureColumn);
+		addColumnProperty(column, cColumnPropertyDescriptorVersion, descriptorVersion);
+		return column;
+		}
+
+	private int addStructureChildColumn(String specialType, String name, int structureColumn) {
+		int column = addColumn(name);
+		addColumnProperty(column, cColumnPropertyParentColumn, mColumnTitleList.get(structureColumn));
+		addColumnProperty(column, cColumnPropertySpecialType, specialType);
+		return column;
+		}
+
+	/**
+	 * Creates a new standard column to hold any alphanumerical content.
+	 * @param name
+	 * @return new column index
+	 */
+	public int addAlphanumericalColumn(String name) {
+		return addColumn(name);
+		}
+
+	private int addColumn(String name) {
+		String title = name;
+		for (int i=2; mColumnTitleList.contains(title); i++)
+			title = name+"_"+i;
+		mColumnTitleList.add(title);
+		mColumnPropertiesList.add(null);
+		return mColumnTitleList.size()-1;
+		}
+
+	/**
+	 * @param column
+	 * @param key
+	 * @param value
+	 */
+	public void addColumnProperty(int column, String key, String value) {
+		Properties cp = mColumnPropertiesList.get(column);
+		if (cp == null) {
+			cp = new Properties();
+			mColumnPropertiesList.set(column, cp);
+			}
+		cp.setProperty(key, value);
+		}
+
+	/**
+	 * @return defined column titles in the correct order
+	 */
+	public String[] getColumnTitles() {
+		return mColumnTitleList.toArray(new String[0]);
+		}
+
+	/**
+	 * Call this after defining columns and specifying column properties.
+	 * This creates the file and writes the file header.
+	 * @throws IOException
+	 */
+	public void writeHeader() throws IOException {
+		mChannel = new FileOutputStream(mFile).getChannel();
+		ByteBuffer buffer = ByteBuffer.allocate(12);
+		buffer.putLong(MAGIC).putInt(VERSION).flip();
+		write(buffer);
+
+		mChunk = new Object[mColumnTitleList.size()][mChunkRowCount];
+		mChunkOffsetList = new ArrayList<>();
+		}
+
+	/**
+	 * Calculates the canonical structure representation as idcode from mol and puts
+	 * it into the given idcodeColumn. If coordinateColumn != -1 then it also puts the
+	 * encoded atom coordinates into the given coordinateColumn.
+	 * @param mol
+	 * @param idcodeColumn
+	 * @param coordsColumn
+	 */
+	public void setRowStructure(StereoMolecule mol, int idcodeColumn, int coordsColumn) {
+		Canonizer canonizer = new Canonizer(mol);
+		mChunk[idcodeColumn][mChunkRow] = canonizer.getIDCode();
+		if (coordsColumn != -1)
+			mChunk[coordsColumn][mChunkRow] = canonizer.getEncodedCoordinates();
+		}
+
+	public void setRowStructure(String idcode, int column) {
+		mChunk[column][mChunkRow] = idcode;
+		}
+
+	public void setRowCoordinates(String coordinates, int column) {
+		mChunk[column][mChunkRow] = coordinates;
+		}
+
+	/**
+	 * Puts the given descriptor into the given column. long[] and int[] descriptors are stored
+	 * natively. Other descriptors, e.g. byte[] based ones, are stored in the more compact form
+	 * of the descriptor handler's encoding.
+	 * @param descriptor
+	 * @param column
+	 */
+	public void setRowDescriptor(Object descriptor, int column) {
+		mChunk[column][mChunkRow] = descriptor;
+		}
+
+	/**
+	 * Puts the given value into the given column. In contrast to DWAR files, line breaks
+	 * and TABs are kept as they are.
+	 * @param value
+	 * @param column
+	 */
+	public void setRowValue(String value, int column) {
+		mChunk[column][mChunkRow] = value;
+		}
+
+	/**
+	 * Call this once per row after setting individual cell content with
+	 * the respective setRowXXXX() methods.
+	 * @throws IOException
+	 */
+	public void writeCurrentRow() throws IOException {
+		if (++mChunkRow == mChunkRowCount)
+			writeChunk();
+		}
+
+	/**
+	 * Writes the last incomplete chunk, the directory and closes the file.
+	 * @throws IOException
+	 */
+	public void writeEnd() throws IOException {
+		if (mChunkRow != 0)
+			writeChunk();
+
+		long directoryOffset = mPosition;
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream os = new DataOutputStream(baos);
+		os.writeInt(mColumnTitleList.size());
+		for (int column=0; column<mColumnTitleList.size(); column++) {
+			os.writeUTF(mColumnTitleList.get(column));
+			Properties cp = mColumnPropertiesList.get(column);
+			os.writeInt(cp == null ? 0 : cp.size());
+			if (cp != null) {
+				for (String key:cp.stringPropertyNames()) {
+					os.writeUTF(key);
+					os.writeUTF(cp.getProperty(key));
+					}
+				}
+			}
+		os.writeInt(mChunkOffsetList.size());
+		for (long[] chunkOffset:mChunkOffsetList)
+			for (long value:chunkOffset)
+				os.writeLong(value);
+		os.writeLong(directoryOffset);
+		os.writeLong(MAGIC);
+		os.flush();
+		write(ByteBuffer.wrap(baos.toByteArray()));
+
+		mChannel.close();
+		}
+
+	private void writeChunk() throws IOException {
+		long[] chunkOffset = new long[1+2*mChunk.length];
+		chunkOffset[0] = mChunkRow;
+		for (int column=0; column<mChunk.length; column++) {
+			ByteBuffer buffer = encodeColumnChunk(column);
+			chunkOffset[1+2*column] = mPosition;
+			chunkOffset[2+2*column] = buffer.remaining();
+			write(buffer);
+			}
+		mChunkOffsetList.add(chunkOffset);
+		for (Object[] cell:mChunk)
+			java.util.Arrays.fill(cell, 0, mChunkRow, null);
+		mChunkRow = 0;
+		}
+
+	/**
+	 * Column chunk: kind (byte), row count (int), null flags (one bit per row), element offsets (int[rowCount+1]), data.
+	 * Null cells have no elements, but neither have empty Strings or empty descriptor arrays, e.g. of failed descriptors.
+	 */
+	private ByteBuffer encodeColumnChunk(int column) {
+		Object[] cell = mChunk[column];
+		byte kind = KIND_BYTES;
+		for (int row=0; row<mChunkRow; row++) {
+			if (cell[row] instanceof long[]) {
+				kind = KIND_LONGS;
+				break;
+				}
+			if (cell[row] instanceof int[]) {
+				kind = KIND_INTS;
+				break;
+				}
+			}
+
+		int elementCount = 0;
+		for (int row=0; row<mChunkRow; row++) {
+			if (cell[row] != null) {
+				if (kind == KIND_LONGS)
+					elementCount += ((long[])cell[row]).length;
+				else if (kind == KIND_INTS)
+					elementCount += ((int[])cell[row]).length;
+				else {
+					cell[row] = toBytes(cell[row], column);
+					elementCount += ((byte[])cell[row]).length;
+					}
+				}
+			}
+
+		int elementSize = (kind == KIND_LONGS) ? 8 : (kind == KIND_INTS) ? 4 : 1;
+		byte[] nullFlags = new byte[(mChunkRow+7) >> 3];
+		for (int row=0; row<mChunkRow; row++)
+			if (cell[row] == null)
+				nullFlags[row >> 3] |= (byte)(1 << (row & 7));
+		ByteBuffer buffer = ByteBuffer.allocate(5+nullFlags.length+4*(mChunkRow+1)+elementSize*elementCount);
+		buffer.put(kind);
+		buffer.putInt(mChunkRow);
+		buffer.put(nullFlags);
+		int offset = 0;
+		buffer.putInt(offset);
+		for (int row=0; row<mChunkRow; row++) {
+			if (cell[row] != null)
+				offset += (kind == KIND_LONGS) ? ((long[])cell[row]).length
+						: (kind == KIND_INTS) ? ((int[])cell[row]).length : ((byte[])cell[row]).length;
+			buffer.putInt(offset);
+			}
+		for (int row=0; row<mChunkRow; row++) {
+			if (cell[row] != null) {
+				if (kind == KIND_LONGS)
+					for (long l:(long[])cell[row])
+						buffer.putLong(l);
+				else if (kind == KIND_INTS)
+					for (int i:(int[])cell[row])
+						buffer.putInt(i);
+				else
+					buffer.put((byte[])cell[row]);
+				}
+			}
+		buffer.flip();
+		return buffer;
+		}
+
+	@SuppressWarnings("unchecked")
+	private byte[] toBytes(Object value, int column) {
+		if (value instanceof String)
+			return ((String)value).getBytes(StandardCharsets.UTF_8);
+
+		Properties cp = mColumnPropertiesList.get(column);
+		String type = (cp == null) ? null : cp.getProperty(cColumnPropertySpecialType);
+		// the handler belongs to the column's descriptor type, thus it accepts the column's descriptor objects
+		DescriptorHandler<Object,?> dh = (type == null) ? null
+				: (DescriptorHandler<Object,?>)DescriptorHandlerStandard2DFactory.getFactory().getDefaultDescriptorHandler(type);
+		if (dh == null)
+			throw new IllegalArgumentException("Cannot encode cell value of column '"+mColumnTitleList.get(column)+"'");
+		return dh.encode(value).getBytes(StandardCharsets.UTF_8);
+		}
+
+	private void write(ByteBuffer buffer) throws IOException {
+		mPosition += buffer.remaining();
+		while (buffer.hasRemaining())
+			mChannel.write(buffer);
+		}
+	}
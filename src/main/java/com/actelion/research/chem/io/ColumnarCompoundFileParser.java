@@ -0,0 +1,428 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem.io;
+
+import com.actelion.research.chem.descriptor.DescriptorHandler;
+import com.actelion.research.chem.descriptor.DescriptorHandlerStandard2DFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static com.actelion.research.chem.io.ColumnarCompoundFileCreator.*;
+import static com.actelion.research.chem.io.CompoundTableConstants.*;
+
+/**
+ * Reads compound tables written by the ColumnarCompoundFileCreator. The directory at the end of the
+ * file is read when the parser is constructed. Column data is loaded chunk by chunk while advancing
+ * through the rows. Only those columns are loaded, which were requested in the constructor.
+ * Native descriptors are returned without any decoding. Random access with seek() and readRow()
+ * is supported without a sidecar index, because chunk offsets are part of the file directory.
+ * The file stays open for reading column chunks until close() is called.
+ */
+public class ColumnarCompoundFileParser extends CompoundFileParser {
+	private File mFile;
+	private FileChannel mChannel;
+	private String[] mColumnName,mFieldName;
+	private Properties[] mColumnProperties;
+	private boolean[] mIsLoaded;
+	private long[][] mChunkOffset;
+	private int[] mChunkFirstRow,mFieldColumn;
+	private int mRowCount,mChunk,mChunkRow,mIDCodeColumn,mCoordinate2DColumn,mCoordinate3DColumn,mMoleculeNameColumn;
+	private TreeMap<String,Integer> mDescriptorColumnMap;
+	private ColumnChunk[] mColumnChunk;
+
+	public ColumnarCompoundFileParser(String fileName) {
+		this(new File(fileName), null);
+		}
+
+	public ColumnarCompoundFileParser(File file) {
+		this(file, null);
+		}
+
+	/**
+	 * Creates a parser that loads the given columns only. Other columns are skipped
+	 * entirely and their cell content is returned as null.
+	 * @param file
+	 * @param columnName null to load all columns
+	 */
+	public ColumnarCompoundFileParser(File file, String[] columnName) {
+		setDescriptorHandlerFactory(DescriptorHandlerStandard2DFactory.getFactory());
+		try {
+			mChannel = new FileInputStream(file).getChannel();
+			readDirectory(mChannel);
+			mFile = file;
+			}
+		catch (IOException ioe) {
+			closeChannel();
+			mFile = null;
+			return;
+			}
+
+		mIsLoaded = new boolean[mColumnName.length];
+		for (int column=0; column<mColumnName.length; column++) {
+			if (columnName == null) {
+				mIsLoaded[column] = true;
+				}
+			else {
+				for (String name:columnName)
+					if (name.equals(mColumnName[column]))
+						mIsLoaded[column] = true;
+				}
+			}
+
+		mColumnChunk = new ColumnChunk[mColumnName.length];
+		mChunk = -1;
+		mChunkRow = -1;
+		findSpecialColumns();
+		}
+
+	private void readDirectory(FileChannel channel) throws IOException {
+		ByteBuffer buffer = read(channel, 0, 12);
+		if (buffer.getLong() != MAGIC)
+			throw new IOException("no columnar compound file");
+		if (buffer.getInt() != VERSION)
+			throw new IOException("unsupported file version");
+
+		buffer = read(channel, channel.size()-16, 16);
+		long directoryOffset = buffer.getLong();
+		if (buffer.getLong() != MAGIC)
+			throw new IOException("incomplete columnar compound file");
+
+		buffer = read(channel, directoryOffset, (int)(channel.size()-16-directoryOffset));
+		DataInputStream is = new DataInputStream(new ByteArrayInputStream(buffer.array()));
+		int columnCount = is.readInt();
+		mColumnName = new String[columnCount];
+		mColumnProperties = new Properties[columnCount];
+		for (int column=0; column<columnCount; column++) {
+			mColumnName[column] = is.readUTF();
+			int propertyCount = is.readInt();
+			if (propertyCount != 0) {
+				mColumnProperties[column] = new Properties();
+				for (int i=0; i<propertyCount; i++)
+					mColumnProperties[column].setProperty(is.readUTF(), is.readUTF());
+				}
+			}
+
+		int chunkCount = is.readInt();
+		mChunkOffset = new long[chunkCount][1+2*columnCount];
+		mChunkFirstRow = new int[chunkCount+1];
+		for (int chunk=0; chunk<chunkCount; chunk++) {
+			for (int i=0; i<mChunkOffset[chunk].length; i++)
+				mChunkOffset[chunk][i] = is.readLong();
+			mChunkFirstRow[chunk+1] = mChunkFirstRow[chunk] + (int)mChunkOffset[chunk][0];
+			}
+		mRowCount = mChunkFirstRow[chunkCount];
+		}
+
+	private void findSpecialColumns() {
+		mIDCodeColumn = -1;
+		mCoordinate2DColumn = -1;
+		mCoordinate3DColumn = -1;
+		mMoleculeNameColumn = -1;
+
+		ArrayList<Integer> fieldColumnList = new ArrayList<>();
+		for (int column=0; column<mColumnName.length; column++) {
+			String type = getSpecialType(column);
+			if (type == null)
+				fieldColumnList.add(column);
+			else if (mIDCodeColumn == -1 && type.equals(cColumnTypeIDCode))
+				mIDCodeColumn = column;
+			}
+
+		mFieldName = new String[fieldColumnList.size()];
+		mFieldColumn = new int[fieldColumnList.size()];
+		for (int i=0; i<mFieldColumn.length; i++) {
+			mFieldColumn[i] = fieldColumnList.get(i);
+			mFieldName[i] = mColumnName[mFieldColumn[i]];
+			}
+
+		if (mIDCodeColumn != -1) {
+			String idColumn = mColumnProperties[mIDCodeColumn].getProperty(cColumnPropertyRelatedIdentifierColumn);
+			for (int i=0; i<mFieldName.length; i++)
+				if (mFieldName[i].equals(idColumn))
+					mMoleculeNameColumn = mFieldColumn[i];
+
+			for (int column=0; column<mColumnName.length; column++) {
+				if (mColumnProperties[column] != null
+				 && mColumnName[mIDCodeColumn].equals(mColumnProperties[column].getProperty(cColumnPropertyParentColumn))) {
+					String type = getSpecialType(column);
+					if (cColumnType2DCoordinates.equals(type)) {
+						if (mCoordinate2DColumn == -1)
+							mCoordinate2DColumn = column;
+						}
+					else if (cColumnType3DCoordinates.equals(type)) {
+						if (mCoordinate3DColumn == -1)
+							mCoordinate3DColumn = column;
+						}
+					else {
+						if (mDescriptorColumnMap == null)
+							mDescriptorColumnMap = new TreeMap<>();
+						mDescriptorColumnMap.putIfAbsent(type, column);
+						}
+					}
+				}
+			}
+		}
+
+	private String getSpecialType(int column) {
+		return (mColumnProperties[column] == null) ? null : mColumnProperties[column].getProperty(cColumnPropertySpecialType);
+		}
+
+	@Override
+	public boolean isOpen() {
+		return mFile != null;
+		}
+
+	/**
+	 * @return names of all columns including structure, coordinate and descriptor columns
+	 */
+	public String[] getColumnNames() {
+		return mColumnName;
+		}
+
+	/**
+	 * @param columnName
+	 * @return column properties or null, if the column has no properties
+	 */
+	public Properties getColumnProperties(String columnName) {
+		for (int column=0; column<mColumnName.length; column++)
+			if (mColumnName[column].equals(columnName))
+				return mColumnProperties[column];
+		return null;
+		}
+
+	@Override
+	public String[] getFieldNames() {
+		return mFieldName;
+		}
+
+	@Override
+	public String getFieldData(int column) {
+		return getString(mFieldColumn[column]);
+		}
+
+	@Override
+	public int getRowCount() {
+		return mRowCount;
+		}
+
+	@Override
+	public boolean isRandomAccessSupported() {
+		return isOpen();
+		}
+
+	@Override
+	public boolean seek(int row) {
+		if (mFile == null || row < 0 || row > mRowCount)
+			return false;
+
+		int chunk = Arrays.binarySearch(mChunkFirstRow, row);
+		if (chunk < 0)
+			chunk = -chunk-2;
+		else if (chunk == mChunkOffset.length)	// position behind the last row
+			chunk--;
+		if (chunk != mChunk) {
+			mChunk = chunk;
+			Arrays.fill(mColumnChunk, null);
+			}
+		mChunkRow = (chunk == -1) ? -1 : row - mChunkFirstRow[chunk] - 1;
+		return true;
+		}
+
+	@Override
+	protected boolean advanceToNext() {
+		if (mFile == null)
+			return false;
+
+		if (mChunk == -1 || ++mChunkRow == mChunkOffset[mChunk][0]) {
+			if (mChunk+1 >= mChunkOffset.length)
+				return false;
+			mChunk++;
+			mChunkRow = 0;
+			Arrays.fill(mColumnChunk, null);
+			}
+		return true;
+		}
+
+	@Override
+	public String getIDCode() {
+		return (mIDCodeColumn == -1) ? null : getNonEmptyString(mIDCodeColumn);
+		}
+
+	/**
+	 * @return 2D-coordinates, if available, otherwise 3D-coordinates or null
+	 */
+	@Override
+	public String getCoordinates() {
+		String coords = getCoordinates2D();
+		return (coords != null) ? coords : getCoordinates3D();
+		}
+
+	public String getCoordinates2D() {
+		return (mCoordinate2DColumn == -1) ? null : getNonEmptyString(mCoordinate2DColumn);
+		}
+
+	public String getCoordinates3D() {
+		return (mCoordinate3DColumn == -1) ? null : getNonEmptyString(mCoordinate3DColumn);
+		}
+
+	@Override
+	public String getMoleculeName() {
+		return (mMoleculeNameColumn == -1) ? null : getNonEmptyString(mMoleculeNameColumn);
+		}
+
+	/**
+	 * Returns the descriptor of the current row. Natively stored descriptors are returned
+	 * as new long[] or int[] without any decoding.
+	 * @param shortName
+	 * @return descriptor or null
+	 */
+	@Override
+	public Object getDescriptor(String shortName) {
+		Integer column = (mDescriptorColumnMap == null) ? null : mDescriptorColumnMap.get(shortName);
+		ColumnChunk chunk = (column == null) ? null : getColumnChunk(column);
+		if (chunk == null || chunk.isNull(mChunkRow))
+			return super.getDescriptor(shortName);
+
+		int from = chunk.offset[mChunkRow];
+		int to = chunk.offset[mChunkRow+1];
+		if (chunk.longs != null)
+			return Arrays.copyOfRange(chunk.longs, from, to);
+		if (chunk.ints != null)
+			return Arrays.copyOfRange(chunk.ints, from, to);
+
+		DescriptorHandler<?,?> dh = (getDescriptorHandlerFactory() == null) ? null
+				: getDescriptorHandlerFactory().getDefaultDescriptorHandler(shortName);
+		return (dh == null) ? null : dh.decode(Arrays.copyOfRange(chunk.bytes, from, to));
+		}
+
+	private String getNonEmptyString(int column) {
+		String s = getString(column);
+		return (s == null || s.isEmpty()) ? null : s;
+		}
+
+	/**
+	 * @return null, if the column is not loaded or the cell is null, otherwise the cell content, which may be an empty String
+	 */
+	private String getString(int column) {
+		ColumnChunk chunk = getColumnChunk(column);
+		if (chunk == null || chunk.bytes == null || chunk.isNull(mChunkRow))
+			return null;
+		int from = chunk.offset[mChunkRow];
+		return new String(chunk.bytes, from, chunk.offset[mChunkRow+1]-from, StandardCharsets.UTF_8);
+		}
+
+	private ColumnChunk getColumnChunk(int column) {
+		if (!mIsLoaded[column] || mChunk == -1 || mChunkRow < 0)
+			return null;
+
+		if (mColumnChunk[column] == null && mChannel != null) {
+			try {
+				ByteBuffer buffer = read(mChannel, mChunkOffset[mChunk][1+2*column], (int)mChunkOffset[mChunk][2+2*column]);
+				mColumnChunk[column] = new ColumnChunk(buffer);
+				}
+			catch (IOException ioe) {
+				return null;
+				}
+			}
+
+		return mColumnChunk[column];
+		}
+
+	/**
+	 * Closes the underlying file. Afterwards, no further column chunks can be loaded.
+	 */
+	@Override
+	public void close() {
+		super.close();
+		closeChannel();
+		}
+
+	private void closeChannel() {
+		if (mChannel != null) {
+			try {
+				mChannel.close();
+				}
+			catch (IOException ioe) {}
+			mChannel = null;
+			}
+		}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining())
+			if (channel.read(buffer, position+buffer.position()) == -1)
+				throw new EOFException();
+		buffer.flip();
+		return buffer;
+		}
+
+	private static class ColumnChunk {
+		int[] offset;
+		byte[] nullFlags;
+		byte[] bytes;
+		int[] ints;
+		long[] longs;
+
+		public ColumnChunk(ByteBuffer buffer) {
+			byte kind = buffer.get();
+			int rowCount = buffer.getInt();
+			nullFlags = new byte[(rowCount+7) >> 3];
+			buffer.get(nullFlags);
+			offset = new int[rowCount+1];
+			buffer.asIntBuffer().get(offset);
+			buffer.position(buffer.position()+4*offset.length);
+			int elementCount = offset[rowCount];
+			if (kind == KIND_LONGS) {
+				longs = new long[elementCount];
+				buffer.asLongBuffer().get(longs);
+				}
+			else if (kind == KIND_INTS) {
+				ints = new int[elementCount];
+				buffer.asIntBuffer().get(ints);
+				}
+			else {
+				bytes = new byte[elementCount];
+				buffer.get(bytes);
+				}
+			}
+
+		public boolean isNull(int row) {
+			return (nullFlags[row >> 3] & (1 << (row & 7))) != 0;
+			}
+		}
+	}
@@ -0,0 +1,334 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem.io;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static com.actelion.research.chem.io.CompoundTableConstants.*;
+
+/**
+ * Maps row numbers of uncompressed SD- or DataWarrior-files to the byte offsets, at which the rows
+ * start within the file. The index is built once by scanning the file bytes and is stored as
+ * sidecar file next to the compound file, e.g. 'library.dwar.idx'. The sidecar records the
+ * length and modification time of the compound file and is rebuilt automatically, if the compound
+ * file was changed. SDFileParser and DWARFileParser use this index to position their readers
+ * on any row without parsing the preceding rows, which also allows multiple workers to process
+ * disjoint row ranges of one file.
+ */
+public class CompoundFileOffsetIndex {
+	public static final String SIDECAR_EXTENSION = ".idx";
+
+	private static final long MAGIC = 0x4F434C4F46464958L;	// "OCLOFFIX"
+	private static final int VERSION = 1;
+	private static final int PREFIX_SIZE = 64;
+
+	private final long[] mOffset;	// row start offsets plus offset after the last row
+	private final long mFileLength,mLastModified;
+
+	private CompoundFileOffsetIndex(long[] offset, long fileLength, long lastModified) {
+		mOffset = offset;
+		mFileLength = fileLength;
+		mLastModified = lastModified;
+		}
+
+	/**
+	 * Loads the sidecar index of the given compound file, if it exists and is up-to-date.
+	 * Otherwise, the index is built and, if possible, written as sidecar file.
+	 * @param file uncompressed SD- or DataWarrior-file
+	 * @return index or null, if the file type is not supported
+	 * @throws IOException
+	 */
+	public static CompoundFileOffsetIndex getOrCreate(File file) throws IOException {
+		File sidecar = new File(file.getPath()+SIDECAR_EXTENSION);
+		CompoundFileOffsetIndex index = load(sidecar, file);
+		if (index == null) {
+			index = create(file);
+			if (index != null) {
+				try {
+					index.write(sidecar);
+					}
+				catch (IOException ioe) {}	// e.g. no write permission; we can still use the index
+				}
+			}
+		return index;
+		}
+
+	/**
+	 * Builds the index by scanning all lines of the given compound file.
+	 * @param file uncompressed SD- or DataWarrior-file
+	 * @return index or null, if the file type is not supported
+	 * @throws IOException
+	 */
+	public static CompoundFileOffsetIndex create(File file) throws IOException {
+		int fileType = CompoundFileHelper.getFileType(file.getName());
+		if (fileType != CompoundFileHelper.cFileTypeSD
+		 && fileType != CompoundFileHelper.cFileTypeDataWarrior)
+			return null;
+
+		String name = file.getName().toLowerCase();
+		if (name.endsWith(".gz") || name.endsWith(".zip"))
+			return null;
+
+		try (LineScanner scanner = new LineScanner(file)) {
+			long[] offset = (fileType == CompoundFileHelper.cFileTypeSD) ? scanSDFile(scanner) : scanDWARFile(scanner);
+			return new CompoundFileOffsetIndex(offset, file.length(), file.lastModified());
+			}
+		}
+
+	private static long[] scanSDFile(LineScanner scanner) throws IOException {
+		LongList offsetList = new LongList();
+		long recordStart = scanner.getPosition();
+		boolean recordIsEmpty = true;
+		while (scanner.nextLine()) {
+			if (scanner.startsWith("$$$$")) {
+				offsetList.add(recordStart);
+				recordStart = scanner.getPosition();
+				recordIsEmpty = true;
+				}
+			else if (scanner.getLineLength() != 0) {
+				recordIsEmpty = false;
+				}
+			}
+		if (!recordIsEmpty)	// last record without terminating '$$$$'
+			offsetList.add(recordStart);
+		offsetList.add(scanner.getPosition());
+		return offsetList.toArray();
+		}
+
+	/**
+	 * Skips the header lines the same way as the DWARFileParser and collects
+	 * the offsets of all data rows following the column title line.
+	 */
+	private static long[] scanDWARFile(LineScanner scanner) throws IOException {
+		if (!scanner.nextLine() || !scanner.equals(cNativeFileHeaderStart))
+			throw new IOException("no header found");
+
+		while (scanner.nextLine() && !scanner.equals(cNativeFileHeaderEnd))
+			;
+
+		boolean lineAvailable = scanner.nextLine();
+		while (lineAvailable
+			&& (scanner.equals(cFileExplanationStart) || scanner.equals(cMacroListStart))) {
+			while (scanner.nextLine() && !scanner.equals(cFileExplanationEnd) && !scanner.equals(cMacroListEnd))
+				;
+			lineAvailable = scanner.nextLine();
+			}
+
+		if (lineAvailable && scanner.equals(cColumnPropertyStart)) {
+			while (scanner.nextLine() && !scanner.equals(cColumnPropertyEnd))
+				;
+			lineAvailable = scanner.nextLine();	// column title line
+			}
+
+		if (!lineAvailable)
+			throw new IOException("unexpected end of file");
+
+		LongList offsetList = new LongList();
+		long rowStart = scanner.getPosition();
+		while (scanner.nextLine()
+			&& !scanner.equals(cPropertiesStart)
+			&& !scanner.equals(cHitlistDataStart)
+			&& !scanner.equals(cDetailDataStart)
+			&& !scanner.startsWith(cDataDependentPropertiesStart)) {
+			offsetList.add(rowStart);
+			rowStart = scanner.getPosition();
+			}
+		offsetList.add(rowStart);
+		return offsetList.toArray();
+		}
+
+	private static CompoundFileOffsetIndex load(File sidecar, File file) {
+		if (!sidecar.exists())
+			return null;
+
+		try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)))) {
+			if (is.readLong() != MAGIC || is.readInt() != VERSION)
+				return null;
+			long fileLength = is.readLong();
+			long lastModified = is.readLong();
+			if (fileLength != file.length() || lastModified != file.lastModified())
+				return null;
+			long[] offset = new long[is.readInt()+1];
+			for (int i=0; i<offset.length; i++)
+				offset[i] = is.readLong();
+			return new CompoundFileOffsetIndex(offset, fileLength, lastModified);
+			}
+		catch (IOException ioe) {
+			return null;
+			}
+		}
+
+	/**
+	 * Writes this index into a sidecar file.
+	 * @param sidecar
+	 * @throws IOException
+	 */
+	public void write(File sidecar) throws IOException {
+		try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecar)))) {
+			os.writeLong(MAGIC);
+			os.writeInt(VERSION);
+			os.writeLong(mFileLength);
+			os.writeLong(mLastModified);
+			os.writeInt(getRowCount());
+			for (long offset:mOffset)
+				os.writeLong(offset);
+			}
+		}
+
+	public int getRowCount() {
+		return mOffset.length - 1;
+		}
+
+	/**
+	 * @param row
+	 * @return byte offset of the row's first line within the file
+	 */
+	public long getOffset(int row) {
+		return mOffset[row];
+		}
+
+	/**
+	 * @return byte offset after the last row, i.e. the start of any tail
+	 */
+	public long getEndOffset() {
+		return mOffset[mOffset.length-1];
+		}
+
+	/**
+	 * Reads lines as raw bytes and keeps track of the byte position.
+	 * Only the first bytes of every line are kept for comparison with tags.
+	 */
+	private static class LineScanner implements Closeable {
+		private final InputStream mStream;
+		private final byte[] mBuffer,mPrefix;
+		private int mBufferSize,mBufferIndex;
+		private long mPosition;
+		private int mLineLength;
+
+		public LineScanner(File file) throws IOException {
+			mStream = new FileInputStream(file);
+			mBuffer = new byte[1 << 16];
+			mPrefix = new byte[PREFIX_SIZE];
+
+			// skip UTF-8 byte order mark
+			if (read() == 0xEF && read() == 0xBB && read() == 0xBF)
+				mPosition = 3;
+			else if (mBufferSize > 0)
+				mBufferIndex = 0;
+			}
+
+		private int read() throws IOException {
+			if (mBufferIndex == mBufferSize) {
+				if (mBufferSize == -1)
+					return -1;
+				mBufferSize = mStream.read(mBuffer);
+				mBufferIndex = 0;
+				if (mBufferSize <= 0) {
+					mBufferSize = -1;
+					mBufferIndex = -1;
+					return -1;
+					}
+				}
+			return mBuffer[mBufferIndex++] & 0xFF;
+			}
+
+		/**
+		 * @return false if the end of the file was reached
+		 */
+		public boolean nextLine() throws IOException {
+			int length = 0;
+			int b = read();
+			if (b == -1)
+				return false;
+
+			while (b != -1 && b != '\n') {
+				if (length < PREFIX_SIZE)
+					mPrefix[length] = (byte)b;
+				length++;
+				b = read();
+				}
+			mPosition += (b == '\n') ? length+1 : length;
+			if (length != 0 && length <= PREFIX_SIZE && mPrefix[length-1] == '\r')
+				length--;
+			else if (length > PREFIX_SIZE)
+				length = Integer.MAX_VALUE;	// we don't need the precise length of long lines
+			mLineLength = length;
+			return true;
+			}
+
+		public long getPosition() {
+			return mPosition;
+			}
+
+		public int getLineLength() {
+			return mLineLength;
+			}
+
+		public boolean startsWith(String s) {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			if (bytes.length > Math.min(mLineLength, PREFIX_SIZE))
+				return false;
+			for (int i=0; i<bytes.length; i++)
+				if (bytes[i] != mPrefix[i])
+					return false;
+			return true;
+			}
+
+		public boolean equals(String s) {
+			return s.getBytes(StandardCharsets.UTF_8).length == mLineLength && startsWith(s);
+			}
+
+		@Override
+		public void close() throws IOException {
+			mStream.close();
+			}
+		}
+
+	private static class LongList {
+		private long[] mValue = new long[1024];
+		private int mSize;
+
+		public void add(long value) {
+			if (mSize == mValue.length)
+				mValue = Arrays.copyOf(mValue, 2*mSize);
+			mValue[mSize++] = value;
+			}
+
+		public long[] toArray() {
+			return Arrays.copyOf(mValue, mSize);
+			}
+		}
+	}
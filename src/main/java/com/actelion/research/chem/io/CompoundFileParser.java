@@ -34,7 +34,11 @@
 package com.actelion.research.chem.io;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 
 import com.actelion.research.chem.Canonizer;
 import com.actelion.research.chem.IDCodeParser;
@@ -48,9 +52,11 @@ public abstract class CompoundFileParser {
     private boolean mStructureUpToDate,mIDCodeUpToDate;
     private String mIDCode,mCoords;
 	protected BufferedReader mReader;
+	private File mFile;
+	private CompoundFileOffsetIndex mOffsetIndex;
 
     /**
-     * Creates the proper parser for the given type of compound file (currently SD or DWAR).
+     * Creates the proper parser for the given type of compound file (currently SD, DWAR or columnar binary).
      * @param fileName
      * @return parser or null, if the file doesn't exist or cannot be accessed
      */
@@ -61,8 +67,10 @@ public abstract class CompoundFileParser {
             parser = new DWARFileParser(fileName);
         else if (fileType == CompoundFileHelper.cFileTypeSD)
             parser = new SDFileParser(fileName);
+        else if (fileName.toLowerCase().endsWith(ColumnarCompoundFileCreator.FILE_EXTENSION))
+            parser = new ColumnarCompoundFileParser(fileName);
 
-        return parser.mReader == null ? null : parser;
+        return (parser == null || !parser.isOpen()) ? null : parser;
         }
 
     /**
@@ -111,11 +119,78 @@ public abstract class CompoundFileParser {
         return advanceToNext();
         }
 
+    /**
+     * Subclasses call this, if they read from an uncompressed file, which allows
+     * random access to rows by means of a CompoundFileOffsetIndex.
+     * @param file
+     */
+    protected void setRandomAccessFile(File file) {
+        String name = file.getName().toLowerCase();
+        mFile = (name.endsWith(".gz") || name.endsWith(".zip")) ? null : file;
+        }
+
+    /**
+     * @return whether seek() and readRow() are supported, i.e. whether the parser reads from an uncompressed file
+     */
+    public boolean isRandomAccessSupported() {
+        return mFile != null;
+        }
+
+    /**
+     * Returns the row offset index of the underlying file. If an up-to-date sidecar index file
+     * exists, then it is loaded. Otherwise, the index is built and written as sidecar file.
+     * @return index or null, if the parser doesn't read from an uncompressed file
+     * @throws IOException
+     */
+    public CompoundFileOffsetIndex getOffsetIndex() throws IOException {
+        if (mOffsetIndex == null && mFile != null)
+            mOffsetIndex = CompoundFileOffsetIndex.getOrCreate(mFile);
+        return mOffsetIndex;
+        }
+
+    /**
+     * Positions the parser in front of the given row without parsing any preceding rows.
+     * The next call of next() advances to the given row. Subsequent next() calls continue
+     * sequentially from there. This requires an uncompressed SD- or DataWarrior-file.
+     * On the first call a row offset index is loaded or created (see getOffsetIndex()).
+     * @param row
+     * @return false if random access is not supported or if row is out of range
+     */
+    public boolean seek(int row) {
+        try {
+            CompoundFileOffsetIndex index = getOffsetIndex();
+            if (index == null || row < 0 || row > index.getRowCount())
+                return false;
+
+            FileInputStream is = new FileInputStream(mFile);
+            is.getChannel().position(row == index.getRowCount() ? index.getEndOffset() : index.getOffset(row));
+            close();
+            mReader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+            mStructureUpToDate = false;
+            mIDCodeUpToDate = false;
+            return true;
+            }
+        catch (IOException ioe) {
+            return false;
+            }
+        }
+
+    /**
+     * Positions the parser on the given row, i.e. this is seek(row) followed by next().
+     * Subsequent next() calls continue sequentially from there.
+     * @param row
+     * @return false if random access is not supported or if row is out of range
+     */
+    public boolean readRow(int row) {
+        return seek(row) && next();
+        }
+
     /**
      * Closes the underlying reader. Call this, if you don't read all records of the file.
      * The reader is closed automatically after the last record has been read.
+     * Subclasses, which read from other resources, may override this to release them.
      */
-    public final void close() {
+    public void close() {
     	if (mReader != null) {
     		try {
     			mReader.close();
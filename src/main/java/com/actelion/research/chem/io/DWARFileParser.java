@@ -78,6 +78,7 @@ public class DWARFileParser extends CompoundFileParser implements DescriptorCons
      */
 	public DWARFileParser(String fileName) {
         try {
+            setRandomAccessFile(new File(fileName));
             mReader = new BufferedReader(new InputStreamReader(new FileInputStream(fileName), StandardCharsets.UTF_8));
 			BOMSkipper.skip(mReader);
             mMode = MODE_COORDINATES_PREFER_2D;
@@ -94,6 +95,7 @@ public class DWARFileParser extends CompoundFileParser implements DescriptorCons
      */
 	public DWARFileParser(File file) {
         try {
+            setRandomAccessFile(file);
             mReader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
 			BOMSkipper.skip(mReader);
             mMode = MODE_COORDINATES_PREFER_2D;
@@ -126,6 +128,7 @@ public class DWARFileParser extends CompoundFileParser implements DescriptorCons
      */
     public DWARFileParser(String fileName, int mode) {
         try {
+            setRandomAccessFile(new File(fileName));
             mReader = new BufferedReader(new InputStreamReader(new FileInputStream(fileName), StandardCharsets.UTF_8));
 			BOMSkipper.skip(mReader);
             mMode = mode;
@@ -143,6 +146,7 @@ public class DWARFileParser extends CompoundFileParser implements DescriptorCons
      */
     public DWARFileParser(File file, int mode) {
         try {
+            setRandomAccessFile(file);
             mReader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
 			BOMSkipper.skip(mReader);
             mMode = mode;
@@ -0,0 +1,249 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem.io;
+
+import com.actelion.research.chem.StructureSearchDataSource;
+import com.actelion.research.chem.StructureSearchSpecification;
+import com.actelion.research.chem.descriptor.DescriptorConstants;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * StructureSearchDataSource serving rows from a structure search index file created with
+ * StructureSearchIndexCreator. The file is memory-mapped in read-only segments, such that
+ * fingerprints and idcodes are read from the OS page cache without loading the file onto
+ * the heap. Fingerprints of all rows are stored in one contiguous column of longs, which
+ * allows screening with isFragmentIndexInRow() without any object allocation.
+ * Only substructure searches and FFP512 based similarity searches on complete structures
+ * are supported. Instances are thread-safe.
+ */
+public class MappedStructureSearchDataSource implements StructureSearchDataSource {
+	private static final int LONG_SEGMENT_BITS = 24;	// 16M longs = 128 MB per mapped segment
+	private static final int BYTE_SEGMENT_BITS = 30;	// 1 GB per mapped idcode segment
+
+	private final RandomAccessFile mFile;
+	private final int mRowCount,mFingerprintLongCount;
+	private final LongBuffer[] mFingerprintSegment,mOffsetSegment;
+	private final ByteBuffer[] mIDCodeSegment;
+
+	/**
+	 * Opens and maps an index file created by StructureSearchIndexCreator.
+	 * @param file
+	 * @throws IOException if the file cannot be read or is not a valid index file
+	 */
+	public MappedStructureSearchDataSource(File file) throws IOException {
+		mFile = new RandomAccessFile(file, "r");
+		try {
+			if (mFile.readLong() != StructureSearchIndexCreator.MAGIC)
+				throw new IOException("Not a structure search index file: "+file.getName());
+			int version = mFile.readInt();
+			if (version != StructureSearchIndexCreator.VERSION)
+				throw new IOException("Unsupported structure search index version: "+version);
+			mFingerprintLongCount = mFile.readInt();
+			long rowCount = mFile.readLong();
+			if (rowCount > Integer.MAX_VALUE)
+				throw new IOException("Too many rows in structure search index: "+rowCount);
+			mRowCount = (int)rowCount;
+			long fingerprintOffset = mFile.readLong();
+			long offsetTableOffset = mFile.readLong();
+			long idcodeOffset = mFile.readLong();
+			long idcodeLength = mFile.readLong();
+
+			FileChannel channel = mFile.getChannel();
+			mFingerprintSegment = mapLongs(channel, fingerprintOffset, (long)mRowCount * mFingerprintLongCount);
+			mOffsetSegment = mapLongs(channel, offsetTableOffset, mRowCount + 1L);
+			mIDCodeSegment = mapBytes(channel, idcodeOffset, idcodeLength);
+			}
+		catch (IOException ioe) {
+			mFile.close();
+			throw ioe;
+			}
+		}
+
+	private static LongBuffer[] mapLongs(FileChannel channel, long position, long count) throws IOException {
+		int segmentSize = 1 << LONG_SEGMENT_BITS;
+		LongBuffer[] segment = new LongBuffer[(int)((count + segmentSize - 1) >>> LONG_SEGMENT_BITS)];
+		for (int i=0; i<segment.length; i++) {
+			long size = Math.min(segmentSize, count - ((long)i << LONG_SEGMENT_BITS));
+			segment[i] = channel.map(FileChannel.MapMode.READ_ONLY, position + 8L * ((long)i << LONG_SEGMENT_BITS), 8L * size).asLongBuffer();
+			}
+		return segment;
+		}
+
+	private static ByteBuffer[] mapBytes(FileChannel channel, long position, long count) throws IOException {
+		long segmentSize = 1L << BYTE_SEGMENT_BITS;
+		ByteBuffer[] segment = new ByteBuffer[(int)((count + segmentSize - 1) >>> BYTE_SEGMENT_BITS)];
+		for (int i=0; i<segment.length; i++) {
+			long size = Math.min(segmentSize, count - ((long)i << BYTE_SEGMENT_BITS));
+			segment[i] = channel.map(FileChannel.MapMode.READ_ONLY, position + ((long)i << BYTE_SEGMENT_BITS), size);
+			}
+		return segment;
+		}
+
+	private long getLong(LongBuffer[] segment, long index) {
+		return segment[(int)(index >>> LONG_SEGMENT_BITS)].get((int)(index & ((1 << LONG_SEGMENT_BITS) - 1)));
+		}
+
+	/**
+	 * Releases the file handle. Mapped segments are released by the garbage collector.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		mFile.close();
+		}
+
+	/**
+	 * @return number of longs per fingerprint
+	 */
+	public int getFingerprintLongCount() {
+		return mFingerprintLongCount;
+		}
+
+	/**
+	 * Copies the fingerprint of the given row into a caller supplied buffer.
+	 * @param row
+	 * @param buffer array of at least getFingerprintLongCount() longs
+	 * @return buffer
+	 */
+	public long[] getFingerprint(int row, long[] buffer) {
+		long index = (long)row * mFingerprintLongCount;
+		for (int i=0; i<mFingerprintLongCount; i++)
+			buffer[i] = getLong(mFingerprintSegment, index+i);
+		return buffer;
+		}
+
+	/**
+	 * Checks directly on the mapped fingerprint column, whether all bits of the fragment's
+	 * fingerprint are set in the row's fingerprint. This is the allocation free equivalent of
+	 * SSSearcherWithIndex.isFragmentIndexInMoleculeIndex().
+	 * @param fragmentIndex FFP512 of the query fragment
+	 * @param row
+	 * @return false if the row cannot contain the fragment
+	 */
+	@Override
+	public boolean isFragmentIndexInRow(long[] fragmentIndex, int row) {
+		if (getIDCodeLength(row) == 0)
+			return false;
+
+		long index = (long)row * mFingerprintLongCount;
+		for (int i=0; i<mFingerprintLongCount; i++)
+			if ((fragmentIndex[i] & ~getLong(mFingerprintSegment, index+i)) != 0)
+				return false;
+		return true;
+		}
+
+	private int getIDCodeLength(int row) {
+		return (int)(getLong(mOffsetSegment, row+1) - getLong(mOffsetSegment, row));
+		}
+
+	@Override
+	public boolean isSupportedSearchType(StructureSearchSpecification specification) {
+		if (specification.isSubstructureSearch() || specification.isNoStructureSearch())
+			return true;
+		if (specification.isLargestFragmentOnly())
+			return false;
+		if (specification.isExactSearch())
+			return true;
+		return specification.isSimilaritySearch()
+			&& DescriptorConstants.DESCRIPTOR_FFP512.shortName.equals(specification.getDescriptorShortName());
+		}
+
+	@Override
+	public int getRowCount() {
+		return mRowCount;
+		}
+
+	@Override
+	public int getStructureCount(int row) {
+		return getIDCodeLength(row) == 0 ? 0 : 1;
+		}
+
+	@Override
+	public int getDescriptorColumn(String descriptorShortName) {
+		return DescriptorConstants.DESCRIPTOR_FFP512.shortName.equals(descriptorShortName) ? 0 : -1;
+		}
+
+	@Override
+	public Object getDescriptor(int column, int row, int i, boolean largestFragmentOnly) {
+		if (column != 0 || getIDCodeLength(row) == 0)
+			return null;
+
+		return getFingerprint(row, new long[mFingerprintLongCount]);
+		}
+
+	@Override
+	public byte[] getIDCode(int row, int i, boolean largestFragmentOnly) {
+		long start = getLong(mOffsetSegment, row);
+		int length = (int)(getLong(mOffsetSegment, row+1) - start);
+		if (length == 0)
+			return null;
+
+		byte[] idcode = new byte[length];
+		int index = 0;
+		while (index < length) {	// an idcode may cross a segment border
+			long position = start + index;
+			ByteBuffer segment = mIDCodeSegment[(int)(position >>> BYTE_SEGMENT_BITS)];
+			int offset = (int)(position & ((1L << BYTE_SEGMENT_BITS) - 1));
+			int count = Math.min(length - index, segment.capacity() - offset);
+			for (int j=0; j<count; j++)
+				idcode[index++] = segment.get(offset+j);
+			}
+		return idcode;
+		}
+
+	@Override
+	public long getNoStereoCode(int row, int i, boolean largestFragmentOnly) {
+		return SEARCH_TYPE_NOT_SUPPORTED;
+		}
+
+	@Override
+	public long getTautomerCode(int row, int i, boolean largestFragmentOnly) {
+		return SEARCH_TYPE_NOT_SUPPORTED;
+		}
+
+	@Override
+	public long getNoStereoTautomerCode(int row, int i, boolean largestFragmentOnly) {
+		return SEARCH_TYPE_NOT_SUPPORTED;
+		}
+
+	@Override
+	public long getBackboneCode(int row, int i, boolean largestFragmentOnly) {
+		return SEARCH_TYPE_NOT_SUPPORTED;
+		}
+	}
@@ -0,0 +1,346 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem.io;
+
+import com.actelion.research.chem.Canonizer;
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.io.BOMSkipper;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipInputStream;
+
+/**
+ * ParallelSDFileParser reads SD-files like the SDFileParser, but parses molfiles and field data
+ * on multiple threads. A reader thread reads the file in large blocks of characters and splits
+ * them at '$$$$' record boundaries into chunks of complete records. Chunks are parsed by worker
+ * threads, each using its own SDFileParser and MolfileParser. Records are delivered through the
+ * usual CompoundFileParser methods, either in the original order or, if order does not matter,
+ * in the order in which chunks are completed.<br>
+ * Optionally, workers also create idcodes and encoded coordinates, which otherwise would be
+ * created on the calling thread, when getIDCode() or getCoordinates() are called.<br>
+ * Call stop(), if you don't read all records, to stop the reader and worker threads.
+ * If a worker thread fails, then next() throws a RuntimeException with the worker's exception as cause.
+ */
+public class ParallelSDFileParser extends CompoundFileParser {
+	private static final int DEFAULT_CHUNK_SIZE = 1 << 20;	// characters per chunk
+	private static final int READ_BUFFER_SIZE = 1 << 16;
+	private static final String RECORD_END = "$$$$";
+	private static final Future<Record[]> END_OF_FILE = new FutureTask<>(() -> null);
+
+	private final String[] mFieldName;
+	private final boolean mKeepOrder,mCreateIDCodes,mAssumeChiralTrue;
+	private final int mChunkSize;
+	private final ExecutorService mExecutor;
+	private final BlockingQueue<Future<Record[]>> mOrderedQueue;
+	private final CompletionService<Record[]> mCompletionService;
+	private final Semaphore mPendingChunks;
+	private volatile int mSubmittedChunkCount;
+	private volatile boolean mReaderDone;
+	private volatile IOException mReadException;
+	private Thread mReaderThread;
+	private int mConsumedChunkCount;
+	private Record[] mChunk;
+	private int mChunkIndex;
+	private Record mRecord;
+
+	/**
+	 * Creates a parser delivering records in the original order using one worker
+	 * thread per available processor.
+	 * @param file SD-file, which may be gzipped or zipped
+	 * @param fieldName null or field names, which are extracted from the file if null
+	 */
+	public ParallelSDFileParser(File file, String[] fieldName) {
+		this(file, fieldName, Runtime.getRuntime().availableProcessors(), true, false, false);
+		}
+
+	/**
+	 * @param file SD-file, which may be gzipped or zipped
+	 * @param fieldName null or field names, which are extracted from the file if null
+	 * @param threadCount number of worker threads
+	 * @param keepOrder if false, records are delivered in the order of chunk completion
+	 * @param createIDCodes whether workers shall create idcodes and coordinates for getIDCode() and getCoordinates()
+	 * @param assumeChiralTrue see SDFileParser.setAssumeChiralTrue()
+	 */
+	public ParallelSDFileParser(File file, String[] fieldName, int threadCount, boolean keepOrder,
+								boolean createIDCodes, boolean assumeChiralTrue) {
+		mFieldName = (fieldName != null) ? fieldName : new SDFileParser(file).getFieldNames();
+		mKeepOrder = keepOrder;
+		mCreateIDCodes = createIDCodes;
+		mAssumeChiralTrue = assumeChiralTrue;
+		mChunkSize = DEFAULT_CHUNK_SIZE;
+
+		try {
+			InputStream is = new FileInputStream(file);
+			String name = file.getName().toLowerCase();
+			if (name.endsWith(".gz"))
+				is = new GZIPInputStream(is);
+			else if (name.endsWith(".zip")) {
+				ZipInputStream zis = new ZipInputStream(is);
+				zis.getNextEntry();
+				is = zis;
+				}
+			mReader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8), READ_BUFFER_SIZE);
+			BOMSkipper.skip(mReader);
+			}
+		catch (IOException e) {
+			mReader = null;
+			}
+
+		mExecutor = Executors.newFixedThreadPool(Math.max(1, threadCount), r -> {
+			Thread t = new Thread(r, "SD-File Parser");
+			t.setDaemon(true);
+			return t;
+			} );
+		mOrderedQueue = keepOrder ? new LinkedBlockingQueue<>() : null;
+		mCompletionService = keepOrder ? null : new ExecutorCompletionService<>(mExecutor);
+		mPendingChunks = new Semaphore(4 * Math.max(1, threadCount));
+
+		if (mReader != null) {
+			mReaderThread = new Thread(this::readChunks, "SD-File Reader");
+			mReaderThread.setDaemon(true);
+			mReaderThread.start();
+			}
+		else {
+			mReaderDone = true;
+			mExecutor.shutdown();
+			}
+		}
+
+	/**
+	 * Runs on the reader thread: reads blocks of characters, cuts them after the last
+	 * complete record and submits every chunk of complete records for parsing.
+	 */
+	private void readChunks() {
+		try {
+			char[] buffer = new char[READ_BUFFER_SIZE];
+			StringBuilder chunk = new StringBuilder(mChunkSize + READ_BUFFER_SIZE);
+			int count;
+			while ((count = mReader.read(buffer)) != -1) {
+				chunk.append(buffer, 0, count);
+				if (chunk.length() >= mChunkSize) {
+					int end = findLastRecordEnd(chunk);
+					if (end != -1) {
+						submit(chunk.substring(0, end));
+						chunk.delete(0, end);
+						}
+					}
+				}
+			if (chunk.length() != 0)
+				submit(chunk.toString());
+			}
+		catch (IOException ioe) {
+			mReadException = ioe;
+			}
+		catch (InterruptedException ie) {}
+		finally {
+			try { mReader.close(); } catch (IOException ioe) {}
+			mReaderDone = true;
+			if (mOrderedQueue != null)
+				mOrderedQueue.add(END_OF_FILE);
+			mExecutor.shutdown();
+			}
+		}
+
+	/**
+	 * @return position after the line feed of the last line starting with '$$$$' or -1
+	 */
+	private static int findLastRecordEnd(StringBuilder text) {
+		int index = text.lastIndexOf("\n"+RECORD_END);
+		if (index == -1)
+			return -1;
+		int lineEnd = text.indexOf("\n", index+1);
+		return (lineEnd == -1) ? -1 : lineEnd+1;
+		}
+
+	private void submit(final String text) throws InterruptedException {
+		mPendingChunks.acquire();
+		Callable<Record[]> task = () -> parseChunk(text);
+		if (mOrderedQueue != null)
+			mOrderedQueue.add(mExecutor.submit(task));
+		else
+			mCompletionService.submit(task);
+		mSubmittedChunkCount++;
+		}
+
+	private Record[] parseChunk(String text) {
+		SDFileParser parser = new SDFileParser(new StringReader(text), mFieldName);
+		if (mAssumeChiralTrue)
+			parser.setAssumeChiralTrue(true);
+
+		ArrayList<Record> recordList = new ArrayList<>();
+		while (parser.next()) {
+			Record record = new Record();
+			record.molecule = parser.getMolecule();
+			record.name = parser.getMoleculeName();
+			record.fieldData = new String[mFieldName.length];
+			for (int i=0; i<mFieldName.length; i++)
+				record.fieldData[i] = parser.getFieldData(i);
+			if (mCreateIDCodes && record.molecule != null) {
+				try {
+					StereoMolecule mol = new StereoMolecule(record.molecule);
+					mol.normalizeAmbiguousBonds();
+					mol.canonizeCharge(true);
+					Canonizer canonizer = new Canonizer(mol);
+					record.idcode = canonizer.getIDCode();
+					record.coordinates = canonizer.getEncodedCoordinates();
+					}
+				catch (Exception e) {
+					record.idcodeException = e;
+					}
+				}
+			recordList.add(record);
+			}
+		return recordList.toArray(new Record[0]);
+		}
+
+	/**
+	 * @return next chunk of parsed records or null, if all chunks were consumed
+	 */
+	private Record[] takeChunk() throws InterruptedException, ExecutionException {
+		if (mOrderedQueue != null) {
+			Future<Record[]> future = mOrderedQueue.take();
+			if (future == END_OF_FILE) {
+				mOrderedQueue.add(END_OF_FILE);	// keep end marker for subsequent calls
+				return null;
+				}
+			mPendingChunks.release();
+			return future.get();
+			}
+
+		while (!mReaderDone || mConsumedChunkCount < mSubmittedChunkCount) {
+			Future<Record[]> future = mCompletionService.poll(100, TimeUnit.MILLISECONDS);
+			if (future != null) {
+				mConsumedChunkCount++;
+				mPendingChunks.release();
+				return future.get();
+				}
+			}
+		return null;
+		}
+
+	@Override
+	protected boolean advanceToNext() {
+		mRecord = null;
+		try {
+			while (mChunk == null || mChunkIndex >= mChunk.length) {
+				mChunk = takeChunk();
+				mChunkIndex = 0;
+				if (mChunk == null)
+					return false;
+				}
+			}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return false;
+			}
+		catch (ExecutionException ee) {
+			stop();
+			throw new RuntimeException("SD-file parser thread failed", ee.getCause());
+			}
+
+		mRecord = mChunk[mChunkIndex++];
+		return true;
+		}
+
+	/**
+	 * @return exception that stopped reading the file or null
+	 */
+	public IOException getReadException() {
+		return mReadException;
+		}
+
+	/**
+	 * If workers create idcodes, then idcode and coordinates of a record are null, if the idcode creation failed.
+	 * @return exception, which prevented the idcode creation of the current record, or null
+	 */
+	public Exception getIDCodeException() {
+		return (mRecord == null) ? null : mRecord.idcodeException;
+		}
+
+	/**
+	 * Stops the reader and worker threads. Call this, if you don't read all records.
+	 */
+	public void stop() {
+		if (mReaderThread != null)
+			mReaderThread.interrupt();
+		mExecutor.shutdownNow();
+		close();
+		}
+
+	@Override
+	public String[] getFieldNames() {
+		return mFieldName;
+		}
+
+	@Override
+	public String getFieldData(int column) {
+		return (mRecord == null) ? null : mRecord.fieldData[column];
+		}
+
+	@Override
+	public int getRowCount() {
+		return -1;
+		}
+
+	@Override
+	public String getMoleculeName() {
+		return (mRecord == null) ? null : mRecord.name;
+		}
+
+	@Override
+	public StereoMolecule getMolecule() {
+		return (mRecord == null) ? null : mRecord.molecule;
+		}
+
+	@Override
+	public String getIDCode() {
+		return (mCreateIDCodes) ? (mRecord == null ? null : mRecord.idcode) : super.getIDCode();
+		}
+
+	@Override
+	public String getCoordinates() {
+		return (mCreateIDCodes) ? (mRecord == null ? null : mRecord.coordinates) : super.getCoordinates();
+		}
+
+	private static class Record {
+		StereoMolecule molecule;
+		String name,idcode,coordinates;
+		String[] fieldData;
+		Exception idcodeException;
+		}
+	}
@@ -50,6 +50,7 @@ public class SDFileParser extends CompoundFileParser {
 
 	private StringBuilder		mMolfileBuffer,mDataBuffer;
 	private StereoMolecule		mMol;
+	private MolfileParser		mMolfileParser;
 	private String[]			mFieldName;
 	private String[]			mFieldData;
 	private int					mNoOfRecords,mIDFieldIndex;
@@ -63,7 +64,8 @@ public class SDFileParser extends CompoundFileParser {
 	    mNoOfRecords = -1;
 	    
 		mFieldName = fieldName;
-		
+		setRandomAccessFile(new File(fileName));
+
 		try {
 			InputStream is = new FileInputStream(fileName);
 			if (fileName.toLowerCase().endsWith(".gz"))
@@ -91,6 +93,7 @@ public class SDFileParser extends CompoundFileParser {
 	public SDFileParser(File file, String[] fieldName) {
         mNoOfRecords = -1;
 		mFieldName = fieldName;
+		setRandomAccessFile(file);
 		try {
 			InputStream is = new FileInputStream(file);
 			String name = file.getName().toLowerCase();
@@ -133,6 +136,7 @@ public class SDFileParser extends CompoundFileParser {
 	 */
 	public void setAssumeChiralTrue(boolean b) {
 		mAssumeChiralTrue = b;
+		mMolfileParser = null;
 		}
 
 
@@ -300,11 +304,13 @@ public class SDFileParser extends CompoundFileParser {
 	    if (mMol != null)
 	        return mMol;
 
-		MolfileParser molfileParser = new MolfileParser();
-		if (mAssumeChiralTrue)
-			molfileParser.setAssumeChiralTrue(true);
+		if (mMolfileParser == null) {
+			mMolfileParser = new MolfileParser();
+			if (mAssumeChiralTrue)
+				mMolfileParser.setAssumeChiralTrue(true);
+			}
 
-	    mMol = molfileParser.getCompactMolecule(getNextMolFile());
+	    mMol = mMolfileParser.getCompactMolecule(getNextMolFile());
 	    if (mMol != null && (mMol.getName() == null || mMol.getName().length() == 0))
 	        mMol.setName(getMoleculeName());
 	    return mMol;
@@ -0,0 +1,187 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem.io;
+
+import com.actelion.research.chem.IDCodeParser;
+import com.actelion.research.chem.SSSearcherWithIndex;
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.chem.descriptor.DescriptorConstants;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Creates a binary structure search index file, which can be opened as memory-mapped
+ * StructureSearchDataSource with MappedStructureSearchDataSource. The file contains a header,
+ * the FFP512 fingerprints of all rows as packed column of longs, the idcode offsets and
+ * finally the idcode blob. Rows are written sequentially with addRow(). Because the idcode
+ * area is appended after the fingerprint column, idcodes are buffered in a temporary file
+ * until close() is called.
+ * To create an index file you need to follow these steps:<br>
+ * - instantiate a new StructureSearchIndexCreator for a new output file<br>
+ * - for every row call addRow() or call addRows() with an open CompoundFileParser<br>
+ * - call close() to complete the file<br>
+ */
+public class StructureSearchIndexCreator {
+	protected static final long MAGIC = 0x4F434C5353494458L;	// "OCLSSIDX"
+	protected static final int VERSION = 1;
+	protected static final int HEADER_SIZE = 64;
+
+	private final File mFile,mIDCodeFile,mOffsetFile;
+	private final int mFingerprintLongCount;
+	private DataOutputStream mFingerprintStream,mIDCodeStream,mOffsetStream;
+	private SSSearcherWithIndex mSearcher;
+	private long mIDCodeOffset;
+	private int mRowCount;
+
+	/**
+	 * Creates a new index file for FFP512 fingerprints, overwriting an existing file.
+	 * @param file
+	 * @throws IOException
+	 */
+	public StructureSearchIndexCreator(File file) throws IOException {
+		mFile = file;
+		mFingerprintLongCount = (SSSearcherWithIndex.getNoOfKeys()+63)/64;
+		mIDCodeFile = File.createTempFile("ssidx_idcodes", ".tmp", file.getAbsoluteFile().getParentFile());
+		mOffsetFile = File.createTempFile("ssidx_offsets", ".tmp", file.getAbsoluteFile().getParentFile());
+		mIDCodeFile.deleteOnExit();
+		mOffsetFile.deleteOnExit();
+
+		mFingerprintStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		mIDCodeStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mIDCodeFile), 1 << 16));
+		mOffsetStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mOffsetFile), 1 << 16));
+
+		// placeholder for the header, which is written when closing the file
+		mFingerprintStream.write(new byte[HEADER_SIZE]);
+		mOffsetStream.writeLong(0L);
+		}
+
+	/**
+	 * Adds one row to the index. If the fingerprint is null, then it is calculated from the idcode.
+	 * @param idcode null or empty, if the row has no structure
+	 * @param ffp512 FFP512 descriptor of the structure or null
+	 * @throws IOException
+	 */
+	public void addRow(byte[] idcode, long[] ffp512) throws IOException {
+		if (idcode == null)
+			idcode = new byte[0];
+
+		if (ffp512 == null && idcode.length != 0) {
+			if (mSearcher == null)
+				mSearcher = new SSSearcherWithIndex();
+			StereoMolecule mol = new IDCodeParser(false).getCompactMolecule(idcode);
+			ffp512 = (mol == null) ? null : mSearcher.createLongIndex(mol);
+			}
+
+		for (int i=0; i<mFingerprintLongCount; i++)
+			mFingerprintStream.writeLong(ffp512 == null ? 0L : ffp512[i]);
+
+		mIDCodeStream.write(idcode);
+		mIDCodeOffset += idcode.length;
+		mOffsetStream.writeLong(mIDCodeOffset);
+		mRowCount++;
+		}
+
+	/**
+	 * Adds one row to the index.
+	 * @param idcode null, if the row has no structure
+	 * @param ffp512 FFP512 descriptor of the structure or null
+	 * @throws IOException
+	 */
+	public void addRow(String idcode, long[] ffp512) throws IOException {
+		addRow(idcode == null ? null : idcode.getBytes(StandardCharsets.UTF_8), ffp512);
+		}
+
+	/**
+	 * Adds all remaining rows of an open compound file to the index. If the file contains
+	 * FFP512 descriptors, then these are used. Otherwise fingerprints are calculated.
+	 * @param parser
+	 * @return number of added rows
+	 * @throws IOException
+	 */
+	public int addRows(CompoundFileParser parser) throws IOException {
+		int count = 0;
+		while (parser.next()) {
+			Object ffp = parser.getDescriptor(DescriptorConstants.DESCRIPTOR_FFP512.shortName);
+			addRow(parser.getIDCode(), ffp instanceof long[] ? (long[])ffp : null);
+			count++;
+			}
+		return count;
+		}
+
+	public int getRowCount() {
+		return mRowCount;
+		}
+
+	/**
+	 * Appends idcode offsets and idcodes to the fingerprint column, writes the header
+	 * and closes the file.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		mIDCodeStream.close();
+		mOffsetStream.close();
+
+		long fingerprintOffset = HEADER_SIZE;
+		long offsetTableOffset = fingerprintOffset + 8L * mFingerprintLongCount * mRowCount;
+		long idcodeOffset = offsetTableOffset + 8L * (mRowCount + 1);
+
+		appendFile(mOffsetFile);
+		appendFile(mIDCodeFile);
+		mFingerprintStream.close();
+
+		mOffsetFile.delete();
+		mIDCodeFile.delete();
+
+		try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+			raf.writeLong(MAGIC);
+			raf.writeInt(VERSION);
+			raf.writeInt(mFingerprintLongCount);
+			raf.writeLong(mRowCount);
+			raf.writeLong(fingerprintOffset);
+			raf.writeLong(offsetTableOffset);
+			raf.writeLong(idcodeOffset);
+			raf.writeLong(mIDCodeOffset);
+			}
+		}
+
+	private void appendFile(File file) throws IOException {
+		byte[] buffer = new byte[1 << 16];
+		try (InputStream is = new BufferedInputStream(new FileInputStream(file))) {
+			int count;
+			while ((count = is.read(buffer)) != -1)
+				mFingerprintStream.write(buffer, 0, count);
+			}
+		}
+	}
@@ -1,9 +1,11 @@
 package com.actelion.research.chem.mcs;
 
+import com.actelion.research.calc.ThreadMaster;
 import com.actelion.research.chem.*;
 import com.actelion.research.util.datamodel.IntVec;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 /*
 * Copyright (c) 1997 - 2016
@@ -54,10 +56,16 @@ public class MCS {
 	private boolean considerAromaticRings;
 	private boolean considerRings;
 	// The largest valid solutions.
-	private final HashMap<Integer, List<int[]>> hmRingBnd_ListRingBnds;
-	private final HashMap<Integer, List<int[]>> hmAromaticRingBnd_ListRingBnds;
+	// Fragment related data is not changed after setFragment(), such that it can be shared with thread-safe copies.
+	private HashMap<Integer, List<int[]>> hmRingBnd_ListRingBnds;
+	private HashMap<Integer, List<int[]>> hmAromaticRingBnd_ListRingBnds;
+	private List<IntVec> liIndexFragInitialCandidates;
 	private boolean[] excluded = null;
 	private int[] arrMatchListFrag2Mol;
+	private ThreadMaster threadMaster;
+	private long timeoutMillis;
+	private int threadCount;
+	private boolean searchComplete;
 
 	public MCS() {
 		this(PAR_CLEAVE_RINGS, null);
@@ -90,14 +98,75 @@ public class MCS {
 		else
 			sss = searcher;
 		comparatorBitsSet = new ComparatorBitsSet();
-		hmRingBnd_ListRingBnds = new HashMap<Integer, List<int[]>>();
-		hmAromaticRingBnd_ListRingBnds = new HashMap<Integer, List<int[]>>();
+		threadCount = 1;
+		searchComplete = true;
 	}
 
 	public void setSSSearcher(SSSearcher sss) {
 		this.sss = sss;
 	}
 
+	/**
+	 * @return a new SSSearcher configured like sss for use by another thread
+	 */
+	private SSSearcher createSearcherCopy() {
+		return new SSSearcher(sss.getDefaultMatchMode());
+	}
+
+	/**
+	 * @param threadMaster if threadMustDie() returns true, the search stops and the largest common substructures found so far are returned
+	 */
+	public void setThreadMaster(ThreadMaster threadMaster) {
+		this.threadMaster = threadMaster;
+	}
+
+	/**
+	 * Limits the time for one MCS search. When the time is up, the search stops and the largest common
+	 * substructures found so far are returned.
+	 * @param timeoutMillis maximum search time in milliseconds; 0 for no limit (default)
+	 */
+	public void setTimeout(long timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * If more than one thread is used, then the largest candidate substructures are checked concurrently
+	 * against the molecule in batches of threadCount candidates.
+	 * @param threadCount 1 (default) for a single threaded search
+	 */
+	public void setThreadCount(int threadCount) {
+		this.threadCount = Math.max(1, threadCount);
+	}
+
+	/**
+	 * @return false, if the last search was stopped by the ThreadMaster or the timeout before completion.
+	 * Then, the results are the largest common substructures found until then, which may be smaller than the MCS.
+	 */
+	public boolean isSearchComplete() {
+		return searchComplete;
+	}
+
+	/**
+	 * Creates a new MCS with the same settings, which shares the fragment and all fragment related
+	 * data calculated by setFragment() with this MCS. Thus, for comparing one fragment with many molecules
+	 * in parallel, setFragment() is needed only once. Every thread then uses its own copy and calls setMolecule().
+	 * The copy uses its own SSSearcher with the default match mode of this MCS's SSSearcher.
+	 * @return
+	 */
+	public MCS getThreadSafeCopy() {
+		MCS copy = new MCS(PAR_CLEAVE_RINGS, createSearcherCopy());
+		copy.considerRings = considerRings;
+		copy.considerAromaticRings = considerAromaticRings;
+		copy.threadMaster = threadMaster;
+		copy.timeoutMillis = timeoutMillis;
+		copy.threadCount = threadCount;
+		copy.frag = frag;
+		copy.hmRingBnd_ListRingBnds = hmRingBnd_ListRingBnds;
+		copy.hmAromaticRingBnd_ListRingBnds = hmAromaticRingBnd_ListRingBnds;
+		copy.liIndexFragInitialCandidates = liIndexFragInitialCandidates;
+		return copy;
+	}
+
 	/**
 	 * mol should contain equal or more bonds than frag.
 	 *
@@ -117,13 +186,51 @@ public class MCS {
 	 * @param excluded
 	 */
 	public void set(StereoMolecule mol, StereoMolecule frag, boolean[] excluded) {
+		setFragment(frag);
+		setMolecule(mol, excluded);
+	}
+
+	/**
+	 * Defines the fragment and does all preparations, which only depend on the fragment.
+	 * If frag contains more than one molecule only the biggest one is considered.
+	 * Use setMolecule() afterwards to compare the fragment with one or more molecules.
+	 *
+	 * @param frag
+	 */
+	public void setFragment(StereoMolecule frag) {
 		StereoMolecule fragBiggestSub = new StereoMolecule(frag);
 		fragBiggestSub.ensureHelperArrays(Molecule.cHelperRings);
 		fragBiggestSub.stripSmallFragments();
 		fragBiggestSub.ensureHelperArrays(Molecule.cHelperRings);
 
-		this.mol = mol;
 		this.frag = fragBiggestSub;
+		hmRingBnd_ListRingBnds = new HashMap<Integer, List<int[]>>();
+		hmAromaticRingBnd_ListRingBnds = new HashMap<Integer, List<int[]>>();
+		liIndexFragInitialCandidates = new ArrayList<IntVec>();
+		initFragmentCandidates();
+
+		// done here rather than with every search, because it invalidates the helper arrays of a possibly shared fragment
+		fragBiggestSub.setFragment(true);
+		fragBiggestSub.ensureHelperArrays(Molecule.cHelperRings);
+	}
+
+	/**
+	 * Defines the molecule for the next search with the fragment from the last setFragment() call.
+	 *
+	 * @param mol
+	 */
+	public void setMolecule(StereoMolecule mol) {
+		setMolecule(mol, null);
+	}
+
+	/**
+	 * Defines the molecule for the next search with the fragment from the last setFragment() call.
+	 *
+	 * @param mol
+	 * @param excluded
+	 */
+	public void setMolecule(StereoMolecule mol, boolean[] excluded) {
+		this.mol = mol;
 		this.excluded = excluded;
 
 		init();
@@ -133,12 +240,15 @@ public class MCS {
 		hsIndexFragCandidates.clear();
 		hsIndexFragGarbage.clear();
 		hsIndexFragSolution.clear();
-		hmRingBnd_ListRingBnds.clear();
-		hmAromaticRingBnd_ListRingBnds.clear();
-		initCandidates();
+		molMCS = null;
+		for (IntVec iv : liIndexFragInitialCandidates) {
+			IntVec ivCopy = new IntVec(iv);
+			ivCopy.calculateHashCode();
+			hsIndexFragCandidates.add(ivCopy);
+		}
 	}
 
-	private void initCandidates() {
+	private void initFragmentCandidates() {
 		RingCollection ringCollection = frag.getRingSet();
 		int rings = ringCollection.getSize();
 		for (int i = 0; i < rings; i++) {
@@ -167,7 +277,7 @@ public class MCS {
 		for (int i = 0; i < frag.getBonds(); i++) {
 			IntVec iv = new IntVec(nInts);
 			setBitAndAddRelatedRingBonds(i, iv);
-			hsIndexFragCandidates.add(iv);
+			liIndexFragInitialCandidates.add(iv);
 		}
 	}
 
@@ -209,8 +319,9 @@ public class MCS {
 	 * @return
 	 */
 	private List<IntVec> getAllSolutionsForCommonSubstructures() {
+		long deadline = (timeoutMillis == 0) ? Long.MAX_VALUE : System.currentTimeMillis() + timeoutMillis;
+		searchComplete = true;
 		sss.setMolecule(mol);
-		frag.setFragment(true);
 		sss.setFragment(frag);
 		//
 		// The MCS is the complete fragment.
@@ -231,51 +342,131 @@ public class MCS {
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
+		ExecutorService executor = null;
+		SSSearcher[] workerSSS = null;
+		if (threadCount > 1) {
+			mol.ensureHelperArrays(Molecule.cHelperRings);	// prevent concurrent helper array creation
+			executor = Executors.newFixedThreadPool(threadCount);
+			workerSSS = new SSSearcher[threadCount];
+			for (int i = 0; i < threadCount; i++) {
+				workerSSS[i] = createSearcherCopy();
+				workerSSS[i].setMolecule(mol);
+			}
+		}
+		try {
+			return getAllSolutionsForCommonSubstructures(deadline, executor, workerSSS);
+		} finally {
+			if (executor != null)
+				executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Grows candidate substructures of frag bond by bond, largest candidates first. Candidates are taken from
+	 * hsIndexFragCandidates in batches of one candidate per thread. Batch candidates are checked concurrently,
+	 * but the results are processed in the same order as the single threaded search would have done.
+	 */
+	private List<IntVec> getAllSolutionsForCommonSubstructures(long deadline, ExecutorService executor, SSSearcher[] workerSSS) {
 		int maxSizeCandidates = 0;
 		while (!hsIndexFragCandidates.isEmpty()) {
+			if ((threadMaster != null && threadMaster.threadMustDie()) || System.currentTimeMillis() > deadline) {
+				searchComplete = false;
+				break;
+			}
 			List<IntVec> liIndexFragCandidates = new ArrayList<IntVec>(hsIndexFragCandidates);
 			Collections.sort(liIndexFragCandidates, comparatorBitsSet);
-			// Get largest mcs.
-			IntVec iv = liIndexFragCandidates.get(liIndexFragCandidates.size() - 1);
-			hsIndexFragCandidates.remove(iv);
-			if (DEBUG) {
-				System.out.println("Bits set " + iv.getBitsSet());
-				if (iv.getBitsSet() == frag.getBonds()) {
-					System.out.println("Full structure in iv.");
-				}
+			// Get largest candidates.
+			int batchSize = (executor == null) ? 1 : Math.min(threadCount, liIndexFragCandidates.size());
+			IntVec[] batch = new IntVec[batchSize];
+			for (int i = 0; i < batchSize; i++) {
+				batch[i] = liIndexFragCandidates.get(liIndexFragCandidates.size() - 1 - i);
+				hsIndexFragCandidates.remove(batch[i]);
 			}
-			StereoMolecule fragSub = getSubFrag(frag, iv);
-			sss.setFragment(fragSub);
-			if (sss.findFragmentInMolecule(SSSearcher.cCountModeOverlapping, SSSearcher.cDefaultMatchMode, excluded) > 0) {
-				hsIndexFragSolution.add(iv);
-				removeAllSubSolutions(iv);
-				if (iv.getBitsSet() != frag.getBonds()) {
-					List<IntVec> liIV = getAllPlusOneAtomCombinations(iv, frag);
-					for (IntVec ivPlus : liIV) {
-						if (DEBUG) {
-							if (ivPlus.getBitsSet() == frag.getBonds()) {
-								System.out.println("Full structure in ivPlus.");
-							}
-						}
-						if ((!hsIndexFragGarbage.contains(ivPlus)) && (!hsIndexFragSolution.contains(ivPlus))) {
-							hsIndexFragCandidates.add(ivPlus);
+			boolean[] isInMolecule = isInMolecule(batch, executor, workerSSS);
+			if (isInMolecule == null) {
+				searchComplete = false;
+				break;
+			}
+			for (int i = 0; i < batchSize; i++) {
+				// the single threaded search would have removed candidates contained in a solution of this batch
+				boolean isInBatchSolution = false;
+				for (int j = 0; j < i && !isInBatchSolution; j++)
+					isInBatchSolution = isInMolecule[j] && isCandidateInSolution(batch[j], batch[i]);
+				if (!isInBatchSolution)
+					maxSizeCandidates = processCandidate(batch[i], isInMolecule[i], maxSizeCandidates);
+			}
+		}
+		if (hsIndexFragSolution.isEmpty()) {
+			return null;
+		}
+		return getFinalSolutionSet(hsIndexFragSolution);
+	}
+
+	/**
+	 * @return for every candidate, whether it is a substructure of mol; null if interrupted
+	 */
+	private boolean[] isInMolecule(IntVec[] batch, ExecutorService executor, SSSearcher[] workerSSS) {
+		boolean[] isInMolecule = new boolean[batch.length];
+		if (executor == null) {
+			isInMolecule[0] = isInMolecule(sss, batch[0]);
+			return isInMolecule;
+		}
+		List<Future<Boolean>> liFuture = new ArrayList<Future<Boolean>>();
+		for (int i = 0; i < batch.length; i++) {
+			final SSSearcher searcher = workerSSS[i];
+			final IntVec iv = batch[i];
+			liFuture.add(executor.submit(() -> isInMolecule(searcher, iv)));
+		}
+		try {
+			for (int i = 0; i < batch.length; i++)
+				isInMolecule[i] = liFuture.get(i).get();
+		} catch (InterruptedException e) {
+			return null;
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		return isInMolecule;
+	}
+
+	private boolean isInMolecule(SSSearcher searcher, IntVec iv) {
+		StereoMolecule fragSub = getSubFrag(frag, iv);
+		searcher.setFragment(fragSub);
+		return searcher.findFragmentInMolecule(SSSearcher.cCountModeOverlapping, SSSearcher.cDefaultMatchMode, excluded) > 0;
+	}
+
+	private int processCandidate(IntVec iv, boolean isInMolecule, int maxSizeCandidates) {
+		if (DEBUG) {
+			System.out.println("Bits set " + iv.getBitsSet());
+			if (iv.getBitsSet() == frag.getBonds()) {
+				System.out.println("Full structure in iv.");
+			}
+		}
+		if (isInMolecule) {
+			hsIndexFragSolution.add(iv);
+			removeAllSubSolutions(iv);
+			if (iv.getBitsSet() != frag.getBonds()) {
+				List<IntVec> liIV = getAllPlusOneAtomCombinations(iv, frag);
+				for (IntVec ivPlus : liIV) {
+					if (DEBUG) {
+						if (ivPlus.getBitsSet() == frag.getBonds()) {
+							System.out.println("Full structure in ivPlus.");
 						}
 					}
-					if (DEBUG) {
-						System.out.println("tsIndexFragCandidates " + hsIndexFragCandidates.size());
+					if ((!hsIndexFragGarbage.contains(ivPlus)) && (!hsIndexFragSolution.contains(ivPlus))) {
+						hsIndexFragCandidates.add(ivPlus);
 					}
 				}
-				if (maxSizeCandidates < hsIndexFragCandidates.size()) {
-					maxSizeCandidates = hsIndexFragCandidates.size();
+				if (DEBUG) {
+					System.out.println("tsIndexFragCandidates " + hsIndexFragCandidates.size());
 				}
-			} else {
-				hsIndexFragGarbage.add(iv);
 			}
+			if (maxSizeCandidates < hsIndexFragCandidates.size()) {
+				maxSizeCandidates = hsIndexFragCandidates.size();
+			}
+		} else {
+			hsIndexFragGarbage.add(iv);
 		}
-		if (hsIndexFragSolution.isEmpty()) {
-			return null;
-		}
-		return getFinalSolutionSet(hsIndexFragSolution);
+		return maxSizeCandidates;
 	}
 
 	/**
@@ -342,6 +533,7 @@ public class MCS {
 			}
 		}		
 		StereoMolecule fragSub = getSubFrag(frag, ivMCSLargest);
+		molMCS = fragSub;
 		sss.setFragment(fragSub);
 		//
 		// The substructure has to be searched in the molecule because the mapping indices are not contained in the
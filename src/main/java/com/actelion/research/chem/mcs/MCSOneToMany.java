@@ -0,0 +1,213 @@
+package com.actelion.research.chem.mcs;
+
+import com.actelion.research.calc.ThreadMaster;
+import com.actelion.research.chem.StereoMolecule;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Calculates the maximum common substructures between one reference structure and many molecules,
+ * e.g. the analogs of a SAR table. Everything that depends on the reference only, i.e. the largest fragment,
+ * its ring perception and the initial candidate bond sets, is prepared once. Molecules are then distributed
+ * over all available cores, each thread running its own thread-safe copy of the prepared MCS.
+ * The reference is passed to the MCS as fragment, the other molecules as molecule.
+ */
+public class MCSOneToMany {
+	private final MCS mcsReference;
+	private int threadCount;
+	private ThreadMaster threadMaster;
+
+	/**
+	 * @param reference
+	 * @param ringStatus one of MCS.PAR_CLEAVE_RINGS, MCS.PAR_KEEP_RINGS, MCS.PAR_KEEP_AROMATIC_RINGS
+	 */
+	public MCSOneToMany(StereoMolecule reference, int ringStatus) {
+		mcsReference = new MCS(ringStatus);
+		mcsReference.setFragment(reference);
+		threadCount = Runtime.getRuntime().availableProcessors();
+	}
+
+	public void setThreadCount(int threadCount) {
+		this.threadCount = Math.max(1, threadCount);
+	}
+
+	/**
+	 * @param timeoutMillis maximum search time per molecule in milliseconds; 0 for no limit (default)
+	 */
+	public void setTimeout(long timeoutMillis) {
+		mcsReference.setTimeout(timeoutMillis);
+	}
+
+	/**
+	 * @param threadMaster if threadMustDie() returns true, no further molecules are processed
+	 */
+	public void setThreadMaster(ThreadMaster threadMaster) {
+		this.threadMaster = threadMaster;
+		mcsReference.setThreadMaster(threadMaster);
+	}
+
+	/**
+	 * @param liMol
+	 * If the calling thread is interrupted, then all workers are stopped and awaited, the thread's interrupt
+	 * flag is set again and the results calculated so far are returned.
+	 * @return one result per molecule in the order of liMol; null entries for molecules skipped because of the ThreadMaster
+	 * or an interrupt; results of molecules, for which the MCS calculation failed, have an exception
+	 */
+	public Result[] process(List<StereoMolecule> liMol) {
+		Result[] arrResult = new Result[liMol.size()];
+		AtomicInteger nextIndex = new AtomicInteger();
+		int threads = Math.min(threadCount, liMol.size());
+		if (threads <= 1) {
+			new RunMCS(liMol, arrResult, nextIndex, null).run();
+			return arrResult;
+		}
+
+		ExecutorService executorService = Executors.newFixedThreadPool(threads);
+		CountDownLatch doneSignal = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i++) {
+			executorService.execute(new RunMCS(liMol, arrResult, nextIndex, doneSignal));
+		}
+		try {
+			doneSignal.await();
+			executorService.shutdown();
+		} catch (InterruptedException e) {
+			// don't return, while workers may still write into arrResult
+			executorService.shutdownNow();
+			boolean terminated = false;
+			while (!terminated) {
+				try {
+					terminated = executorService.awaitTermination(1, TimeUnit.SECONDS);
+				} catch (InterruptedException ie) {
+					// keep waiting; the interrupt is restored below
+				}
+			}
+			Thread.currentThread().interrupt();
+		}
+		return arrResult;
+	}
+
+	private class RunMCS implements Runnable {
+		private final List<StereoMolecule> liMol;
+		private final Result[] arrResult;
+		private final AtomicInteger nextIndex;
+		private final CountDownLatch doneSignal;
+		private final MCS mcs;
+
+		public RunMCS(List<StereoMolecule> liMol, Result[] arrResult, AtomicInteger nextIndex, CountDownLatch doneSignal) {
+			this.liMol = liMol;
+			this.arrResult = arrResult;
+			this.nextIndex = nextIndex;
+			this.doneSignal = doneSignal;
+			mcs = mcsReference.getThreadSafeCopy();
+			mcs.setThreadCount(1);
+		}
+
+		public void run() {
+			try {
+				int index = nextIndex.getAndIncrement();
+				while (index < liMol.size() && (threadMaster == null || !threadMaster.threadMustDie())
+						&& !Thread.currentThread().isInterrupted()) {
+					try {
+						arrResult[index] = getResult(liMol.get(index));
+					} catch (Exception e) {
+						arrResult[index] = new Result(e);
+					}
+					index = nextIndex.getAndIncrement();
+				}
+			} finally {
+				if (doneSignal != null) {
+					doneSignal.countDown();
+				}
+			}
+		}
+
+		private Result getResult(StereoMolecule mol) {
+			mcs.setMolecule(mol);
+			boolean[][] arrBondMCS = mcs.getMCSBondArray(null, null);
+			if (arrBondMCS == null || mcs.getArrMatchListFrag2Mol() == null) {
+				return new Result(null, null, null, 0, mcs.isSearchComplete());
+			}
+			return new Result(arrBondMCS[0], arrBondMCS[1], mcs.getArrMatchListFrag2Mol(), mcs.getScore(), mcs.isSearchComplete());
+		}
+	}
+
+	public static class Result {
+		private final boolean[] arrBondMol;
+		private final boolean[] arrBondReference;
+		private final int[] arrMatchReference2Mol;
+		private final double score;
+		private final boolean complete;
+		private final Exception exception;
+
+		public Result(boolean[] arrBondMol, boolean[] arrBondReference, int[] arrMatchReference2Mol, double score, boolean complete) {
+			this.arrBondMol = arrBondMol;
+			this.arrBondReference = arrBondReference;
+			this.arrMatchReference2Mol = arrMatchReference2Mol;
+			this.score = score;
+			this.complete = complete;
+			this.exception = null;
+		}
+
+		/**
+		 * Creates the result of a molecule, for which the MCS calculation failed.
+		 * @param exception
+		 */
+		public Result(Exception exception) {
+			this.arrBondMol = null;
+			this.arrBondReference = null;
+			this.arrMatchReference2Mol = null;
+			this.score = 0;
+			this.complete = false;
+			this.exception = exception;
+		}
+
+		/**
+		 * @return true for all bonds of the molecule, which belong to the MCS; null if there is no common substructure
+		 */
+		public boolean[] getBondArrayMolecule() {
+			return arrBondMol;
+		}
+
+		/**
+		 * @return true for all bonds of the reference's largest fragment, which belong to the MCS; null if there is no common substructure
+		 */
+		public boolean[] getBondArrayReference() {
+			return arrBondReference;
+		}
+
+		/**
+		 * Index is the atom index of the reference's largest fragment, value is the matched atom index in molecule.
+		 * Values of reference atoms, which are not part of any MCS bond, are not defined.
+		 * @return null if there is no common substructure
+		 */
+		public int[] getMatchListReference2Mol() {
+			return arrMatchReference2Mol;
+		}
+
+		/**
+		 * @return MCS.getScore(), i.e. bonds_mcs/Max(bonds_mol, bonds_reference)
+		 */
+		public double getScore() {
+			return score;
+		}
+
+		/**
+		 * @return false, if the search was stopped by the timeout before completion
+		 */
+		public boolean isComplete() {
+			return complete;
+		}
+
+		/**
+		 * @return null or the exception, which stopped the MCS calculation for this molecule
+		 */
+		public Exception getException() {
+			return exception;
+		}
+	}
+}
@@ -69,6 +69,8 @@ public class DescriptorHandlerShape implements DescriptorHandler<PheSAMolecule,S
 	protected boolean flexible;
 	
 	protected ThreadMaster threadMaster;
+
+	private ShapePrefilter prefilter;
 	
 	// Maximum number of tries to generate conformers with the torsion rule based conformer generator from Thomas Sander
 	
@@ -125,6 +127,19 @@ public class DescriptorHandlerShape implements DescriptorHandler<PheSAMolecule,S
 	public void setThreadMaster(ThreadMaster tm) {
 		this.threadMaster = tm;
 	}
+
+	public ShapePrefilter getPrefilter() {
+		return prefilter;
+	}
+
+	/**
+	 * If a prefilter is set, getSimilarity() returns 0.0 without aligning query and base,
+	 * if the prefilter rejects the pair. Thread safe copies share the prefilter.
+	 * @param prefilter null to align all pairs
+	 */
+	public void setPrefilter(ShapePrefilter prefilter) {
+		this.prefilter = prefilter;
+	}
 		
 	
 	public List<Transformation> getPreProcessTransformations() {
@@ -225,6 +240,11 @@ public class DescriptorHandlerShape implements DescriptorHandler<PheSAMolecule,S
 	
 	public float getSimilarity(PheSAMolecule query, PheSAMolecule base) {
  		StereoMolecule[] bestPair = {query.getMolecule(),base.getMolecule()};
+		if(prefilter!=null && !prefilter.isCandidate(query, base, phesaSetting, flexible)) {
+			this.setPreviousAlignment(bestPair);
+			this.setPreviousPheSAResult(new double[4]);
+			return 0.0f;
+		}
 		double[] result = PheSAAlignmentOptimizer.align(query, base, bestPair, phesaSetting, null);
 		this.setPreviousAlignment(bestPair);
 		this.setPreviousPheSAResult(result);
@@ -366,6 +386,7 @@ public class DescriptorHandlerShape implements DescriptorHandler<PheSAMolecule,S
 		dhs.ppWeight = ppWeight;
 		dhs.flexible = flexible;
 		dhs.maxConfs = maxConfs;
+		dhs.prefilter = prefilter;
 
 		return dhs;
 	}
@@ -41,6 +41,7 @@ public class DescriptorHandlerShapeOneConf extends DescriptorHandlerShape {
 		dhs.ppWeight = ppWeight;
 		dhs.flexible = flexible;
 		dhs.maxConfs = maxConfs;
+		dhs.setPrefilter(getPrefilter());
 		return dhs;
 	}
 
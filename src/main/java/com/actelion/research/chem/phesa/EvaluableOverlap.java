@@ -1,11 +1,11 @@
 package com.actelion.research.chem.phesa;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import com.actelion.research.chem.Coordinates;
 import com.actelion.research.chem.alignment3d.transformation.ExponentialMap;
-import com.actelion.research.chem.alignment3d.transformation.Quaternion;
 import com.actelion.research.chem.alignment3d.transformation.RotationDerivatives;
 import com.actelion.research.chem.optimization.Evaluable;
 import com.actelion.research.chem.phesa.pharmacophore.pp.PPGaussian;
@@ -36,9 +36,15 @@ public class EvaluableOverlap implements Evaluable  {
     private double [][] dv0PP;
     private double [][] dv1PP;
     private double [][] dv2PP;
-    private double[][] results;
-    private Coordinates[] fitAtGaussModCoords;
-    private Coordinates[] fitPPGaussModCoords;
+    private double[] fitAtGaussModCoords; //transformed fit coordinates as x,y,z triples, reused by all optimizer steps
+    private double[] fitPPGaussModCoords;
+    private double[] atomGrad;
+    private double[] ppGrad;
+    private GaussianGrid refAtGrid; //atomic and volume Gaussians of the reference
+    private int[] neighbour;
+    private double[][] dRdvi_1 = new double[3][3];
+    private double[][] dRdvi_2 = new double[3][3];
+    private double[][] dRdvi_3 = new double[3][3];
 
     
     public EvaluableOverlap(PheSAAlignment shapeAlign, double[] transform) {
@@ -49,15 +55,24 @@ public class EvaluableOverlap implements Evaluable  {
     	this.ppWeight = ppWeight;
 		this.shapeAlign = shapeAlign; 
 		this.transform = transform;
-	    this.fitAtGaussModCoords = new Coordinates[shapeAlign.getMolGauss().getAtomicGaussians().size()];
-	    this.fitPPGaussModCoords = new Coordinates[shapeAlign.getMolGauss().getPPGaussians().size()];
-	    this.dv0At = new double[fitAtGaussModCoords.length][3];
-	    this.dv1At = new double[fitAtGaussModCoords.length][3];
-	    this.dv2At = new double[fitAtGaussModCoords.length][3];
-	    this.dv0PP = new double[fitPPGaussModCoords.length][3];
-	    this.dv1PP = new double[fitPPGaussModCoords.length][3];
-	    this.dv2PP = new double[fitPPGaussModCoords.length][3];
-		this.results = new double[shapeAlign.getRefMolGauss().getAtomicGaussians().size()][shapeAlign.getRefMolGauss().getAtomicGaussians().size()];
+	    int fitAtoms = shapeAlign.getMolGauss().getAtomicGaussians().size();
+	    int fitPPs = shapeAlign.getMolGauss().getPPGaussians().size();
+	    this.fitAtGaussModCoords = new double[3*fitAtoms];
+	    this.fitPPGaussModCoords = new double[3*fitPPs];
+	    this.dv0At = new double[fitAtoms][3];
+	    this.dv1At = new double[fitAtoms][3];
+	    this.dv2At = new double[fitAtoms][3];
+	    this.dv0PP = new double[fitPPs][3];
+	    this.dv1PP = new double[fitPPs][3];
+	    this.dv2PP = new double[fitPPs][3];
+	    this.atomGrad = new double[transform.length];
+	    this.ppGrad = new double[transform.length];
+	    ShapeVolume refMolGauss = shapeAlign.getRefMolGauss();
+	    List<VolumeGaussian> volumeGaussians = new ArrayList<>();
+	    if(refMolGauss instanceof MolecularVolume)
+	    	volumeGaussians = ((MolecularVolume)refMolGauss).getVolumeGaussians();
+	    this.refAtGrid = new GaussianGrid(refMolGauss.getAtomicGaussians(),volumeGaussians);
+	    this.neighbour = new int[refAtGrid.getSize()];
 		cachedCoords = new Coordinates[shapeAlign.getMolGauss().getAtomicGaussians().size()];
 		cachedCoordsPP = new Coordinates[shapeAlign.getMolGauss().getPPGaussians().size()];
 		origCOM = new Coordinates();
@@ -93,23 +108,22 @@ public class EvaluableOverlap implements Evaluable  {
 	    this.dv0PP = e.dv2PP;
 		this.fitAtGaussModCoords = e.fitAtGaussModCoords;
 		this.fitPPGaussModCoords = e.fitPPGaussModCoords;
-		this.results = e.results;
+		this.atomGrad = e.atomGrad;
+		this.ppGrad = e.ppGrad;
+		this.refAtGrid = e.refAtGrid;
+		this.neighbour = e.neighbour;
 
 	}
 	
-	private void getTransformedCoordinates(Coordinates[] modCoords,List<? extends Gaussian3D> fitMolGauss) {
-		 ExponentialMap em = new ExponentialMap(transform[0],transform[1],transform[2]);
-		 Quaternion q = em.toQuaternion();
-		 double[][] rotMatrix = q.getRotMatrix().getArray();
+	private void getTransformedCoordinates(double[] modCoords,List<? extends Gaussian3D> fitMolGauss, double[][] m) {
 		 for(int k=0;k<fitMolGauss.size();k++) {
-		    Coordinates center = new Coordinates(fitMolGauss.get(k).center);
-		    center.sub(origCOM);
-		    center.rotate(rotMatrix);
-		    center.add(origCOM);
-		    center.x += transform[3];
-		    center.y += transform[4];
-		    center.z += transform[5]; 
-		    modCoords[k] = center;
+		    Coordinates center = fitMolGauss.get(k).center;
+		    double cx = center.x-origCOM.x;
+		    double cy = center.y-origCOM.y;
+		    double cz = center.z-origCOM.z;
+		    modCoords[3*k] = cx*m[0][0]+cy*m[1][0]+cz*m[2][0]+origCOM.x+transform[3];
+		    modCoords[3*k+1] = cx*m[0][1]+cy*m[1][1]+cz*m[2][1]+origCOM.y+transform[4];
+		    modCoords[3*k+2] = cx*m[0][2]+cy*m[1][2]+cz*m[2][2]+origCOM.z+transform[5];
 		  }
 	}
 	
@@ -147,17 +161,20 @@ public class EvaluableOverlap implements Evaluable  {
 		ShapeVolume refMolGauss = shapeAlign.getRefMolGauss();
 		ShapeVolume fitMolGauss = shapeAlign.getMolGauss();
 		double value = 0.0;
-		double[] atomGrad = new double[grad.length];
-		List<VolumeGaussian> volumeGaussians = new ArrayList<>();
-		if(refMolGauss instanceof MolecularVolume)
-			volumeGaussians = ((MolecularVolume)refMolGauss).getVolumeGaussians();
-		value += (1.0-ppWeight)*this.getFGValueOverlap(atomGrad,refMolGauss.getAtomicGaussians(),fitMolGauss.getAtomicGaussians(),volumeGaussians,
-						dv0At,dv1At,dv2At,fitAtGaussModCoords);
+		double[][] rotMatrix = new ExponentialMap(transform[0],transform[1],transform[2]).toQuaternion().getRotMatrix().getArray();
+		double[] v = new double[] {transform[0],transform[1],transform[2]}; //exponential map
+		RotationDerivatives rotationDerivatives = new RotationDerivatives(v);
+		rotationDerivatives.dRdv(0, dRdvi_1);
+		rotationDerivatives.dRdv(1, dRdvi_2);
+		rotationDerivatives.dRdv(2, dRdvi_3);
+
+		Arrays.fill(atomGrad, 0.0);
+		value += (1.0-ppWeight)*this.getFGValueOverlap(atomGrad,fitMolGauss.getAtomicGaussians(),
+						dv0At,dv1At,dv2At,fitAtGaussModCoords,rotMatrix);
 			
-		
-		double[] ppGrad = new double[grad.length];
+		Arrays.fill(ppGrad, 0.0);
 		value += ppWeight*this.getFGValueOverlapPP(ppGrad,refMolGauss.getPPGaussians(),fitMolGauss.getPPGaussians(),
-						dv0PP,dv1PP,dv2PP,fitPPGaussModCoords);
+						dv0PP,dv1PP,dv2PP,fitPPGaussModCoords,rotMatrix);
 
 		for(int i=0;i<grad.length;i++) 
 			grad[i] = (1.0-ppWeight)*atomGrad[i]+ ppWeight*ppGrad[i];
@@ -177,36 +194,18 @@ public class EvaluableOverlap implements Evaluable  {
 		     * the last three elements are for the translation
 		     */
 		
-		double[] v = new double[] {transform[0],transform[1],transform[2]}; //exponential map
-		RotationDerivatives rotationDerivatives = new RotationDerivatives(v);
-		double[][] dRdvi_1 = new double[3][3];
-		double[][] dRdvi_2 = new double[3][3];
-		double[][] dRdvi_3 = new double[3][3];
-		rotationDerivatives.dRdv(0, dRdvi_1);
-		rotationDerivatives.dRdv(1, dRdvi_2);
-		rotationDerivatives.dRdv(2, dRdvi_3);
 		 for(int a=0;a<cachedCoords.length;a++){
 			Coordinates xi = cachedCoords[a];
-			Coordinates dRij_dv0 = xi.rotateC(dRdvi_1);
-			Coordinates dRij_dv1 = xi.rotateC(dRdvi_2);
-			Coordinates dRij_dv2 = xi.rotateC(dRdvi_3);
-	
-			dRdv0[a][0] = dRij_dv0.x;
-			dRdv0[a][1] = dRij_dv0.y;
-			dRdv0[a][2] = dRij_dv0.z;
-			
-			dRdv1[a][0] = dRij_dv1.x;
-			dRdv1[a][1] = dRij_dv1.y;
-			dRdv1[a][2] = dRij_dv1.z;
-			
-			dRdv2[a][0] = dRij_dv2.x;
-			dRdv2[a][1] = dRij_dv2.y;
-			dRdv2[a][2] = dRij_dv2.z;
+			rotate(xi, dRdvi_1, dRdv0[a]);
+			rotate(xi, dRdvi_2, dRdv1[a]);
+			rotate(xi, dRdvi_3, dRdv2[a]);
 		}
-		 
-		 
+	}
 
-		
+	private static void rotate(Coordinates c, double[][] m, double[] result) {
+		result[0] = c.x*m[0][0]+c.y*m[1][0]+c.z*m[2][0];
+		result[1] = c.x*m[0][1]+c.y*m[1][1]+c.z*m[2][1];
+		result[2] = c.x*m[0][2]+c.y*m[1][2]+c.z*m[2][2];
 	}
 	
 
@@ -241,8 +240,8 @@ public class EvaluableOverlap implements Evaluable  {
 	 * @param grad 
 	 */
 	
-	private double getFGValueOverlap(double[] grad,List<AtomicGaussian> refMolGauss,List<AtomicGaussian> fitMolGauss,List<VolumeGaussian> volGaussians,
-			double[][] dRdv0, double[][] dRdv1, double[][] dRdv2, Coordinates[] fitGaussModCoords) {
+	private double getFGValueOverlap(double[] grad,List<AtomicGaussian> fitMolGauss,
+			double[][] dRdv0, double[][] dRdv1, double[][] dRdv2, double[] fitGaussModCoords, double[][] rotMatrix) {
 
 
 	    /**
@@ -251,37 +250,41 @@ public class EvaluableOverlap implements Evaluable  {
 	     * the last three elements are for the translation
 	     */
 	    
-	    getTransformedCoordinates(fitGaussModCoords, fitMolGauss);
+	    getTransformedCoordinates(fitGaussModCoords, fitMolGauss, rotMatrix);
 
 	    this.getEMapGradient(dRdv0, dRdv1, dRdv2,cachedCoords);
 
 
 		/**
 		 * derivative of ShapeOverlap with respect to the four elements of the quaternion and three elements of translation
-		 * 
+		 * only reference Gaussians from the grid cells around a fit Gaussian can be within the distance cutoff
 		 */
 	    
 	    double totalOverlap = 0.0;
-	    Coordinates fitCenterModCoord;
-		for(int i=0; i<refMolGauss.size();i++){
-			Gaussian3D refAt = refMolGauss.get(i);
-			for(int j=0; j<fitMolGauss.size();j++){
+		for(int j=0; j<fitMolGauss.size();j++){
+			Gaussian3D fitAt = fitMolGauss.get(j);
+			double fitX = fitGaussModCoords[3*j];
+			double fitY = fitGaussModCoords[3*j+1];
+			double fitZ = fitGaussModCoords[3*j+2];
+			int count = refAtGrid.getNeighbours(fitX, fitY, fitZ, neighbour);
+			for(int n=0; n<count;n++){
+				int i = neighbour[n];
+				Gaussian3D refAt = refAtGrid.getGaussian(i);
 				double atomOverlap = 0.0;
-				Gaussian3D fitAt = fitMolGauss.get(j);
-				fitCenterModCoord = fitGaussModCoords[j];
 				double alphaSum = refAt.getWidth() + fitAt.getWidth();
 
-				double dx = refAt.getCenter().x-fitCenterModCoord.x;
-				double dy = refAt.getCenter().y-fitCenterModCoord.y;
-				double dz = refAt.getCenter().z-fitCenterModCoord.z;
+				double dx = refAtGrid.getX(i)-fitX;
+				double dy = refAtGrid.getY(i)-fitY;
+				double dz = refAtGrid.getZ(i)-fitZ;
 				double Rij2 = dx*dx + dy*dy + dz*dz;
 				if(Rij2>=Gaussian3D.SQUARE_DIST_CUTOFF)
 					continue;
 				atomOverlap = refAt.getHeight()*fitAt.getHeight()*QuickMathCalculator.getInstance().quickExp(-( refAt.getWidth() * fitAt.getWidth()* Rij2)/alphaSum) *
 							QuickMathCalculator.getInstance().getPrefactor(refAt.getAtomicNo(),fitAt.getAtomicNo());
-					
+				if(refAt instanceof VolumeGaussian)
+					atomOverlap *= ((VolumeGaussian)refAt).getRole();
 				
-				if (atomOverlap>0.0) {
+				if (atomOverlap!=0.0) {
 					totalOverlap += atomOverlap;
 					double gradientPrefactor = atomOverlap*-2*refAt.getWidth()*fitAt.getWidth()/(refAt.getWidth()+fitAt.getWidth());
 					double dv0 = dRdv0[j][0]*dx+dRdv0[j][1]*dy+dRdv0[j][2]*dz; 
@@ -297,57 +300,15 @@ public class EvaluableOverlap implements Evaluable  {
 				    }
 				}
 		}
-			for(int k=0; k<volGaussians.size();k++){
-				VolumeGaussian refVol = volGaussians.get(k);
-				for(int j=0; j<fitMolGauss.size();j++){
-					double atomOverlap = 0.0;
-					Gaussian3D fitAt = fitMolGauss.get(j);
-					fitCenterModCoord = fitGaussModCoords[j];
-					double alphaSum = refVol.getWidth() + fitAt.getWidth();
-
-					double dx = refVol.getCenter().x-fitCenterModCoord.x;
-					double dy = refVol.getCenter().y-fitCenterModCoord.y;
-					double dz = refVol.getCenter().z-fitCenterModCoord.z;
-					double Rij2 = dx*dx + dy*dy + dz*dz;
-
-					if(Rij2>=Gaussian3D.SQUARE_DIST_CUTOFF)
-						continue;
-					atomOverlap = refVol.getRole()*refVol.getHeight()*fitAt.getHeight()*QuickMathCalculator.getInstance().quickExp(-( refVol.getWidth() * fitAt.getWidth()* Rij2)/alphaSum) *
-								QuickMathCalculator.getInstance().getPrefactor(refVol.getAtomicNo(),fitAt.getAtomicNo());
-					
-					
-					if (Math.abs(atomOverlap)>0.0) {
-						totalOverlap += atomOverlap;
-						double gradientPrefactor = atomOverlap*-2*refVol.getWidth()*fitAt.getWidth()/(refVol.getWidth()+fitAt.getWidth());
-						double dv0 = dRdv0[j][0]*dx+dRdv0[j][1]*dy+dRdv0[j][2]*dz; 
-						double dv1 = dRdv1[j][0]*dx+dRdv1[j][1]*dy+dRdv1[j][2]*dz; 
-						double dv2 = dRdv2[j][0]*dx+dRdv2[j][1]*dy+dRdv2[j][2]*dz; 
-
-						grad[0] += gradientPrefactor*dv0;
-						grad[1] += gradientPrefactor*dv1;
-						grad[2] += gradientPrefactor*dv2;
-						grad[3] += gradientPrefactor*dx;
-						grad[4] += gradientPrefactor*dy;
-						grad[5] += gradientPrefactor*dz;
-					    }
-
-
-					}
-				
-			}
-
-
-
-
 
 		return (-1.0*totalOverlap); //the negative overlap is returned as the objective, since we minimize the objective in the optimization algorithm
 
 	
 	}
 	    
-	   
-	   private double getFGValueOverlapPP(double[] grad, List<PPGaussian> refMolGauss,List<PPGaussian> fitMolGauss, double[][] dRdv0, double[][] dRdv1, double[][] dRdv2, Coordinates[] fitGaussModCoords) {
-		    getTransformedCoordinates(fitGaussModCoords,fitMolGauss);
+	   private double getFGValueOverlapPP(double[] grad, List<PPGaussian> refMolGauss,List<PPGaussian> fitMolGauss, double[][] dRdv0, double[][] dRdv1, double[][] dRdv2,
+			   double[] fitGaussModCoords, double[][] rotMatrix) {
+		    getTransformedCoordinates(fitGaussModCoords,fitMolGauss,rotMatrix);
 
 		    this.getEMapGradient(dRdv0, dRdv1, dRdv2,cachedCoordsPP);
 
@@ -356,17 +317,15 @@ public class EvaluableOverlap implements Evaluable  {
 			 * 
 			 */
 		    double totalOverlap = 0.0;
-		    Coordinates fitCenterModCoord;
 			for(int i=0; i<refMolGauss.size();i++){
 				PPGaussian refAt = refMolGauss.get(i);
 				for(int j=0; j<fitMolGauss.size();j++){
 					PPGaussian fitAt = fitMolGauss.get(j);
 					double atomOverlap = 0.0;
-					fitCenterModCoord = fitGaussModCoords[j];
 					double alphaSum = refAt.getWidth() + fitAt.getWidth();
-					double dx = refAt.getCenter().x-fitCenterModCoord.x;
-					double dy = refAt.getCenter().y-fitCenterModCoord.y;
-					double dz = refAt.getCenter().z-fitCenterModCoord.z;
+					double dx = refAt.getCenter().x-fitGaussModCoords[3*j];
+					double dy = refAt.getCenter().y-fitGaussModCoords[3*j+1];
+					double dz = refAt.getCenter().z-fitGaussModCoords[3*j+2];
 					double Rij2 = dx*dx + dy*dy + dz*dz;
 
 					if(Rij2>=Gaussian3D.SQUARE_DIST_CUTOFF) {
@@ -112,13 +112,20 @@ public abstract class Gaussian3D {
 	}
 
 	public final double getVolumeOverlap(Gaussian3D g2,Coordinates c2, double distCutoff) {
+		return getVolumeOverlap(g2,c2.x,c2.y,c2.z,distCutoff);
+	}
+
+	/**
+	 * overlap with Gaussian g2, if it were located at (x2,y2,z2)
+	 */
+	public final double getVolumeOverlap(Gaussian3D g2,double x2, double y2, double z2, double distCutoff) {
 		double alphaSum = getWidth() + g2.getWidth();
 		double Vij = 0.0;
 		double Kij=0.0;
 
-		double dx = getCenter().x-c2.x;
-		double dy = getCenter().y-c2.y;
-		double dz = getCenter().z-c2.z;
+		double dx = getCenter().x-x2;
+		double dy = getCenter().y-y2;
+		double dz = getCenter().z-z2;
 		double Rij2 = dx*dx+dy*dy+dz*dz;
 		if(Rij2<distCutoff) {
 			double c = -( getWidth() * g2.getWidth()* Rij2)/alphaSum;
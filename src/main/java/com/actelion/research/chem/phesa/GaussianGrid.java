@@ -0,0 +1,133 @@
+package com.actelion.research.chem.phesa;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Spatial hash of the Gaussians of a reference volume. The cell size equals Gaussian3D.DISTANCE_CUTOFF,
+ * such that all Gaussians, which are closer to a point than the cutoff, are located in the 27 cells around it.
+ * Overlap calculations use the grid to skip far apart Gaussian pairs without looking at them.
+ * The grid stores the Gaussian centers at construction time and must be created anew, if the reference
+ * Gaussians are moved. Gaussians of the first list get the indices 0...n1-1, those of the second list follow.
+ */
+public class GaussianGrid {
+	private static final double CELL_SIZE = Gaussian3D.DISTANCE_CUTOFF;
+
+	private final Gaussian3D[] gaussians;
+	private final double[] x,y,z;
+	private final double minX,minY,minZ;
+	private final int nx,ny,nz;
+	private final int[] cellStart;	// index into cellGaussian of the first Gaussian of every cell, plus one end index
+	private final int[] cellGaussian;
+
+	public GaussianGrid(List<? extends Gaussian3D> gaussians) {
+		this(gaussians, Collections.emptyList());
+	}
+
+	public GaussianGrid(List<? extends Gaussian3D> gaussians1, List<? extends Gaussian3D> gaussians2) {
+		int firstListSize = gaussians1.size();
+		int count = firstListSize+gaussians2.size();
+		gaussians = new Gaussian3D[count];
+		x = new double[count];
+		y = new double[count];
+		z = new double[count];
+		double minX = Double.MAX_VALUE;
+		double minY = Double.MAX_VALUE;
+		double minZ = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE;
+		double maxY = -Double.MAX_VALUE;
+		double maxZ = -Double.MAX_VALUE;
+		for(int i=0;i<count;i++) {
+			Gaussian3D g = (i<firstListSize) ? gaussians1.get(i) : gaussians2.get(i-firstListSize);
+			gaussians[i] = g;
+			x[i] = g.getCenter().x;
+			y[i] = g.getCenter().y;
+			z[i] = g.getCenter().z;
+			minX = Math.min(minX, x[i]);
+			minY = Math.min(minY, y[i]);
+			minZ = Math.min(minZ, z[i]);
+			maxX = Math.max(maxX, x[i]);
+			maxY = Math.max(maxY, y[i]);
+			maxZ = Math.max(maxZ, z[i]);
+		}
+		if(count==0) {
+			minX = minY = minZ = 0.0;
+			maxX = maxY = maxZ = 0.0;
+		}
+		this.minX = minX;
+		this.minY = minY;
+		this.minZ = minZ;
+		nx = (int)((maxX-minX)/CELL_SIZE)+1;
+		ny = (int)((maxY-minY)/CELL_SIZE)+1;
+		nz = (int)((maxZ-minZ)/CELL_SIZE)+1;
+
+		// counting sort of the Gaussians into their cells
+		int[] cell = new int[count];
+		cellStart = new int[nx*ny*nz+1];
+		for(int i=0;i<count;i++) {
+			cell[i] = getCell((int)((x[i]-minX)/CELL_SIZE), (int)((y[i]-minY)/CELL_SIZE), (int)((z[i]-minZ)/CELL_SIZE));
+			cellStart[cell[i]+1]++;
+		}
+		for(int c=0;c<nx*ny*nz;c++)
+			cellStart[c+1] += cellStart[c];
+		cellGaussian = new int[count];
+		int[] fill = new int[nx*ny*nz];
+		for(int i=0;i<count;i++)
+			cellGaussian[cellStart[cell[i]]+fill[cell[i]]++] = i;
+	}
+
+	private int getCell(int ix, int iy, int iz) {
+		return (ix*ny+iy)*nz+iz;
+	}
+
+	/**
+	 * Collects the indices of all Gaussians, which may be closer to the given point than Gaussian3D.DISTANCE_CUTOFF.
+	 * Returned Gaussians may still be beyond the cutoff; the caller is expected to check the distance.
+	 * @param px
+	 * @param py
+	 * @param pz
+	 * @param neighbour buffer receiving the Gaussian indices; must hold at least getSize() elements
+	 * @return number of indices written to neighbour
+	 */
+	public int getNeighbours(double px, double py, double pz, int[] neighbour) {
+		double fx = Math.floor((px-minX)/CELL_SIZE);
+		double fy = Math.floor((py-minY)/CELL_SIZE);
+		double fz = Math.floor((pz-minZ)/CELL_SIZE);
+		if(!(fx>=-1 && fx<=nx && fy>=-1 && fy<=ny && fz>=-1 && fz<=nz))
+			return 0;
+
+		int cx = (int)fx;
+		int cy = (int)fy;
+		int cz = (int)fz;
+		int count = 0;
+		for(int ix=Math.max(0, cx-1);ix<=Math.min(nx-1, cx+1);ix++) {
+			for(int iy=Math.max(0, cy-1);iy<=Math.min(ny-1, cy+1);iy++) {
+				int cell = getCell(ix, iy, Math.max(0, cz-1));
+				int lastCell = getCell(ix, iy, Math.min(nz-1, cz+1));
+				for(int k=cellStart[cell];k<cellStart[lastCell+1];k++)	// cells along z are consecutive
+					neighbour[count++] = cellGaussian[k];
+			}
+		}
+		return count;
+	}
+
+	public int getSize() {
+		return gaussians.length;
+	}
+
+	public Gaussian3D getGaussian(int i) {
+		return gaussians[i];
+	}
+
+	public double getX(int i) {
+		return x[i];
+	}
+
+	public double getY(int i) {
+		return y[i];
+	}
+
+	public double getZ(int i) {
+		return z[i];
+	}
+}
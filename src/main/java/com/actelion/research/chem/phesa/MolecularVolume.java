@@ -144,47 +144,7 @@ public class MolecularVolume extends ShapeVolume{
 	}
 	
 	public double[] getTotalAtomOverlap(double[] transform, MolecularVolume fitVol){
-		double[] result = new double[2];
-		ExponentialMap eMap = new ExponentialMap(transform[0],transform[1],transform[2]);
-		double Vtot = 0.0;
-		double Vvol = 0.0;
-		Coordinates com = fitVol.getCOM();
-		double[][] rotMatrix = eMap.toQuaternion().getRotMatrix().getArray();
-		List<AtomicGaussian> fitGaussians = fitVol.atomicGaussians;
-		Coordinates[] fitCenterModCoords = new Coordinates[fitGaussians.size()];
-		for(int k=0;k<fitGaussians.size();k++) {
-				Coordinates center = new Coordinates(fitGaussians.get(k).getCenter());
-				center.sub(com);
-			    center.rotate(rotMatrix);
-			    center.add(com);
-			    center.x += transform[3];
-			    center.y += transform[4];
-			    center.z += transform[5];
-			    fitCenterModCoords[k] = center;
-		}
-
-		for(AtomicGaussian refAt:atomicGaussians){
-			int index = 0;
-			for(AtomicGaussian fitAt:fitVol.atomicGaussians){
-				Vtot += refAt.getVolumeOverlap(fitAt, fitCenterModCoords[index],Gaussian3D.SQUARE_DIST_CUTOFF);
-				index+=1;	
-			}
-		}
-		
-		for(VolumeGaussian refVol:volumeGaussians){
-			int index = 0;
-			for(AtomicGaussian fitAt:fitVol.atomicGaussians){
-				double overlap = refVol.getRole()*refVol.getVolumeOverlap(fitAt, fitCenterModCoords[index],Gaussian3D.SQUARE_DIST_CUTOFF);
-				Vtot += overlap;
-				Vvol += overlap;
-				index+=1;	
-			}
-		}
-		if(Vtot<0)
-			Vtot = 0.0;
-		result[0] = Vtot;
-		result[1] = Vvol;
-		return result;
+		return getTotalAtomOverlap(transform,fitVol,new GaussianGrid(atomicGaussians,volumeGaussians));
 	}
 
 	/**
@@ -303,6 +303,7 @@ public class PheSAAlignment {
 		double ppOaa = getSelfPPOverlapRef();
 		double ppObb = getSelfPPOverlapFit();
 		EvaluableOverlap eval = new EvaluableOverlap(this, new double[6],ppWeight);
+		GaussianGrid refGrid = new GaussianGrid(refMolGauss.getAtomicGaussians());
 		OptimizerLBFGS opt = new OptimizerLBFGS(200,0.001);
 		double maxSimilarity = 0.0;
 		double maxPPSimilarity = 0.0;
@@ -336,7 +337,7 @@ public class PheSAAlignment {
 			ppSimilarity*=correctionFactor;
 			if(ppSimilarity>1.0) //can happen because of weights
 				ppSimilarity = 1.0f;
-			double[] result = refMolGauss.getTotalAtomOverlap(currentTransform,molGauss);
+			double[] result = refMolGauss.getTotalAtomOverlap(currentTransform,molGauss,refGrid);
 			atomOverlap = result[0];
 			double additionalVolOverlap = result[1];
 			if(tversky)
@@ -21,6 +21,8 @@ public class PheSAMolecule {
 	// As many objects as conformers.
 	private ArrayList<MolecularVolume> shape;
 
+	private volatile ShapeProfile profile;
+
 	
 	
 	public PheSAMolecule() {
@@ -105,6 +107,18 @@ public class PheSAMolecule {
 	public ArrayList<MolecularVolume> getVolumes() {
 		return this.shape;
 	}
+
+	/**
+	 * @return shape statistics used to prefilter similarity calculations; created on first use
+	 */
+	public ShapeProfile getShapeProfile() {
+		ShapeProfile p = profile;
+		if(p==null) {
+			p = new ShapeProfile(this);
+			profile = p;
+		}
+		return p;
+	}
 	
 	
 	
@@ -0,0 +1,207 @@
+package com.actelion.research.chem.phesa;
+
+import com.actelion.research.chem.alignment3d.PheSAAlignmentOptimizer.PheSASetting;
+import com.actelion.research.chem.alignment3d.PheSAAlignmentOptimizer.SimilarityMode;
+import com.actelion.research.chem.phesa.pharmacophore.PharmacophoreCalculator;
+
+/**
+ * Rejects query/base pairs of a shape similarity search before the expensive PheSA alignment,
+ * based on the ShapeProfiles of both molecules. The stages are applied from cheap to expensive:
+ * <br>- optional heuristic bounds on volume ratio, pharmacophore feature counts and principal moments.
+ * These are fast, but may reject pairs, which would have reached the similarity threshold.
+ * <br>- the upper bound stage computes an upper limit of the PheSA similarity from the self overlaps
+ * of both molecules. Pairs are only rejected, if even this limit is below the similarity threshold.
+ * Thus, with the heuristic stages switched off (default), no pair reaching the threshold is ever lost.
+ * Since the bound assumes a perfect superposition, it mainly rejects pairs of molecules, whose atom volumes
+ * or pharmacophore feature sets differ considerably in size. Molecules of similar size and feature count
+ * get a bound close to 1.0, even if they are shaped very differently; such pairs are only rejected
+ * by the heuristic stages.
+ * The similarity threshold may be raised while screening, e.g. to the lowest similarity of the current top hits.
+ * The upper bound is not valid for flexible alignments, which change the conformation of the base molecule.
+ */
+public class ShapePrefilter {
+	private static final double OVERLAP_TOLERANCE = 1.001;	// covers the error of the interpolated exp() used by the alignment
+
+	private volatile double similarityThreshold;
+	private double minVolumeRatio;
+	private double minPharmacophoreCountSimilarity;
+	private double maxPrincipalMomentDeviation;
+
+	/**
+	 * creates a prefilter, which only applies the upper bound stage
+	 * @param similarityThreshold pairs that can't reach this similarity are rejected
+	 */
+	public ShapePrefilter(double similarityThreshold) {
+		this.similarityThreshold = similarityThreshold;
+		minVolumeRatio = 0.0;
+		minPharmacophoreCountSimilarity = 0.0;
+		maxPrincipalMomentDeviation = Double.POSITIVE_INFINITY;
+	}
+
+	public double getSimilarityThreshold() {
+		return similarityThreshold;
+	}
+
+	public void setSimilarityThreshold(double similarityThreshold) {
+		this.similarityThreshold = similarityThreshold;
+	}
+
+	/**
+	 * heuristic stage: rejects pairs, whose smaller atom volume is less than ratio times the larger one
+	 * @param ratio 0.0 (default) switches this stage off
+	 */
+	public void setMinVolumeRatio(double ratio) {
+		minVolumeRatio = ratio;
+	}
+
+	/**
+	 * heuristic stage: rejects pairs, whose Tanimoto similarity of pharmacophore feature counts
+	 * per functionality is below the given value
+	 * @param similarity 0.0 (default) switches this stage off
+	 */
+	public void setMinPharmacophoreCountSimilarity(double similarity) {
+		minPharmacophoreCountSimilarity = similarity;
+	}
+
+	/**
+	 * heuristic stage: rejects pairs, if for all conformer pairs the relative difference of the extents
+	 * along at least one principal axis exceeds the given value
+	 * @param deviation relative deviation, e.g. 0.5; Double.POSITIVE_INFINITY (default) switches this stage off
+	 */
+	public void setMaxPrincipalMomentDeviation(double deviation) {
+		maxPrincipalMomentDeviation = deviation;
+	}
+
+	/**
+	 * @param query
+	 * @param base
+	 * @param setting the settings used to align the molecules
+	 * @param flexible whether the alignment is followed by a flexible alignment, which disables the upper bound stage
+	 * @return false, if the pair can be skipped without alignment
+	 */
+	public boolean isCandidate(PheSAMolecule query, PheSAMolecule base, PheSASetting setting, boolean flexible) {
+		ShapeProfile queryProfile = query.getShapeProfile();
+		ShapeProfile baseProfile = base.getShapeProfile();
+		if(queryProfile.getConformerCount()==0 || baseProfile.getConformerCount()==0)
+			return true;	// let the alignment deal with failed descriptors
+
+		if(minVolumeRatio>0.0) {
+			double v1 = queryProfile.getVolume();
+			double v2 = baseProfile.getVolume();
+			if(Math.min(v1, v2)<minVolumeRatio*Math.max(v1, v2))
+				return false;
+		}
+
+		if(minPharmacophoreCountSimilarity>0.0
+		 && getPharmacophoreCountSimilarity(queryProfile, baseProfile)<minPharmacophoreCountSimilarity)
+			return false;
+
+		if(maxPrincipalMomentDeviation!=Double.POSITIVE_INFINITY
+		 && getMinPrincipalMomentDeviation(queryProfile, baseProfile)>maxPrincipalMomentDeviation)
+			return false;
+
+		if(flexible)
+			return true;
+
+		return getUpperBound(queryProfile, baseProfile, setting)>=similarityThreshold;
+	}
+
+	private static double getPharmacophoreCountSimilarity(ShapeProfile p1, ShapeProfile p2) {
+		int shared = 0;
+		int all = 0;
+		for(int f=0;f<=PharmacophoreCalculator.MAX_ID;f++) {
+			shared += Math.min(p1.getPharmacophoreCount(f), p2.getPharmacophoreCount(f));
+			all += Math.max(p1.getPharmacophoreCount(f), p2.getPharmacophoreCount(f));
+		}
+		return all==0 ? 1.0 : (double)shared/all;
+	}
+
+	private static double getMinPrincipalMomentDeviation(ShapeProfile p1, ShapeProfile p2) {
+		double minDeviation = Double.MAX_VALUE;
+		for(int i=0;i<p1.getConformerCount();i++) {
+			double[] m1 = p1.getPrincipalMoments(i);
+			for(int j=0;j<p2.getConformerCount();j++) {
+				double[] m2 = p2.getPrincipalMoments(j);
+				double deviation = 0.0;
+				for(int k=0;k<m1.length;k++) {
+					double r1 = Math.sqrt(m1[k]);
+					double r2 = Math.sqrt(m2[k]);
+					if(r1!=r2)
+						deviation = Math.max(deviation, Math.abs(r1-r2)/Math.max(r1, r2));
+				}
+				minDeviation = Math.min(minDeviation, deviation);
+			}
+		}
+		return minDeviation;
+	}
+
+	/**
+	 * Calculates an upper limit of the similarity, which DescriptorHandlerShape.getSimilarity() would
+	 * return for a rigid alignment of the two molecules. The atom overlap of any two conformers cannot exceed
+	 * the square root of the product of their exact self overlaps (Cauchy-Schwarz). The same limit applies to
+	 * the pharmacophore overlap, because the pharmacophore similarity factor of any two features is at most 1.0.
+	 * @param query
+	 * @param base
+	 * @param setting
+	 * @return
+	 */
+	public static double getUpperBound(PheSAMolecule query, PheSAMolecule base, PheSASetting setting) {
+		return getUpperBound(query.getShapeProfile(), base.getShapeProfile(), setting);
+	}
+
+	private static double getUpperBound(ShapeProfile query, ShapeProfile base, PheSASetting setting) {
+		if(query.getExitVectorCount()!=0 && query.getExitVectorCount()!=base.getExitVectorCount())
+			return 0.0;	// PheSAAlignmentOptimizer.align() sets the similarity to 0.0
+
+		double ppWeight = setting.getPpWeight();
+		boolean tanimoto = setting.getSimMode()==SimilarityMode.TANIMOTO;
+		double tverskyCoeff = setting.getSimMode()==SimilarityMode.TVERSKY ?
+				PheSAAlignment.TVERSKY_COEFFICIENT : 1.0-PheSAAlignment.TVERSKY_COEFFICIENT;
+		boolean queryHasPP = query.getPharmacophoreCount()!=0;
+		boolean baseHasPP = base.getPharmacophoreCount()!=0;
+
+		double bound = 0.0;
+		for(int i=0;i<query.getConformerCount();i++) {
+			double maxWeight = query.getMaxWeight(i);
+			if(Double.isNaN(maxWeight))
+				return Double.POSITIVE_INFINITY;
+			double a = query.getSelfOverlap(i);
+			double sqrtExactA = Math.sqrt(query.getExactSelfOverlap(i));
+			double maxPPWeight = query.getMaxPPWeight(i);
+			double ppA = query.getPPSelfOverlap(i);
+			double sqrtExactPPA = Math.sqrt(query.getExactPPSelfOverlap(i));
+			for(int j=0;j<base.getConformerCount();j++) {
+				double maxOverlap = OVERLAP_TOLERANCE*maxWeight*sqrtExactA*Math.sqrt(base.getExactSelfOverlap(j));
+				double atomBound = getSimilarityBound(maxOverlap, a, base.getSelfOverlap(j), tanimoto, tverskyCoeff);
+
+				double ppBound;
+				if(!queryHasPP && !baseHasPP)
+					ppBound = 1.0;
+				else if(!queryHasPP || !baseHasPP)
+					ppBound = 0.0;
+				else if(Double.isNaN(maxPPWeight) || query.getExitVectorCount()!=0)
+					ppBound = 1.0;	// the alignment changes exit vector weights of the query
+				else {
+					double maxPPOverlap = OVERLAP_TOLERANCE*maxPPWeight*sqrtExactPPA*Math.sqrt(base.getExactPPSelfOverlap(j));
+					ppBound = Math.min(1.0, getSimilarityBound(maxPPOverlap, ppA, base.getPPSelfOverlap(j), tanimoto, tverskyCoeff));
+				}
+
+				bound = Math.max(bound, (1.0-ppWeight)*atomBound+ppWeight*ppBound);
+			}
+		}
+		return tanimoto ? Math.min(1.0, bound) : bound;
+	}
+
+	/**
+	 * @param maxOverlap upper limit of the overlap of both molecules
+	 * @param a self overlap of the query as used by the alignment
+	 * @param b self overlap of the base as used by the alignment
+	 * @return the similarity, which the alignment would calculate from maxOverlap
+	 */
+	private static double getSimilarityBound(double maxOverlap, double a, double b, boolean tanimoto, double tverskyCoeff) {
+		if(tanimoto)
+			return (2.0*maxOverlap>=a+b) ? 1.0 : maxOverlap/(a+b-maxOverlap);
+		else
+			return maxOverlap/(tverskyCoeff*b+(1.0-tverskyCoeff)*a);
+	}
+}
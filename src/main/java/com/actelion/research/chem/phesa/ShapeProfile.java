@@ -0,0 +1,175 @@
+package com.actelion.research.chem.phesa;
+
+import java.util.List;
+
+import com.actelion.research.calc.SingularValueDecomposition;
+import com.actelion.research.chem.phesa.pharmacophore.PharmacophoreCalculator;
+import com.actelion.research.chem.phesa.pharmacophore.pp.PPGaussian;
+
+/**
+ * Cheap shape and pharmacophore statistics of a PheSAMolecule, which allow to estimate,
+ * how similar two molecules can become at best, without aligning them:
+ * per conformer the atom and pharmacophore self overlaps as used by the PheSA similarity and the exact
+ * self overlap integrals without distance cutoff, the principal moments of the atom volume, the total
+ * atom volume and the number of pharmacophore features per functionality.
+ * A profile is created once per PheSAMolecule and cached with it.
+ */
+public class ShapeProfile {
+	private final double volume;
+	private final double[] selfOverlap;
+	private final double[] exactSelfOverlap;
+	private final double[] maxWeight;
+	private final double[] ppSelfOverlap;
+	private final double[] exactPPSelfOverlap;
+	private final double[] maxPPWeight;
+	private final double[][] principalMoments;
+	private final int[] ppCount;
+	private final int exitVectorCount;
+
+	public ShapeProfile(PheSAMolecule shapeMol) {
+		List<MolecularVolume> molVols = shapeMol.getVolumes();
+		int conformers = molVols.size();
+		selfOverlap = new double[conformers];
+		exactSelfOverlap = new double[conformers];
+		maxWeight = new double[conformers];
+		ppSelfOverlap = new double[conformers];
+		exactPPSelfOverlap = new double[conformers];
+		maxPPWeight = new double[conformers];
+		principalMoments = new double[conformers][];
+		for(int c=0;c<conformers;c++) {
+			MolecularVolume molVol = molVols.get(c);
+			selfOverlap[c] = new ShapeVolume(molVol).getSelfAtomOverlap();	// atom part only, as in the alignment
+			exactSelfOverlap[c] = getExactSelfOverlap(molVol.getAtomicGaussians());
+			maxWeight[c] = getMaxWeight(molVol.getAtomicGaussians());
+			ppSelfOverlap[c] = new ShapeVolume(molVol).getSelfPPOverlap();
+			exactPPSelfOverlap[c] = getExactSelfOverlap(molVol.getPPGaussians());
+			maxPPWeight[c] = getPPWeightBound(molVol.getPPGaussians());
+			principalMoments[c] = new SingularValueDecomposition(molVol.getCovarianceMatrix().getArray(),null,null).getSingularValues();
+		}
+
+		double volume = 0.0;
+		ppCount = new int[PharmacophoreCalculator.MAX_ID+1];
+		int exitVectorCount = 0;
+		if(conformers!=0) {
+			for(AtomicGaussian ag : molVols.get(0).getAtomicGaussians())
+				volume += ag.getVolume();
+			for(PPGaussian ppg : molVols.get(0).getPPGaussians())
+				ppCount[ppg.getPharmacophorePoint().getFunctionalityIndex()]++;
+			exitVectorCount = molVols.get(0).getExitVectorGaussians().size();
+		}
+		this.volume = volume;
+		this.exitVectorCount = exitVectorCount;
+	}
+
+	/**
+	 * The overlap of two atom volumes is the integral over the product of their Gaussian densities.
+	 * By the Cauchy-Schwarz inequality it cannot exceed the square root of the product of the two
+	 * self overlap integrals, which therefore must be calculated without distance cutoff.
+	 */
+	private static double getExactSelfOverlap(List<? extends Gaussian3D> gaussians) {
+		double overlap = 0.0;
+		for(Gaussian3D g1 : gaussians) {
+			for(Gaussian3D g2 : gaussians) {
+				double alphaSum = g1.getWidth()+g2.getWidth();
+				double r2 = g1.getCenter().distanceSquared(g2.getCenter());
+				overlap += g1.getHeight()*g2.getHeight()*Math.exp(-g1.getWidth()*g2.getWidth()*r2/alphaSum)
+						* QuickMathCalculator.getInstance().getPrefactor(g1.getAtomicNo(),g2.getAtomicNo());
+			}
+		}
+		return overlap;
+	}
+
+	/**
+	 * @return the largest Gaussian weight or Double.NaN, if there are negative weights, for which no overlap bound exists
+	 */
+	private static double getMaxWeight(List<AtomicGaussian> gaussians) {
+		double max = 0.0;
+		for(AtomicGaussian g : gaussians) {
+			if(g.getWeight()<0.0)
+				return Double.NaN;
+			max = Math.max(max, g.getWeight());
+		}
+		return max;
+	}
+
+	/**
+	 * The pharmacophore similarity of the alignment multiplies the weighted overlap with the ratio of
+	 * feature count and weight sum of the reference. Both factors are covered by the returned value.
+	 * @return largest weight times the weight correction of the alignment or Double.NaN, if there are non-positive weights
+	 */
+	private static double getPPWeightBound(List<PPGaussian> gaussians) {
+		double max = 0.0;
+		double sum = 0.0;
+		for(PPGaussian g : gaussians) {
+			if(g.getWeight()<=0.0)
+				return Double.NaN;
+			max = Math.max(max, g.getWeight());
+			sum += g.getWeight();
+		}
+		return gaussians.isEmpty() ? 0.0 : max*gaussians.size()/sum;
+	}
+
+	public int getConformerCount() {
+		return selfOverlap.length;
+	}
+
+	public double getVolume() {
+		return volume;
+	}
+
+	public double getSelfOverlap(int conformer) {
+		return selfOverlap[conformer];
+	}
+
+	public double getExactSelfOverlap(int conformer) {
+		return exactSelfOverlap[conformer];
+	}
+
+	public double getMaxWeight(int conformer) {
+		return maxWeight[conformer];
+	}
+
+	public double getPPSelfOverlap(int conformer) {
+		return ppSelfOverlap[conformer];
+	}
+
+	public double getExactPPSelfOverlap(int conformer) {
+		return exactPPSelfOverlap[conformer];
+	}
+
+	/**
+	 * @param conformer
+	 * @return the largest pharmacophore Gaussian weight multiplied with the weight correction of the alignment
+	 * or Double.NaN, if there are non-positive weights, for which no overlap bound exists
+	 */
+	public double getMaxPPWeight(int conformer) {
+		return maxPPWeight[conformer];
+	}
+
+	/**
+	 * @param conformer
+	 * @return principal moments of the atom volume in decreasing order
+	 */
+	public double[] getPrincipalMoments(int conformer) {
+		return principalMoments[conformer];
+	}
+
+	/**
+	 * @param functionalityIndex one of the PharmacophoreCalculator IDs
+	 * @return
+	 */
+	public int getPharmacophoreCount(int functionalityIndex) {
+		return ppCount[functionalityIndex];
+	}
+
+	public int getPharmacophoreCount() {
+		int count = 0;
+		for(int c : ppCount)
+			count += c;
+		return count;
+	}
+
+	public int getExitVectorCount() {
+		return exitVectorCount;
+	}
+}
@@ -438,30 +438,45 @@ public class ShapeVolume {
 	
 
 	public double[] getTotalAtomOverlap(double[] transform, ShapeVolume fitVol){
+		return getTotalAtomOverlap(transform,fitVol,new GaussianGrid(atomicGaussians));
+	}
+
+	/**
+	 * same as getTotalAtomOverlap(transform,fitVol), but only evaluates the Gaussian pairs found in refGrid,
+	 * which must have been created from the Gaussians of this volume. Reusing one grid for all transforms avoids
+	 * looking at pairs beyond the distance cutoff. VolumeGaussians in the grid contribute with their role
+	 * to the total overlap and to the second result value.
+	 * @param transform
+	 * @param fitVol
+	 * @param refGrid
+	 * @return
+	 */
+	public double[] getTotalAtomOverlap(double[] transform, ShapeVolume fitVol, GaussianGrid refGrid){
 		double[] result = new double[2];
 		ExponentialMap eMap = new ExponentialMap(transform[0],transform[1],transform[2]);
 		double Vtot = 0.0;
 		double Vvol = 0.0;
 		Coordinates com = fitVol.getCOM();
-		double[][] rotMatrix = eMap.toQuaternion().getRotMatrix().getArray();
+		double[][] m = eMap.toQuaternion().getRotMatrix().getArray();
 		List<AtomicGaussian> fitGaussians = fitVol.atomicGaussians;
-		Coordinates[] fitCenterModCoords = new Coordinates[fitGaussians.size()];
+		int[] neighbour = new int[refGrid.getSize()];
 		for(int k=0;k<fitGaussians.size();k++) {
-				Coordinates center = new Coordinates(fitGaussians.get(k).getCenter());
-				center.sub(com);
-			    center.rotate(rotMatrix);
-			    center.add(com);
-			    center.x += transform[3];
-			    center.y += transform[4];
-			    center.z += transform[5];
-			    fitCenterModCoords[k] = center;
-		}
-
-		for(AtomicGaussian refAt:atomicGaussians){
-			int index = 0;
-			for(AtomicGaussian fitAt:fitVol.atomicGaussians){
-				Vtot += refAt.getVolumeOverlap(fitAt, fitCenterModCoords[index],Gaussian3D.SQUARE_DIST_CUTOFF);
-				index+=1;	
+			AtomicGaussian fitAt = fitGaussians.get(k);
+			double cx = fitAt.getCenter().x-com.x;
+			double cy = fitAt.getCenter().y-com.y;
+			double cz = fitAt.getCenter().z-com.z;
+			double x = cx*m[0][0]+cy*m[1][0]+cz*m[2][0]+com.x+transform[3];
+			double y = cx*m[0][1]+cy*m[1][1]+cz*m[2][1]+com.y+transform[4];
+			double z = cx*m[0][2]+cy*m[1][2]+cz*m[2][2]+com.z+transform[5];
+			int count = refGrid.getNeighbours(x,y,z,neighbour);
+			for(int n=0;n<count;n++) {
+				Gaussian3D refGauss = refGrid.getGaussian(neighbour[n]);
+				double overlap = refGauss.getVolumeOverlap(fitAt,x,y,z,Gaussian3D.SQUARE_DIST_CUTOFF);
+				if(refGauss instanceof VolumeGaussian) {
+					overlap *= ((VolumeGaussian)refGauss).getRole();
+					Vvol += overlap;
+				}
+				Vtot += overlap;
 			}
 		}
 
@@ -36,7 +36,7 @@ public class SimplePharmacophorePoint implements IPharmacophorePoint {
 	}
 	
 	private SimplePharmacophorePoint(String ppString, StereoMolecule mol) {
-		decode(ppString);
+		this(decode(ppString));
 	}
 
 	
@@ -37,7 +37,7 @@ package com.actelion.research.chem.prediction;
 import com.actelion.research.calc.ThreadMaster;
 import com.actelion.research.chem.IDCodeParser;
 import com.actelion.research.chem.SSSearcher;
-import com.actelion.research.chem.SSSearcherWithIndex;
+import com.actelion.research.chem.SSSearcherMultiFragment;
 import com.actelion.research.chem.StereoMolecule;
 
 public class DruglikenessPredictorWithIndex {
@@ -45,16 +45,20 @@ public class DruglikenessPredictorWithIndex {
 
 	private static IncrementTableWithIndex	sIncrementTable;
     private static boolean					sInitialized = false;
-	private static StereoMolecule[]			sFragmentList;
+	private static SSSearcherMultiFragment	sFragmentSearcher;
 
 	public DruglikenessPredictorWithIndex() {
 		synchronized(DruglikenessPredictorWithIndex.class) {
 			if (!sInitialized) {
 		        try {
 					sIncrementTable = new IncrementTableWithIndex("/resources/druglikeness.txt");
-					sFragmentList = new StereoMolecule[sIncrementTable.getSize()];
-					for (int i=0; i<sIncrementTable.getSize(); i++)
-						sFragmentList[i] = new IDCodeParser(false).getCompactMolecule(sIncrementTable.getFragment(i));
+					StereoMolecule[] fragmentList = new StereoMolecule[sIncrementTable.getSize()];
+					long[][] indexList = new long[sIncrementTable.getSize()][];
+					for (int i=0; i<sIncrementTable.getSize(); i++) {
+						fragmentList[i] = new IDCodeParser(false).getCompactMolecule(sIncrementTable.getFragment(i));
+						indexList[i] = sIncrementTable.getIndex(i);
+						}
+					sFragmentSearcher = new SSSearcherMultiFragment(fragmentList, indexList, SSSearcher.cMatchAtomCharge);
 					sInitialized = true;
 					}
 				catch (Exception e) {
@@ -79,21 +83,17 @@ public class DruglikenessPredictorWithIndex {
 		double nastyIncrementSum = 0.0;
 		double incrementSum = 0.0;
 		int fragmentCount = 0;
-		SSSearcherWithIndex swi = new SSSearcherWithIndex(SSSearcher.cMatchAtomCharge);
-		swi.setMolecule(mol, index);
-		for (int i=0; i<sIncrementTable.getSize(); i++) {
-			if (threadMaster != null && threadMaster.threadMustDie())
-				return cDruglikenessUnknown;
+		int[] match = sFragmentSearcher.findMatchingFragments(mol, index, threadMaster);
+		if (match == null)
+			return cDruglikenessUnknown;
 
-			swi.setFragment(sFragmentList[i], sIncrementTable.getIndex(i));
-			if (swi.isFragmentInMolecule()) {
-				double increment = sIncrementTable.getIncrement(i);
-				if (increment < -1)
-					nastyIncrementSum += increment;
-				else {
-					incrementSum += increment;
-					fragmentCount++;
-					}
+		for (int i:match) {
+			double increment = sIncrementTable.getIncrement(i);
+			if (increment < -1)
+				nastyIncrementSum += increment;
+			else {
+				incrementSum += increment;
+				fragmentCount++;
 				}
 			}
 
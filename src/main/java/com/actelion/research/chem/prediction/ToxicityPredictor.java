@@ -37,6 +37,8 @@ import com.actelion.research.calc.ThreadMaster;
 import com.actelion.research.chem.Canonizer;
 import com.actelion.research.chem.IDCodeParser;
 import com.actelion.research.chem.SSSearcher;
+import com.actelion.research.chem.SSSearcherMultiFragment;
+import com.actelion.research.chem.SSSearcherWithIndex;
 import com.actelion.research.chem.SortedStringList;
 import com.actelion.research.chem.StereoMolecule;
 
@@ -70,6 +72,8 @@ public class ToxicityPredictor {
 
 	private static ArrayList<String>[]	sHighRiskFragments;
 	private static ArrayList<String>[]	sLowRiskFragments;
+	private static SSSearcherMultiFragment[] sHighRiskSearcher;
+	private static SSSearcherMultiFragment[] sLowRiskSearcher;
 	private static SortedStringList[]	sRiskMolecules;
     private static boolean				sInitialized;
 
@@ -93,6 +97,12 @@ public class ToxicityPredictor {
 					sRiskMolecules[1] = readAndSortIDCodeFile("/resources/toxpredictor/t3.txt");
 					sRiskMolecules[2] = readAndSortIDCodeFile("/resources/toxpredictor/i3.txt");
 					sRiskMolecules[3] = readAndSortIDCodeFile("/resources/toxpredictor/r3.txt");
+					sHighRiskSearcher = new SSSearcherMultiFragment[cRiskTypes];
+					sLowRiskSearcher = new SSSearcherMultiFragment[cRiskTypes];
+					for (int i=0; i<cRiskTypes; i++) {
+						sHighRiskSearcher[i] = createSearcher(sHighRiskFragments[i]);
+						sLowRiskSearcher[i] = createSearcher(sLowRiskFragments[i]);
+						}
 					sInitialized = true;
 					}
 				catch (Exception e) {
@@ -120,31 +130,16 @@ public class ToxicityPredictor {
 		if (sRiskMolecules[riskType].contains(new Canonizer(mol).getIDCode()))
 			return cHighRisk;
 
-		SSSearcher sss = new SSSearcher(SSSearcher.cMatchAtomCharge);
-		StereoMolecule fragment = new StereoMolecule();
-		for (int i=0; i<sHighRiskFragments[riskType].size(); i++) {
-			if (threadMaster != null && threadMaster.threadMustDie())
-				return cUnknownRisk;
-
-			Thread.yield();
-
-			new IDCodeParser(false).parse(fragment, sHighRiskFragments[riskType].get(i));
-			sss.setMol(fragment, mol);
-			if (sss.isFragmentInMolecule())
-				return cHighRisk;
-			}
-
-		for (int i=0; i<sLowRiskFragments[riskType].size(); i++) {
-			if (threadMaster != null && threadMaster.threadMustDie())
-				return cUnknownRisk;
-
-			Thread.yield();
+		long[] index = new SSSearcherWithIndex().createLongIndex(mol);
+		if (sHighRiskSearcher[riskType].findFirstMatchingFragment(mol, index, threadMaster) != -1)
+			return cHighRisk;
+		if (threadMaster != null && threadMaster.threadMustDie())
+			return cUnknownRisk;
 
-			new IDCodeParser(false).parse(fragment, sLowRiskFragments[riskType].get(i));
-			sss.setMol(fragment, mol);
-			if (sss.isFragmentInMolecule())
-				return cLowRisk;
-			}
+		if (sLowRiskSearcher[riskType].findFirstMatchingFragment(mol, index, threadMaster) != -1)
+			return cLowRisk;
+		if (threadMaster != null && threadMaster.threadMustDie())
+			return cUnknownRisk;
 
 		return cNoRisk;
 		}
@@ -167,34 +162,21 @@ public class ToxicityPredictor {
 			return theDetail;
 			}
 
-		SSSearcher sss = new SSSearcher(SSSearcher.cMatchAtomCharge);
-		boolean found = false;
-		StereoMolecule fragment = new StereoMolecule();
-		for (int i=0; i<sHighRiskFragments[riskType].size(); i++) {
-			new IDCodeParser(false).parse(fragment, sHighRiskFragments[riskType].get(i));
-			sss.setMol(fragment, testMolecule);
-			if (sss.isFragmentInMolecule()) {
-				if (!found)
-					theDetail.add("High-risk fragments indicating "+cRiskNameN[riskType]+":",
-										 ParameterizedStringList.cStringTypeText);
-
-				found = true;
+		long[] index = new SSSearcherWithIndex().createLongIndex(testMolecule);
+		int[] match = sHighRiskSearcher[riskType].findMatchingFragments(testMolecule, index, null);
+		if (match.length != 0) {
+			theDetail.add("High-risk fragments indicating "+cRiskNameN[riskType]+":",
+								 ParameterizedStringList.cStringTypeText);
+			for (int i:match)
 				theDetail.add(sHighRiskFragments[riskType].get(i), ParameterizedStringList.cStringTypeIDCode);
-				}
 			}
 
-		found = false;
-		for (int i=0; i<sLowRiskFragments[riskType].size(); i++) {
-			new IDCodeParser(false).parse(fragment, sLowRiskFragments[riskType].get(i));
-			sss.setMol(fragment, testMolecule);
-			if (sss.isFragmentInMolecule()) {
-				if (!found)
-					theDetail.add("Medium-risk fragments indicating "+cRiskNameN[riskType]+":",
-										 ParameterizedStringList.cStringTypeText);
-
-				found = true;
+		match = sLowRiskSearcher[riskType].findMatchingFragments(testMolecule, index, null);
+		if (match.length != 0) {
+			theDetail.add("Medium-risk fragments indicating "+cRiskNameN[riskType]+":",
+								 ParameterizedStringList.cStringTypeText);
+			for (int i:match)
 				theDetail.add(sLowRiskFragments[riskType].get(i), ParameterizedStringList.cStringTypeIDCode);
-				}
 			}
 
 		if (theDetail.getSize() == 0)
@@ -205,6 +187,14 @@ public class ToxicityPredictor {
 		}
 
 
+	private SSSearcherMultiFragment createSearcher(ArrayList<String> idcodeList) {
+		StereoMolecule[] fragment = new StereoMolecule[idcodeList.size()];
+		for (int i=0; i<fragment.length; i++)
+			fragment[i] = new IDCodeParser(false).getCompactMolecule(idcodeList.get(i));
+		return new SSSearcherMultiFragment(fragment, SSSearcher.cMatchAtomCharge);
+		}
+
+
 	private ArrayList<String> readIDCodeFile(String filename) throws Exception {
 		BufferedReader theReader = new BufferedReader(new InputStreamReader(this.getClass().getResourceAsStream(filename), StandardCharsets.UTF_8));
 		ArrayList<String> fragments = new ArrayList<String>();
@@ -310,6 +310,15 @@ public class ConformerGenerator {
 		applyTimeOut();
 	}
 
+	/**
+	 * Resets the random number generator to the seed passed to the constructor. Then, if the seed
+	 * is not 0L, a reused ConformerGenerator creates the same conformers for a molecule as a new instance.
+	 */
+	public void resetRandomSeed() {
+		if (mRandomSeed != 0L)
+			mRandom.setSeed(mRandomSeed);
+	}
+
 	public void applyTimeOut() {
 		mStopMillis = (mTimeOut == 0L) ? 0L : System.currentTimeMillis() + mTimeOut;
 		mRigidFragmentProvider.setStopTime(mStopMillis);
@@ -438,7 +447,9 @@ public class ConformerGenerator {
 		mAllConformerCount = 0;
 		mReturnedConformerCount = 0;
 		mTorsionSet = null;
+		mTorsionSetStrategy = null;
 		mRotatableBond = null;
+		mIsFinished = false;
 
 		// check, whether we have disconnected fragments
 		mDisconnectedFragmentNo = new int[mol.getAllAtoms()];
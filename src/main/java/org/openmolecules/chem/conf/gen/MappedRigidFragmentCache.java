@@ -0,0 +1,227 @@
+/*
+ * Copyright 2013-2020 Thomas Sander, openmolecules.org
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.openmolecules.chem.conf.gen;
+
+import com.actelion.research.chem.Coordinates;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Binary rigid fragment cache file, which is memory-mapped and decoded lazily entry by entry.
+ * Multiple JVMs mapping the same file share the operating system's page cache. Therefore,
+ * conformer generating workers start quickly without parsing a text based cache file.<br>
+ * File layout (big-endian):<br>
+ * header: magic (long), version (int), entry count (int), key blob offset (long), data offset (long)<br>
+ * key table: per entry sorted by key: key offset (int), key length (int), data offset (long)<br>
+ * key blob: idcodes as ASCII bytes<br>
+ * data: per entry: conformer count (int), atom count (int), hit count (int),
+ * likelihoods (float[conformers]), coordinates (float[conformers*atoms*3])<br>
+ * Files must not be larger than 2 GB.
+ */
+class MappedRigidFragmentCache implements Closeable {
+	static final long MAGIC = 0x4F434C5246524743L;	// "OCLRFRGC"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final int KEY_TABLE_ENTRY_SIZE = 16;
+
+	private final FileChannel mChannel;
+	private final MappedByteBuffer mBuffer;
+	private final int mEntryCount;
+	private final int mKeyBlobOffset;
+
+	/**
+	 * @param file binary cache file as written by write()
+	 * @throws IOException if the file cannot be read or is no binary cache file
+	 */
+	public MappedRigidFragmentCache(File file) throws IOException {
+		mChannel = new RandomAccessFile(file, "r").getChannel();
+		mBuffer = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mChannel.size());
+		if (mBuffer.getLong(0) != MAGIC || mBuffer.getInt(8) > VERSION) {
+			mChannel.close();
+			throw new IOException("Not a binary rigid fragment cache file: "+file.getName());
+			}
+		mEntryCount = mBuffer.getInt(12);
+		mKeyBlobOffset = (int)mBuffer.getLong(16);
+		}
+
+	/**
+	 * @param file
+	 * @return whether the file starts with the magic number of a binary cache file
+	 */
+	public static boolean isBinaryCacheFile(File file) {
+		try (DataInputStream is = new DataInputStream(new FileInputStream(file))) {
+			return is.readLong() == MAGIC;
+			}
+		catch (IOException ioe) {
+			return false;
+			}
+		}
+
+	public int getEntryCount() {
+		return mEntryCount;
+		}
+
+	/**
+	 * Locates the key by binary search in the key table and decodes the associated entry.
+	 * This method is thread-safe, because it uses absolute buffer access only.
+	 * @param key fragment idcode
+	 * @return decoded cache entry or null, if the key is not in the file
+	 */
+	public RigidFragmentCache.CacheEntry getEntry(String key) {
+		int low = 0;
+		int high = mEntryCount - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int c = compareKey(mid, key);
+			if (c < 0)
+				low = mid + 1;
+			else if (c > 0)
+				high = mid - 1;
+			else
+				return decodeEntry(mBuffer.getLong(HEADER_SIZE + mid * KEY_TABLE_ENTRY_SIZE + 8));
+			}
+		return null;
+		}
+
+	private int compareKey(int index, String key) {
+		int position = HEADER_SIZE + index * KEY_TABLE_ENTRY_SIZE;
+		int offset = mKeyBlobOffset + mBuffer.getInt(position);
+		int length = mBuffer.getInt(position + 4);
+		int n = Math.min(length, key.length());
+		for (int i=0; i<n; i++) {
+			int c = (mBuffer.get(offset + i) & 0xFF) - key.charAt(i);
+			if (c != 0)
+				return c;
+			}
+		return length - key.length();
+		}
+
+	private RigidFragmentCache.CacheEntry decodeEntry(long dataOffset) {
+		int position = (int)dataOffset;
+		int conformerCount = mBuffer.getInt(position);
+		int atomCount = mBuffer.getInt(position + 4);
+		int hitCount = mBuffer.getInt(position + 8);
+		position += 12;
+
+		double[] likelihood = new double[conformerCount];
+		for (int i=0; i<conformerCount; i++, position+=4)
+			likelihood[i] = mBuffer.getFloat(position);
+
+		Coordinates[][] coords = new Coordinates[conformerCount][atomCount];
+		for (int i=0; i<conformerCount; i++) {
+			for (int j=0; j<atomCount; j++, position+=12)
+				coords[i][j] = new Coordinates(mBuffer.getFloat(position), mBuffer.getFloat(position + 4), mBuffer.getFloat(position + 8));
+			}
+
+		RigidFragmentCache.CacheEntry entry = new RigidFragmentCache.CacheEntry(coords, likelihood);
+		entry.hitCount = hitCount;
+		return entry;
+		}
+
+	@Override
+	public void close() throws IOException {
+		mChannel.close();
+		}
+
+	/**
+	 * Writes all given entries with at least minHits hits into a binary cache file.
+	 * @param file
+	 * @param entryMap key to cache entry map
+	 * @param minHits
+	 * @throws IOException
+	 */
+	public static void write(File file, Map<String,RigidFragmentCache.CacheEntry> entryMap, int minHits) throws IOException {
+		// idcodes consist of ASCII characters only, thus, String order equals byte order
+		ArrayList<Map.Entry<String,RigidFragmentCache.CacheEntry>> entryList = new ArrayList<>();
+		for (Map.Entry<String,RigidFragmentCache.CacheEntry> e:entryMap.entrySet())
+			if (e.getValue().hitCount >= minHits)
+				entryList.add(e);
+		entryList.sort(Map.Entry.comparingByKey());
+
+		String[] key = new String[entryList.size()];
+		RigidFragmentCache.CacheEntry[] entry = new RigidFragmentCache.CacheEntry[key.length];
+		for (int i=0; i<key.length; i++) {
+			key[i] = entryList.get(i).getKey();
+			entry[i] = entryList.get(i).getValue();
+			}
+
+		int keyBlobSize = 0;
+		for (String k:key)
+			keyBlobSize += k.length();
+
+		long keyBlobOffset = HEADER_SIZE + (long)key.length * KEY_TABLE_ENTRY_SIZE;
+		long dataOffset = keyBlobOffset + keyBlobSize;
+
+		try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+			os.writeLong(MAGIC);
+			os.writeInt(VERSION);
+			os.writeInt(key.length);
+			os.writeLong(keyBlobOffset);
+			os.writeLong(dataOffset);
+
+			int keyOffset = 0;
+			long entryOffset = dataOffset;
+			for (int i=0; i<key.length; i++) {
+				os.writeInt(keyOffset);
+				os.writeInt(key[i].length());
+				os.writeLong(entryOffset);
+				keyOffset += key[i].length();
+				int conformerCount = entry[i].coordinates.length;
+				int atomCount = (conformerCount == 0) ? 0 : entry[i].coordinates[0].length;
+				entryOffset += 12 + 4L * conformerCount + 12L * conformerCount * atomCount;
+				}
+
+			if (entryOffset > Integer.MAX_VALUE)
+				throw new IOException("Binary cache file would exceed 2 GB.");
+
+			for (String k:key)
+				os.write(k.getBytes(StandardCharsets.US_ASCII));
+
+			for (RigidFragmentCache.CacheEntry e:entry) {
+				int conformerCount = e.coordinates.length;
+				int atomCount = (conformerCount == 0) ? 0 : e.coordinates[0].length;
+				os.writeInt(conformerCount);
+				os.writeInt(atomCount);
+				os.writeInt(e.hitCount);
+				for (double l:e.likelihood)
+					os.writeFloat((float)l);
+				for (Coordinates[] coords:e.coordinates) {
+					for (Coordinates c:coords) {
+						os.writeFloat((float)c.x);
+						os.writeFloat((float)c.y);
+						os.writeFloat((float)c.z);
+						}
+					}
+				}
+			}
+		}
+	}
@@ -38,9 +38,16 @@ import com.actelion.research.util.DoubleFormat;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.ZipInputStream;
 
 /**
@@ -52,13 +59,27 @@ import java.util.zip.ZipInputStream;
  * a default cache, which is prefilled with many common fragments from organic and medicinal
  * chemistry as well as with common building block fragments.<br>
  * The default cache is balanced in memory footprint and number of fragments it contains.
- * For special purposes you may consider creating an own custom cache file using the createCacheFiles() method.
+ * For special purposes you may consider creating an own custom cache file using the createCacheFiles() method.<br>
+ * The cache is bounded by a maximum entry count and by an estimated memory footprint. When one of the
+ * limits is exceeded, a batch of entries is evicted either by least recent use (LRU, default) or by
+ * least frequent use (LFU). Request, hit, and eviction counters are maintained with LongAdders, such that
+ * they stay accurate while many ConformerGenerator threads use the cache. Use getStatistics() to export them.
  **/
 public class RigidFragmentCache extends ConcurrentHashMap<String, RigidFragmentCache.CacheEntry> implements Serializable {
+	public static final int EVICTION_POLICY_LRU = 0;
+	public static final int EVICTION_POLICY_LFU = 1;
+
 	private static final int DEFAULT_MAX_ENTRY_COUNT = 500000;
+	private static final long DEFAULT_MAX_MEMORY = Long.MAX_VALUE;
+	private static final int EVICTION_BATCH_DIVISOR = 16;	// evict 1/16 of the entries at once
 	private static final String DEFAULT_CACHE_FILE = "/resources/defaultRigidFragments.zip";
 	private static RigidFragmentCache sInstance;
-	private int mHitCount,mGetCount,mNonCachableCount,mMaxEntryCount;
+	private final LongAdder mHitCount,mGetCount,mNonCachableCount,mPutCount,mEvictionCount;
+	private final AtomicLong mMemoryEstimate;
+	private final ReentrantLock mEvictionLock;
+	private volatile int mMaxEntryCount,mEvictionPolicy;
+	private volatile long mMaxMemory;
+	private volatile MappedRigidFragmentCache mMappedCache;
 	private boolean mDefaultCacheLoaded;
 	private TreeSet<String> mSetOfLoadedCacheFiles;
 
@@ -82,70 +103,253 @@ public class RigidFragmentCache extends ConcurrentHashMap<String, RigidFragmentC
 
 	private RigidFragmentCache() {
 		mMaxEntryCount = DEFAULT_MAX_ENTRY_COUNT;
+		mMaxMemory = DEFAULT_MAX_MEMORY;
+		mEvictionPolicy = EVICTION_POLICY_LRU;
+		mHitCount = new LongAdder();
+		mGetCount = new LongAdder();
+		mNonCachableCount = new LongAdder();
+		mPutCount = new LongAdder();
+		mEvictionCount = new LongAdder();
+		mMemoryEstimate = new AtomicLong();
+		mEvictionLock = new ReentrantLock();
 	}
 
 	@Override
 	public void clear() {
 		super.clear();
+		mMemoryEstimate.set(0);
 		mDefaultCacheLoaded = false;
 	}
 
+	/**
+	 * If the key is not found and if a binary cache file is mapped, then the entry is decoded
+	 * from the mapped file and added to the cache.
+	 */
 	@Override
 	public RigidFragmentCache.CacheEntry get(Object key) {
 		RigidFragmentCache.CacheEntry entry = super.get(key);
-		mGetCount++;
+		if (entry == null && mMappedCache != null && key instanceof String) {
+			entry = mMappedCache.getEntry((String)key);
+			if (entry != null)
+				put((String)key, entry);
+			}
+		mGetCount.increment();
 		if (entry != null) {
 			entry.incrementHitCount();
-			mHitCount++;
+			mHitCount.increment();
 			}
 		return entry;
 		}
 
 	public double getHitQuote() {
-		return (double)mHitCount/(double)mGetCount;
+		long getCount = mGetCount.sum();
+		return getCount == 0 ? 0.0 : (double)mHitCount.sum()/(double)getCount;
 		}
 
+	/**
+	 * @return hit count truncated to int; use getStatistics() for the full long value
+	 */
 	public int getHitCount() {
-		return mHitCount;
+		return mHitCount.intValue();
 		}
 
+	/**
+	 * @return request count truncated to int; use getStatistics() for the full long value
+	 */
 	public int getRequestCount() {
-		return mGetCount;
+		return mGetCount.intValue();
+		}
+
+	public long getMissCount() {
+		long hitCount = mHitCount.sum();	// read before the request count, which is incremented first
+		return mGetCount.sum() - hitCount;
 		}
 
+	/**
+	 * @return non-cachable count truncated to int; use getStatistics() for the full long value
+	 */
 	public int getNonCachableCount() {
-		return mNonCachableCount;
+		return mNonCachableCount.intValue();
+		}
+
+	public long getEvictionCount() {
+		return mEvictionCount.sum();
+		}
+
+	/**
+	 * @return roughly estimated memory footprint of all cache entries in bytes
+	 */
+	public long getMemoryEstimate() {
+		return mMemoryEstimate.get();
 		}
 
 	public void increaseNonCachableCount() {
-		mNonCachableCount++;
+		mNonCachableCount.increment();
 		}
 
+	/**
+	 * Resets all statistics counters. Cache entries and their individual hit counts are not touched.
+	 */
 	public void resetAllCounters() {
-		mNonCachableCount = 0;
-		mHitCount = 0;
-		mGetCount = 0;
+		mNonCachableCount.reset();
+		mHitCount.reset();
+		mGetCount.reset();
+		mPutCount.reset();
+		mEvictionCount.reset();
 		}
 
+	/**
+	 * Counters are read one after another without stopping concurrent cache access. Thus, while other threads
+	 * use the cache, the values may not exactly match each other, e.g. requests may include a few requests,
+	 * whose hits are not counted yet.
+	 * @return snapshot of all cache statistics, e.g. for exporting them to a monitoring system
+	 */
+	public Statistics getStatistics() {
+		return new Statistics(this);
+		}
+
+	/**
+	 * If more entries are put into the cache, then entries are evicted according to the eviction policy.
+	 * @param count maximum number of cache entries; 0 disables caching
+	 */
 	public void setMaxEntryCount(int count) {
 		mMaxEntryCount = count;
+		evictIfNeeded();
+		}
+
+	/**
+	 * Limits the memory footprint of the cache, which is estimated from coordinate and likelihood counts
+	 * of all entries. If the limit is exceeded, then entries are evicted according to the eviction policy.
+	 * @param bytes maximum estimated memory footprint of all cache entries
+	 */
+	public void setMaxMemory(long bytes) {
+		mMaxMemory = bytes;
+		evictIfNeeded();
+		}
+
+	/**
+	 * @param policy EVICTION_POLICY_LRU (default) or EVICTION_POLICY_LFU
+	 */
+	public void setEvictionPolicy(int policy) {
+		mEvictionPolicy = policy;
 		}
 
 	public boolean canAddEntry() {
-		return size() < mMaxEntryCount;
+		return mMaxEntryCount > 0;
 	}
 
 	@Override
 	public RigidFragmentCache.CacheEntry put(String key, RigidFragmentCache.CacheEntry cacheEntry) {
-		return (size() < mMaxEntryCount) ? super.put(key, cacheEntry) : null;
+		if (mMaxEntryCount <= 0)
+			return null;
+
+		cacheEntry.memoryEstimate = estimateMemory(key, cacheEntry);
+		cacheEntry.lastAccess = System.nanoTime();
+		RigidFragmentCache.CacheEntry oldEntry = super.put(key, cacheEntry);
+		mMemoryEstimate.addAndGet(cacheEntry.memoryEstimate - (oldEntry == null ? 0 : oldEntry.memoryEstimate));
+		mPutCount.increment();
+		evictIfNeeded();
+		return oldEntry;
 	}
 
+	@Override
+	public RigidFragmentCache.CacheEntry remove(Object key) {
+		RigidFragmentCache.CacheEntry oldEntry = super.remove(key);
+		if (oldEntry != null)
+			mMemoryEstimate.addAndGet(-oldEntry.memoryEstimate);
+		return oldEntry;
+	}
+
+	private static long estimateMemory(String key, RigidFragmentCache.CacheEntry entry) {
+		int atomCount = (entry.coordinates.length == 0) ? 0 : entry.coordinates[0].length;
+		return 96 + 2L * key.length()									// map node, key String
+			 + 48 + entry.coordinates.length * (16 + 40L * atomCount)	// entry, coordinate arrays, Coordinates
+			 + 16 + 8L * entry.likelihood.length;
+	}
+
+	private boolean isOverLimit() {
+		return size() > mMaxEntryCount || mMemoryEstimate.get() > mMaxMemory;
+	}
+
+	/**
+	 * If a limit is exceeded, then one thread evicts a batch of entries, which have been used least
+	 * recently (LRU) or least often (LFU). Other threads don't wait for the eviction to complete.
+	 */
+	private void evictIfNeeded() {
+		if (!isOverLimit() || !mEvictionLock.tryLock())
+			return;
+
+		try {
+			while (isOverLimit()) {
+				int size = size();
+				long[] score = new long[size];
+				int count = 0;
+				for (CacheEntry entry:values())
+					if (count < size)
+						score[count++] = getEvictionScore(entry);
+				if (count == 0)
+					break;
+
+				Arrays.sort(score, 0, count);
+				int evictionCount = Math.max(1, count / EVICTION_BATCH_DIVISOR);
+				if (count > mMaxEntryCount)
+					evictionCount = Math.max(evictionCount, count - mMaxEntryCount + mMaxEntryCount / EVICTION_BATCH_DIVISOR);
+				evictionCount = Math.min(evictionCount, count);
+				long threshold = score[evictionCount - 1];
+
+				int evicted = 0;
+				for (Map.Entry<String,CacheEntry> entry:entrySet()) {
+					if (evicted >= evictionCount)
+						break;
+					if (getEvictionScore(entry.getValue()) <= threshold
+					 && super.remove(entry.getKey(), entry.getValue())) {
+						mMemoryEstimate.addAndGet(-entry.getValue().memoryEstimate);
+						evicted++;
+						}
+					}
+				mEvictionCount.add(evicted);
+				if (evicted == 0)
+					break;
+				}
+			}
+		finally {
+			mEvictionLock.unlock();
+			}
+		}
+
+	private long getEvictionScore(CacheEntry entry) {
+		return (mEvictionPolicy == EVICTION_POLICY_LFU) ? entry.hitCount : entry.lastAccess;
+		}
+
 	/**
 	 * Writes for every distinct fragment: one idcode, multiple encoded coordinate sets, multiple conformer likelihoods
 	 * @param cacheFileName
 	 * @param minHits number of hits for a cache entry to be included in the cache file
 	 */
 	public boolean serializeCache(String cacheFileName, int minHits) {
+		return serializeCache(cacheFileName, minHits, false);
+	}
+
+	/**
+	 * Writes all cache entries with at least minHits hits into a text file or into a binary file.
+	 * Binary files contain a sorted key table and float coordinates. They can be memory-mapped by
+	 * loadCache() and are decoded lazily, which makes them the preferred option for conformer
+	 * generating workers. Entries of a mapped binary file, which were not requested yet, are not written.
+	 * @param cacheFileName
+	 * @param minHits number of hits for a cache entry to be included in the cache file
+	 * @param binary whether to write a binary file rather than a text file
+	 */
+	public boolean serializeCache(String cacheFileName, int minHits, boolean binary) {
+		if (binary) {
+			try {
+				MappedRigidFragmentCache.write(new File(cacheFileName), this, minHits);
+				return true;
+			} catch (IOException ex) {
+				ex.printStackTrace();
+				return false;
+			}
+		}
+
 		try{
 			BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(cacheFileName),"UTF-8"));
 			for (String key : keySet()) {
@@ -204,7 +408,10 @@ public class RigidFragmentCache extends ConcurrentHashMap<String, RigidFragmentC
 
 	/**
 	 * Loads pre-calculated rigid fragment coordinates from a cache file, which is either a text file
-	 * created by the createCacheFiles() method, or a zip archive of the text file.
+	 * created by the createCacheFiles() method, or a zip archive of the text file, or a binary file
+	 * written by serializeCache(cacheFileName, minHits, true). Binary files are memory-mapped rather
+	 * than loaded. Their entries are decoded and added to the cache, when they are first requested.
+	 * Only one binary file can be mapped at a time.
 	 * This method can be called multiple times to add conformer data from multiple sources.
 	 * If the method is called with a cacheFileNam, which was loaded before, then it is not loaded a second time.
 	 * @param cacheFileName text file or zipped text file with extension .zip
@@ -216,7 +423,15 @@ public class RigidFragmentCache extends ConcurrentHashMap<String, RigidFragmentC
 		if (!mSetOfLoadedCacheFiles.contains(cacheFileName)) {
 			try {
 				BufferedReader reader;
-				if (cacheFileName.endsWith(".zip")) {
+				if (MappedRigidFragmentCache.isBinaryCacheFile(new File(cacheFileName))) {
+					MappedRigidFragmentCache oldCache = mMappedCache;
+					mMappedCache = new MappedRigidFragmentCache(new File(cacheFileName));
+					if (oldCache != null)
+						oldCache.close();
+					mSetOfLoadedCacheFiles.add(cacheFileName);
+					return;
+				}
+				else if (cacheFileName.endsWith(".zip")) {
 					ZipInputStream zipStream = new ZipInputStream(new FileInputStream(cacheFileName));
 					zipStream.getNextEntry();
 					reader = new BufferedReader(new InputStreamReader(zipStream, StandardCharsets.UTF_8));
@@ -459,10 +674,62 @@ public class RigidFragmentCache extends ConcurrentHashMap<String, RigidFragmentC
 		return false;
 	}
 
+	/**
+	 * Snapshot of the cache's statistics counters.
+	 */
+	public static class Statistics {
+		public final long requestCount,hitCount,missCount,putCount,evictionCount,nonCachableCount,memoryEstimate;
+		public final int entryCount;
+
+		private Statistics(RigidFragmentCache cache) {
+			hitCount = cache.mHitCount.sum();	// read before the request count, which is incremented first
+			requestCount = cache.mGetCount.sum();
+			missCount = requestCount - hitCount;
+			putCount = cache.mPutCount.sum();
+			evictionCount = cache.mEvictionCount.sum();
+			nonCachableCount = cache.mNonCachableCount.sum();
+			memoryEstimate = cache.mMemoryEstimate.get();
+			entryCount = cache.size();
+		}
+
+		public double getHitQuote() {
+			return requestCount == 0 ? 0.0 : (double)hitCount/(double)requestCount;
+		}
+
+		/**
+		 * @return metric name to value map, e.g. for exporting to a monitoring system
+		 */
+		public TreeMap<String,Number> toMap() {
+			TreeMap<String,Number> map = new TreeMap<>();
+			map.put("requests", requestCount);
+			map.put("hits", hitCount);
+			map.put("misses", missCount);
+			map.put("puts", putCount);
+			map.put("evictions", evictionCount);
+			map.put("nonCachable", nonCachableCount);
+			map.put("entries", entryCount);
+			map.put("memoryEstimate", memoryEstimate);
+			map.put("hitQuote", getHitQuote());
+			return map;
+		}
+
+		@Override
+		public String toString() {
+			return "requests:"+requestCount+" hits:"+hitCount+" misses:"+missCount+" hit-rate:"+DoubleFormat.toString(getHitQuote(), 5, false)
+					+" puts:"+putCount+" evictions:"+evictionCount+" nonCachable:"+nonCachableCount
+					+" entries:"+entryCount+" memory:"+(memoryEstimate >> 20)+"MB";
+		}
+	}
+
 	public static class CacheEntry implements Comparable<CacheEntry> {
 		Coordinates[][] coordinates;
 		double[] likelihood;
-		int hitCount;
+		private static final AtomicIntegerFieldUpdater<CacheEntry> HIT_COUNT_UPDATER =
+				AtomicIntegerFieldUpdater.newUpdater(CacheEntry.class, "hitCount");
+
+		volatile int hitCount;
+		volatile long lastAccess;
+		long memoryEstimate;
 
 		public CacheEntry(Coordinates[][] coordinates, double[] likelihoods) {
 			this.coordinates = coordinates;
@@ -470,7 +737,8 @@ public class RigidFragmentCache extends ConcurrentHashMap<String, RigidFragmentC
 		}
 
 		public void incrementHitCount() {
-			hitCount++;
+			HIT_COUNT_UPDATER.incrementAndGet(this);
+			lastAccess = System.nanoTime();
 		}
 
 		@Override
@@ -0,0 +1,81 @@
+package com.actelion.research.chem;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class FingerprintPostingIndexTest {
+	private static final int CHUNK_SIZE = 65536;
+
+	/**
+	 * Bit 0 has the smaller total cardinality, but in chunk 0 it is a bitmap, while bit 1 is an array.
+	 */
+	@Test
+	public void testMixedContainersInChunk() {
+		long[][] fp = new long[2*CHUNK_SIZE][];
+		for (int row=0; row<fp.length; row++)
+			fp[row] = new long[1];
+		for (int row=0; row<10000; row++)
+			fp[row][0] |= 1L;
+		for (int row=0; row<3000; row++)
+			fp[row][0] |= 2L;
+		for (int row=CHUNK_SIZE; row<CHUNK_SIZE+20000; row++)
+			fp[row][0] |= 2L;
+
+		FingerprintPostingIndex index = new FingerprintPostingIndex(fp);
+		int[] expected = new int[3000];
+		for (int i=0; i<expected.length; i++)
+			expected[i] = i;
+		assertArrayEquals(expected, index.getCandidateRows(new long[] { 3L }));
+		assertArrayEquals(getCandidateRowsByScan(fp, new long[] { 3L }), index.getCandidateRows(new long[] { 3L }));
+		}
+
+	@Test
+	public void testRandomFingerprintsAgainstScan() {
+		Random random = new Random(1);
+		long[][] fp = new long[3*CHUNK_SIZE+1000][];
+		for (int row=0; row<fp.length; row++) {
+			if (row % 97 == 0)
+				continue;	// rows without fingerprint
+			fp[row] = new long[2];
+			int chunk = row / CHUNK_SIZE;
+			for (int bit=0; bit<128; bit++) {
+				// bit density varies between chunks, such that containers of the same bit differ in type
+				double density = ((bit + chunk) % 4 == 0) ? 0.5 : 0.02;
+				if (random.nextDouble() < density)
+					fp[row][bit/64] |= 1L << (bit%64);
+				}
+			}
+
+		FingerprintPostingIndex index = new FingerprintPostingIndex(fp);
+		for (int i=0; i<200; i++) {
+			long[] query = new long[2];
+			int bits = 1 + random.nextInt(3);
+			for (int j=0; j<bits; j++) {
+				int bit = random.nextInt(128);
+				query[bit/64] |= 1L << (bit%64);
+				}
+			assertArrayEquals(getCandidateRowsByScan(fp, query), index.getCandidateRows(query));
+			}
+		}
+
+	private static int[] getCandidateRowsByScan(long[][] fp, long[] query) {
+		int count = 0;
+		int[] row = new int[fp.length];
+		for (int i=0; i<fp.length; i++) {
+			if (fp[i] == null)
+				continue;
+			boolean isCandidate = true;
+			for (int j=0; j<query.length; j++)
+				if ((query[j] & ~fp[i][j]) != 0)
+					isCandidate = false;
+			if (isCandidate)
+				row[count++] = i;
+			}
+		int[] result = new int[count];
+		System.arraycopy(row, 0, result, 0, count);
+		return result;
+		}
+	}
@@ -0,0 +1,134 @@
+package com.actelion.research.chem;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IDCodeParserReuseTest {
+	private static final String[] SMILES = {
+		"c1ccccc1",
+		"c1ccc2ccccc2c1",
+		"c1ccncc1",
+		"c1cc[nH]c1",
+		"Cc1nc2ccccc2s1",
+		"c1ccc2c(c1)ccc1ccccc12",
+		"CC(=O)Oc1ccccc1C(=O)O",
+		"C",
+		"CCO",
+		"[Na+].[Cl-]",
+		"O=C([O-])c1ccccc1.[K+]"
+		};
+
+	/**
+	 * Molecules of alternating size and with or without metal bonds and delocalized bonds are parsed
+	 * into the same molecule, which therefore keeps larger neighbour arrays from previous molecules.
+	 */
+	@Test
+	public void testReusedMoleculeMatchesFreshParse() throws Exception {
+		ArrayList<String> idcodeList = new ArrayList<>();
+		for (String smiles:SMILES)
+			idcodeList.add(idcodeFromSmiles(smiles));
+		idcodeList.add(createMetalComplexIDCode(5, 26));	// ferrocene like sandwich with one ring
+		idcodeList.add(createMetalComplexIDCode(6, 24));
+		idcodeList.addAll(readIDCodes("/resources/toxpredictor/m3.txt", 500));
+
+		int metalBondCount = 0;
+		int delocalizedBondCount = 0;
+		StereoMolecule reused = new StereoMolecule();
+		IDCodeParser parser = new IDCodeParser(false);
+		for (int pass=0; pass<2; pass++) {
+			for (int i=0; i<idcodeList.size(); i++) {
+				// in the second pass alternate between the end and the start of the list to change sizes frequently
+				String idcode = idcodeList.get(pass == 0 ? i : (i & 1) == 0 ? i/2 : idcodeList.size()-1-i/2);
+				parser.parse(reused, idcode);
+				StereoMolecule fresh = new IDCodeParser(false).getCompactMolecule(idcode);
+				assertSameMolecule(idcode, fresh, reused);
+
+				for (int bond=0; bond<fresh.getAllBonds(); bond++) {
+					if (fresh.getBondType(bond) == Molecule.cBondTypeMetalLigand)
+						metalBondCount++;
+					if (fresh.isDelocalizedBond(bond))
+						delocalizedBondCount++;
+					}
+				}
+			}
+
+		assertTrue("no metal bonds tested", metalBondCount != 0);
+		assertTrue("no delocalized bonds tested", delocalizedBondCount != 0);
+		}
+
+	private static void assertSameMolecule(String idcode, StereoMolecule expected, StereoMolecule actual) {
+		expected.ensureHelperArrays(Molecule.cHelperRings);
+		actual.ensureHelperArrays(Molecule.cHelperRings);
+		assertEquals(idcode, expected.getAllAtoms(), actual.getAllAtoms());
+		assertEquals(idcode, expected.getAllBonds(), actual.getAllBonds());
+		assertEquals(idcode, expected.getAtoms(), actual.getAtoms());
+		assertEquals(idcode, expected.getBonds(), actual.getBonds());
+
+		for (int atom=0; atom<expected.getAllAtoms(); atom++) {
+			assertEquals(idcode, expected.getAtomicNo(atom), actual.getAtomicNo(atom));
+			assertEquals(idcode, expected.getAtomCharge(atom), actual.getAtomCharge(atom));
+			assertEquals(idcode, expected.getConnAtoms(atom), actual.getConnAtoms(atom));
+			assertEquals(idcode, expected.getAllConnAtoms(atom), actual.getAllConnAtoms(atom));
+			assertEquals(idcode, expected.getAllConnAtomsPlusMetalBonds(atom), actual.getAllConnAtomsPlusMetalBonds(atom));
+			assertEquals(idcode, expected.getMetalBondedConnAtoms(atom), actual.getMetalBondedConnAtoms(atom));
+			for (int i=0; i<expected.getAllConnAtomsPlusMetalBonds(atom); i++) {
+				assertEquals(idcode, expected.getConnAtom(atom, i), actual.getConnAtom(atom, i));
+				assertEquals(idcode, expected.getConnBond(atom, i), actual.getConnBond(atom, i));
+				assertEquals(idcode, expected.getConnBondOrder(atom, i), actual.getConnBondOrder(atom, i));
+				}
+			if (atom < expected.getAtoms()) {
+				assertEquals(idcode, expected.getAtomPi(atom), actual.getAtomPi(atom));
+				assertEquals(idcode, expected.isAromaticAtom(atom), actual.isAromaticAtom(atom));
+				assertEquals(idcode, expected.getAtomRingSize(atom), actual.getAtomRingSize(atom));
+				}
+			}
+
+		for (int bond=0; bond<expected.getAllBonds(); bond++) {
+			assertEquals(idcode, expected.getBondAtom(0, bond), actual.getBondAtom(0, bond));
+			assertEquals(idcode, expected.getBondAtom(1, bond), actual.getBondAtom(1, bond));
+			assertEquals(idcode, expected.getBondType(bond), actual.getBondType(bond));
+			assertEquals(idcode, expected.isAromaticBond(bond), actual.isAromaticBond(bond));
+			assertEquals(idcode, expected.isDelocalizedBond(bond), actual.isDelocalizedBond(bond));
+			}
+
+		assertEquals(idcode, new Canonizer(expected).getIDCode(), new Canonizer(actual).getIDCode());
+		}
+
+	private static String idcodeFromSmiles(String smiles) throws Exception {
+		StereoMolecule mol = new StereoMolecule();
+		new SmilesParser().parse(mol, smiles);
+		return new Canonizer(mol).getIDCode();
+		}
+
+	/**
+	 * @return idcode of an aromatic ring, whose atoms are all bound to one metal atom by metal ligand bonds
+	 */
+	private static String createMetalComplexIDCode(int ringSize, int metalAtomicNo) throws Exception {
+		StereoMolecule mol = new StereoMolecule();
+		new SmilesParser().parse(mol, ringSize == 5 ? "[cH-]1cccc1" : "c1ccccc1");
+		int ringAtoms = mol.getAllAtoms();
+		int metal = mol.addAtom(metalAtomicNo);
+		for (int atom=0; atom<ringAtoms; atom++)
+			mol.addBond(atom, metal, Molecule.cBondTypeMetalLigand);
+		return new Canonizer(mol).getIDCode();
+		}
+
+	private static ArrayList<String> readIDCodes(String resource, int maxCount) throws Exception {
+		ArrayList<String> idcodeList = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				IDCodeParserReuseTest.class.getResourceAsStream(resource), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null && idcodeList.size() < maxCount)
+				if (line.length() != 0)
+					idcodeList.add(line);
+			}
+		return idcodeList;
+		}
+	}